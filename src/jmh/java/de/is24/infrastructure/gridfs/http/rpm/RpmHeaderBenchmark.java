@@ -0,0 +1,65 @@
+package de.is24.infrastructure.gridfs.http.rpm;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.redline_rpm.ReadableChannelWrapper;
+import org.redline_rpm.Scanner;
+import org.redline_rpm.header.Header;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.nio.channels.Channels.newChannel;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+
+/**
+ * Compares reading the header of an rpm with {@link RpmHeader}, which decodes tags only when asked, with the
+ * full decode of redline's {@link Scanner}, and the conversion of an upload to its {@link YumPackage}.
+ * <p>
+ * Run with <code>mvn -Pjmh test-compile exec:exec -Djmh.args="RpmHeaderBenchmark -prof gc"</code> to see the
+ * allocations as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpmHeaderBenchmark {
+  private byte[] rpm;
+
+  @Setup
+  public void setUp() throws Exception {
+    try(InputStream inputStream = streamOf(COMPLEX_RPM_FILE_NAME)) {
+      rpm = IOUtils.toByteArray(inputStream);
+    }
+  }
+
+  @Benchmark
+  public RpmHeader lazyHeader() throws Exception {
+    return RpmHeader.read(new ByteArrayInputStream(rpm));
+  }
+
+  @Benchmark
+  public Header redlineHeader() throws Exception {
+    return new Scanner().run(new ReadableChannelWrapper(newChannel(new ByteArrayInputStream(rpm)))).getHeader();
+  }
+
+  @Benchmark
+  public YumPackage lazyHeaderToYumPackage() throws Exception {
+    RpmHeaderWrapper header = new RpmHeaderWrapper(RpmHeader.read(new ByteArrayInputStream(rpm)));
+    return new RpmHeaderToYumPackageConverter(header).convert();
+  }
+}
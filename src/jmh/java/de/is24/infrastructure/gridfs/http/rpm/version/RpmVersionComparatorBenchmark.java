@@ -0,0 +1,90 @@
+package de.is24.infrastructure.gridfs.http.rpm.version;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * Compares {@link RpmVersionComparator} with the former segment based comparison, once splitting the versions
+ * for every comparison and once with the segments cached, as the cleanup did.
+ * <p>
+ * Run with <code>mvn -Pjmh test-compile exec:exec</code>, add <code>-prof gc</code> to the jmh arguments to see
+ * the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpmVersionComparatorBenchmark {
+  private static final int PAIRS = 1024;
+  private static final String[] VERSIONS = {
+    "1.0", "1.0.1", "1.0.10", "1.0.2", "1.0~rc1", "1.0^git1", "2.4.6", "2.4.6.1", "0.9.8e", "0.9.8k",
+    "1.2.3-1.el6", "1.2.3-12.el6", "1.2.3-2.el7_1", "20150312git7a6d3f", "20150401", "3.10.0-327.el7",
+    "3.10.0-229.20.1.el7", "5.3.1.Final", "5.3.1.SP1", "1:1.8.2", "11.2.0.4", "11.2.0.4.p1", "2016a", "2016b"
+  };
+
+  private final RpmVersionComparator comparator = new RpmVersionComparator();
+  private final RpmVersionSegmentGenerator segmentGenerator = new RpmVersionSegmentGenerator();
+  private final RpmVersionSegmentComparator segmentComparator = new RpmVersionSegmentComparator();
+  private String[] versions1;
+  private String[] versions2;
+  private List<String>[] segments1;
+  private List<String>[] segments2;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    Random random = new Random(4711);
+    versions1 = new String[PAIRS];
+    versions2 = new String[PAIRS];
+    segments1 = new List[PAIRS];
+    segments2 = new List[PAIRS];
+    for (int i = 0; i < PAIRS; i++) {
+      versions1[i] = VERSIONS[random.nextInt(VERSIONS.length)];
+      versions2[i] = VERSIONS[random.nextInt(VERSIONS.length)];
+      segments1[i] = segmentGenerator.generate(versions1[i]);
+      segments2[i] = segmentGenerator.generate(versions2[i]);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public void charByChar(Blackhole blackhole) {
+    for (int i = 0; i < PAIRS; i++) {
+      blackhole.consume(comparator.compare(versions1[i], versions2[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public void segmentBased(Blackhole blackhole) {
+    for (int i = 0; i < PAIRS; i++) {
+      blackhole.consume(segmentComparator.compare(segmentGenerator.generate(versions1[i]),
+        segmentGenerator.generate(versions2[i])));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public void segmentBasedWithCachedSegments(Blackhole blackhole) {
+    for (int i = 0; i < PAIRS; i++) {
+      blackhole.consume(segmentComparator.compare(segments1[i], segments2[i]));
+    }
+  }
+}
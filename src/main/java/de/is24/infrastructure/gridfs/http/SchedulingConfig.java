@@ -1,5 +1,9 @@
 package de.is24.infrastructure.gridfs.http;
 
+import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RepoLeaseService;
 import de.is24.infrastructure.gridfs.http.monitoring.ActiveJobsValueProvider;
 import de.is24.infrastructure.gridfs.http.monitoring.PoolSizeValueProvider;
 import de.is24.infrastructure.gridfs.http.monitoring.QueueSizeValueProvider;
@@ -27,6 +31,15 @@ public class SchedulingConfig {
   @Value("${scheduler.poolSize:10}")
   int schedulerPoolSize;
 
+  @Value("${scheduler.generation.poolSize:4}")
+  int generationPoolSize;
+
+  @Value("${scheduler.generation.deadline.minutes:30}")
+  int generationDeadlineInMin;
+
+  @Value("${scheduler.generation.size.class.seconds:30}")
+  int generationSizeClassDelayInSec;
+
   @Autowired
   InApplicationMonitor inApplicationMonitor;
 
@@ -37,6 +50,14 @@ public class SchedulingConfig {
     return new DelegatingSecurityContextScheduledExecutorService(scheduledThreadPoolExecutor, getSecurityContext());
   }
 
+  @Bean
+  public MetadataGenerationExecutor metadataGenerationExecutor(MetadataService metadataService,
+                                                               YumEntriesHashCalculator entriesHashCalculator,
+                                                               RepoLeaseService leaseService) {
+    return new MetadataGenerationExecutor(metadataService, entriesHashCalculator, leaseService, inApplicationMonitor,
+      getSecurityContext(), generationPoolSize, generationDeadlineInMin, generationSizeClassDelayInSec);
+  }
+
   public SecurityContext getSecurityContext() {
     SecurityContext context = SecurityContextHolder.getContext();
     PreAuthenticatedAuthenticationToken authentication = new PreAuthenticatedAuthenticationToken(
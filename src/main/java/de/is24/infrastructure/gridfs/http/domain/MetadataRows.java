@@ -0,0 +1,50 @@
+package de.is24.infrastructure.gridfs.http.domain;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Ready to insert sqlite rows of one package, grouped by database and table.
+ * The pkgKey column is left out, because it depends on the generated database.
+ * The rows are computed whenever the package of an entry is created or regenerated and dropped whenever it is
+ * replaced, so they only count as long as they have the current layout.
+ */
+public class MetadataRows {
+  public static final int CURRENT_VERSION = 1;
+
+  private int version = CURRENT_VERSION;
+  private Map<String, Map<String, List<List<Object>>>> databases = new HashMap<>();
+
+  public int getVersion() {
+    return version;
+  }
+
+  public void setVersion(int version) {
+    this.version = version;
+  }
+
+  /**
+   * @return true, if the rows have the layout of the current generators
+   */
+  public boolean isCurrent() {
+    return version == CURRENT_VERSION;
+  }
+
+  public Map<String, List<List<Object>>> getRows(String database) {
+    return databases.get(database);
+  }
+
+  public void setRows(String database, Map<String, List<List<Object>>> rows) {
+    databases.put(database, rows);
+  }
+
+  public Map<String, Map<String, List<List<Object>>>> getDatabases() {
+    return databases;
+  }
+
+  public void setDatabases(Map<String, Map<String, List<List<Object>>>> databases) {
+    this.databases = databases;
+  }
+}
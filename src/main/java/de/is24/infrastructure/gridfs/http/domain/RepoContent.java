@@ -0,0 +1,68 @@
+package de.is24.infrastructure.gridfs.http.domain;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_CONTENT_COLLECTION;
+
+
+/**
+ * Order independent hash of the entries of a repository, maintained on every write.
+ */
+@Document(collection = REPO_CONTENT_COLLECTION)
+public class RepoContent {
+  public static final String HASH_KEY = "hash";
+  public static final String ENTRIES_KEY = "entries";
+  public static final String CHANGES_KEY = "changes";
+  public static final String INITIALIZED_KEY = "initialized";
+
+  @Id
+  private String repo;
+
+  private long hash;
+
+  private long entries;
+
+  private long changes;
+
+  private boolean initialized;
+
+  public String getRepo() {
+    return repo;
+  }
+
+  public void setRepo(String repo) {
+    this.repo = repo;
+  }
+
+  public long getHash() {
+    return hash;
+  }
+
+  public void setHash(long hash) {
+    this.hash = hash;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public void setEntries(long entries) {
+    this.entries = entries;
+  }
+
+  public long getChanges() {
+    return changes;
+  }
+
+  public void setChanges(long changes) {
+    this.changes = changes;
+  }
+
+  public boolean isInitialized() {
+    return initialized;
+  }
+
+  public void setInitialized(boolean initialized) {
+    this.initialized = initialized;
+  }
+}
@@ -0,0 +1,50 @@
+package de.is24.infrastructure.gridfs.http.domain;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import java.util.Date;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_LEASE_COLLECTION;
+
+
+/**
+ * Claim of a generation on a server node to generate the metadata of a repository. The owner is the node
+ * followed by a token of the generation. Expired leases may be taken over by any node.
+ */
+@Document(collection = REPO_LEASE_COLLECTION)
+public class RepoLease {
+  public static final String OWNER_KEY = "owner";
+  public static final String EXPIRES_AT_KEY = "expiresAt";
+
+  @Id
+  private String repo;
+
+  private String owner;
+
+  @Indexed(expireAfterSeconds = 0)
+  private Date expiresAt;
+
+  public String getRepo() {
+    return repo;
+  }
+
+  public void setRepo(String repo) {
+    this.repo = repo;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
+  public Date getExpiresAt() {
+    return expiresAt;
+  }
+
+  public void setExpiresAt(Date expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+}
@@ -0,0 +1,52 @@
+package de.is24.infrastructure.gridfs.http.domain;
+
+import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import java.util.Date;
+import java.util.List;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPODATA_ARTIFACTS_COLLECTION;
+
+
+/**
+ * Repodata files generated for a set of packages identified by the hash of its entries and the layout version of the
+ * generated files.
+ */
+@Document(collection = REPODATA_ARTIFACTS_COLLECTION)
+public class RepodataArtifacts {
+  public static final int EXPIRE_AFTER_SECONDS = 24 * 60 * 60;
+
+  @Id
+  private String hashOfEntries;
+
+  private String repo;
+
+  private List<Data> data;
+
+  @Indexed(expireAfterSeconds = EXPIRE_AFTER_SECONDS)
+  private Date createdAt;
+
+  public RepodataArtifacts(String hashOfEntries, String repo, List<Data> data, Date createdAt) {
+    this.hashOfEntries = hashOfEntries;
+    this.repo = repo;
+    this.data = data;
+    this.createdAt = createdAt;
+  }
+
+  public String getHashOfEntries() {
+    return hashOfEntries;
+  }
+
+  public String getRepo() {
+    return repo;
+  }
+
+  public List<Data> getData() {
+    return data;
+  }
+
+  public Date getCreatedAt() {
+    return createdAt;
+  }
+}
@@ -3,23 +3,37 @@ package de.is24.infrastructure.gridfs.http.domain;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.rpm.version.VersionSortKey.sortKey;
 
 
 @Document(collection = YUM_ENTRY_COLLECTION)
+@CompoundIndexes(
+  {
+    @CompoundIndex(
+      name = "repo_name_arch_version",
+      def = "{'repo': 1, 'yumPackage.name': 1, 'yumPackage.arch': 1, 'versionSortKey': 1}"
+    ),
+    @CompoundIndex(name = "repo_build_time", def = "{'repo': 1, 'yumPackage.time.build': 1}")
+  }
+)
 public class YumEntry {
   @Id
   private ObjectId id;
   private YumPackage yumPackage;
   @Indexed
   private String repo;
+  private MetadataRows metadataRows;
+  private String versionSortKey;
 
   public YumEntry(ObjectId id, String repo, YumPackage yumPackage) {
     this.id = id;
     this.repo = repo;
-    this.yumPackage = yumPackage;
+    setYumPackage(yumPackage);
   }
 
   public String getRepo() {
@@ -34,8 +48,29 @@ public class YumEntry {
     return yumPackage;
   }
 
+  /**
+   * Replaces the package and drops the metadata rows precomputed from the previous one.
+   */
   public void setYumPackage(YumPackage yumPackage) {
     this.yumPackage = yumPackage;
+    this.metadataRows = null;
+    this.versionSortKey = ((yumPackage == null) || (yumPackage.getVersion() == null))
+      ? null : sortKey(yumPackage.getVersion());
+  }
+
+  /**
+   * @return key of the package version whose binary order is the rpm version order
+   */
+  public String getVersionSortKey() {
+    return versionSortKey;
+  }
+
+  public MetadataRows getMetadataRows() {
+    return metadataRows;
+  }
+
+  public void setMetadataRows(MetadataRows metadataRows) {
+    this.metadataRows = metadataRows;
   }
 
   public ObjectId getId() {
@@ -1,5 +1,6 @@
 package de.is24.infrastructure.gridfs.http.domain.yum;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
@@ -22,7 +23,16 @@ public class YumPackage {
   private YumPackageSize size;
   private YumPackageLocation location;
   private YumPackageFormat packageFormat;
+
+  /**
+   * changelogs and files are stored beside the entry and are null unless loaded, see YumEntryDetailsStore
+   */
   private List<YumPackageChangeLog> changeLogs;
+  private YumPackageFiles packageFiles;
+
+  /**
+   * files of entries stored before {@link YumPackageFiles}, converted on first access
+   */
   private YumPackageDir[] packageDirs;
 
   public String getName() {
@@ -129,14 +139,36 @@ public class YumPackage {
     this.changeLogs = changeLogs;
   }
 
+  @JsonIgnore
+  public YumPackageFiles getPackageFiles() {
+    if ((packageFiles == null) && (packageDirs != null)) {
+      packageFiles = YumPackageFiles.of(packageDirs);
+      packageDirs = null;
+    }
+    return packageFiles;
+  }
+
+  public void setPackageFiles(final YumPackageFiles packageFiles) {
+    this.packageFiles = packageFiles;
+    this.packageDirs = null;
+  }
+
+  /**
+   * @return the files with an object per file, built on each call, generators should use {@link #getPackageFiles()}
+   */
   public YumPackageDir[] getPackageDirs() {
-    return packageDirs;
+    YumPackageFiles files = getPackageFiles();
+    return (files == null) ? null : files.toPackageDirs();
   }
 
   public void setPackageDirs(final YumPackageDir[] packageDirs) {
-    this.packageDirs = packageDirs;
+    setPackageFiles((packageDirs == null) ? null : YumPackageFiles.of(packageDirs));
   }
 
+  /**
+   * Compares the fields as stored, without converting legacy files, so comparing or printing a package never
+   * changes it.
+   */
   @Override
   public boolean equals(final Object o) {
     if (this == o) {
@@ -160,6 +192,7 @@ public class YumPackage {
       .append(location, other.location)
       .append(packageFormat, other.packageFormat)
       .append(changeLogs, other.changeLogs)
+      .append(packageFiles, other.packageFiles)
       .append(packageDirs, other.packageDirs)
       .isEquals();
   }
@@ -179,6 +212,7 @@ public class YumPackage {
       .append(location)
       .append(packageFormat)
       .append(changeLogs)
+      .append(packageFiles)
       .append(packageDirs)
       .toHashCode();
   }
@@ -198,6 +232,7 @@ public class YumPackage {
       .append(location)
       .append(packageFormat)
       .append(changeLogs)
+      .append(packageFiles)
       .append(packageDirs)
       .toString();
   }
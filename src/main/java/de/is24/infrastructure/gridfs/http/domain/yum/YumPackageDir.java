@@ -1,5 +1,9 @@
 package de.is24.infrastructure.gridfs.http.domain.yum;
 
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,4 +27,27 @@ public class YumPackageDir {
   public void setName(String name) {
     this.name = name;
   }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if ((o == null) || (getClass() != o.getClass())) {
+      return false;
+    }
+
+    final YumPackageDir other = (YumPackageDir) o;
+    return new EqualsBuilder().append(name, other.name).append(files, other.files).isEquals();
+  }
+
+  @Override
+  public int hashCode() {
+    return new HashCodeBuilder(17, 37).append(name).append(files).toHashCode();
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append(name).append(files).toString();
+  }
 }
@@ -1,10 +1,18 @@
 package de.is24.infrastructure.gridfs.http.domain.yum;
 
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+
 public enum YumPackageFileType {
   FILE("f", 2),
   DIR("d", 1),
   GHOST("g", 0);
 
+  private static final List<YumPackageFileType> IN_FILELISTS_ORDER = unmodifiableList(asList(GHOST, DIR, FILE));
+
   private final String typeChar;
   private final int filelistsOrder;
 
@@ -20,4 +28,11 @@ public enum YumPackageFileType {
   public Integer getFilelistsOrder() {
     return filelistsOrder;
   }
+
+  /**
+   * @return the types in the order the files of a directory are listed in the filelists metadata
+   */
+  public static List<YumPackageFileType> inFilelistsOrder() {
+    return IN_FILELISTS_ORDER;
+  }
 }
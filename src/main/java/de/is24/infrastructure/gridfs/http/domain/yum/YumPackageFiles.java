@@ -0,0 +1,281 @@
+package de.is24.infrastructure.gridfs.http.domain.yum;
+
+import org.springframework.data.annotation.Transient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.DIR;
+import static org.apache.commons.lang.StringUtils.removeEnd;
+
+
+/**
+ * The files of a package in a few arrays instead of an object per file: a table of the directories, the number of
+ * files per directory, the base names of all files in one string separated by slashes, which can't be part of a base
+ * name, and the type chars of all files in one byte array. The files are grouped by directory and keep the order of
+ * the rpm within a directory, the filelists generators sort them by {@link YumPackageFileType#inFilelistsOrder()}.
+ * Generators write the names right from the name block, see {@link #appendName(int, int, StringBuilder)}.
+ */
+public class YumPackageFiles {
+  private static final char NAME_SEPARATOR = '/';
+  private static final byte DIR_TYPE_CHAR = (byte) DIR.getTypeChar().charAt(0);
+
+  private String[] dirs;
+  private int[] fileCounts;
+  private String names;
+  private byte[] types;
+
+  @Transient
+  private volatile int[] firstFiles;
+  @Transient
+  private volatile int[] nameStarts;
+
+  // default constructor for mongo mapping
+  YumPackageFiles() {
+  }
+
+  private YumPackageFiles(String[] dirs, int[] fileCounts, String names, byte[] types) {
+    this.dirs = dirs;
+    this.fileCounts = fileCounts;
+    this.names = names;
+    this.types = types;
+  }
+
+  /**
+   * @param dirs directories as in the rpm, with trailing slash
+   * @param dirIndexes index of the directory of each file
+   * @param baseNames base name of each file
+   * @param fileTypes type of each file
+   */
+  public static YumPackageFiles of(String[] dirs, int[] dirIndexes, String[] baseNames,
+                                   YumPackageFileType[] fileTypes) {
+    int[] fileCounts = new int[dirs.length];
+    for (int file = 0; file < baseNames.length; file++) {
+      fileCounts[dirIndexes[file]]++;
+    }
+
+    int[] dirEnds = new int[dirs.length];
+    for (int dir = 1; dir < dirs.length; dir++) {
+      dirEnds[dir] = dirEnds[dir - 1] + fileCounts[dir - 1];
+    }
+
+    int[] order = new int[baseNames.length];
+    for (int file = 0; file < baseNames.length; file++) {
+      order[dirEnds[dirIndexes[file]]++] = file;
+    }
+
+    StringBuilder names = new StringBuilder(baseNames.length * 16);
+    byte[] types = new byte[baseNames.length];
+    for (int i = 0; i < order.length; i++) {
+      String baseName = baseNames[order[i]];
+      if (baseName.indexOf(NAME_SEPARATOR) >= 0) {
+        throw new IllegalArgumentException("File name " + baseName + " contains " + NAME_SEPARATOR);
+      }
+      if (i > 0) {
+        names.append(NAME_SEPARATOR);
+      }
+      names.append(baseName);
+      types[i] = (byte) fileTypes[order[i]].getTypeChar().charAt(0);
+    }
+    return new YumPackageFiles(dirs, fileCounts, names.toString(), types);
+  }
+
+  /**
+   * Converts the files of entries stored with an object per file.
+   */
+  public static YumPackageFiles of(YumPackageDir[] packageDirs) {
+    int fileCount = 0;
+    for (YumPackageDir packageDir : packageDirs) {
+      fileCount += packageDir.getFiles().size();
+    }
+
+    String[] dirs = new String[packageDirs.length];
+    int[] dirIndexes = new int[fileCount];
+    String[] baseNames = new String[fileCount];
+    YumPackageFileType[] fileTypes = new YumPackageFileType[fileCount];
+    int file = 0;
+    for (int dir = 0; dir < packageDirs.length; dir++) {
+      List<YumPackageFile> files = packageDirs[dir].getFiles();
+      dirs[dir] = files.isEmpty() ? withTrailingSlash(packageDirs[dir].getName()) : files.get(0).getDir();
+      for (YumPackageFile packageFile : files) {
+        dirIndexes[file] = dir;
+        baseNames[file] = rawName(packageFile);
+        fileTypes[file] = packageFile.getType();
+        file++;
+      }
+    }
+    return of(dirs, dirIndexes, baseNames, fileTypes);
+  }
+
+  private static String withTrailingSlash(String dir) {
+    return dir.endsWith("/") ? dir : (dir + "/");
+  }
+
+  private static String rawName(YumPackageFile file) {
+    String name = file.getName();
+    return ((name == null) || ((file.getType() == DIR) && name.equals(file.getDir()))) ? "" : name;
+  }
+
+  public int getDirCount() {
+    return dirs.length;
+  }
+
+  /**
+   * @return the directory as in the rpm, with trailing slash
+   */
+  public String getDir(int dir) {
+    return dirs[dir];
+  }
+
+  /**
+   * @return the directory without trailing slash, except for the root directory
+   */
+  public String getDirName(int dir) {
+    return (dirs[dir].length() > 1) ? removeEnd(dirs[dir], "/") : dirs[dir];
+  }
+
+  public int getFirstFile(int dir) {
+    return firstFiles()[dir];
+  }
+
+  public int getFileCount(int dir) {
+    return fileCounts[dir];
+  }
+
+  public int size() {
+    return types.length;
+  }
+
+  public YumPackageFileType getType(int file) {
+    return typeOf(types[file]);
+  }
+
+  /**
+   * Appends the name of a file of the directory like {@link YumPackageFile#getName()}, the directory itself for a
+   * directory entry without base name, without copying the name out of the name block first.
+   */
+  public StringBuilder appendName(int dir, int file, StringBuilder target) {
+    int[] starts = nameStarts();
+    int end = starts[file + 1] - 1;
+    if ((starts[file] == end) && (types[file] == DIR_TYPE_CHAR)) {
+      return target.append(dirs[dir]);
+    }
+    return target.append(names, starts[file], end);
+  }
+
+  /**
+   * Appends the full path of a file of the directory.
+   */
+  public StringBuilder appendPath(int dir, int file, StringBuilder target) {
+    int[] starts = nameStarts();
+    return target.append(dirs[dir]).append(names, starts[file], starts[file + 1] - 1);
+  }
+
+  /**
+   * @return true, if the file of the directory has the given full path
+   */
+  public boolean hasPath(int dir, int file, String path) {
+    int[] starts = nameStarts();
+    int nameLength = starts[file + 1] - 1 - starts[file];
+    return (path.length() == (dirs[dir].length() + nameLength)) && path.startsWith(dirs[dir]) &&
+      path.regionMatches(dirs[dir].length(), names, starts[file], nameLength);
+  }
+
+  /**
+   * Fills the given file with directory, name and type of the file at the index. Only for views, generators write
+   * the names with {@link #appendName(int, int, StringBuilder)} instead of an object per file.
+   */
+  YumPackageFile readFile(int dir, int file, YumPackageFile target) {
+    int[] starts = nameStarts();
+    target.setDir(dirs[dir]);
+    target.setName(names.substring(starts[file], starts[file + 1] - 1));
+    target.setType(typeOf(types[file]));
+    return target;
+  }
+
+  /**
+   * @return the files with an object per file, for views
+   */
+  public YumPackageDir[] toPackageDirs() {
+    YumPackageDir[] packageDirs = new YumPackageDir[dirs.length];
+    for (int dir = 0; dir < dirs.length; dir++) {
+      List<YumPackageFile> files = new ArrayList<>(fileCounts[dir]);
+      int firstFile = getFirstFile(dir);
+      for (int file = firstFile; file < (firstFile + fileCounts[dir]); file++) {
+        files.add(readFile(dir, file, new YumPackageFile()));
+      }
+      packageDirs[dir] = new YumPackageDir();
+      packageDirs[dir].setName(getDirName(dir));
+      packageDirs[dir].setFiles(files);
+    }
+    return packageDirs;
+  }
+
+  private static YumPackageFileType typeOf(byte typeChar) {
+    switch (typeChar) {
+      case 'f':
+        return YumPackageFileType.FILE;
+      case 'd':
+        return DIR;
+      case 'g':
+        return YumPackageFileType.GHOST;
+      default:
+        throw new IllegalStateException("Unknown file type " + (char) typeChar);
+    }
+  }
+
+  private int[] firstFiles() {
+    int[] starts = firstFiles;
+    if (starts == null) {
+      starts = new int[dirs.length];
+      for (int dir = 1; dir < dirs.length; dir++) {
+        starts[dir] = starts[dir - 1] + fileCounts[dir - 1];
+      }
+      firstFiles = starts;
+    }
+    return starts;
+  }
+
+  /**
+   * @return start of each name in the names and, at the end, the length of the names plus one
+   */
+  private int[] nameStarts() {
+    int[] starts = nameStarts;
+    if (starts == null) {
+      starts = new int[types.length + 1];
+      int file = 1;
+      for (int i = 0; (i < names.length()) && (file < types.length); i++) {
+        if (names.charAt(i) == NAME_SEPARATOR) {
+          starts[file++] = i + 1;
+        }
+      }
+      starts[types.length] = names.length() + 1;
+      nameStarts = starts;
+    }
+    return starts;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if ((o == null) || (getClass() != o.getClass())) {
+      return false;
+    }
+
+    YumPackageFiles other = (YumPackageFiles) o;
+    return Arrays.equals(dirs, other.dirs) && Arrays.equals(fileCounts, other.fileCounts) &&
+      names.equals(other.names) && Arrays.equals(types, other.types);
+  }
+
+  @Override
+  public int hashCode() {
+    return (31 * Arrays.hashCode(dirs)) + names.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "YumPackageFiles[" + types.length + " files in " + dirs.length + " dirs]";
+  }
+}
@@ -0,0 +1,10 @@
+package de.is24.infrastructure.gridfs.http.exception;
+
+/**
+ * Thrown from the checkpoints of a metadata generation, that was cancelled or exceeded its deadline.
+ */
+public class GenerationCancelledException extends RuntimeException {
+  public GenerationCancelledException(final String reponame, final String reason) {
+    super("Metadata generation for repository '" + reponame + "' stopped: " + reason);
+  }
+}
@@ -0,0 +1,29 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RunningGeneration;
+import org.apache.commons.io.output.ProxyOutputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Reaches a checkpoint of the running generation after every chunk of written bytes,
+ * so that long uploads can be cancelled.
+ */
+class CheckpointOutputStream extends ProxyOutputStream {
+  static final int CHECKPOINT_INTERVAL = 1024 * 1024;
+
+  private long bytesUntilCheckpoint = CHECKPOINT_INTERVAL;
+
+  CheckpointOutputStream(OutputStream outputStream) {
+    super(outputStream);
+  }
+
+  @Override
+  protected void beforeWrite(int n) {
+    bytesUntilCheckpoint -= n;
+    if (bytesUntilCheckpoint <= 0) {
+      bytesUntilCheckpoint = CHECKPOINT_INTERVAL;
+      RunningGeneration.checkpoint();
+    }
+  }
+}
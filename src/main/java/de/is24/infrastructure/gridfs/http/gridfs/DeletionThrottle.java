@@ -0,0 +1,116 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.mongo.ReplicationLagMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+
+/**
+ * Paces the removal of files by the replication lag: batches grow and pauses shrink while the secondaries
+ * keep up, and both back off as soon as the lag exceeds its target or eats into the oplog window.
+ */
+@ManagedResource
+@Service
+public class DeletionThrottle {
+  private static final Logger LOG = LoggerFactory.getLogger(DeletionThrottle.class);
+  private static final long MB = 1024 * 1024;
+  private static final long MIN_PAUSE_MILLIS = 100;
+  private static final int OPLOG_WINDOW_SHARE = 10;
+
+  private final ReplicationLagMonitor lagMonitor;
+  private final long targetLagMillis;
+  private final int maxBatchFiles;
+  private final long maxBatchBytes;
+  private final long maxPauseMillis;
+
+  private volatile int batchFiles;
+  private volatile long batchBytes;
+  private volatile long pauseMillis;
+  private volatile long lastLagMillis;
+  private final AtomicLong backOffs = new AtomicLong();
+
+  @Autowired
+  public DeletionThrottle(ReplicationLagMonitor lagMonitor,
+                          @Value("${scheduler.delete.files.lag.target.ms:10000}") long targetLagMillis,
+                          @Value("${scheduler.delete.files.batch.max.files:500}") int maxBatchFiles,
+                          @Value("${scheduler.delete.files.batch.max.mb:512}") int maxBatchMb,
+                          @Value("${scheduler.delete.files.pause.max.ms:60000}") long maxPauseMillis) {
+    this.lagMonitor = lagMonitor;
+    this.targetLagMillis = targetLagMillis;
+    this.maxBatchFiles = maxBatchFiles;
+    this.maxBatchBytes = maxBatchMb * MB;
+    this.maxPauseMillis = maxPauseMillis;
+
+    // start carefully, the first batches show what the replica set is able to follow
+    this.batchFiles = max(1, maxBatchFiles / 8);
+    this.batchBytes = max(MB, maxBatchBytes / 8);
+    this.pauseMillis = MIN_PAUSE_MILLIS;
+  }
+
+  /**
+   * Adapts to the current replication lag and waits before the next batch.
+   *
+   * @return false, if interrupted while waiting
+   */
+  public boolean pause() {
+    adapt(lagMonitor.getReplicationLagMillis(), lagMonitor.getOplogWindowSeconds());
+    try {
+      Thread.sleep(pauseMillis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  synchronized void adapt(long lagMillis, long oplogWindowSeconds) {
+    lastLagMillis = lagMillis;
+    boolean oplogAtRisk = (oplogWindowSeconds > 0) &&
+      (lagMillis > ((oplogWindowSeconds * 1000) / OPLOG_WINDOW_SHARE));
+    if ((lagMillis > targetLagMillis) || oplogAtRisk) {
+      batchFiles = max(1, batchFiles / 2);
+      batchBytes = max(MB, batchBytes / 2);
+      pauseMillis = min(maxPauseMillis, pauseMillis * 2);
+      backOffs.incrementAndGet();
+      LOG.info("Replication lag of {} ms, deleting at most {} files per batch with {} ms pause.", lagMillis,
+        batchFiles, pauseMillis);
+    } else if (lagMillis < (targetLagMillis / 2)) {
+      batchFiles = min(maxBatchFiles, batchFiles * 2);
+      batchBytes = min(maxBatchBytes, batchBytes * 2);
+      pauseMillis = max(MIN_PAUSE_MILLIS, pauseMillis / 2);
+    }
+  }
+
+  @ManagedAttribute(description = "maximum number of files removed in the next batch")
+  public int getBatchFiles() {
+    return batchFiles;
+  }
+
+  @ManagedAttribute(description = "maximum number of bytes removed in the next batch")
+  public long getBatchBytes() {
+    return batchBytes;
+  }
+
+  @ManagedAttribute(description = "pause in ms between two batches")
+  public long getPauseMillis() {
+    return pauseMillis;
+  }
+
+  @ManagedAttribute(description = "replication lag in ms measured after the last batch")
+  public long getLastLagMillis() {
+    return lastLagMillis;
+  }
+
+  @ManagedAttribute(description = "number of times the deletion slowed down because of replication lag")
+  public long getBackOffs() {
+    return backOffs.get();
+  }
+}
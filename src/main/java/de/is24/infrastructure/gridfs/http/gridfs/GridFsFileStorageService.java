@@ -2,21 +2,23 @@ package de.is24.infrastructure.gridfs.http.gridfs;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
 import com.mongodb.gridfs.GridFSInputFile;
-import com.mongodb.gridfs.GridFSUtil;
 import de.is24.infrastructure.gridfs.http.exception.BadRangeRequestException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileAlreadyExistsException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
+import de.is24.infrastructure.gridfs.http.storage.ContentWriter;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.infrastructure.gridfs.http.storage.UploadResult;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,14 +43,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import static com.mongodb.gridfs.GridFSUtil.mergeMetaData;
 import static com.mongodb.gridfs.GridFSUtil.remove;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY_REPO_DATA;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.FILENAME_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MARKED_AS_DELETED_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_ARCH_KEY;
@@ -56,6 +62,7 @@ import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADAT
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_REPO_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_UPLOAD_DATE_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.RPM_HEADER_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.SHA256_KEY;
 import static de.is24.infrastructure.gridfs.http.security.Permission.HAS_DESCRIPTOR_READ_PERMISSION;
 import static java.lang.String.format;
@@ -65,6 +72,7 @@ import static org.apache.commons.codec.binary.Hex.encodeHexString;
 import static org.apache.commons.codec.digest.DigestUtils.getSha256Digest;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.commons.io.IOUtils.copy;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 import static org.springframework.data.mongodb.core.query.Update.update;
 import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
@@ -79,19 +87,30 @@ public class GridFsFileStorageService implements FileStorageService {
   public static final String CONTENT_TYPE_APPLICATION_X_RPM = "application/x-rpm";
   public static final String CONTENT_TYPE_APPLICATION_X_GPG = "application/x-gpg";
   private static final String BZ2_CONTENT_TYPE = new MediaType("application", "x-bzip2").toString();
+  private static final String GZIP_CONTENT_TYPE = new MediaType("application", "x-gzip").toString();
+  private static final String SQLITE_BZ2_EXTENSION = ".sqlite.bz2";
+  private static final String XML_GZ_EXTENSION = ".xml.gz";
   private static final String ENDS_WITH_RPM_REGEX = ".*\\.rpm$";
-  private static final int MB = 1024 * 1024;
-  private static final int FIVE_MB = 5 * MB;
+  private static final String ENDS_WITH_COMPRESSED_REPODATA_REGEX = "(\\.sqlite\\.bz2|\\.xml\\.gz)$";
+  private static final String ID_KEY = "_id";
+  private static final String LENGTH_KEY = "length";
+  private static final String FILES_ID_KEY = "files_id";
+  private static final String UPLOAD_DATE_KEY = "uploadDate";
+  private static final String METADATA_KEY = "metadata";
+  private static final int COPY_BATCH_CHUNKS = 16;
 
   private final GridFS gridFs;
   private final GridFsOperations gridFsTemplate;
   private final MongoTemplate mongoTemplate;
+  private final DeletionThrottle deletionThrottle;
 
   @Autowired
-  public GridFsFileStorageService(GridFS gridFs, GridFsOperations gridFsTemplate, MongoTemplate mongoTemplate) {
+  public GridFsFileStorageService(GridFS gridFs, GridFsOperations gridFsTemplate, MongoTemplate mongoTemplate,
+                                  DeletionThrottle deletionThrottle) {
     this.gridFs = gridFs;
     this.gridFsTemplate = gridFsTemplate;
     this.mongoTemplate = mongoTemplate;
+    this.deletionThrottle = deletionThrottle;
 
     setupIndices();
   }
@@ -132,6 +151,7 @@ public class GridFsFileStorageService implements FileStorageService {
   @Override
   public void delete(FileStorageItem storageItem) {
     remove(((GridFsFileStorageItem) storageItem).getDbFile());
+    mongoTemplate.getCollection(RPM_HEADER_COLLECTION).remove(new BasicDBObject(ID_KEY, storageItem.getId()));
   }
 
   @Override
@@ -152,11 +172,92 @@ public class GridFsFileStorageService implements FileStorageService {
     dbFile.save();
   }
 
+  /**
+   * Copies the chunk documents to a new file in batches, so the content is neither decompressed nor hashed and
+   * chunked again. The file document is inserted after its chunks, so the copy is never read without content.
+   */
   @Override
-  public List<FileStorageItem> getAllRpms() {
-    return convert(gridFs.find(query(
-        whereFilename().regex(ENDS_WITH_RPM_REGEX)
-        .and(METADATA_MARKED_AS_DELETED_KEY).is(null)).getQueryObject()));
+  @MongoTx
+  public FileStorageItem copyTo(FileStorageItem storageItem, FileDescriptor destination) {
+    GridFSDBFile source = ((GridFsFileStorageItem) storageItem).getDbFile();
+    List<GridFSDBFile> existingDbFiles = findAllBy(destination);
+    ObjectId copyId = new ObjectId();
+
+    DBCollection chunksCollection = mongoTemplate.getCollection(GRIDFS_CHUNKS_COLLECTION);
+    List<DBObject> batch = new ArrayList<>(COPY_BATCH_CHUNKS);
+    try(DBCursor chunks = chunksCollection.find(new BasicDBObject(FILES_ID_KEY, source.getId()))) {
+      while (chunks.hasNext()) {
+        DBObject chunk = chunks.next();
+        chunk.removeField(ID_KEY);
+        chunk.put(FILES_ID_KEY, copyId);
+        batch.add(chunk);
+        if (batch.size() == COPY_BATCH_CHUNKS) {
+          chunksCollection.insert(batch);
+          batch.clear();
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      chunksCollection.insert(batch);
+    }
+
+    DBObject file = new BasicDBObject();
+    source.keySet().forEach(key -> file.put(key, source.get(key)));
+    file.put(ID_KEY, copyId);
+    file.put(FILENAME_KEY, destination.getPath());
+    file.put(UPLOAD_DATE_KEY, new Date());
+    file.put(METADATA_KEY, createBasicMetaDataObject(destination, storageItem.getChecksumSha256()));
+    mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION).insert(file);
+
+    existingDbFiles.forEach(e -> remove(e));
+    return findById(copyId);
+  }
+
+  @Override
+  public List<FileStorageItem> getRpmsAfter(Object lastId, int limit) {
+    Criteria criteria = whereFilename().regex(ENDS_WITH_RPM_REGEX).and(METADATA_MARKED_AS_DELETED_KEY).is(null);
+    if (lastId != null) {
+      criteria = criteria.and(ID_KEY).gt(lastId);
+    }
+
+    List<Object> ids = new ArrayList<>();
+    try(DBCursor files = mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION)
+        .find(query(criteria).getQueryObject(), new BasicDBObject(ID_KEY, 1))
+        .sort(new BasicDBObject(ID_KEY, 1))
+        .limit(limit)) {
+      while (files.hasNext()) {
+        ids.add(files.next().get(ID_KEY));
+      }
+    }
+    if (ids.isEmpty()) {
+      return new ArrayList<>();
+    }
+    return convert(gridFs.find(new BasicDBObject(ID_KEY, new BasicDBObject("$in", ids)),
+      new BasicDBObject(ID_KEY, 1)));
+  }
+
+  @Override
+  public byte[] readPrefix(FileStorageItem storageItem, long length) {
+    GridFSDBFile dbFile = ((GridFsFileStorageItem) storageItem).getDbFile();
+    int size = (int) Math.min(length, dbFile.getLength());
+    long chunkSize = dbFile.getChunkSize();
+    byte[] prefix = new byte[size];
+    if (size == 0) {
+      return prefix;
+    }
+
+    DBObject chunksQuery = new BasicDBObject(FILES_ID_KEY, dbFile.getId())
+      .append("n", new BasicDBObject("$lte", (int) ((size - 1) / chunkSize)));
+    try(DBCursor chunks = mongoTemplate.getCollection(GRIDFS_CHUNKS_COLLECTION).find(chunksQuery)
+        .sort(new BasicDBObject("n", 1))) {
+      while (chunks.hasNext()) {
+        DBObject chunk = chunks.next();
+        long offset = ((Number) chunk.get("n")).longValue() * chunkSize;
+        byte[] data = (byte[]) chunk.get("data");
+        System.arraycopy(data, 0, prefix, (int) offset, (int) Math.min(data.length, size - offset));
+      }
+    }
+    return prefix;
   }
 
   @Override
@@ -206,6 +307,10 @@ public class GridFsFileStorageService implements FileStorageService {
       return APPLICATION_XML_VALUE;
     } else if (path.endsWith(".asc")) {
       return CONTENT_TYPE_APPLICATION_X_GPG;
+    } else if (path.endsWith(".bz2")) {
+      return BZ2_CONTENT_TYPE;
+    } else if (path.endsWith(".gz")) {
+      return GZIP_CONTENT_TYPE;
     }
 
     return APPLICATION_OCTET_STREAM_VALUE;
@@ -213,86 +318,128 @@ public class GridFsFileStorageService implements FileStorageService {
 
   @Override
   public UploadResult storeSqliteFileCompressedWithChecksumName(String reponame, File metadataFile, String name) throws IOException {
+    return storeCompressedWithChecksumName(reponame, name, SQLITE_BZ2_EXTENSION, BZ2_CONTENT_TYPE,
+      BZip2CompressorOutputStream::new, outputStream -> {
+        try(InputStream fileInputStream = new BufferedInputStream(new FileInputStream(metadataFile))) {
+          copy(fileInputStream, outputStream);
+        }
+      });
+  }
+
+  @Override
+  public UploadResult storeXmlFileGzippedWithChecksumName(String reponame, String name, ContentWriter contentWriter)
+                                                   throws IOException {
+    return storeCompressedWithChecksumName(reponame, name, XML_GZ_EXTENSION, GZIP_CONTENT_TYPE, GZIPOutputStream::new,
+      contentWriter);
+  }
+
+  private UploadResult storeCompressedWithChecksumName(String reponame, String name, String extension,
+                                                       String contentType, Compressor compressor,
+                                                       ContentWriter contentWriter) throws IOException {
     FileDescriptor descriptor = new FileDescriptor(reponame, ARCH_KEY_REPO_DATA, name);
     GridFSInputFile inputFile = gridFs.createFile();
-    inputFile.setContentType(BZ2_CONTENT_TYPE);
+    inputFile.setContentType(contentType);
 
-    InputStream fileInputStream = new BufferedInputStream(new FileInputStream(metadataFile));
-    DigestInputStream uncompressedDigestInputStream = new DigestInputStream(fileInputStream, getSha256Digest());
-    DigestOutputStream compressedDigestOutputStream;
+    OutputStream gridFsOutputStream = new CheckpointOutputStream(inputFile.getOutputStream());
+    DigestOutputStream compressedDigestOutputStream = new DigestOutputStream(gridFsOutputStream, getSha256Digest());
+    DigestOutputStream uncompressedDigestOutputStream = new DigestOutputStream(
+      compressor.compress(compressedDigestOutputStream), getSha256Digest());
+    CountingOutputStream uncompressedOutputStream = new CountingOutputStream(uncompressedDigestOutputStream);
     try {
-      OutputStream gridFsOutputStream = inputFile.getOutputStream();
-      compressedDigestOutputStream = new DigestOutputStream(gridFsOutputStream, getSha256Digest());
-
-      BZip2CompressorOutputStream bzip2OutputStream = new BZip2CompressorOutputStream(compressedDigestOutputStream);
-
-      copy(uncompressedDigestInputStream, bzip2OutputStream);
-      bzip2OutputStream.close();
-    } finally {
-      uncompressedDigestInputStream.close();
+      contentWriter.writeTo(uncompressedOutputStream);
+      uncompressedOutputStream.close();
+    } catch (IOException | RuntimeException e) {
+      // chunks are written while streaming, so a failed upload leaves them behind
+      gridFs.remove((ObjectId) inputFile.getId());
+      throw e;
     }
 
     String compressedChecksum = encodeHexString(compressedDigestOutputStream.getMessageDigest().digest());
-    String uncompressedChecksum = encodeHexString(uncompressedDigestInputStream.getMessageDigest().digest());
-    String finalFilename = reponame + "/" + createRepoMdLocation(name, compressedChecksum);
-
-    gridFs.remove(finalFilename);
-
-    DBObject metaData = createBasicMetaDataObject(descriptor, compressedChecksum);
-
-    inputFile.setMetaData(metaData);
-    inputFile.put(FILENAME_KEY, finalFilename);
-    inputFile.getOutputStream().close();
+    String uncompressedChecksum = encodeHexString(uncompressedDigestOutputStream.getMessageDigest().digest());
+    String finalFilename = reponame + "/" + createRepoMdLocation(name, compressedChecksum, extension);
+
+    // the name contains the checksum, so a live file with that name has the same content and may be in use
+    GridFSFile storedFile = findLiveFile(finalFilename);
+    if (storedFile != null) {
+      gridFs.remove((ObjectId) inputFile.getId());
+    } else {
+      gridFs.remove(finalFilename);
+
+      DBObject metaData = createBasicMetaDataObject(descriptor, compressedChecksum);
+
+      inputFile.setMetaData(metaData);
+      inputFile.put(FILENAME_KEY, finalFilename);
+      inputFile.getOutputStream().close();
+      storedFile = inputFile;
+    }
 
     UploadResult uploadResult = new UploadResult();
     uploadResult.setLocation(finalFilename);
-    uploadResult.setUploadDate(inputFile.getUploadDate());
-    uploadResult.setCompressedSize(inputFile.getLength());
+    uploadResult.setUploadDate(storedFile.getUploadDate());
+    uploadResult.setCompressedSize(storedFile.getLength());
     uploadResult.setCompressedChecksum(compressedChecksum);
-    uploadResult.setUncompressedSize(metadataFile.length());
+    uploadResult.setUncompressedSize(uncompressedOutputStream.getByteCount());
     uploadResult.setUncompressedChecksum(uncompressedChecksum);
     return uploadResult;
   }
 
+  private GridFSFile findLiveFile(String filename) {
+    return gridFsTemplate.findOne(query(whereFilename().is(filename).and(METADATA_MARKED_AS_DELETED_KEY).is(null)));
+  }
+
   @ManagedOperation
   public List<String> listFilesMarkedAsDeleted() {
     final List<GridFSDBFile> gridFSDBFiles = gridFsTemplate.find(query(whereMetaData(MARKED_AS_DELETED_KEY).ne(null)));
     return gridFSDBFiles.stream().map(file -> file.getFilename() + " " + file.getMetaData().get(MARKED_AS_DELETED_KEY)).collect(toList());
   }
 
+  /**
+   * Removes the marked files in batches with one $in query for the chunks and one for the files. The batch size
+   * and the pause between batches follow the replication lag, see {@link DeletionThrottle}.
+   */
   @ManagedOperation
-  @MongoTx(writeConcern = "FSYNCED")
   public void removeFilesMarkedAsDeletedBefore(final Date before) {
     LOGGER.info("removing files marked as deleted before {}", before);
 
-    final List<GridFSDBFile> filesToDelete = gridFsTemplate.find(query(
-        whereMetaData(MARKED_AS_DELETED_KEY).lt(before)));
-
-    int counter = 0;
-    for (GridFSDBFile file : filesToDelete) {
-      final long lengthInBytes = file.getLength();
-      final String filename = file.getFilename();
-      LOGGER.info("removing file {}", filename);
-      GridFSUtil.remove(file);
-
-      //wait depending on the size/count of deleted file to let the mongo cluster do the sync without 'dieing' on io wait
-      if (lengthInBytes > FIVE_MB) {
-        waitAfterDeleteOfLargeFile(lengthInBytes, filename);
-      }
-      if (counter > 100) {
-        LOGGER.info("waiting 2000 ms after removal of 100 files");
-        try {
-          Thread.sleep(2000);
-        } catch (InterruptedException e) {
-          //should only happen on server shutdown
+    final DBObject markedBefore = query(whereMetaData(MARKED_AS_DELETED_KEY).lt(before)).getQueryObject();
+    final List<Object> ids = new ArrayList<>();
+    long bytes = 0;
+    int removed = 0;
+    final DBCollection filesCollection = mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION);
+    try(DBCursor files = filesCollection.find(markedBefore, new BasicDBObject(LENGTH_KEY, 1))) {
+      while (files.hasNext()) {
+        DBObject file = files.next();
+        ids.add(file.get(ID_KEY));
+        bytes += ((Number) file.get(LENGTH_KEY)).longValue();
+        if ((ids.size() >= deletionThrottle.getBatchFiles()) || (bytes >= deletionThrottle.getBatchBytes())) {
+          removed += removeFiles(ids);
+          bytes = 0;
+          if (!deletionThrottle.pause()) {
+            LOGGER.info("interrupted while removing files marked as deleted");
+            return;
+          }
         }
-        counter = 0;
-      } else {
-        counter++;
       }
     }
+    removed += removeFiles(ids);
 
-    LOGGER.info("finished removing files marked as deleted before {}", before);
+    LOGGER.info("finished removing {} files marked as deleted before {}", removed, before);
+  }
+
+  private int removeFiles(List<Object> ids) {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+
+    // headers and chunks first, an interrupted batch leaves files without chunks, which are still marked and
+    // removed next time
+    BasicDBObject inIds = new BasicDBObject("$in", ids);
+    mongoTemplate.getCollection(RPM_HEADER_COLLECTION).remove(new BasicDBObject(ID_KEY, inIds));
+    mongoTemplate.getCollection(GRIDFS_CHUNKS_COLLECTION).remove(new BasicDBObject(FILES_ID_KEY, inIds));
+    int removed = mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION).remove(new BasicDBObject(ID_KEY, inIds)).getN();
+    LOGGER.info("removed {} files marked as deleted", removed);
+    ids.clear();
+    return removed;
   }
 
   public void markForDeletionByPath(final String path) {
@@ -303,6 +450,25 @@ public class GridFsFileStorageService implements FileStorageService {
     markForDeletion(whereFilename().regex(regex));
   }
 
+  @Override
+  public void markForDeletionByIds(Collection<?> ids) {
+    if (!ids.isEmpty()) {
+      markForDeletion(where(ID_KEY).in(ids));
+    }
+  }
+
+  /**
+   * Marks the compressed repodata files of a repository, except the given ones, for deletion.
+   * Selects by the indexed repo and arch instead of a filename regex.
+   */
+  @Override
+  public void markRepodataForDeletionExcept(String reponame, Collection<String> filenamesToKeep) {
+    markForDeletion(whereMetaData(REPO_KEY).is(reponame)
+        .and(METADATA_ARCH_KEY).is(ARCH_KEY_REPO_DATA)
+        .and(FILENAME_KEY).regex(ENDS_WITH_COMPRESSED_REPODATA_REGEX)
+        .andOperator(whereFilename().nin(filenamesToKeep)));
+  }
+
   @Override
   public void deleteRepo(String reponame) {
     markForDeletion(whereMetaData(REPO_KEY).is(reponame));
@@ -382,8 +548,8 @@ public class GridFsFileStorageService implements FileStorageService {
         GRIDFS_FILES_COLLECTION);
   }
 
-  private String createRepoMdLocation(String name, String checksum) {
-    return ARCH_KEY_REPO_DATA + "/" + name + "-" + checksum + ".sqlite.bz2";
+  private String createRepoMdLocation(String name, String checksum, String extension) {
+    return ARCH_KEY_REPO_DATA + "/" + name + "-" + checksum + extension;
   }
 
   private DBObject createBasicMetaDataObject(FileDescriptor descriptor, String sha256Hash) {
@@ -394,28 +560,26 @@ public class GridFsFileStorageService implements FileStorageService {
     return metaData;
   }
 
-  private void waitAfterDeleteOfLargeFile(long lengthInBytes, String filename) {
-    //24MB 1600ms
-    //600MB 40sec
-    final long lengthInMb = lengthInBytes / MB;
-    final long millisToWait = (long) ((lengthInMb / 60f) * 4000);
-    LOGGER.info("waiting {}ms after remove of large file {}({}MB)", millisToWait, filename, lengthInMb);
-    try {
-      Thread.sleep(millisToWait);
-    } catch (InterruptedException e) {
-      //should only happen on server shutdown
-    }
-  }
-
   private void setupIndices() {
     createIndex(METADATA_REPO_KEY);
     createIndex(METADATA_ARCH_KEY);
     createIndex(METADATA_UPLOAD_DATE_KEY);
     createIndex(METADATA_MARKED_AS_DELETED_KEY);
+    createIndex(METADATA_REPO_KEY, METADATA_ARCH_KEY);
   }
 
-  private void createIndex(String key) {
+  private void createIndex(String... keys) {
+    DBObject index = new BasicDBObject();
+    for (String key : keys) {
+      index.put(key, 1);
+    }
+
     DBCollection filesCollection = mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION);
-    filesCollection.createIndex(new BasicDBObject(key, 1));
+    filesCollection.createIndex(index);
+  }
+
+  @FunctionalInterface
+  private interface Compressor {
+    OutputStream compress(OutputStream outputStream) throws IOException;
   }
 }
@@ -0,0 +1,143 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.RPM_HEADER_COLLECTION;
+
+
+/**
+ * Keeps the raw header of each uploaded rpm, deflated and with the id of its file, so the metadata of a file can be
+ * derived again from some kilobytes instead of reading the rpm from the file storage. The headers are removed
+ * together with their files by {@link GridFsFileStorageService}.
+ */
+@ManagedResource
+@Service
+public class RpmHeaderStore {
+  private static final Logger LOG = LoggerFactory.getLogger(RpmHeaderStore.class);
+  private static final String ID_KEY = "_id";
+  private static final String START_POS_KEY = "startPos";
+  private static final String LENGTH_KEY = "length";
+  private static final String HEADER_KEY = "header";
+  private static final int MAX_STORED_BYTES = 15 * 1024 * 1024;
+
+  private final MongoTemplate mongoTemplate;
+
+  private final AtomicLong storedHeaders = new AtomicLong();
+  private final AtomicLong storedRawBytes = new AtomicLong();
+  private final AtomicLong storedCompressedBytes = new AtomicLong();
+  private final AtomicLong loadedHeaders = new AtomicLong();
+  private final AtomicLong missingHeaders = new AtomicLong();
+
+  @Autowired
+  public RpmHeaderStore(MongoTemplate mongoTemplate) {
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  public void save(Object fileId, RpmHeader header) {
+    byte[] raw = header.getBytes();
+    byte[] compressed = deflate(raw);
+    if (compressed.length > MAX_STORED_BYTES) {
+      LOG.warn("Header of file {} has {} bytes deflated, not storing it.", fileId, compressed.length);
+      return;
+    }
+
+    collection().save(new BasicDBObject(ID_KEY, fileId)
+      .append(START_POS_KEY, header.getStartPos())
+      .append(LENGTH_KEY, raw.length)
+      .append(HEADER_KEY, compressed));
+    storedHeaders.incrementAndGet();
+    storedRawBytes.addAndGet(raw.length);
+    storedCompressedBytes.addAndGet(compressed.length);
+  }
+
+  /**
+   * @return the stored header of the file or null, if none was stored
+   */
+  public RpmHeader find(Object fileId) throws InvalidRpmHeaderException {
+    DBObject stored = collection().findOne(new BasicDBObject(ID_KEY, fileId));
+    if (stored == null) {
+      missingHeaders.incrementAndGet();
+      return null;
+    }
+
+    byte[] raw = inflate((byte[]) stored.get(HEADER_KEY), ((Number) stored.get(LENGTH_KEY)).intValue());
+    RpmHeader header = RpmHeader.of(raw, ((Number) stored.get(START_POS_KEY)).intValue());
+    loadedHeaders.incrementAndGet();
+    return header;
+  }
+
+  private DBCollection collection() {
+    return mongoTemplate.getCollection(RPM_HEADER_COLLECTION);
+  }
+
+  private static byte[] deflate(byte[] raw) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        compressed.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] compressed, int length) throws InvalidRpmHeaderException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] raw = new byte[length];
+      int inflated = inflater.inflate(raw);
+      if ((inflated != length) || !inflater.finished()) {
+        throw new InvalidRpmHeaderException("Stored rpm header does not have " + length + " bytes.");
+      }
+      return raw;
+    } catch (DataFormatException e) {
+      throw new InvalidRpmHeaderException("Stored rpm header is corrupt.", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  @ManagedAttribute(description = "number of rpm headers stored since startup")
+  public long getStoredHeaders() {
+    return storedHeaders.get();
+  }
+
+  @ManagedAttribute(description = "percentage of the raw size the stored headers take deflated")
+  public long getCompressionPercentage() {
+    long raw = storedRawBytes.get();
+    return (raw > 0) ? ((storedCompressedBytes.get() * 100) / raw) : 0;
+  }
+
+  @ManagedAttribute(description = "number of stored rpm headers used to derive metadata since startup")
+  public long getLoadedHeaders() {
+    return loadedHeaders.get();
+  }
+
+  @ManagedAttribute(description = "number of files without stored header since startup, their rpms have to be read")
+  public long getMissingHeaders() {
+    return missingHeaders.get();
+  }
+}
@@ -8,20 +8,21 @@ import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
 import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
 import de.is24.infrastructure.gridfs.http.exception.RepositoryIsUndeletableException;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
+import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
 import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
 import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
-import de.is24.infrastructure.gridfs.http.rpm.version.YumPackageVersionComparator;
+import de.is24.infrastructure.gridfs.http.storage.ContentWriter;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.infrastructure.gridfs.http.storage.UploadResult;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.bson.types.ObjectId;
-import org.redline_rpm.ReadableChannelWrapper;
-import org.redline_rpm.Scanner;
-import org.redline_rpm.header.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -40,12 +41,11 @@ import java.util.List;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.STATIC;
 import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.DB_VERSION;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.createMetadataRows;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.SHA256_KEY;
 import static de.is24.infrastructure.gridfs.http.repos.RepositoryNameValidator.validateRepoName;
 import static de.is24.infrastructure.gridfs.http.security.Permission.PROPAGATE_FILE;
 import static de.is24.infrastructure.gridfs.http.security.Permission.PROPAGATE_REPO;
-import static java.nio.channels.Channels.newChannel;
-import static java.util.Collections.sort;
 import static org.apache.commons.lang.StringUtils.countMatches;
 import static org.apache.commons.lang.StringUtils.isBlank;
 import static org.apache.commons.lang.StringUtils.substringAfter;
@@ -60,21 +60,34 @@ public class StorageService {
   private final FileStorageService fileStorageService;
   private final YumEntriesRepository yumEntriesRepository;
   private final RepoService repoService;
-  private YumPackageVersionComparator comparator = new YumPackageVersionComparator();
+  private final YumEntriesHashCalculator entriesHashCalculator;
+  private final RepoCleaner repoCleaner;
+  private final PackageCatalog packageCatalog;
+  private final RpmHeaderStore rpmHeaderStore;
 
   //needed for cglib proxy
   public StorageService() {
     this.yumEntriesRepository = null;
     this.fileStorageService = null;
     this.repoService = null;
+    this.entriesHashCalculator = null;
+    this.repoCleaner = null;
+    this.packageCatalog = null;
+    this.rpmHeaderStore = null;
   }
 
   @Autowired
   public StorageService(FileStorageService fileStorageService,
-                        YumEntriesRepository yumEntriesRepository, RepoService repoService) {
+                        YumEntriesRepository yumEntriesRepository, RepoService repoService,
+                        YumEntriesHashCalculator entriesHashCalculator, RepoCleaner repoCleaner,
+                        PackageCatalog packageCatalog, RpmHeaderStore rpmHeaderStore) {
     this.fileStorageService = fileStorageService;
     this.yumEntriesRepository = yumEntriesRepository;
     this.repoService = repoService;
+    this.entriesHashCalculator = entriesHashCalculator;
+    this.repoCleaner = repoCleaner;
+    this.packageCatalog = packageCatalog;
+    this.rpmHeaderStore = rpmHeaderStore;
   }
 
   @TimeMeasurement
@@ -134,17 +147,8 @@ public class StorageService {
   }
 
   private FileStorageItem findNewestRpmInRepoByNameAndArch(String repo, String arch, String name) {
-    List<YumEntry> entries = yumEntriesRepository.findByRepoAndYumPackageArchAndYumPackageName(repo, arch, name);
-    if (entries.isEmpty()) {
-      return null;
-    }
-
-    sort(entries, (YumEntry entry1, YumEntry entry2) -> comparator.compare(
-        entry1.getYumPackage().getVersion(),
-        entry2.getYumPackage().getVersion()));
-
-    YumEntry lastEntry = entries.get(entries.size() - 1);
-    return fileStorageService.findById(lastEntry.getId());
+    ObjectId newestId = packageCatalog.catalogOf(repo).newestIdOf(name, arch);
+    return (newestId == null) ? null : fileStorageService.findById(newestId);
   }
 
   private FileDescriptor move(FileStorageItem storageItem, String destinationRepo) {
@@ -156,8 +160,11 @@ public class StorageService {
         throw new RuntimeException("Could not regenerate metadata for file " + storageItem.getFilename() + " because it is not a valid RPM. You should manually delete the file", e);
       }
     }
+    String sourceRepo = yumEntry.getRepo();
     yumEntry.setRepo(null);
     yumEntriesRepository.save(yumEntry);
+    entriesHashCalculator.entryRemoved(sourceRepo, getChecksum(yumEntry));
+    packageCatalog.entryRemoved(sourceRepo, yumEntry.getId(), getChecksum(yumEntry));
 
     FileDescriptor descriptor = new FileDescriptor(storageItem);
     descriptor.setRepo(destinationRepo);
@@ -171,6 +178,9 @@ public class StorageService {
 
     yumEntry.setRepo(destinationRepo);
     yumEntriesRepository.save(yumEntry);
+    entriesHashCalculator.entryAdded(destinationRepo, getChecksum(yumEntry));
+    packageCatalog.entryAdded(destinationRepo, yumEntry);
+    repoCleaner.cleanByMaxNum(destinationRepo, yumEntry.getYumPackage().getName(), yumEntry.getYumPackage().getArch());
 
     return descriptor;
   }
@@ -195,13 +205,19 @@ public class StorageService {
     BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
     bufferedInputStream.mark(BUFFER_SIZE);
 
-    YumPackage yumPackage = convertHeader(bufferedInputStream);
+    RpmHeader header = RpmHeader.read(bufferedInputStream);
+    YumPackage yumPackage = convertHeader(header);
     bufferedInputStream.reset();
 
     FileDescriptor descriptor = new FileDescriptor(reponame, yumPackage);
     final FileStorageItem storageItem = fileStorageService.storeFile(bufferedInputStream, descriptor);
+    rpmHeaderStore.save(storageItem.getId(), header);
 
-    yumEntriesRepository.save(createYumEntry(yumPackage, storageItem));
+    YumEntry yumEntry = createYumEntry(yumPackage, storageItem);
+    yumEntriesRepository.save(yumEntry);
+    entriesHashCalculator.entryAdded(reponame, storageItem.getChecksumSha256());
+    packageCatalog.entryAdded(reponame, yumEntry);
+    repoCleaner.cleanByMaxNum(reponame, yumPackage.getName(), yumPackage.getArch());
     repoService.createOrUpdate(reponame);
     LOGGER.info("Stored RPM {}/{}", reponame, yumPackage.getLocation().getHref());
   }
@@ -211,6 +227,16 @@ public class StorageService {
     validateRepoName(reponame);
 
     UploadResult uploadResult = fileStorageService.storeSqliteFileCompressedWithChecksumName(reponame, metadataFile, name);
+    Data data = createRepoMdData(uploadResult);
+    data.setDatabaseVersion(DB_VERSION);
+    return data;
+  }
+
+  @TimeMeasurement
+  public Data storeRepodataXmlGz(String reponame, String name, ContentWriter contentWriter) throws IOException {
+    validateRepoName(reponame);
+
+    UploadResult uploadResult = fileStorageService.storeXmlFileGzippedWithChecksumName(reponame, name, contentWriter);
     return createRepoMdData(uploadResult);
   }
 
@@ -223,6 +249,8 @@ public class StorageService {
     }
 
     yumEntriesRepository.deleteByRepo(reponame);
+    entriesHashCalculator.repoDeleted(reponame);
+    packageCatalog.invalidate(reponame);
     fileStorageService.deleteRepo(reponame);
     repoService.delete(reponame);
   }
@@ -232,10 +260,56 @@ public class StorageService {
     return regenerateMetadataFor(fileStorageService.getFileBy(descriptor));
   }
 
-  @ManagedOperation
-  public void regenerateMetadataForAllFiles() throws InvalidRpmHeaderException {
-    for (FileStorageItem storageItem : fileStorageService.getAllRpms()) {
-      regenerateMetadataFor(storageItem);
+  /**
+   * Regenerates the metadata of a file from the header stored on upload, without reading the rpm.
+   *
+   * @return the regenerated entry or null, if there is no usable stored header for the file
+   */
+  public YumEntry regenerateMetadataFromStoredHeader(FileStorageItem storageItem) throws InvalidRpmHeaderException {
+    RpmHeader header;
+    try {
+      header = rpmHeaderStore.find(storageItem.getId());
+    } catch (InvalidRpmHeaderException e) {
+      LOGGER.warn("Stored header of {} is unusable, reading the rpm.", storageItem.getFilename(), e);
+      return null;
+    }
+    return (header == null) ? null : regenerateMetadataFor(storageItem, header);
+  }
+
+  /**
+   * Regenerates the metadata of a file from its rpm and stores the header for the next time.
+   *
+   * @param rpmStream stream of the rpm file, only read up to the end of its header
+   */
+  public YumEntry regenerateMetadataFor(FileStorageItem storageItem, InputStream rpmStream)
+                                 throws InvalidRpmHeaderException {
+    RpmHeader header;
+    try {
+      header = RpmHeader.read(rpmStream);
+    } catch (InvalidRpmHeaderException e) {
+      LOGGER.error("Generating metadata for " + storageItem.getFilename() + " failed.", e);
+      throw e;
+    }
+    rpmHeaderStore.save(storageItem.getId(), header);
+    return regenerateMetadataFor(storageItem, header);
+  }
+
+  private YumEntry regenerateMetadataFor(FileStorageItem storageItem, RpmHeader header)
+                                  throws InvalidRpmHeaderException {
+    LOGGER.info("regenerating metadata for {}", storageItem.getFilename());
+    try {
+      YumPackage yumPackage = convertHeader(header);
+      YumEntry yumEntry = createYumEntry(yumPackage, storageItem);
+      boolean isNew = !yumEntriesRepository.exists(yumEntry.getId());
+      yumEntriesRepository.save(yumEntry);
+      if (isNew) {
+        entriesHashCalculator.entryAdded(yumEntry.getRepo(), getChecksum(yumEntry));
+        packageCatalog.entryAdded(yumEntry.getRepo(), yumEntry);
+      }
+      return yumEntry;
+    } catch (InvalidRpmHeaderException e) {
+      LOGGER.error("Generating metadata for " + storageItem.getFilename() + " failed.", e);
+      throw e;
     }
   }
 
@@ -256,13 +330,18 @@ public class StorageService {
   }
 
   private void delete(FileStorageItem storageItem) {
-    yumEntriesRepository.delete((ObjectId) storageItem.getId());
+    ObjectId id = (ObjectId) storageItem.getId();
+    if (yumEntriesRepository.exists(id)) {
+      yumEntriesRepository.delete(id);
+      entriesHashCalculator.entryRemoved(storageItem.getRepo(), storageItem.getChecksumSha256());
+      packageCatalog.entryRemoved(storageItem.getRepo(), id, storageItem.getChecksumSha256());
+    }
     fileStorageService.delete(storageItem);
     LOGGER.info("Deleted {}", storageItem.getFilename());
   }
 
-  private YumPackage convertHeader(InputStream inputStream) throws InvalidRpmHeaderException {
-    RpmHeaderWrapper headerWrapper = new RpmHeaderWrapper(readHeader(inputStream));
+  private YumPackage convertHeader(RpmHeader header) throws InvalidRpmHeaderException {
+    RpmHeaderWrapper headerWrapper = new RpmHeaderWrapper(header);
     RpmHeaderToYumPackageConverter converter = new RpmHeaderToYumPackageConverter(headerWrapper);
     return converter.convert();
   }
@@ -271,7 +350,13 @@ public class StorageService {
     yumPackage.getSize().setPackaged((int) storageItem.getSize());
     yumPackage.setChecksum(new YumPackageChecksum("sha256", storageItem.getChecksumSha256()));
     yumPackage.getTime().setFile(yumTime(storageItem.getUploadDate()));
-    return new YumEntry((ObjectId) storageItem.getId(), storageItem.getRepo(), yumPackage);
+    YumEntry yumEntry = new YumEntry((ObjectId) storageItem.getId(), storageItem.getRepo(), yumPackage);
+    yumEntry.setMetadataRows(createMetadataRows(yumPackage));
+    return yumEntry;
+  }
+
+  private static String getChecksum(YumEntry yumEntry) {
+    return yumEntry.getYumPackage().getChecksum().getChecksum();
   }
 
   private Data createRepoMdData(UploadResult uploadResult) {
@@ -282,7 +367,6 @@ public class StorageService {
     data.setOpenChecksum(SHA256_KEY, uploadResult.getUncompressedChecksum());
     data.setLocation(substringAfter(uploadResult.getLocation(), "/"));
     data.setTimestamp((int) (uploadResult.getUploadDate().getTime() / 1000));
-    data.setDatabaseVersion(DB_VERSION);
     return data;
   }
 
@@ -290,25 +374,8 @@ public class StorageService {
     return (int) (date.getTime() / 1000);
   }
 
-  private Header readHeader(InputStream inputStream) throws InvalidRpmHeaderException {
-    ReadableChannelWrapper channel = new ReadableChannelWrapper(newChannel(inputStream));
-    try {
-      return new Scanner().run(channel).getHeader();
-    } catch (Exception e) {
-      throw new InvalidRpmHeaderException("Could not read rpm header.", e);
-    }
-  }
-
   private YumEntry regenerateMetadataFor(FileStorageItem storageItem) throws InvalidRpmHeaderException {
-    LOGGER.info("regenerating metadata for {}", storageItem.getFilename());
-    try {
-      YumPackage yumPackage = convertHeader(storageItem.getInputStream());
-      YumEntry yumEntry = createYumEntry(yumPackage, storageItem);
-      yumEntriesRepository.save(yumEntry);
-      return yumEntry;
-    } catch (InvalidRpmHeaderException e) {
-      LOGGER.error("Generating metadata for " + storageItem.getFilename() + " failed.", e);
-      throw e;
-    }
+    YumEntry yumEntry = regenerateMetadataFromStoredHeader(storageItem);
+    return (yumEntry != null) ? yumEntry : regenerateMetadataFor(storageItem, storageItem.getInputStream());
   }
 }
@@ -0,0 +1,221 @@
+package de.is24.infrastructure.gridfs.http.gridfs.scheduling;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.gridfs.DeletionThrottle;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.mongodb.gridfs.GridFS.DEFAULT_CHUNKSIZE;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MAINTENANCE_CHECKPOINT_COLLECTION;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+
+/**
+ * Removes chunks whose file document does not exist anymore, as left behind by interrupted removals.
+ * The chunks are scanned in files_id order page by page, so memory stays bounded, and the last files_id
+ * is stored as checkpoint, so that the next run continues where the previous one stopped.
+ * Chunks younger than the grace period are skipped, because uploads write their file document last.
+ */
+@ManagedResource
+@Service
+public class OrphanChunkCollector {
+  private static final Logger LOG = LoggerFactory.getLogger(OrphanChunkCollector.class);
+  private static final String ID_KEY = "_id";
+  private static final String FILES_ID_KEY = "files_id";
+  private static final String CHECKPOINT_ID = "orphanChunks";
+  private static final String LAST_FILES_ID_KEY = "lastFilesId";
+  private static final String UPDATED_KEY = "updated";
+
+  private final MongoTemplate mongoTemplate;
+  private final MongoPrimaryDetector primaryDetector;
+  private final DeletionThrottle deletionThrottle;
+  private final int pageSize;
+  private final long graceMillis;
+  private final long maxRunMillis;
+
+  private final AtomicLong scannedFiles = new AtomicLong();
+  private final AtomicLong orphanedFiles = new AtomicLong();
+  private final AtomicLong removedChunks = new AtomicLong();
+  private final AtomicLong completedScans = new AtomicLong();
+  private volatile Date lastCompletedScan;
+
+  @Autowired
+  public OrphanChunkCollector(MongoTemplate mongoTemplate, MongoPrimaryDetector primaryDetector,
+                              DeletionThrottle deletionThrottle,
+                              @Value("${scheduler.orphan.chunks.page.size:10000}") int pageSize,
+                              @Value("${scheduler.orphan.chunks.grace.hours:24}") int graceInHours,
+                              @Value("${scheduler.orphan.chunks.max.minutes:30}") int maxRunInMinutes) {
+    this.mongoTemplate = mongoTemplate;
+    this.primaryDetector = primaryDetector;
+    this.deletionThrottle = deletionThrottle;
+    this.pageSize = pageSize;
+    this.graceMillis = HOURS.toMillis(graceInHours);
+    this.maxRunMillis = MINUTES.toMillis(maxRunInMinutes);
+  }
+
+  @Scheduled(cron = "${scheduler.orphan.chunks.cron:0 40 4 * * *}")
+  public void collectOrphanChunks() {
+    if (primaryDetector.isPrimary()) {
+      new MDCHelper(this.getClass()).run(this::collect);
+    }
+  }
+
+  @ManagedOperation(description = "continue the scan for orphan chunks from the last checkpoint")
+  public void collectOrphanChunksNow() {
+    collect();
+  }
+
+  private void collect() {
+    long stopAt = System.currentTimeMillis() + maxRunMillis;
+    ObjectId lastFilesId = loadCheckpoint();
+    LOG.info("Collecting orphan chunks after files_id {} ...", lastFilesId);
+
+    List<ObjectId> filesIds = nextPage(lastFilesId);
+    while (!filesIds.isEmpty()) {
+      scannedFiles.addAndGet(filesIds.size());
+      removeOrphans(filesIds);
+      lastFilesId = filesIds.get(filesIds.size() - 1);
+      saveCheckpoint(lastFilesId);
+
+      if ((System.currentTimeMillis() > stopAt) || !deletionThrottle.pause()) {
+        LOG.info("Stopped collecting orphan chunks at files_id {}, continuing next time.", lastFilesId);
+        return;
+      }
+      filesIds = nextPage(lastFilesId);
+    }
+
+    saveCheckpoint(null);
+    completedScans.incrementAndGet();
+    lastCompletedScan = new Date();
+    LOG.info("Finished scan for orphan chunks, {} chunks removed since startup.", removedChunks.get());
+  }
+
+  /**
+   * @return the distinct files_ids of the next page of chunks, read from the files_id index only
+   */
+  private List<ObjectId> nextPage(ObjectId lastFilesId) {
+    BasicDBObject query = (lastFilesId == null)
+      ? new BasicDBObject(FILES_ID_KEY, new BasicDBObject("$type", 7))
+      : new BasicDBObject(FILES_ID_KEY, new BasicDBObject("$gt", lastFilesId));
+    Set<ObjectId> filesIds = new LinkedHashSet<>();
+    try(DBCursor chunks = chunksCollection().find(query, new BasicDBObject(FILES_ID_KEY, 1).append(ID_KEY, 0))
+        .sort(new BasicDBObject(FILES_ID_KEY, 1))
+        .limit(pageSize)) {
+      while (chunks.hasNext()) {
+        filesIds.add((ObjectId) chunks.next().get(FILES_ID_KEY));
+      }
+    }
+    return new ArrayList<>(filesIds);
+  }
+
+  private void removeOrphans(List<ObjectId> filesIds) {
+    Set<Object> liveFilesIds = new LinkedHashSet<>();
+    try(DBCursor files = filesCollection().find(new BasicDBObject(ID_KEY, new BasicDBObject("$in", filesIds)),
+        new BasicDBObject(ID_KEY, 1))) {
+      while (files.hasNext()) {
+        liveFilesIds.add(files.next().get(ID_KEY));
+      }
+    }
+
+    long graceLimit = System.currentTimeMillis() - graceMillis;
+    List<ObjectId> orphans = new ArrayList<>();
+    for (ObjectId filesId : filesIds) {
+      if (!liveFilesIds.contains(filesId) && (filesId.getDate().getTime() < graceLimit)) {
+        orphans.add(filesId);
+      }
+    }
+
+    if (!orphans.isEmpty()) {
+      int removed = chunksCollection().remove(new BasicDBObject(FILES_ID_KEY, new BasicDBObject("$in", orphans)))
+        .getN();
+      orphanedFiles.addAndGet(orphans.size());
+      removedChunks.addAndGet(removed);
+      LOG.info("Removed {} orphan chunks of {} files.", removed, orphans.size());
+    }
+  }
+
+  private ObjectId loadCheckpoint() {
+    DBObject checkpoint = checkpointCollection().findOne(new BasicDBObject(ID_KEY, CHECKPOINT_ID));
+    return (checkpoint == null) ? null : (ObjectId) checkpoint.get(LAST_FILES_ID_KEY);
+  }
+
+  private void saveCheckpoint(ObjectId lastFilesId) {
+    checkpointCollection().save(new BasicDBObject(ID_KEY, CHECKPOINT_ID)
+      .append(LAST_FILES_ID_KEY, lastFilesId)
+      .append(UPDATED_KEY, new Date()));
+  }
+
+  private DBCollection chunksCollection() {
+    return mongoTemplate.getCollection(GRIDFS_CHUNKS_COLLECTION);
+  }
+
+  private DBCollection filesCollection() {
+    return mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION);
+  }
+
+  private DBCollection checkpointCollection() {
+    return mongoTemplate.getCollection(MAINTENANCE_CHECKPOINT_COLLECTION);
+  }
+
+  @ManagedAttribute(description = "files_id the next scan continues after, null if it starts from the beginning")
+  public String getCheckpoint() {
+    ObjectId lastFilesId = loadCheckpoint();
+    return (lastFilesId == null) ? null : lastFilesId.toHexString();
+  }
+
+  @ManagedAttribute(description = "number of distinct files_ids checked since startup")
+  public long getScannedFiles() {
+    return scannedFiles.get();
+  }
+
+  @ManagedAttribute(description = "number of missing files whose chunks were removed since startup")
+  public long getOrphanedFiles() {
+    return orphanedFiles.get();
+  }
+
+  @ManagedAttribute(description = "number of orphan chunks removed since startup")
+  public long getRemovedChunks() {
+    return removedChunks.get();
+  }
+
+  /**
+   * Mongo 3.2 can't tell the size of binary data on the server and reading the orphans only to measure them
+   * would transfer all of them, so the bytes are estimated from the number of chunks.
+   */
+  @ManagedAttribute(description = "estimated bytes reclaimed since startup, assuming full chunks of default size")
+  public long getEstimatedReclaimedBytes() {
+    return removedChunks.get() * DEFAULT_CHUNKSIZE;
+  }
+
+  @ManagedAttribute
+  public long getCompletedScans() {
+    return completedScans.get();
+  }
+
+  @ManagedAttribute
+  public Date getLastCompletedScan() {
+    return lastCompletedScan;
+  }
+}
@@ -0,0 +1,119 @@
+package de.is24.infrastructure.gridfs.http.maintenance;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntryDetailsStore;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.is24.infrastructure.gridfs.http.metadata.YumEntryDetailsStore.INLINE_DETAIL_PATHS;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MAINTENANCE_CHECKPOINT_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static java.util.stream.Collectors.toList;
+
+
+/**
+ * Moves the files, changelogs and metadata rows out of yum entries stored before they were kept beside them. Only
+ * entries still carrying details are read, so an interrupted pass continues with the entries left. Runs on the
+ * primary until one pass found nothing left to do and records that in the maintenance checkpoints.
+ */
+@ManagedResource
+@Service
+public class EntryDetailsBackfill {
+  private static final Logger LOG = LoggerFactory.getLogger(EntryDetailsBackfill.class);
+  private static final String ID_KEY = "_id";
+  private static final String CHECKPOINT_ID = "entryDetails";
+  private static final String COMPLETED_KEY = "completed";
+
+  private final MongoTemplate mongoTemplate;
+  private final MongoPrimaryDetector primaryDetector;
+  private final YumEntryDetailsStore entryDetailsStore;
+  private final AtomicLong backfilledEntries = new AtomicLong();
+  private final AtomicLong failedEntries = new AtomicLong();
+  private volatile boolean completed;
+
+  @Autowired
+  public EntryDetailsBackfill(MongoTemplate mongoTemplate, MongoPrimaryDetector primaryDetector,
+                              YumEntryDetailsStore entryDetailsStore) {
+    this.mongoTemplate = mongoTemplate;
+    this.primaryDetector = primaryDetector;
+    this.entryDetailsStore = entryDetailsStore;
+  }
+
+  @Scheduled(
+    initialDelayString = "${scheduler.entry.details.backfill.initial.delay.ms:120000}",
+    fixedDelayString = "${scheduler.entry.details.backfill.delay.ms:600000}"
+  )
+  public void backfillIfNecessary() {
+    if (!completed && primaryDetector.isPrimary()) {
+      if (checkpointCollection().findOne(new BasicDBObject(ID_KEY, CHECKPOINT_ID)) != null) {
+        completed = true;
+        return;
+      }
+      new MDCHelper(this.getClass()).run(this::backfill);
+    }
+  }
+
+  @ManagedOperation(description = "move files, changelogs and metadata rows out of all yum entries still carrying them")
+  public void backfill() {
+    LOG.info("Moving details out of yum entries ...");
+    DBCollection entries = mongoTemplate.getCollection(YUM_ENTRY_COLLECTION);
+    DBObject withInlineDetails = new BasicDBObject("$or", INLINE_DETAIL_PATHS.stream()
+      .map(path -> new BasicDBObject(path, new BasicDBObject("$exists", true)))
+      .collect(toList()));
+
+    long failedBefore = failedEntries.get();
+    try(DBCursor cursor = entries.find(withInlineDetails)) {
+      while (cursor.hasNext()) {
+        DBObject entry = cursor.next();
+        try {
+          entryDetailsStore.moveInlineDetails(entry);
+          backfilledEntries.incrementAndGet();
+        } catch (RuntimeException e) {
+          failedEntries.incrementAndGet();
+          LOG.warn("Could not move details out of yum entry {}.", entry.get(ID_KEY), e);
+        }
+      }
+    }
+
+    if (failedEntries.get() > failedBefore) {
+      LOG.warn("Details of {} yum entries not moved, trying again next time.", failedEntries.get() - failedBefore);
+      return;
+    }
+    checkpointCollection().save(new BasicDBObject(ID_KEY, CHECKPOINT_ID).append(COMPLETED_KEY, new Date()));
+    completed = true;
+    LOG.info("Details of all yum entries moved, {} entries backfilled since startup.", backfilledEntries.get());
+  }
+
+  private DBCollection checkpointCollection() {
+    return mongoTemplate.getCollection(MAINTENANCE_CHECKPOINT_COLLECTION);
+  }
+
+  @ManagedAttribute(description = "number of yum entries whose details were moved beside them since startup")
+  public long getBackfilledEntries() {
+    return backfilledEntries.get();
+  }
+
+  @ManagedAttribute(description = "number of yum entries whose details could not be moved since startup")
+  public long getFailedEntries() {
+    return failedEntries.get();
+  }
+
+  @ManagedAttribute
+  public boolean isCompleted() {
+    return completed;
+  }
+}
@@ -2,11 +2,11 @@ package de.is24.infrastructure.gridfs.http.maintenance;
 
 import com.mongodb.DBObject;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
-import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageReducedView;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.RepoCatalog;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
-import de.is24.infrastructure.gridfs.http.rpm.version.YumPackageVersionComparator;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
@@ -44,13 +44,13 @@ public class MaintenanceService {
   private final Filter obsoleteRpmFiler = new ObsoleteRpmFilter();
   private final Filter propagatableRpmFilter = new PropagatableRpmFilter();
 
-  private YumPackageVersionComparator versionComparator = new YumPackageVersionComparator();
   private ScheduledExecutorService scheduledExecutorService;
 
 
   private YumEntriesRepository yumEntriesRepository;
   private FileStorageService fileStorageService;
   private StorageService storageService;
+  private PackageCatalog packageCatalog;
 
   private MongoTemplate mongoTemplate;
   private GridFsOperations gridFsTemplate;
@@ -65,13 +65,14 @@ public class MaintenanceService {
                             YumEntriesRepository yumEntriesRepository,
                             FileStorageService fileStorageService, StorageService storageService,
                             MongoTemplate mongoTemplate,
-                            GridFsOperations gridFsTemplate) {
+                            GridFsOperations gridFsTemplate, PackageCatalog packageCatalog) {
     this.scheduledExecutorService = scheduledExecutorService;
     this.yumEntriesRepository = yumEntriesRepository;
     this.fileStorageService = fileStorageService;
     this.storageService = storageService;
     this.mongoTemplate = mongoTemplate;
     this.gridFsTemplate = gridFsTemplate;
+    this.packageCatalog = packageCatalog;
   }
 
   public Set<YumPackageReducedView> getPropagatableRPMs(String targetRepo,
@@ -135,65 +136,27 @@ public class MaintenanceService {
   }
 
 
+  /**
+   * Compares the catalogs of both repositories and only loads the selected entries of the source repository.
+   */
   private Set<YumPackageReducedView> filterRPMsFromPropagationChain(Filter filter, String targetRepo,
                                                                     String sourceRepo) {
-    Map<String, Map<String, YumPackage>> newestTargetPackages = findNewestPackages(
-      yumEntriesRepository.findByRepo(
-        targetRepo));
-    List<YumEntry> sourceRepoEntries = yumEntriesRepository.findByRepo(sourceRepo);
-    return filterRPMs(filter, newestTargetPackages,
-      sourceRepoEntries);
-  }
-
-
-  private Set<YumPackageReducedView> filterRPMs(Filter filter,
-                                                Map<String, Map<String, YumPackage>> newestTargetPackagesByNameAndArch,
-                                                List<YumEntry> sourceRepoEntries) {
-    Set<YumPackageReducedView> result = new TreeSet<>();
-    for (YumEntry entry : sourceRepoEntries) {
-      YumPackage yumPackage = entry.getYumPackage();
-      YumPackage newestPackageInTargetRepo = getMatchingYumPackageByNameAndArchIfAny(newestTargetPackagesByNameAndArch,
-        yumPackage);
-      if (filter.select(newestPackageInTargetRepo, yumPackage)) {
-        LOGGER.info("found a {} version of {}", filter.getFilterDescription(), yumPackage.getName());
-        result.add(new YumPackageReducedView(yumPackage));
+    RepoCatalog targetCatalog = packageCatalog.catalogOf(targetRepo);
+    RepoCatalog sourceCatalog = packageCatalog.catalogOf(sourceRepo);
+
+    List<ObjectId> selectedIds = new ArrayList<>();
+    for (int i = 0; i < sourceCatalog.size(); i++) {
+      int newestInTarget = targetCatalog.newestIndexOf(sourceCatalog.nameAt(i), sourceCatalog.archAt(i));
+      String newestTargetVersion = (newestInTarget < 0) ? null : targetCatalog.sortKeyAt(newestInTarget);
+      if (filter.select(newestTargetVersion, sourceCatalog.sortKeyAt(i))) {
+        LOGGER.info("found a {} version of {}", filter.getFilterDescription(), sourceCatalog.nameAt(i));
+        selectedIds.add(sourceCatalog.idAt(i));
       }
     }
-    return result;
-  }
-
 
-  private YumPackage getMatchingYumPackageByNameAndArchIfAny(Map<String, Map<String, YumPackage>> packagesByNameAndArch,
-                                                             YumPackage yumPackage) {
-    Map<String, YumPackage> rpmsByArch = packagesByNameAndArch.get(yumPackage.getName());
-    if (rpmsByArch != null) {
-      return rpmsByArch.get(yumPackage.getArch());
-    }
-    return null;
-  }
-
-  /**
-  * determine newest RPMs by name and architecture
-  * @param inputList list of yum entries in repo
-  * @return a map of maps, first map key is rpm name, second maps key is arch
-  */
-  private Map<String, Map<String, YumPackage>> findNewestPackages(List<YumEntry> inputList) {
-    Map<String, Map<String, YumPackage>> result = new HashMap<>();
-    for (YumEntry entry : inputList) {
-      YumPackage yumPackage = entry.getYumPackage();
-
-      Map<String, YumPackage> packageMap = result.get(yumPackage.getName());
-      YumPackage packageForArchInMap = null;
-      if (packageMap == null) {
-        packageMap = new HashMap<>();
-        result.put(yumPackage.getName(), packageMap);
-      } else {
-        packageForArchInMap = packageMap.get(yumPackage.getArch());
-      }
-      if ((packageForArchInMap == null) ||
-          (versionComparator.compare(yumPackage.getVersion(), packageForArchInMap.getVersion()) > 0)) {
-        packageMap.put(yumPackage.getArch(), yumPackage);
-      }
+    Set<YumPackageReducedView> result = new TreeSet<>();
+    for (YumEntry entry : yumEntriesRepository.findAll(selectedIds)) {
+      result.add(new YumPackageReducedView(entry.getYumPackage()));
     }
     return result;
   }
@@ -206,16 +169,18 @@ public class MaintenanceService {
   }
 
   private interface Filter {
-    boolean select(YumPackage newestTargetPackage, YumPackage sourcePackage);
+    /**
+     * @param newestTargetVersion version sort key of the newest package in the target repository, if any
+     */
+    boolean select(String newestTargetVersion, String sourceVersion);
 
     String getFilterDescription();
   }
 
   private class ObsoleteRpmFilter implements Filter {
     @Override
-    public boolean select(YumPackage newestTargetPackage, YumPackage sourcePackage) {
-      return (newestTargetPackage != null) &&
-        (versionComparator.compare(newestTargetPackage.getVersion(), sourcePackage.getVersion()) > 0);
+    public boolean select(String newestTargetVersion, String sourceVersion) {
+      return (newestTargetVersion != null) && (newestTargetVersion.compareTo(sourceVersion) > 0);
     }
 
     @Override
@@ -226,9 +191,8 @@ public class MaintenanceService {
 
   private class PropagatableRpmFilter implements Filter {
     @Override
-    public boolean select(YumPackage newestTargetPackage, YumPackage sourcePackage) {
-      return (newestTargetPackage == null) ||
-        (versionComparator.compare(newestTargetPackage.getVersion(), sourcePackage.getVersion()) < 0);
+    public boolean select(String newestTargetVersion, String sourceVersion) {
+      return (newestTargetVersion == null) || (newestTargetVersion.compareTo(sourceVersion) < 0);
     }
 
     @Override
@@ -0,0 +1,266 @@
+package de.is24.infrastructure.gridfs.http.maintenance;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.gridfs.GridFS.DEFAULT_CHUNKSIZE;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MAINTENANCE_CHECKPOINT_COLLECTION;
+
+
+/**
+ * Regenerates the yum entries of all rpms from their headers. The header stored on upload is used if there is one,
+ * otherwise the file is read only up to the end of its header, as told by the sizes in lead and signature. The files
+ * are processed page by page on a bounded pool. After each page the last file id is stored as checkpoint, so an
+ * interrupted run continues where it stopped. Files that fail are collected instead of aborting the run.
+ */
+@ManagedResource
+@Service
+public class MetadataRegenerator {
+  private static final Logger LOG = LoggerFactory.getLogger(MetadataRegenerator.class);
+  private static final String ID_KEY = "_id";
+  private static final String CHECKPOINT_ID = "metadataRegeneration";
+  private static final String LAST_FILE_ID_KEY = "lastFileId";
+  private static final String UPDATED_KEY = "updated";
+  private static final int MAX_REPORTED_FAILURES = 1000;
+
+  private final MongoTemplate mongoTemplate;
+  private final FileStorageService fileStorageService;
+  private final StorageService storageService;
+  private final int threads;
+  private final int pageSize;
+
+  private final AtomicBoolean running = new AtomicBoolean();
+  private volatile boolean stopRequested;
+  private final AtomicLong regeneratedFiles = new AtomicLong();
+  private final AtomicLong failedFiles = new AtomicLong();
+  private final AtomicLong readBytes = new AtomicLong();
+  private final AtomicLong filesFromStoredHeaders = new AtomicLong();
+  private final Deque<String> failures = new ConcurrentLinkedDeque<>();
+  private volatile long runStartedMillis;
+  private volatile long runEndedMillis;
+  private volatile long runFiles;
+  private volatile Date lastCompletedRun;
+
+  @Autowired
+  public MetadataRegenerator(MongoTemplate mongoTemplate, FileStorageService fileStorageService,
+                             StorageService storageService,
+                             @Value("${metadata.regeneration.threads:4}") int threads,
+                             @Value("${metadata.regeneration.page.size:1000}") int pageSize) {
+    this.mongoTemplate = mongoTemplate;
+    this.fileStorageService = fileStorageService;
+    this.storageService = storageService;
+    this.threads = threads;
+    this.pageSize = pageSize;
+  }
+
+  @ManagedOperation(description = "regenerate the metadata of all rpms in the background, continuing from the last checkpoint")
+  public boolean startRegeneration() {
+    if (running.get()) {
+      return false;
+    }
+
+    Thread thread = new Thread(() -> new MDCHelper(this.getClass()).run(this::regenerateAllFiles),
+      "metadata-regeneration");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  @ManagedOperation(description = "stop the running regeneration after the current page")
+  public void stopRegeneration() {
+    stopRequested = true;
+  }
+
+  @ManagedOperation(description = "let the next regeneration start from the first file")
+  public void resetCheckpoint() {
+    saveCheckpoint(null);
+  }
+
+  /**
+   * Regenerates the metadata of all rpms after the checkpoint and returns when all are done or stop was requested.
+   */
+  public void regenerateAllFiles() {
+    if (!running.compareAndSet(false, true)) {
+      LOG.warn("Metadata regeneration is already running.");
+      return;
+    }
+
+    stopRequested = false;
+    runStartedMillis = System.currentTimeMillis();
+    runFiles = 0;
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+      new CustomizableThreadFactory("metadata-regeneration-"));
+    try {
+      Object lastFileId = loadCheckpoint();
+      LOG.info("Regenerating metadata of all rpms after file {} ...", lastFileId);
+
+      List<FileStorageItem> page = fileStorageService.getRpmsAfter(lastFileId, pageSize);
+      while (!page.isEmpty()) {
+        regenerate(page, executor);
+        lastFileId = page.get(page.size() - 1).getId();
+        saveCheckpoint(lastFileId);
+        runFiles += page.size();
+        LOG.info("Regenerated metadata up to file {}, {} files with {} per second, {} failed since startup.",
+          lastFileId, runFiles, getFilesPerSecond(), failedFiles.get());
+
+        if (stopRequested) {
+          LOG.info("Stopped metadata regeneration at file {}, continuing next time.", lastFileId);
+          return;
+        }
+        page = fileStorageService.getRpmsAfter(lastFileId, pageSize);
+      }
+
+      saveCheckpoint(null);
+      lastCompletedRun = new Date();
+      LOG.info("Finished metadata regeneration of {} files.", runFiles);
+    } finally {
+      executor.shutdownNow();
+      runEndedMillis = System.currentTimeMillis();
+      running.set(false);
+    }
+  }
+
+  private void regenerate(List<FileStorageItem> page, ExecutorService executor) {
+    List<Future<?>> futures = new ArrayList<>(page.size());
+    for (FileStorageItem storageItem : page) {
+      futures.add(executor.submit(() -> regenerate(storageItem)));
+    }
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while regenerating metadata.", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Metadata regeneration failed.", e.getCause());
+      }
+    }
+  }
+
+  private void regenerate(FileStorageItem storageItem) {
+    try {
+      if (storageService.regenerateMetadataFromStoredHeader(storageItem) != null) {
+        filesFromStoredHeaders.incrementAndGet();
+      } else {
+        byte[] header = readHeaderRange(storageItem);
+        readBytes.addAndGet(header.length);
+        storageService.regenerateMetadataFor(storageItem, new ByteArrayInputStream(header));
+      }
+      regeneratedFiles.incrementAndGet();
+    } catch (Exception e) {
+      failedFiles.incrementAndGet();
+      failures.addLast(storageItem.getId() + " " + storageItem.getFilename() + ": " + e.getMessage());
+      while (failures.size() > MAX_REPORTED_FAILURES) {
+        failures.pollFirst();
+      }
+    }
+  }
+
+  /**
+   * Reads the first chunk and, if the header is larger, the chunks up to its end, as told by the sizes in the prefix.
+   */
+  private byte[] readHeaderRange(FileStorageItem storageItem) {
+    byte[] prefix = fileStorageService.readPrefix(storageItem, DEFAULT_CHUNKSIZE);
+    long requiredLength = RpmHeader.requiredLength(prefix);
+    while (requiredLength > prefix.length) {
+      byte[] longerPrefix = fileStorageService.readPrefix(storageItem, requiredLength);
+      if (longerPrefix.length <= prefix.length) {
+        break;
+      }
+      prefix = longerPrefix;
+      requiredLength = RpmHeader.requiredLength(prefix);
+    }
+    return prefix;
+  }
+
+  private Object loadCheckpoint() {
+    DBObject checkpoint = checkpointCollection().findOne(new BasicDBObject(ID_KEY, CHECKPOINT_ID));
+    return (checkpoint == null) ? null : checkpoint.get(LAST_FILE_ID_KEY);
+  }
+
+  private void saveCheckpoint(Object lastFileId) {
+    checkpointCollection().save(new BasicDBObject(ID_KEY, CHECKPOINT_ID)
+      .append(LAST_FILE_ID_KEY, lastFileId)
+      .append(UPDATED_KEY, new Date()));
+  }
+
+  private DBCollection checkpointCollection() {
+    return mongoTemplate.getCollection(MAINTENANCE_CHECKPOINT_COLLECTION);
+  }
+
+  @ManagedAttribute
+  public boolean isRunning() {
+    return running.get();
+  }
+
+  @ManagedAttribute(description = "file id the next regeneration continues after, null if it starts from the beginning")
+  public String getCheckpoint() {
+    Object lastFileId = loadCheckpoint();
+    return (lastFileId == null) ? null : lastFileId.toString();
+  }
+
+  @ManagedAttribute(description = "number of files whose metadata was regenerated since startup")
+  public long getRegeneratedFiles() {
+    return regeneratedFiles.get();
+  }
+
+  @ManagedAttribute(description = "number of files whose metadata could not be regenerated since startup")
+  public long getFailedFiles() {
+    return failedFiles.get();
+  }
+
+  @ManagedAttribute(description = "the last " + MAX_REPORTED_FAILURES + " files that failed, with the reason")
+  public List<String> getFailures() {
+    return new ArrayList<>(failures);
+  }
+
+  @ManagedAttribute(description = "number of bytes read from rpms for their headers since startup")
+  public long getReadBytes() {
+    return readBytes.get();
+  }
+
+  @ManagedAttribute(description = "number of files regenerated from their stored header without reading the rpm")
+  public long getFilesFromStoredHeaders() {
+    return filesFromStoredHeaders.get();
+  }
+
+  @ManagedAttribute(description = "files per second of the running or last regeneration")
+  public long getFilesPerSecond() {
+    long seconds = ((running.get() ? System.currentTimeMillis() : runEndedMillis) - runStartedMillis) / 1000;
+    return (seconds > 0) ? (runFiles / seconds) : runFiles;
+  }
+
+  @ManagedAttribute
+  public Date getLastCompletedRun() {
+    return lastCompletedRun;
+  }
+}
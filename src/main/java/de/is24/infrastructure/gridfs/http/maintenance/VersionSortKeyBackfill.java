@@ -0,0 +1,134 @@
+package de.is24.infrastructure.gridfs.http.maintenance;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MAINTENANCE_CHECKPOINT_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.VERSION_SORT_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.rpm.version.VersionSortKey.sortKey;
+
+
+/**
+ * Adds the version sort key to yum entries stored before it existed. Runs on the primary until one pass
+ * found nothing left to do, records that in the maintenance checkpoints and drops the index the version
+ * index replaced.
+ */
+@ManagedResource
+@Service
+public class VersionSortKeyBackfill {
+  private static final Logger LOG = LoggerFactory.getLogger(VersionSortKeyBackfill.class);
+  private static final String ID_KEY = "_id";
+  private static final String VERSION_PATH = "yumPackage.version";
+  private static final String CHECKPOINT_ID = "versionSortKey";
+  private static final String COMPLETED_KEY = "completed";
+  private static final String SUPERSEDED_INDEX = "repo_name_arch";
+  private static final int BATCH_SIZE = 1000;
+
+  private final MongoTemplate mongoTemplate;
+  private final MongoPrimaryDetector primaryDetector;
+  private final AtomicLong backfilledEntries = new AtomicLong();
+  private volatile boolean completed;
+
+  @Autowired
+  public VersionSortKeyBackfill(MongoTemplate mongoTemplate, MongoPrimaryDetector primaryDetector) {
+    this.mongoTemplate = mongoTemplate;
+    this.primaryDetector = primaryDetector;
+  }
+
+  @Scheduled(
+    initialDelayString = "${scheduler.sort.key.backfill.initial.delay.ms:60000}",
+    fixedDelayString = "${scheduler.sort.key.backfill.delay.ms:600000}"
+  )
+  public void backfillIfNecessary() {
+    if (!completed && primaryDetector.isPrimary()) {
+      if (checkpointCollection().findOne(new BasicDBObject(ID_KEY, CHECKPOINT_ID)) != null) {
+        completed = true;
+        return;
+      }
+      new MDCHelper(this.getClass()).run(this::backfill);
+    }
+  }
+
+  @ManagedOperation(description = "add the version sort key to all yum entries without one")
+  public void backfill() {
+    LOG.info("Adding version sort keys to yum entries ...");
+    DBCollection entries = mongoTemplate.getCollection(YUM_ENTRY_COLLECTION);
+    DBObject withoutSortKey = new BasicDBObject(VERSION_SORT_KEY, new BasicDBObject("$exists", false));
+
+    BulkWriteOperation bulk = entries.initializeUnorderedBulkOperation();
+    int pending = 0;
+    try(DBCursor cursor = entries.find(withoutSortKey, new BasicDBObject(VERSION_PATH, 1))) {
+      while (cursor.hasNext()) {
+        DBObject entry = cursor.next();
+        String key = sortKeyOf(entry);
+        if (key == null) {
+          LOG.warn("Yum entry {} has no version.", entry.get(ID_KEY));
+          continue;
+        }
+
+        bulk.find(new BasicDBObject(ID_KEY, entry.get(ID_KEY)).append(VERSION_SORT_KEY, new BasicDBObject("$exists", false)))
+          .updateOne(new BasicDBObject("$set", new BasicDBObject(VERSION_SORT_KEY, key)));
+        pending++;
+        if (pending >= BATCH_SIZE) {
+          backfilledEntries.addAndGet(bulk.execute().getModifiedCount());
+          bulk = entries.initializeUnorderedBulkOperation();
+          pending = 0;
+        }
+      }
+    }
+    if (pending > 0) {
+      backfilledEntries.addAndGet(bulk.execute().getModifiedCount());
+    }
+
+    checkpointCollection().save(new BasicDBObject(ID_KEY, CHECKPOINT_ID).append(COMPLETED_KEY, new Date()));
+    completed = true;
+    dropSupersededIndex(entries);
+    LOG.info("Version sort keys complete, {} entries backfilled since startup.", backfilledEntries.get());
+  }
+
+  private static String sortKeyOf(DBObject entry) {
+    DBObject yumPackage = (DBObject) entry.get("yumPackage");
+    DBObject version = (yumPackage == null) ? null : (DBObject) yumPackage.get("version");
+    return (version == null) ? null : sortKey(version);
+  }
+
+  private static void dropSupersededIndex(DBCollection entries) {
+    for (DBObject index : entries.getIndexInfo()) {
+      if (SUPERSEDED_INDEX.equals(index.get("name"))) {
+        LOG.info("Dropping index {} of {}, the version index covers it.", SUPERSEDED_INDEX, YUM_ENTRY_COLLECTION);
+        entries.dropIndex(SUPERSEDED_INDEX);
+      }
+    }
+  }
+
+  private DBCollection checkpointCollection() {
+    return mongoTemplate.getCollection(MAINTENANCE_CHECKPOINT_COLLECTION);
+  }
+
+  @ManagedAttribute(description = "number of yum entries that got their version sort key since startup")
+  public long getBackfilledEntries() {
+    return backfilledEntries.get();
+  }
+
+  @ManagedAttribute
+  public boolean isCompleted() {
+    return completed;
+  }
+}
@@ -0,0 +1,170 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Profile of one metadata generation run: how it ended, where the time went, how many rows were written
+ * and how well the repodata compressed.
+ */
+public class GenerationReport {
+  public enum Outcome {
+    SUCCEEDED,
+    FAILED,
+    CANCELLED
+  }
+
+  private final String reponame;
+  private final Date startedAt;
+  private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+  private final Map<String, Long> tableRows = new LinkedHashMap<>();
+  private final List<Artifact> artifacts = new ArrayList<>();
+  private long entries;
+  private long totalMillis;
+  private long allocatedBytes = -1;
+  private boolean copiedFromCache;
+  private Outcome outcome = Outcome.SUCCEEDED;
+  private String failure;
+
+  public GenerationReport(String reponame, Date startedAt) {
+    this.reponame = reponame;
+    this.startedAt = startedAt;
+  }
+
+  public void addPhase(String phase, long millis) {
+    phaseMillis.merge(phase, millis, Long::sum);
+  }
+
+  public void addTableRows(String dbName, Map<String, Long> rowsPerTable) {
+    rowsPerTable.forEach((table, rows) -> tableRows.put(dbName + "." + table, rows));
+  }
+
+  public void addArtifacts(List<Data> dbData) {
+    dbData.forEach(data -> artifacts.add(new Artifact(data)));
+  }
+
+  public String getReponame() {
+    return reponame;
+  }
+
+  public Date getStartedAt() {
+    return startedAt;
+  }
+
+  public Map<String, Long> getPhaseMillis() {
+    return phaseMillis;
+  }
+
+  public Map<String, Long> getTableRows() {
+    return tableRows;
+  }
+
+  public List<Artifact> getArtifacts() {
+    return artifacts;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public void setEntries(long entries) {
+    this.entries = entries;
+  }
+
+  public long getTotalMillis() {
+    return totalMillis;
+  }
+
+  public void setTotalMillis(long totalMillis) {
+    this.totalMillis = totalMillis;
+  }
+
+  /**
+   * @return bytes allocated by the generating thread, -1 if the jvm can not tell
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  public void setAllocatedBytes(long allocatedBytes) {
+    this.allocatedBytes = allocatedBytes;
+  }
+
+  public boolean isCopiedFromCache() {
+    return copiedFromCache;
+  }
+
+  public void setCopiedFromCache(boolean copiedFromCache) {
+    this.copiedFromCache = copiedFromCache;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  /**
+   * @return the reason, why the run failed or was cancelled, null if it succeeded
+   */
+  public String getFailure() {
+    return failure;
+  }
+
+  public void fail(Outcome outcome, Exception cause) {
+    this.outcome = outcome;
+    this.failure = cause.toString();
+  }
+
+  public long getEntriesPerSecond() {
+    return (totalMillis > 0) ? ((entries * 1000) / totalMillis) : entries;
+  }
+
+  public long getUncompressedBytes() {
+    return artifacts.stream().mapToLong(Artifact::getUncompressedBytes).sum();
+  }
+
+  public long getCompressedBytes() {
+    return artifacts.stream().mapToLong(Artifact::getCompressedBytes).sum();
+  }
+
+  @Override
+  public String toString() {
+    return reponame + " at " + startedAt + ": " + outcome + ((failure != null) ? (" (" + failure + ")") : "") + ", " +
+      totalMillis + " ms, " + entries + " entries (" +
+      getEntriesPerSecond() + "/s), " + getUncompressedBytes() + " -> " + getCompressedBytes() + " bytes, " +
+      "allocated " + allocatedBytes + " bytes" + (copiedFromCache ? ", copied from cache" : "") +
+      ", phases " + phaseMillis + ", rows " + tableRows;
+  }
+
+  public static class Artifact {
+    private final String type;
+    private final long uncompressedBytes;
+    private final long compressedBytes;
+
+    Artifact(Data data) {
+      this.type = data.getType();
+      this.uncompressedBytes = data.getOpenSize();
+      this.compressedBytes = data.getSize();
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public long getUncompressedBytes() {
+      return uncompressedBytes;
+    }
+
+    public long getCompressedBytes() {
+      return compressedBytes;
+    }
+
+    public double getCompressionRatio() {
+      return (compressedBytes > 0) ? ((double) uncompressedBytes / compressedBytes) : 0;
+    }
+  }
+}
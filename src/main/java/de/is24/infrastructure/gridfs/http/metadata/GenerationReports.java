@@ -0,0 +1,71 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.util.Collections.emptyList;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+
+/**
+ * Keeps the latest generation reports of every repository.
+ */
+@ManagedResource
+@Service
+public class GenerationReports {
+  private final Map<String, Deque<GenerationReport>> reports = new ConcurrentHashMap<>();
+  private final int historySize;
+
+  @Autowired
+  public GenerationReports(@Value("${metadata.report.history.size:10}") int historySize) {
+    this.historySize = historySize;
+  }
+
+  public void add(GenerationReport report) {
+    Deque<GenerationReport> history = reports.computeIfAbsent(report.getReponame(), reponame -> new ArrayDeque<>());
+    synchronized (history) {
+      history.addFirst(report);
+      while (history.size() > historySize) {
+        history.removeLast();
+      }
+    }
+  }
+
+  /**
+   * @return reports of the repository, newest first
+   */
+  public List<GenerationReport> reportsOf(String reponame) {
+    Deque<GenerationReport> history = reports.get(reponame);
+    if (history == null) {
+      return emptyList();
+    }
+    synchronized (history) {
+      return new ArrayList<>(history);
+    }
+  }
+
+  public List<GenerationReport> latestReports() {
+    return reports.keySet().stream().map(this::reportsOf).filter(history -> !history.isEmpty())
+      .map(history -> history.get(0)).sorted(comparing(GenerationReport::getReponame)).collect(toList());
+  }
+
+  @ManagedOperation(description = "generation reports of a repository, newest first")
+  public List<String> getReports(String reponame) {
+    return reportsOf(reponame).stream().map(GenerationReport::toString).collect(toList());
+  }
+
+  @ManagedAttribute(description = "latest generation report of every repository")
+  public List<String> getLatestReports() {
+    return latestReports().stream().map(GenerationReport::toString).collect(toList());
+  }
+}
@@ -3,18 +3,26 @@ package de.is24.infrastructure.gridfs.http.metadata;
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.exception.GenerationCancelledException;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import de.is24.infrastructure.gridfs.http.metadata.GenerationReport.Outcome;
 import de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.FileListsGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.FileListsXmlGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.OtherDbGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.OtherXmlGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryXmlGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.RepoMdGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.XmlGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RunningGeneration;
 import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.util.monitoring.InApplicationMonitor;
 import de.is24.util.monitoring.spring.TimeMeasurement;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,12 +33,20 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Service;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import static de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator.digestOf;
 import static java.io.File.createTempFile;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
 import static org.springframework.util.ObjectUtils.nullSafeEquals;
 
 
@@ -39,50 +55,66 @@ import static org.springframework.util.ObjectUtils.nullSafeEquals;
 @TimeMeasurement
 public class MetadataService {
   private static final Logger LOG = LoggerFactory.getLogger(MetadataService.class);
-  private static final String METADATA_FILE_PATTERN = "/repodata/.*sqlite.bz2";
   private static final String METADATA_SERVICE = "MetadataService.";
   private static final String METADATA_SERVICE_MARK_FOR_DELETE = METADATA_SERVICE + "markForDelete.";
   private static final String METADATA_SERVICE_FIND_ENTRIES = METADATA_SERVICE + "findEntries.";
+  private static final String METADATA_SERVICE_CREATE_REPODATA = METADATA_SERVICE + "createRepodata.";
   private static final String METADATA_SERVICE_CREATE_DB = METADATA_SERVICE + "createDb.";
   private static final String METADATA_SERVICE_STORE_DB = METADATA_SERVICE + "storeDb.";
+  private static final String METADATA_SERVICE_STORE_XML = METADATA_SERVICE + "storeXml.";
   private static final String METADATA_SERVICE_GENERATE_REPOMDXML = METADATA_SERVICE + "generateRepomdXml.";
+  private static final String PRIMARY_METADATA = "primary";
+  private static final String OTHER_METADATA = "other";
 
 
   private final StorageService storageService;
   private final RepoMdGenerator repoMdGenerator;
   private final YumEntriesRepository entriesRepository;
+  private final YumEntryDetailsStore entryDetailsStore;
   private final RepoService repoService;
   private final RepoCleaner repoCleaner;
   private final YumEntriesHashCalculator entriesHashCalculator;
   private final InApplicationMonitor inApplicationMonitor;
   private final FileStorageService fileStorageService;
+  private final RepodataArtifactCache repodataArtifactCache;
+  private final GenerationReports generationReports;
   private File tmpDir;
+  private long sqliteMemoryBudget;
 
   //only for cglib proxy
   public MetadataService() {
     storageService = null;
     repoMdGenerator = null;
     entriesRepository = null;
+    entryDetailsStore = null;
     repoService = null;
     repoCleaner = null;
     entriesHashCalculator = null;
     inApplicationMonitor = null;
     fileStorageService = null;
+    repodataArtifactCache = null;
+    generationReports = null;
   }
 
   @Autowired
   public MetadataService(StorageService gridFs, FileStorageService fileStorageService,
-                         YumEntriesRepository entriesRepository, RepoMdGenerator repoMdGenerator,
+                         YumEntriesRepository entriesRepository, YumEntryDetailsStore entryDetailsStore,
+                         RepoMdGenerator repoMdGenerator,
                          RepoService repoService, RepoCleaner repoCleaner,
                          YumEntriesHashCalculator entriesHashCalculator,
+                         RepodataArtifactCache repodataArtifactCache,
+                         GenerationReports generationReports,
                          InApplicationMonitor inApplicationMonitor) {
     this.storageService = gridFs;
     this.fileStorageService = fileStorageService;
     this.entriesRepository = entriesRepository;
+    this.entryDetailsStore = entryDetailsStore;
     this.repoMdGenerator = repoMdGenerator;
     this.repoService = repoService;
     this.repoCleaner = repoCleaner;
     this.entriesHashCalculator = entriesHashCalculator;
+    this.repodataArtifactCache = repodataArtifactCache;
+    this.generationReports = generationReports;
     this.inApplicationMonitor = inApplicationMonitor;
   }
 
@@ -105,19 +137,31 @@ public class MetadataService {
   }
 
   private void generateYumMetadata(String reponame, boolean allwaysGenerate) throws IOException, SQLException {
+    final Date checkTime = new Date();
     final RepoEntry repoEntry = repoService.ensureEntry(reponame, RepoType.STATIC, RepoType.SCHEDULED);
     String calculatedHash = entriesHashCalculator.hashForRepo(repoEntry.getName());
     if (allwaysGenerate || needsMetadataUpdate(repoEntry, calculatedHash)) {
-      if (repoCleaner.cleanup(reponame)) {
+      RunningGeneration.enterPhase("cleanup");
+      if (repoCleaner.cleanupExpired(reponame)) {
         calculatedHash = entriesHashCalculator.hashForRepo(repoEntry.getName());
       }
       doYumMetadataGenerationOnlyInternal(reponame, calculatedHash);
     } else {
+      // the metadata is up to date as of the check, so a modification without changed entries is not seen again
+      if (isModifiedAfterGeneration(repoEntry)) {
+        repoService.updateLastMetadataGeneration(reponame, checkTime, calculatedHash);
+      }
       LOG.debug("Generation for repository {} skipped. Because no update available.", reponame);
     }
   }
 
 
+  private static boolean isModifiedAfterGeneration(RepoEntry repoEntry) {
+    return (repoEntry.getLastModified() != null) &&
+      ((repoEntry.getLastMetadataGeneration() == null) ||
+        repoEntry.getLastModified().after(repoEntry.getLastMetadataGeneration()));
+  }
+
   private boolean needsMetadataUpdate(final RepoEntry repoEntry, final String calculatedHash) {
     final String savedHash = repoEntry.getHashOfEntries();
     return !nullSafeEquals(calculatedHash, savedHash);
@@ -127,63 +171,136 @@ public class MetadataService {
                                             throws IOException, SQLException {
     LOG.info("Generating metadata for {} started ..", reponame);
 
+    long generationStart = System.currentTimeMillis();
+    long allocatedAtStart = allocatedBytes();
+    Date startTime = new Date();
+    GenerationReport report = new GenerationReport(reponame, startTime);
+    try {
+      generateAndPublish(reponame, calculatedHashOfEntries, startTime, report);
+    } catch (GenerationCancelledException e) {
+      report.fail(Outcome.CANCELLED, e);
+      throw e;
+    } catch (IOException | SQLException | RuntimeException e) {
+      report.fail(Outcome.FAILED, e);
+      throw e;
+    } finally {
+      report.setTotalMillis(System.currentTimeMillis() - generationStart);
+      if (allocatedAtStart >= 0) {
+        report.setAllocatedBytes(allocatedBytes() - allocatedAtStart);
+      }
+      generationReports.add(report);
+    }
+
+    LOG.info("Generating metadata for {} finished: {}", reponame, report);
+  }
+
+  private void generateAndPublish(String reponame, String calculatedHashOfEntries, Date startTime,
+                                  GenerationReport report) throws IOException, SQLException {
+    // publish in two phases: store the new files and repomd.xml first and only then mark the old
+    // files, so that clients never miss a database referenced by the repomd.xml they just fetched
+    RunningGeneration.enterPhase("copy cached repodata");
     long start = System.currentTimeMillis();
-    long current;
-    fileStorageService.markForDeletionByFilenameRegex(reponame + METADATA_FILE_PATTERN);
+    String contentDigest = entriesHashCalculator.digestForRepo(reponame);
+    List<Data> dbData = repodataArtifactCache.copyTo(contentDigest, reponame);
+    report.setCopiedFromCache(dbData != null);
+    if (dbData == null) {
+      dbData = new ArrayList<>();
+      EntriesSnapshot snapshot = generateDbs(reponame, dbData, report);
+      // the entries may have changed since, the generated files are remembered for the entries they contain
+      contentDigest = snapshot.contentDigest;
+      generateXmls(reponame, snapshot, dbData, report);
+    }
+    measure(report, "createRepodata", METADATA_SERVICE_CREATE_REPODATA + reponame, start);
+    repodataArtifactCache.remember(contentDigest, reponame, dbData);
+    report.addArtifacts(dbData);
 
-    current = System.currentTimeMillis();
-    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_MARK_FOR_DELETE + reponame, start,
-      current);
-    start = current;
+    RunningGeneration.enterPhase("generate repomd.xml");
+    RunningGeneration.checkLease();
+    start = System.currentTimeMillis();
+    repoMdGenerator.generateRepoMdXml(reponame, dbData);
+    measure(report, "generateRepomdXml", METADATA_SERVICE_GENERATE_REPOMDXML + reponame, start);
 
-    Date startTime = new Date();
+    RunningGeneration.enterPhase("mark old repodata");
+    RunningGeneration.checkLease();
+    start = System.currentTimeMillis();
+    fileStorageService.markRepodataForDeletionExcept(reponame, getFilenames(reponame, dbData));
+    measure(report, "markForDelete", METADATA_SERVICE_MARK_FOR_DELETE + reponame, start);
+
+    repoService.updateLastMetadataGeneration(reponame, startTime, calculatedHashOfEntries);
+  }
 
-    List<YumEntry> entries = entriesRepository.findByRepo(reponame);
-    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_FIND_ENTRIES + reponame,
-      start,
-      System.currentTimeMillis());
+  private long measure(GenerationReport report, String phase, String timer, long start) {
+    long end = System.currentTimeMillis();
+    inApplicationMonitor.addTimerMeasurement(timer, start, end);
+    report.addPhase(phase, end - start);
+    return end;
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if ((threadMXBean instanceof com.sun.management.ThreadMXBean) &&
+        ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported()) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static List<String> getFilenames(String reponame, List<Data> dbData) {
+    return dbData.stream().map(data -> reponame + "/" + data.getLocation().getHref()).collect(toList());
+  }
 
+  /**
+   * Reads the entries up to the newest one once for all databases, the xml generators stream the same entries
+   * afterwards, so the list is only held while the databases are generated.
+   */
+  private EntriesSnapshot generateDbs(String reponame, List<Data> dbData, GenerationReport report)
+                               throws IOException, SQLException {
+    RunningGeneration.enterPhase("find entries");
+    long start = System.currentTimeMillis();
+    YumEntry lastEntry = entriesRepository.findFirstByRepoOrderByIdDesc(reponame);
+    ObjectId lastId = (lastEntry == null) ? null : lastEntry.getId();
+    List<YumEntry> entries = (lastId == null) ? emptyList()
+                                              : entriesRepository.findByRepoAndIdLessThanEqual(reponame, lastId);
+    measure(report, "findEntries", METADATA_SERVICE_FIND_ENTRIES + reponame, start);
+    report.setEntries(entries.size());
 
-    List<Data> dbData = new ArrayList<>();
     for (DbGenerator dbGenerator : asList(new PrimaryDbGenerator(), new FileListsGenerator(), new OtherDbGenerator())) {
       LOG.info("Generate {}-DB for {}", dbGenerator.getName(), reponame);
 
-      Data data = saveDb(dbGenerator, reponame, entries);
+      Iterable<YumEntry> entriesWithDetails = () -> withDetailsFor(dbGenerator, entries.iterator());
+      Data data = saveDb(dbGenerator, reponame, entriesWithDetails, report);
       data.setType(dbGenerator.getName() + "_db");
       dbData.add(data);
     }
 
-    start = System.currentTimeMillis();
-    repoMdGenerator.generateRepoMdXml(reponame, dbData);
-    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_GENERATE_REPOMDXML + reponame,
-      start,
-      System.currentTimeMillis());
-
-    repoService.updateLastMetadataGeneration(reponame, startTime, calculatedHashOfEntries);
-
+    return new EntriesSnapshot(lastId, entries.size(),
+      digestOf(entries.stream().map(entry -> entry.getYumPackage().getChecksum().getChecksum()).collect(toList())));
+  }
 
-    LOG.info("Generating metadata for {} finished.", reponame);
+  private void generateXmls(String reponame, EntriesSnapshot snapshot, List<Data> dbData, GenerationReport report)
+                     throws IOException {
+    for (XmlGenerator xmlGenerator : asList(new PrimaryXmlGenerator(), new FileListsXmlGenerator(), new OtherXmlGenerator())) {
+      LOG.info("Generate {}-XML for {}", xmlGenerator.getName(), reponame);
+      dbData.add(saveXml(xmlGenerator, reponame, snapshot, report));
+    }
   }
 
-  private Data saveDb(DbGenerator dbGenerator, String reponame, List<YumEntry> entries) throws IOException,
-                                                                                               SQLException {
+  private Data saveDb(DbGenerator dbGenerator, String reponame, Iterable<YumEntry> entries, GenerationReport report)
+               throws IOException, SQLException {
+    RunningGeneration.enterPhase("create " + dbGenerator.getName() + " db");
     long start = System.currentTimeMillis();
-    long current;
     File tempDbFile = createTempFile(reponame + "-" + dbGenerator.getName(), ".sqlite", tmpDir);
     try {
-      dbGenerator.createDb(tempDbFile, entries);
-      current = System.currentTimeMillis();
-      inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_CREATE_DB + dbGenerator.getName() + "." + reponame,
-        start,
-        current);
-      start = current;
+      dbGenerator.createDb(tempDbFile, entries, sqliteMemoryBudget);
+      start = measure(report, "createDb." + dbGenerator.getName(),
+        METADATA_SERVICE_CREATE_DB + dbGenerator.getName() + "." + reponame, start);
+      report.addTableRows(dbGenerator.getName(), dbGenerator.getWrittenRows());
 
+      RunningGeneration.enterPhase("store " + dbGenerator.getName() + " db");
       Data data = storageService.storeRepodataDbBz2(reponame, tempDbFile, dbGenerator.getName());
       data.setType(dbGenerator.getName() + "_db");
-
-      inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_STORE_DB + dbGenerator.getName() + "." + reponame,
-        start,
-        System.currentTimeMillis());
+      measure(report, "storeDb." + dbGenerator.getName(),
+        METADATA_SERVICE_STORE_DB + dbGenerator.getName() + "." + reponame, start);
 
       return data;
     } finally {
@@ -191,6 +308,59 @@ public class MetadataService {
     }
   }
 
+  /**
+   * Streams the entries of the snapshot from a cursor, so the memory doesn't grow with the repository. Entries
+   * uploaded since have a greater id and are left out, so the packages attribute matches the written packages,
+   * unless entries are removed while the xml is written.
+   */
+  private Data saveXml(XmlGenerator xmlGenerator, String reponame, EntriesSnapshot snapshot,
+                       GenerationReport report) throws IOException {
+    RunningGeneration.enterPhase("store " + xmlGenerator.getName() + " xml");
+    long start = System.currentTimeMillis();
+    try(Stream<YumEntry> entries = (snapshot.lastId == null)
+        ? Stream.empty() : entriesRepository.streamByRepoAndIdLessThanEqual(reponame, snapshot.lastId)) {
+      Data data = storageService.storeRepodataXmlGz(reponame, xmlGenerator.getName(),
+        outputStream -> xmlGenerator.createXml(outputStream, snapshot.entryCount,
+          withDetailsFor(xmlGenerator.getName(), entries.iterator(), entry -> true)));
+      data.setType(xmlGenerator.getName());
+      measure(report, "storeXml." + xmlGenerator.getName(),
+        METADATA_SERVICE_STORE_XML + xmlGenerator.getName() + "." + reponame, start);
+
+      return data;
+    }
+  }
+
+  /**
+   * Attaches what a generator reads beyond the entry itself: changelogs for the other metadata, files for the rest.
+   */
+  private Iterator<YumEntry> withDetailsFor(DbGenerator dbGenerator, Iterator<YumEntry> entries) {
+    Predicate<YumEntry> needsDetails = entry -> !dbGenerator.hasPrecomputedRows(entry);
+    return PRIMARY_METADATA.equals(dbGenerator.getName())
+      ? entryDetailsStore.withMetadataRowsAndFiles(entries, needsDetails)
+      : withDetailsFor(dbGenerator.getName(), entries, needsDetails);
+  }
+
+  private Iterator<YumEntry> withDetailsFor(String generatorName, Iterator<YumEntry> entries,
+                                            Predicate<YumEntry> needsDetails) {
+    return OTHER_METADATA.equals(generatorName) ? entryDetailsStore.withChangeLogs(entries, needsDetails)
+                                                : entryDetailsStore.withFiles(entries, needsDetails);
+  }
+
+  /**
+   * The entries the databases were generated from: all entries of the repository up to the last id.
+   */
+  private static final class EntriesSnapshot {
+    private final ObjectId lastId;
+    private final int entryCount;
+    private final String contentDigest;
+
+    private EntriesSnapshot(ObjectId lastId, int entryCount, String contentDigest) {
+      this.lastId = lastId;
+      this.entryCount = entryCount;
+      this.contentDigest = contentDigest;
+    }
+  }
+
   @Value("${metadata.tmp.dir:@null}")
   public void setTmpDir(File tmpDir) {
     this.tmpDir = tmpDir;
@@ -199,4 +369,9 @@ public class MetadataService {
     }
   }
 
+  @Value("${metadata.sqlite.memory.budget.mb:0}")
+  public void setSqliteMemoryBudgetInMB(long sqliteMemoryBudgetInMB) {
+    this.sqliteMemoryBudget = sqliteMemoryBudgetInMB * 1024 * 1024;
+  }
+
 }
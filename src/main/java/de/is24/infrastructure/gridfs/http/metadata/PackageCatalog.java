@@ -0,0 +1,173 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.domain.RepoContent;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.metadata.RepoCatalog.Row;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import static de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator.hashOf;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.VERSION_SORT_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.rpm.version.VersionSortKey.sortKey;
+
+
+/**
+ * Keeps a {@link RepoCatalog} per repository in memory, so that newest versions and differences between
+ * repositories are looked up without reading the entries. Catalogs are built on first use and updated by the
+ * write paths of this node. Every lookup compares the catalog with the content hash of the repository, a single
+ * document read, and rebuilds it if another node changed the repository meanwhile.
+ */
+@ManagedResource
+@Service
+public class PackageCatalog {
+  private static final Logger LOG = LoggerFactory.getLogger(PackageCatalog.class);
+
+  private final MongoTemplate mongoTemplate;
+  private final YumEntriesHashCalculator entriesHashCalculator;
+  private final int maxRepos;
+  private final Map<String, CatalogHolder> catalogs = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong updates = new AtomicLong();
+
+  @Autowired
+  public PackageCatalog(MongoTemplate mongoTemplate, YumEntriesHashCalculator entriesHashCalculator,
+                        @Value("${catalog.max.repos:200}") int maxRepos) {
+    this.mongoTemplate = mongoTemplate;
+    this.entriesHashCalculator = entriesHashCalculator;
+    this.maxRepos = maxRepos;
+  }
+
+  public RepoCatalog catalogOf(String reponame) {
+    RepoContent content = entriesHashCalculator.contentOf(reponame);
+    CatalogHolder holder = catalogs.get(reponame);
+    if ((holder != null) && holder.catalog.isLabelledWith(content.getHash(), content.getEntries())) {
+      hits.incrementAndGet();
+      holder.lastAccess = System.nanoTime();
+      return holder.catalog;
+    }
+
+    RepoCatalog catalog = load(reponame, content);
+    catalogs.put(reponame, new CatalogHolder(catalog));
+    evictLeastRecentlyUsed();
+    return catalog;
+  }
+
+  public void entryAdded(String reponame, YumEntry entry) {
+    Row row = new Row(entry.getYumPackage().getName(), entry.getYumPackage().getArch(), entry.getVersionSortKey(),
+      entry.getId());
+    long hashDelta = hashOf(entry.getYumPackage().getChecksum().getChecksum());
+    update(reponame, catalog -> catalog.with(row, hashDelta));
+  }
+
+  public void entryRemoved(String reponame, ObjectId id, String checksum) {
+    HashSet<ObjectId> ids = new HashSet<>();
+    ids.add(id);
+    update(reponame, catalog -> catalog.without(ids, hashOf(checksum)));
+  }
+
+  public void entriesRemoved(String reponame, Collection<ObjectId> ids, Collection<String> checksums) {
+    long hashDelta = checksums.stream().mapToLong(YumEntriesHashCalculator::hashOf).reduce(0, (a, b) -> a ^ b);
+    HashSet<ObjectId> removedIds = new HashSet<>(ids);
+    update(reponame, catalog -> catalog.without(removedIds, hashDelta));
+  }
+
+  @ManagedOperation(description = "drop the catalog of a repository, it is rebuilt on next use")
+  public void invalidate(String reponame) {
+    catalogs.remove(reponame);
+  }
+
+  @ManagedAttribute(description = "number of repositories with a catalog in memory")
+  public int getRepos() {
+    return catalogs.size();
+  }
+
+  @ManagedAttribute(description = "number of packages in all catalogs")
+  public long getPackages() {
+    return catalogs.values().stream().mapToLong(holder -> holder.catalog.size()).sum();
+  }
+
+  @ManagedAttribute(description = "number of lookups answered by an up to date catalog")
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute(description = "number of catalogs built from the entries")
+  public long getLoads() {
+    return loads.get();
+  }
+
+  @ManagedAttribute(description = "number of catalog changes by the write paths of this node")
+  public long getUpdates() {
+    return updates.get();
+  }
+
+  private void update(String reponame, UnaryOperator<RepoCatalog> change) {
+    catalogs.computeIfPresent(reponame, (name, holder) -> new CatalogHolder(change.apply(holder.catalog)));
+    updates.incrementAndGet();
+  }
+
+  private RepoCatalog load(String reponame, RepoContent content) {
+    loads.incrementAndGet();
+    List<Row> rows = new ArrayList<>();
+    DBObject fields = new BasicDBObject("yumPackage.name", 1).append("yumPackage.arch", 1)
+      .append("yumPackage.version", 1).append(VERSION_SORT_KEY, 1);
+    try(DBCursor cursor = mongoTemplate.getCollection(YUM_ENTRY_COLLECTION)
+        .find(new BasicDBObject(REPO_KEY, reponame), fields)) {
+      while (cursor.hasNext()) {
+        rows.add(rowOf(cursor.next()));
+      }
+    }
+    LOG.debug("Loaded catalog of {} with {} packages.", reponame, rows.size());
+    return RepoCatalog.of(content.getHash(), content.getEntries(), rows.toArray(new Row[rows.size()]));
+  }
+
+  private static Row rowOf(DBObject entry) {
+    DBObject yumPackage = (DBObject) entry.get("yumPackage");
+    String key = (String) entry.get(VERSION_SORT_KEY);
+    if (key == null) {
+      key = sortKey((DBObject) yumPackage.get("version"));
+    }
+    return new Row((String) yumPackage.get("name"), (String) yumPackage.get("arch"), key,
+      (ObjectId) entry.get("_id"));
+  }
+
+  private void evictLeastRecentlyUsed() {
+    while (catalogs.size() > maxRepos) {
+      catalogs.entrySet().stream()
+        .min((entry1, entry2) -> Long.compare(entry1.getValue().lastAccess, entry2.getValue().lastAccess))
+        .ifPresent(entry -> catalogs.remove(entry.getKey(), entry.getValue()));
+    }
+  }
+
+  private static class CatalogHolder {
+    private final RepoCatalog catalog;
+    private volatile long lastAccess = System.nanoTime();
+
+    CatalogHolder(RepoCatalog catalog) {
+      this.catalog = catalog;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import org.bson.types.ObjectId;
+import java.util.Arrays;
+import java.util.Set;
+
+
+/**
+ * Immutable table of the packages of one repository: name, arch and version sort key as interned strings and
+ * the entry ids as 12 bytes each, sorted by name, arch and version. Changes create a new catalog, so readers
+ * never need a lock.
+ * <p>
+ * The catalog is labelled with the content hash of the entries it was built from, see
+ * {@link YumEntriesHashCalculator}, and applies the same hash changes as the entries it adds or removes.
+ */
+public final class RepoCatalog {
+  private static final int ID_LENGTH = 12;
+
+  private final long hash;
+  private final long entries;
+  private final String[] names;
+  private final String[] arches;
+  private final String[] sortKeys;
+  private final byte[] ids;
+
+  private RepoCatalog(long hash, long entries, String[] names, String[] arches, String[] sortKeys, byte[] ids) {
+    this.hash = hash;
+    this.entries = entries;
+    this.names = names;
+    this.arches = arches;
+    this.sortKeys = sortKeys;
+    this.ids = ids;
+  }
+
+  public static RepoCatalog empty(long hash, long entries) {
+    return new RepoCatalog(hash, entries, new String[0], new String[0], new String[0], new byte[0]);
+  }
+
+  /**
+   * Builds a catalog of many packages at once, the rows do not need to be sorted.
+   */
+  public static RepoCatalog of(long hash, long entries, Row... rows) {
+    Row[] sorted = rows.clone();
+    Arrays.sort(sorted);
+
+    String[] names = new String[sorted.length];
+    String[] arches = new String[sorted.length];
+    String[] sortKeys = new String[sorted.length];
+    byte[] ids = new byte[sorted.length * ID_LENGTH];
+    for (int i = 0; i < sorted.length; i++) {
+      names[i] = sorted[i].name;
+      arches[i] = sorted[i].arch;
+      sortKeys[i] = sorted[i].sortKey;
+      System.arraycopy(sorted[i].id.toByteArray(), 0, ids, i * ID_LENGTH, ID_LENGTH);
+    }
+    return new RepoCatalog(hash, entries, names, arches, sortKeys, ids);
+  }
+
+  public boolean isLabelledWith(long contentHash, long contentEntries) {
+    return (hash == contentHash) && (entries == contentEntries);
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  public String nameAt(int index) {
+    return names[index];
+  }
+
+  public String archAt(int index) {
+    return arches[index];
+  }
+
+  public String sortKeyAt(int index) {
+    return sortKeys[index];
+  }
+
+  public ObjectId idAt(int index) {
+    return new ObjectId(Arrays.copyOfRange(ids, index * ID_LENGTH, (index + 1) * ID_LENGTH));
+  }
+
+  /**
+   * @return index of the newest version of the package, -1 if the repository does not contain it
+   */
+  public int newestIndexOf(String name, String arch) {
+    int index = endOf(name, arch) - 1;
+    return ((index >= 0) && names[index].equals(name) && arches[index].equals(arch)) ? index : -1;
+  }
+
+  public ObjectId newestIdOf(String name, String arch) {
+    int index = newestIndexOf(name, arch);
+    return (index < 0) ? null : idAt(index);
+  }
+
+  public int versionsOf(String name, String arch) {
+    return endOf(name, arch) - startOf(name, arch);
+  }
+
+  /**
+   * @return a catalog that contains the row instead of any row with the same id, a replaced row is no new entry
+   */
+  public RepoCatalog with(Row row, long hashDelta) {
+    RepoCatalog catalog = without(row.id);
+    int insertAt = catalog.insertionPoint(row);
+    int size = catalog.size();
+
+    String[] newNames = insert(catalog.names, insertAt, row.name);
+    String[] newArches = insert(catalog.arches, insertAt, row.arch);
+    String[] newSortKeys = insert(catalog.sortKeys, insertAt, row.sortKey);
+    byte[] newIds = new byte[(size + 1) * ID_LENGTH];
+    System.arraycopy(catalog.ids, 0, newIds, 0, insertAt * ID_LENGTH);
+    System.arraycopy(row.id.toByteArray(), 0, newIds, insertAt * ID_LENGTH, ID_LENGTH);
+    System.arraycopy(catalog.ids, insertAt * ID_LENGTH, newIds, (insertAt + 1) * ID_LENGTH,
+      (size - insertAt) * ID_LENGTH);
+    long addedEntries = (size < size()) ? 0 : 1;
+    return new RepoCatalog(hash ^ hashDelta, entries + addedEntries, newNames, newArches, newSortKeys, newIds);
+  }
+
+  /**
+   * @return a catalog without the rows of the ids, ids not in the catalog are ignored
+   */
+  public RepoCatalog without(Set<ObjectId> removedIds, long hashDelta) {
+    int size = size();
+    String[] newNames = new String[size];
+    String[] newArches = new String[size];
+    String[] newSortKeys = new String[size];
+    byte[] newIds = new byte[size * ID_LENGTH];
+    int kept = 0;
+    for (int index = 0; index < size; index++) {
+      if (!removedIds.contains(idAt(index))) {
+        newNames[kept] = names[index];
+        newArches[kept] = arches[index];
+        newSortKeys[kept] = sortKeys[index];
+        System.arraycopy(ids, index * ID_LENGTH, newIds, kept * ID_LENGTH, ID_LENGTH);
+        kept++;
+      }
+    }
+    return new RepoCatalog(hash ^ hashDelta, entries - (size - kept), Arrays.copyOf(newNames, kept),
+      Arrays.copyOf(newArches, kept), Arrays.copyOf(newSortKeys, kept), Arrays.copyOf(newIds, kept * ID_LENGTH));
+  }
+
+  private RepoCatalog without(ObjectId id) {
+    int index = indexOf(id.toByteArray());
+    if (index < 0) {
+      return this;
+    }
+
+    int size = size();
+    byte[] newIds = new byte[(size - 1) * ID_LENGTH];
+    System.arraycopy(ids, 0, newIds, 0, index * ID_LENGTH);
+    System.arraycopy(ids, (index + 1) * ID_LENGTH, newIds, index * ID_LENGTH, (size - index - 1) * ID_LENGTH);
+    return new RepoCatalog(hash, entries, remove(names, index), remove(arches, index), remove(sortKeys, index),
+      newIds);
+  }
+
+  private int indexOf(byte[] id) {
+    for (int index = 0; index < size(); index++) {
+      int offset = index * ID_LENGTH;
+      int i = 0;
+      while ((i < ID_LENGTH) && (ids[offset + i] == id[i])) {
+        i++;
+      }
+      if (i == ID_LENGTH) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  private int startOf(String name, String arch) {
+    int low = 0;
+    int high = size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compareNameAndArch(mid, name, arch) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int endOf(String name, String arch) {
+    int low = 0;
+    int high = size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compareNameAndArch(mid, name, arch) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int insertionPoint(Row row) {
+    int low = startOf(row.name, row.arch);
+    int high = endOf(row.name, row.arch);
+    while ((low < high) && (sortKeys[low].compareTo(row.sortKey) <= 0)) {
+      low++;
+    }
+    return low;
+  }
+
+  private int compareNameAndArch(int index, String name, String arch) {
+    int result = names[index].compareTo(name);
+    return (result != 0) ? result : arches[index].compareTo(arch);
+  }
+
+  private static String[] insert(String[] values, int index, String value) {
+    String[] result = new String[values.length + 1];
+    System.arraycopy(values, 0, result, 0, index);
+    result[index] = value;
+    System.arraycopy(values, index, result, index + 1, values.length - index);
+    return result;
+  }
+
+  private static String[] remove(String[] values, int index) {
+    String[] result = new String[values.length - 1];
+    System.arraycopy(values, 0, result, 0, index);
+    System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+    return result;
+  }
+
+  public static final class Row implements Comparable<Row> {
+    private final String name;
+    private final String arch;
+    private final String sortKey;
+    private final ObjectId id;
+
+    public Row(String name, String arch, String sortKey, ObjectId id) {
+      this.name = name.intern();
+      this.arch = arch.intern();
+      this.sortKey = sortKey.intern();
+      this.id = id;
+    }
+
+    @Override
+    public int compareTo(Row other) {
+      int result = name.compareTo(other.name);
+      if (result == 0) {
+        result = arch.compareTo(other.arch);
+      }
+      return (result != 0) ? result : sortKey.compareTo(other.sortKey);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.RepodataArtifacts;
+import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY_REPO_DATA;
+import static org.apache.commons.lang.StringUtils.isBlank;
+import static org.apache.commons.lang.StringUtils.substringAfterLast;
+
+
+/**
+ * Remembers the repodata files generated for a digest of the entries, see {@link YumEntriesHashCalculator#digestOf},
+ * so that a repository with the same packages can copy them instead of generating them again.
+ * A repository returning to the packages it had when the files were generated keeps using them,
+ * as long as they are not yet marked for deletion. The artifacts are remembered per layout version of the generated
+ * files, so files written by an older generator are never copied.
+ */
+@ManagedResource
+@Service
+public class RepodataArtifactCache {
+  private static final Logger LOG = LoggerFactory.getLogger(RepodataArtifactCache.class);
+
+  /**
+   * Increase with every change to the content of the generated files.
+   */
+  static final int REPODATA_LAYOUT_VERSION = 2;
+
+  private final RepodataArtifactsRepository artifactsRepository;
+  private final FileStorageService fileStorageService;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  @Autowired
+  public RepodataArtifactCache(RepodataArtifactsRepository artifactsRepository, FileStorageService fileStorageService) {
+    this.artifactsRepository = artifactsRepository;
+    this.fileStorageService = fileStorageService;
+  }
+
+  /**
+   * @return the repomd data of the copied or reused files or null, if there are no complete artifacts for the hash
+   */
+  public List<Data> copyTo(String hashOfEntries, String reponame) {
+    if (isBlank(hashOfEntries)) {
+      return null;
+    }
+
+    RepodataArtifacts artifacts = artifactsRepository.findOne(keyOf(hashOfEntries));
+    if (artifacts == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    List<FileStorageItem> sources = new ArrayList<>();
+    for (Data data : artifacts.getData()) {
+      FileStorageItem source = findArtifact(artifacts.getRepo(), data);
+      if (source == null) {
+        LOG.info("Artifact {} of {} is gone, generating metadata for {}.", data.getLocation().getHref(),
+          artifacts.getRepo(), reponame);
+        misses.incrementAndGet();
+        return null;
+      }
+      sources.add(source);
+    }
+
+    if (reponame.equals(artifacts.getRepo())) {
+      LOG.info("Reusing metadata of {}.", reponame);
+      hits.incrementAndGet();
+      return artifacts.getData();
+    }
+
+    List<Data> copies = new ArrayList<>();
+    try {
+      for (int i = 0; i < sources.size(); i++) {
+        copies.add(copy(sources.get(i), artifacts.getData().get(i), reponame));
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Could not copy artifacts of {} to {}, generating metadata.", artifacts.getRepo(), reponame, e);
+      misses.incrementAndGet();
+      return null;
+    }
+
+    LOG.info("Copied metadata of {} to {}.", artifacts.getRepo(), reponame);
+    hits.incrementAndGet();
+    return copies;
+  }
+
+  public void remember(String hashOfEntries, String reponame, List<Data> data) {
+    if (!isBlank(hashOfEntries)) {
+      artifactsRepository.save(new RepodataArtifacts(keyOf(hashOfEntries), reponame, data, new Date()));
+    }
+  }
+
+  static String keyOf(String hashOfEntries) {
+    return "v" + REPODATA_LAYOUT_VERSION + ":" + hashOfEntries;
+  }
+
+  @ManagedAttribute
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private FileStorageItem findArtifact(String repo, Data data) {
+    String path = repo + "/" + data.getLocation().getHref();
+    for (FileStorageItem item : fileStorageService.findByPrefix(path)) {
+      if (!item.isMarkedAsDeleted() && path.equals(item.getFilename()) && data.getChecksum().getChecksum().equals(item.getChecksumSha256())) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  private Data copy(FileStorageItem source, Data sourceData, String reponame) {
+    FileDescriptor descriptor = new FileDescriptor(reponame, ARCH_KEY_REPO_DATA,
+      substringAfterLast(source.getFilename(), "/"));
+    FileStorageItem copy = fileStorageService.copyTo(source, descriptor);
+
+    Data data = new Data();
+    data.setType(sourceData.getType());
+    data.setLocation(sourceData.getLocation());
+    data.setChecksum(sourceData.getChecksum());
+    data.setSize(sourceData.getSize());
+    data.setOpenChecksum(sourceData.getOpenChecksum());
+    data.setOpenSize(sourceData.getOpenSize());
+    data.setDatabaseVersion(sourceData.getDatabaseVersion());
+    data.setTimestamp((int) (copy.getUploadDate().getTime() / 1000));
+    return data;
+  }
+}
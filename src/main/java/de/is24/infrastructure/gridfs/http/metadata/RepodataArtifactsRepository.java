@@ -0,0 +1,8 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.RepodataArtifacts;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+
+public interface RepodataArtifactsRepository extends MongoRepository<RepodataArtifacts, String> {
+}
@@ -3,65 +3,272 @@ package de.is24.infrastructure.gridfs.http.metadata;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
-import org.apache.commons.codec.binary.Hex;
+import com.mongodb.WriteResult;
+import de.is24.infrastructure.gridfs.http.domain.RepoContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
-import org.springframework.data.domain.Sort;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.DocumentCallbackHandler;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Service;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import static de.is24.infrastructure.gridfs.http.domain.RepoContent.CHANGES_KEY;
+import static de.is24.infrastructure.gridfs.http.domain.RepoContent.ENTRIES_KEY;
+import static de.is24.infrastructure.gridfs.http.domain.RepoContent.HASH_KEY;
+import static de.is24.infrastructure.gridfs.http.domain.RepoContent.INITIALIZED_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
-import static org.apache.commons.codec.binary.StringUtils.getBytesUtf8;
-import static org.apache.commons.codec.digest.DigestUtils.getMd5Digest;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+import static org.apache.commons.codec.digest.DigestUtils.getSha256Digest;
+import static org.apache.commons.codec.digest.DigestUtils.md5;
 import static org.apache.commons.lang.StringUtils.EMPTY;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
 
+/**
+ * Maintains an order independent hash of the package checksums of a repository. The store, delete,
+ * move and cleanup paths update it with the entries, so reading it is a single document lookup.
+ * Repositories without a hash yet get it calculated once from their entries. Because the entries
+ * and the hash are written one after the other, {@link #verifyAll()} corrects hashes that drifted.
+ * The hash only tells whether a repository changed, {@link #digestOf} identifies its content.
+ */
+@ManagedResource
 @Service
 public class YumEntriesHashCalculator {
+  private static final Logger LOG = LoggerFactory.getLogger(YumEntriesHashCalculator.class);
+  private static final int MAX_INITIALIZATION_ATTEMPTS = 3;
+  private static final String ID_KEY = "_id";
+  private static final String CHECKSUM_FIELD = "yumPackage.checksum.checksum";
+
   private final MongoTemplate mongoTemplate;
 
+  private final AtomicLong correctedHashes = new AtomicLong();
+
   @Autowired
   public YumEntriesHashCalculator(MongoTemplate mongoTemplate) {
     this.mongoTemplate = mongoTemplate;
   }
 
   public String hashForRepo(final String reponame) {
+    return toHashString(contentOf(reponame));
+  }
+
+  /**
+   * @return hash and number of entries of the repository, calculated first if not known yet
+   */
+  public RepoContent contentOf(final String reponame) {
+    RepoContent content = mongoTemplate.findById(reponame, RepoContent.class);
+    if ((content == null) || !content.isInitialized()) {
+      content = initialize(reponame, content);
+    }
+    return content;
+  }
+
+  /**
+   * @return the number of entries as last counted, 0 if not known yet
+   */
+  public long entriesOf(String reponame) {
+    RepoContent content = mongoTemplate.findById(reponame, RepoContent.class);
+    return (content == null) ? 0 : content.getEntries();
+  }
+
+  public void entryAdded(String reponame, String checksum) {
+    update(reponame, hashOf(checksum), 1);
+  }
+
+  public void entryRemoved(String reponame, String checksum) {
+    update(reponame, hashOf(checksum), -1);
+  }
+
+  public void entriesRemoved(String reponame, Collection<String> checksums) {
+    if (!checksums.isEmpty()) {
+      update(reponame, checksums.stream().mapToLong(YumEntriesHashCalculator::hashOf).reduce(0, (a, b) -> a ^ b),
+        -checksums.size());
+    }
+  }
+
+  public void repoDeleted(String reponame) {
+    mongoTemplate.remove(query(where(ID_KEY).is(reponame)), RepoContent.class);
+  }
+
+  @ManagedOperation(description = "recalculate the hash of a repository from its entries")
+  public String recalculate(String reponame) {
+    repoDeleted(reponame);
+    return hashForRepo(reponame);
+  }
+
+  /**
+   * Recalculates the hash of every repository from its entries and corrects the stored one, if it differs.
+   *
+   * @return the number of corrected repositories
+   */
+  @ManagedOperation(description = "compare the hashes of all repositories with their entries and correct them")
+  public int verifyAll() {
+    int corrected = 0;
+    for (RepoContent stored : mongoTemplate.find(query(where(INITIALIZED_KEY).is(true)), RepoContent.class)) {
+      if (verify(stored)) {
+        corrected++;
+      }
+    }
+    return corrected;
+  }
+
+  /**
+   * @return sha-256 of the sorted package checksums of the repository, empty for an empty repository
+   */
+  public String digestForRepo(String reponame) {
     final Query query = query(where(REPO_KEY).is(reponame));
-    query.with(new Sort("_id")).fields().include("yumPackage.checksum.checksum");
+    query.fields().include(CHECKSUM_FIELD);
+
+    final List<String> checksums = new ArrayList<>();
+    mongoTemplate.executeQuery(query, YUM_ENTRY_COLLECTION, dbObject -> checksums.add(getChecksum(dbObject)));
+    return digestOf(checksums);
+  }
 
+  @ManagedAttribute(description = "number of repository hashes corrected by verification since startup")
+  public long getCorrectedHashes() {
+    return correctedHashes.get();
+  }
 
-    final Md5CalcDocumentCallbackHandler md5CalcCallback = new Md5CalcDocumentCallbackHandler();
-    mongoTemplate.executeQuery(query, YUM_ENTRY_COLLECTION, md5CalcCallback);
+  /**
+   * A difference has to show up in two calculations, so an entry written right before the first one has its hash
+   * updated meanwhile. The correction is skipped, if the hash was updated during the calculations.
+   */
+  private boolean verify(RepoContent stored) {
+    RepoContent calculated = calculate(stored.getRepo());
+    if (hasSameHash(stored, calculated) || !hasSameHash(calculated, calculate(stored.getRepo()))) {
+      return false;
+    }
+
+    boolean corrected = mongoTemplate.updateFirst(
+      query(where(ID_KEY).is(stored.getRepo()).and(CHANGES_KEY).is(stored.getChanges())),
+      new Update().set(HASH_KEY, calculated.getHash()).set(ENTRIES_KEY, calculated.getEntries()),
+      RepoContent.class).getN() > 0;
+    if (corrected) {
+      LOG.warn("Corrected hash of {} from {} to {}.", stored.getRepo(), toHashString(stored),
+        toHashString(calculated));
+      correctedHashes.incrementAndGet();
+    }
+    return corrected;
+  }
 
-    return md5CalcCallback.md5HexString();
+  private static boolean hasSameHash(RepoContent content, RepoContent other) {
+    return (content.getHash() == other.getHash()) && (content.getEntries() == other.getEntries());
   }
 
+  private void update(String reponame, long hash, int entriesDelta) {
+    WriteResult result = mongoTemplate.updateFirst(
+      query(where(ID_KEY).is(reponame).and(INITIALIZED_KEY).is(true)),
+      new Update().bitwise(HASH_KEY).xor(hash).inc(ENTRIES_KEY, entriesDelta).inc(CHANGES_KEY, 1),
+      RepoContent.class);
 
-  private static class Md5CalcDocumentCallbackHandler implements DocumentCallbackHandler {
-    private MessageDigest md5Digest = getMd5Digest();
-    private boolean hasContent;
+    // not initialized yet: only count the change, so that a running initialization starts over
+    if (result.getN() == 0) {
+      mongoTemplate.upsert(query(where(ID_KEY).is(reponame)), new Update().inc(CHANGES_KEY, 1), RepoContent.class);
+    }
+  }
 
-    @Override
-    public void processDocument(DBObject dbObject) throws MongoException, DataAccessException {
-      final String singleCheckSum = getCheckSum(dbObject);
-      md5Digest.update(getBytesUtf8(singleCheckSum));
-      hasContent = true;
+  private RepoContent initialize(String reponame, RepoContent content) {
+    RepoContent calculated = calculate(reponame);
+    for (int attempt = 1; attempt <= MAX_INITIALIZATION_ATTEMPTS; attempt++) {
+      calculated.setChanges((content == null) ? 0 : content.getChanges());
+      if (store(reponame, content, calculated)) {
+        return calculated;
+      }
+
+      content = mongoTemplate.findById(reponame, RepoContent.class);
+      if ((content != null) && content.isInitialized()) {
+        return content;
+      }
+      calculated = calculate(reponame);
     }
 
-    String md5HexString() {
-      if (hasContent) {
-        return Hex.encodeHexString(md5Digest.digest());
+    LOG.warn("Could not store hash of {}, because its entries changed constantly.", reponame);
+    return calculated;
+  }
+
+  private boolean store(String reponame, RepoContent expected, RepoContent calculated) {
+    calculated.setRepo(reponame);
+    calculated.setInitialized(true);
+    if (expected == null) {
+      try {
+        mongoTemplate.insert(calculated);
+        return true;
+      } catch (DuplicateKeyException e) {
+        return false;
       }
+    }
+
+    Criteria unchanged = where(ID_KEY).is(reponame)
+      .and(INITIALIZED_KEY).ne(true)
+      .and(CHANGES_KEY).is(expected.getChanges());
+    return mongoTemplate.updateFirst(query(unchanged),
+      new Update().set(HASH_KEY, calculated.getHash())
+        .set(ENTRIES_KEY, calculated.getEntries())
+        .set(INITIALIZED_KEY, true),
+      RepoContent.class).getN() > 0;
+  }
+
+  private RepoContent calculate(String reponame) {
+    final Query query = query(where(REPO_KEY).is(reponame));
+    query.fields().include(CHECKSUM_FIELD);
+
+    final HashCalcDocumentCallbackHandler hashCalcCallback = new HashCalcDocumentCallbackHandler();
+    mongoTemplate.executeQuery(query, YUM_ENTRY_COLLECTION, hashCalcCallback);
+    return hashCalcCallback.content;
+  }
+
+  public static String digestOf(Collection<String> checksums) {
+    if (checksums.isEmpty()) {
       return EMPTY;
     }
 
-    private static String getCheckSum(DBObject dbObject) {
-      return ((BasicDBObject) ((BasicDBObject) dbObject.get("yumPackage")).get("checksum")).getString("checksum");
+    MessageDigest digest = getSha256Digest();
+    checksums.stream().sorted().forEach(checksum -> {
+        digest.update(checksum.getBytes(UTF_8));
+        digest.update((byte) '\n');
+      });
+    return encodeHexString(digest.digest());
+  }
+
+  static long hashOf(String checksum) {
+    return ByteBuffer.wrap(md5(checksum)).getLong();
+  }
+
+  private static String getChecksum(DBObject dbObject) {
+    return ((BasicDBObject) ((BasicDBObject) dbObject.get("yumPackage")).get("checksum")).getString("checksum");
+  }
+
+  static String toHashString(RepoContent content) {
+    if (content.getEntries() > 0) {
+      return format("%016x-%d", content.getHash(), content.getEntries());
+    }
+    return EMPTY;
+  }
+
+  private static class HashCalcDocumentCallbackHandler implements DocumentCallbackHandler {
+    private final RepoContent content = new RepoContent();
+
+    @Override
+    public void processDocument(DBObject dbObject) throws MongoException, DataAccessException {
+      content.setHash(content.getHash() ^ hashOf(getChecksum(dbObject)));
+      content.setEntries(content.getEntries() + 1);
     }
   }
 
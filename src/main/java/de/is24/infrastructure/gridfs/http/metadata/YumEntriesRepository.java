@@ -5,11 +5,18 @@ import org.bson.types.ObjectId;
 import org.springframework.data.mongodb.repository.MongoRepository;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 
 public interface YumEntriesRepository extends MongoRepository<YumEntry, ObjectId>, DeleteByRepoYumEntries {
   List<YumEntry> findByRepo(String reponame);
 
+  YumEntry findFirstByRepoOrderByIdDesc(String reponame);
+
+  List<YumEntry> findByRepoAndIdLessThanEqual(String reponame, ObjectId lastId);
+
+  Stream<YumEntry> streamByRepoAndIdLessThanEqual(String reponame, ObjectId lastId);
+
   List<YumEntry> findByRepoAndYumPackageName(String reponame, String rpmName);
 
   List<YumEntry> findByRepoAndYumPackageArchAndYumPackageName(String reponame, String arch, String rpmName);
@@ -0,0 +1,497 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.domain.MetadataRows;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChangeLog;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.gridfs.RpmHeaderStore;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
+import de.is24.infrastructure.gridfs.http.rpm.RpmToYumChangeLogConverter;
+import de.is24.infrastructure.gridfs.http.rpm.RpmToYumFilesConverter;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_CHANGELOGS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_FILES_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_METADATA_ROWS_COLLECTION;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.stream.Collectors.toList;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+
+/**
+ * Keeps the files, changelogs and precomputed metadata rows of yum entries beside them, in collections keyed by the
+ * entry id, because most readers of yum.entries only need names, versions and locations. As listener for the mapping
+ * events of {@link YumEntry} it moves them out of every saved entry and removes them after their entries were
+ * removed. Entries saved before still carry them in their document until they are saved again or moved by
+ * {@link #moveInlineDetails}. Generators and info views attach them with {@link #withFiles}, {@link #withChangeLogs},
+ * {@link #withMetadataRowsAndFiles} and {@link #withDetails}. Files and changelogs that are missing are derived from
+ * the stored rpm header, without header the entry can't be attached and the caller fails. Missing metadata rows are
+ * left out, the generators build them from the files. Details left behind by interrupted removals are collected with
+ * {@link #removeOrphanedDetails()}.
+ */
+@ManagedResource
+@Service
+public class YumEntryDetailsStore extends AbstractMongoEventListener<YumEntry> {
+  private static final Logger LOG = LoggerFactory.getLogger(YumEntryDetailsStore.class);
+  private static final String ID_KEY = "_id";
+  private static final String YUM_PACKAGE_KEY = "yumPackage";
+  private static final String PACKAGE_FILES_KEY = "packageFiles";
+  private static final String PACKAGE_DIRS_KEY = "packageDirs";
+  private static final String CHANGELOGS_KEY = "changeLogs";
+  private static final String METADATA_ROWS_KEY = "metadataRows";
+
+  /**
+   * Paths of the details in documents of entries saved before they were kept beside them.
+   */
+  public static final List<String> INLINE_DETAIL_PATHS = asList(YUM_PACKAGE_KEY + "." + PACKAGE_FILES_KEY,
+    YUM_PACKAGE_KEY + "." + PACKAGE_DIRS_KEY, YUM_PACKAGE_KEY + "." + CHANGELOGS_KEY, METADATA_ROWS_KEY);
+  private static final int BATCH_SIZE = 1000;
+  // details are saved right before their entry, so younger ones may belong to an entry being inserted
+  private static final long ORPHAN_GRACE_MILLIS = HOURS.toMillis(1);
+
+  private final MongoTemplate mongoTemplate;
+  private final RpmHeaderStore rpmHeaderStore;
+  private final ThreadLocal<List<ObjectId>> deletedIds = new ThreadLocal<>();
+
+  private final AtomicLong movedDetails = new AtomicLong();
+  private final AtomicLong loadedDetails = new AtomicLong();
+  private final AtomicLong missingDetails = new AtomicLong();
+  private final AtomicLong removedOrphans = new AtomicLong();
+
+  @Autowired
+  public YumEntryDetailsStore(MongoTemplate mongoTemplate, RpmHeaderStore rpmHeaderStore) {
+    this.mongoTemplate = mongoTemplate;
+    this.rpmHeaderStore = rpmHeaderStore;
+  }
+
+  @Override
+  public void onBeforeConvert(BeforeConvertEvent<YumEntry> event) {
+    // files of entries stored with an object per file are converted, so they are written to packageFiles
+    YumPackage yumPackage = event.getSource().getYumPackage();
+    if (yumPackage != null) {
+      yumPackage.getPackageFiles();
+    }
+  }
+
+  @Override
+  public void onBeforeSave(BeforeSaveEvent<YumEntry> event) {
+    DBObject dbObject = event.getDBObject();
+    Object id = dbObject.get(ID_KEY);
+    if (id != null) {
+      moveDetails(id, dbObject);
+    }
+  }
+
+  /**
+   * Moves the details still kept in the stored document of an entry beside it. Only the detail fields are unset,
+   * so changes made to the entry meanwhile are kept.
+   */
+  public void moveInlineDetails(DBObject storedEntry) {
+    Object id = storedEntry.get(ID_KEY);
+    YumEntry entry = mongoTemplate.getConverter().read(YumEntry.class, storedEntry);
+    onBeforeConvert(new BeforeConvertEvent<>(entry, YUM_ENTRY_COLLECTION));
+
+    DBObject dbObject = new BasicDBObject();
+    mongoTemplate.getConverter().write(entry, dbObject);
+    moveDetails(id, dbObject);
+
+    DBObject inlineDetails = new BasicDBObject();
+    INLINE_DETAIL_PATHS.forEach(path -> inlineDetails.put(path, ""));
+    mongoTemplate.getCollection(YUM_ENTRY_COLLECTION).update(new BasicDBObject(ID_KEY, id),
+      new BasicDBObject("$unset", inlineDetails));
+  }
+
+  private void moveDetails(Object id, DBObject dbObject) {
+    for (Detail detail : Detail.values()) {
+      Object stored = detail.removeFrom(dbObject);
+      if (stored != null) {
+        mongoTemplate.getCollection(detail.collectionName).save(new BasicDBObject(ID_KEY, id).append(detail.key,
+          stored));
+        movedDetails.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Remembers the ids of the entries to delete, their details are removed once the entries are gone, so a failed
+   * removal never leaves entries without details.
+   */
+  @Override
+  public void onBeforeDelete(BeforeDeleteEvent<YumEntry> event) {
+    deletedIds.set(mongoTemplate.find(new BasicQuery(event.getDBObject(), new BasicDBObject(ID_KEY, 1)),
+      YumEntry.class).stream().map(YumEntry::getId).collect(toList()));
+  }
+
+  @Override
+  public void onAfterDelete(AfterDeleteEvent<YumEntry> event) {
+    List<ObjectId> ids = deletedIds.get();
+    deletedIds.remove();
+    if (ids == null) {
+      return;
+    }
+
+    for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+      removeDetails(ids.subList(start, Math.min(start + BATCH_SIZE, ids.size())));
+    }
+  }
+
+  /**
+   * Removes details without entry, as left behind by removals interrupted between entries and details. Details
+   * younger than an hour are kept, they may belong to an entry being inserted.
+   *
+   * @return the number of removed details
+   */
+  @ManagedOperation(
+    description = "remove stored files, changelogs and metadata rows of yum entries that do not exist anymore"
+  )
+  public long removeOrphanedDetails() {
+    long removed = 0;
+    long graceLimit = System.currentTimeMillis() - ORPHAN_GRACE_MILLIS;
+    for (Detail detail : Detail.values()) {
+      DBCollection collection = mongoTemplate.getCollection(detail.collectionName);
+      List<ObjectId> ids = nextIds(collection, null);
+      while (!ids.isEmpty()) {
+        Set<Object> liveIds = new HashSet<>();
+        try(DBCursor entries = mongoTemplate.getCollection(YUM_ENTRY_COLLECTION).find(
+            new BasicDBObject(ID_KEY, new BasicDBObject("$in", ids)), new BasicDBObject(ID_KEY, 1))) {
+          while (entries.hasNext()) {
+            liveIds.add(entries.next().get(ID_KEY));
+          }
+        }
+
+        List<ObjectId> orphans = ids.stream()
+          .filter(id -> !liveIds.contains(id) && (id.getDate().getTime() < graceLimit))
+          .collect(toList());
+        if (!orphans.isEmpty()) {
+          removed += collection.remove(new BasicDBObject(ID_KEY, new BasicDBObject("$in", orphans))).getN();
+        }
+        ids = nextIds(collection, ids.get(ids.size() - 1));
+      }
+    }
+
+    removedOrphans.addAndGet(removed);
+    LOG.info("Removed {} files, changelogs and metadata rows without yum entry.", removed);
+    return removed;
+  }
+
+  private void removeDetails(List<ObjectId> ids) {
+    DBObject query = new BasicDBObject(ID_KEY, new BasicDBObject("$in", ids));
+    for (Detail detail : Detail.values()) {
+      mongoTemplate.getCollection(detail.collectionName).remove(query);
+    }
+  }
+
+  private static List<ObjectId> nextIds(DBCollection collection, ObjectId lastId) {
+    DBObject query = (lastId == null) ? new BasicDBObject()
+                                      : new BasicDBObject(ID_KEY, new BasicDBObject("$gt", lastId));
+    List<ObjectId> ids = new ArrayList<>(BATCH_SIZE);
+    try(DBCursor details = collection.find(query, new BasicDBObject(ID_KEY, 1))
+        .sort(new BasicDBObject(ID_KEY, 1))
+        .limit(BATCH_SIZE)) {
+      while (details.hasNext()) {
+        ids.add((ObjectId) details.next().get(ID_KEY));
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Attaches the files to the entries in batches while iterating and releases them again with the next batch.
+   *
+   * @param needsFiles selects the entries to read the files for, entries with files in memory are always skipped
+   */
+  public Iterator<YumEntry> withFiles(Iterator<YumEntry> entries, Predicate<YumEntry> needsFiles) {
+    return new AttachingIterator(entries, singletonMap(Detail.FILES, needsFiles));
+  }
+
+  /**
+   * Attaches the changelogs to the entries in batches while iterating and releases them again with the next batch.
+   *
+   * @param needsChangeLogs selects the entries to read the changelogs for, entries with changelogs in memory are
+   *                        always skipped
+   */
+  public Iterator<YumEntry> withChangeLogs(Iterator<YumEntry> entries, Predicate<YumEntry> needsChangeLogs) {
+    return new AttachingIterator(entries, singletonMap(Detail.CHANGE_LOGS, needsChangeLogs));
+  }
+
+  /**
+   * Attaches the precomputed metadata rows to the entries in batches while iterating, then the files to the entries
+   * still needing them, and releases both again with the next batch.
+   *
+   * @param needsFiles selects the entries to read the files for, once their metadata rows are attached
+   */
+  public Iterator<YumEntry> withMetadataRowsAndFiles(Iterator<YumEntry> entries, Predicate<YumEntry> needsFiles) {
+    Map<Detail, Predicate<YumEntry>> details = new LinkedHashMap<>();
+    details.put(Detail.METADATA_ROWS, anyEntry -> true);
+    details.put(Detail.FILES, needsFiles);
+    return new AttachingIterator(entries, details);
+  }
+
+  /**
+   * Attaches files and changelogs to a single entry, for views of the whole package.
+   */
+  public YumEntry withDetails(YumEntry entry) {
+    for (Detail detail : asList(Detail.FILES, Detail.CHANGE_LOGS)) {
+      attach(detail, singletonList(entry), anyEntry -> true);
+    }
+    return entry;
+  }
+
+  /**
+   * @return the entries the detail was attached to
+   */
+  private List<YumEntry> attach(Detail detail, List<YumEntry> entries, Predicate<YumEntry> needed) {
+    Map<ObjectId, YumEntry> missing = new LinkedHashMap<>();
+    for (YumEntry entry : entries) {
+      if ((entry.getId() != null) && (entry.getYumPackage() != null) && !detail.isLoaded(entry) &&
+          needed.test(entry)) {
+        missing.put(entry.getId(), entry);
+      }
+    }
+    if (missing.isEmpty()) {
+      return emptyList();
+    }
+
+    List<YumEntry> attached = new ArrayList<>(missing.values());
+    for (DBObject stored : mongoTemplate.find(query(where(ID_KEY).in(missing.keySet())), DBObject.class,
+        detail.collectionName)) {
+      YumEntry entry = missing.remove(stored.get(ID_KEY));
+      if (entry != null) {
+        detail.attach(entry, stored.get(detail.key), mongoTemplate.getConverter());
+        loadedDetails.incrementAndGet();
+      }
+    }
+
+    if (detail.derivable) {
+      for (YumEntry withoutDetail : missing.values()) {
+        derive(detail, withoutDetail);
+      }
+    }
+    return attached;
+  }
+
+  /**
+   * Generators rely on complete details, so an entry without stored details gets them from its rpm header or
+   * fails the caller.
+   */
+  private void derive(Detail detail, YumEntry entry) {
+    ObjectId id = entry.getId();
+    LOG.warn("No {} stored for yum entry {}, deriving them from its rpm header.", detail.key, id);
+    missingDetails.incrementAndGet();
+    try {
+      RpmHeader header = rpmHeaderStore.find(id);
+      if (header == null) {
+        throw new IllegalStateException("No " + detail.key + " and no rpm header stored for yum entry " + id + ".");
+      }
+      detail.derive(entry.getYumPackage(), new RpmHeaderWrapper(header));
+    } catch (InvalidRpmHeaderException e) {
+      throw new IllegalStateException("Could not derive " + detail.key + " of yum entry " + id + ".", e);
+    }
+  }
+
+  private enum Detail {
+    FILES(YUM_ENTRY_FILES_COLLECTION, PACKAGE_FILES_KEY, true) {
+      @Override
+      boolean isLoaded(YumEntry entry) {
+        return entry.getYumPackage().getPackageFiles() != null;
+      }
+
+      @Override
+      void attach(YumEntry entry, Object stored, MongoConverter converter) {
+        entry.getYumPackage().setPackageFiles(converter.read(YumPackageFiles.class, (DBObject) stored));
+      }
+
+      @Override
+      void derive(YumPackage yumPackage, RpmHeaderWrapper header) throws InvalidRpmHeaderException {
+        yumPackage.setPackageFiles(new RpmToYumFilesConverter(header).readFiles());
+      }
+
+      @Override
+      void release(YumEntry entry) {
+        entry.getYumPackage().setPackageFiles(null);
+      }
+    },
+    CHANGE_LOGS(YUM_ENTRY_CHANGELOGS_COLLECTION, CHANGELOGS_KEY, true) {
+      @Override
+      boolean isLoaded(YumEntry entry) {
+        return entry.getYumPackage().getChangeLogs() != null;
+      }
+
+      @Override
+      void attach(YumEntry entry, Object stored, MongoConverter converter) {
+        List<YumPackageChangeLog> changeLogs = new ArrayList<>();
+        for (Object changeLog : (List<?>) stored) {
+          changeLogs.add(converter.read(YumPackageChangeLog.class, (DBObject) changeLog));
+        }
+        entry.getYumPackage().setChangeLogs(changeLogs);
+      }
+
+      @Override
+      void derive(YumPackage yumPackage, RpmHeaderWrapper header) throws InvalidRpmHeaderException {
+        yumPackage.setChangeLogs(new RpmToYumChangeLogConverter(header).convert());
+      }
+
+      @Override
+      void release(YumEntry entry) {
+        entry.getYumPackage().setChangeLogs(null);
+      }
+    },
+    METADATA_ROWS(YUM_ENTRY_METADATA_ROWS_COLLECTION, METADATA_ROWS_KEY, false) {
+      @Override
+      boolean isLoaded(YumEntry entry) {
+        return entry.getMetadataRows() != null;
+      }
+
+      @Override
+      void attach(YumEntry entry, Object stored, MongoConverter converter) {
+        entry.setMetadataRows(converter.read(MetadataRows.class, (DBObject) stored));
+      }
+
+      @Override
+      Object removeFrom(DBObject entry) {
+        return entry.removeField(key);
+      }
+
+      @Override
+      void derive(YumPackage yumPackage, RpmHeaderWrapper header) {
+        throw new UnsupportedOperationException("Metadata rows are built by the generators.");
+      }
+
+      @Override
+      void release(YumEntry entry) {
+        entry.setMetadataRows(null);
+      }
+    };
+
+    final String collectionName;
+    final String key;
+    final boolean derivable;
+
+    Detail(String collectionName, String key, boolean derivable) {
+      this.collectionName = collectionName;
+      this.key = key;
+      this.derivable = derivable;
+    }
+
+    abstract boolean isLoaded(YumEntry entry);
+
+    abstract void attach(YumEntry entry, Object stored, MongoConverter converter);
+
+    abstract void derive(YumPackage yumPackage, RpmHeaderWrapper header) throws InvalidRpmHeaderException;
+
+    abstract void release(YumEntry entry);
+
+    Object removeFrom(DBObject entry) {
+      DBObject yumPackage = (DBObject) entry.get(YUM_PACKAGE_KEY);
+      return (yumPackage == null) ? null : yumPackage.removeField(key);
+    }
+  }
+
+  private final class AttachingIterator implements Iterator<YumEntry> {
+    private final Iterator<YumEntry> entries;
+    private final Map<Detail, Predicate<YumEntry>> details;
+    private final Map<Detail, List<YumEntry>> attached = new LinkedHashMap<>();
+    private List<YumEntry> batch = emptyList();
+    private int position;
+
+    /**
+     * @param details the details to attach in order with the entries they are needed for
+     */
+    private AttachingIterator(Iterator<YumEntry> entries, Map<Detail, Predicate<YumEntry>> details) {
+      this.entries = entries;
+      this.details = details;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return (position < batch.size()) || entries.hasNext();
+    }
+
+    @Override
+    public YumEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      if (position == batch.size()) {
+        nextBatch();
+      }
+      return batch.get(position++);
+    }
+
+    private void nextBatch() {
+      attached.forEach((detail, attachedEntries) -> attachedEntries.forEach(detail::release));
+      batch = new ArrayList<>(BATCH_SIZE);
+      while (entries.hasNext() && (batch.size() < BATCH_SIZE)) {
+        batch.add(entries.next());
+      }
+      position = 0;
+      for (Map.Entry<Detail, Predicate<YumEntry>> detail : details.entrySet()) {
+        attached.put(detail.getKey(), attach(detail.getKey(), batch, detail.getValue()));
+      }
+    }
+  }
+
+  @ManagedAttribute(
+    description = "number of files, changelogs and metadata rows moved out of yum entries since startup"
+  )
+  public long getMovedDetails() {
+    return movedDetails.get();
+  }
+
+  @ManagedAttribute(
+    description = "number of files, changelogs and metadata rows attached to yum entries since startup"
+  )
+  public long getLoadedDetails() {
+    return loadedDetails.get();
+  }
+
+  @ManagedAttribute(description = "number of missing files and changelogs derived from rpm headers since startup")
+  public long getMissingDetails() {
+    return missingDetails.get();
+  }
+
+  @ManagedAttribute(
+    description = "number of files, changelogs and metadata rows without yum entry removed since startup"
+  )
+  public long getRemovedOrphans() {
+    return removedOrphans.get();
+  }
+}
@@ -0,0 +1,85 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+
+/**
+ * Collects inserts of one table across packages and executes them in batches of a fixed size.
+ */
+public class BatchedTable implements AutoCloseable {
+  private final String name;
+  private final PreparedStatement statement;
+  private final int pkgKeyColumn;
+  private final int batchSize;
+  private int pendingRows;
+  private long writtenRows;
+  private long executionNanos;
+
+  public BatchedTable(String name, PreparedStatement statement, int pkgKeyColumn, int batchSize) {
+    this.name = name;
+    this.statement = statement;
+    this.pkgKeyColumn = pkgKeyColumn;
+    this.batchSize = batchSize;
+  }
+
+  public PreparedStatement getStatement() {
+    return statement;
+  }
+
+  public void addRow(int pkgKey, List<Object> values) throws SQLException {
+    int column = 1;
+    for (Object value : values) {
+      if (column == pkgKeyColumn) {
+        statement.setInt(column++, pkgKey);
+      }
+      statement.setObject(column++, value);
+    }
+    if (column == pkgKeyColumn) {
+      statement.setInt(column, pkgKey);
+    }
+    addRow();
+  }
+
+  public void addRow() throws SQLException {
+    statement.addBatch();
+    pendingRows++;
+    if (pendingRows >= batchSize) {
+      flush();
+    }
+  }
+
+  public void flush() throws SQLException {
+    if (pendingRows > 0) {
+      long start = System.nanoTime();
+      statement.executeBatch();
+      executionNanos += System.nanoTime() - start;
+      writtenRows += pendingRows;
+      pendingRows = 0;
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    statement.close();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getWrittenRows() {
+    return writtenRows;
+  }
+
+  public long getExecutionMillis() {
+    return NANOSECONDS.toMillis(executionNanos);
+  }
+
+  public long getRowsPerSecond() {
+    return (executionNanos > 0) ? (writtenRows * SECONDS.toNanos(1) / executionNanos) : writtenRows;
+  }
+}
@@ -1,6 +1,9 @@
 package de.is24.infrastructure.gridfs.http.metadata.generation;
 
+import de.is24.infrastructure.gridfs.http.domain.MetadataRows;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RunningGeneration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
@@ -10,45 +13,63 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import static java.sql.DriverManager.getConnection;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.commons.io.IOUtils.readLines;
 import static org.apache.commons.lang.StringUtils.defaultIfBlank;
+import static org.apache.commons.lang.StringUtils.defaultString;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
+import static org.sqlite.SQLiteErrorCode.SQLITE_FULL;
 
 
 public abstract class DbGenerator {
   private static final Logger LOG = LoggerFactory.getLogger(DbGenerator.class);
   public static final int DB_VERSION = 10;
+  protected static final int BATCH_SIZE = 1000;
   protected static final String SQL_DIR = "/sql/";
   protected static final String PACKAGES = "packages";
   protected static final String CHANGELOG = "changelog";
   protected static final String FILES = "files";
   protected static final String FILELIST = "filelist";
 
+  /**
+   * message of sqlite for the result code SQLITE_FULL
+   */
+  private static final String SQLITE_FULL_MESSAGE = "database or disk is full";
+
   private final String name;
+  private final Map<String, Long> writtenRows = new LinkedHashMap<>();
 
   protected DbGenerator(String name) {
     this.name = name;
     initJdbC();
   }
 
-  public void createDb(File dbFile, List<YumEntry> entries) throws SQLException, IOException {
+  /**
+   * Builds the database directly in dbFile, iterating the entries once.
+   */
+  public void createDb(File dbFile, Iterable<YumEntry> entries) throws SQLException, IOException {
+    createDb(dbFile, entries, 0);
+  }
+
+  /**
+   * Builds the database in memory and writes it to dbFile with one sequential backup,
+   * as long as it does not grow beyond memoryBudget bytes. Otherwise or if memoryBudget
+   * is not positive the database is built directly in dbFile, so entries may be iterated twice.
+   */
+  public void createDb(File dbFile, Iterable<YumEntry> entries, long memoryBudget) throws SQLException, IOException {
     dbFile.delete();
-    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
-      initSchema(connection, getName() + ".sql");
+    try {
+      if ((memoryBudget > 0) && createDbInMemory(dbFile, entries, memoryBudget)) {
+        return;
+      }
 
-      Map<String, PreparedStatement> preparedStatements = createPreparedStatements(connection);
-      try {
-        int pkgKey = 1;
-        for (YumEntry entry : entries) {
-          writeEntry(preparedStatements, pkgKey, entry);
-          pkgKey++;
-        }
-      } finally {
-        close(preparedStatements);
+      try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+        fillDb(connection, entries);
       }
     } catch (SQLException | IOException e) {
       LOG.error("Could not generate metadata for repository: {}", name, e);
@@ -56,24 +77,177 @@ public abstract class DbGenerator {
     }
   }
 
-  protected abstract void writeEntry(Map<String, PreparedStatement> preparedStatements, int pkgKey, YumEntry entry)
-                              throws SQLException;
+  private boolean createDbInMemory(File dbFile, Iterable<YumEntry> entries, long memoryBudget) throws SQLException,
+                                                                                                      IOException {
+    try(Connection connection = getConnection("jdbc:sqlite::memory:")) {
+      try(Statement statement = connection.createStatement()) {
+        long pageSize = statement.executeQuery("PRAGMA page_size").getLong(1);
+        statement.execute("PRAGMA max_page_count = " + Math.max(1, memoryBudget / pageSize));
+      }
+
+      try {
+        fillDb(connection, entries);
+      } catch (SQLException e) {
+        if (isDatabaseFull(e)) {
+          LOG.info("{} database exceeds memory budget of {} bytes, falling back to temporary file.", name, memoryBudget);
+          return false;
+        }
+        throw e;
+      }
+
+      long start = System.currentTimeMillis();
+      try(Statement statement = connection.createStatement()) {
+        statement.executeUpdate("backup to \"" + dbFile.getAbsolutePath() + "\"");
+      }
+      LOG.info("{} database written from memory in {} ms", name, System.currentTimeMillis() - start);
+      return true;
+    }
+  }
+
+  private void fillDb(Connection connection, Iterable<YumEntry> entries) throws SQLException, IOException {
+    List<String> commands = readCommands(getName() + ".sql");
+    initSchema(connection, commands.stream().filter(command -> !isDeferred(command)).collect(toList()));
+
+    // load everything in one transaction and build indices and triggers afterwards,
+    // instead of maintaining them for every single insert
+    connection.setAutoCommit(false);
+    Map<String, BatchedTable> tables = createTables(connection);
+    try {
+      int pkgKey = 1;
+      for (YumEntry entry : entries) {
+        RunningGeneration.checkpoint();
+        writeEntry(tables, pkgKey, entry);
+        pkgKey++;
+      }
+      flush(tables);
+    } finally {
+      close(tables);
+    }
+
+    long start = System.currentTimeMillis();
+    executeCommands(connection, commands.stream().filter(DbGenerator::isDeferred).collect(toList()));
+    connection.commit();
+    logStatistics(tables, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * sqlite-jdbc 3.7.2 mostly throws the plain sqlite message without result code, later versions set SQLITE_FULL as
+   * error code, so both are checked.
+   */
+  private static boolean isDatabaseFull(SQLException e) {
+    for (SQLException current = e; current != null; current = current.getNextException()) {
+      String message = defaultString(current.getMessage());
+      if ((current.getErrorCode() == SQLITE_FULL.code) || message.equals(SQLITE_FULL_MESSAGE) ||
+          message.startsWith("[" + SQLITE_FULL.name() + "]")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Precomputes the rows of the primary database for a package, so that generation only has to copy them. The rows
+   * of the other databases are built from the files and changelogs stored beside the entry. The rows belong to the
+   * entry only until its package is replaced.
+   */
+  public static MetadataRows createMetadataRows(YumPackage yumPackage) {
+    MetadataRows metadataRows = new MetadataRows();
+    PrimaryDbGenerator dbGenerator = new PrimaryDbGenerator();
+    metadataRows.setRows(dbGenerator.getName(), dbGenerator.createRows(yumPackage));
+    return metadataRows;
+  }
+
+  protected void writeEntry(Map<String, BatchedTable> tables, int pkgKey, YumEntry entry) throws SQLException {
+    for (Map.Entry<String, List<List<Object>>> tableRows : getRows(entry).entrySet()) {
+      BatchedTable table = tables.get(tableRows.getKey());
+      for (List<Object> row : tableRows.getValue()) {
+        table.addRow(pkgKey, row);
+      }
+    }
+  }
+
+  private Map<String, List<List<Object>>> getRows(YumEntry entry) {
+    return hasPrecomputedRows(entry) ? entry.getMetadataRows().getRows(name) : createRows(entry.getYumPackage());
+  }
+
+  /**
+   * @return true, if the rows of the entry for this database are precomputed in the current layout and don't need
+   *         the whole package
+   */
+  public boolean hasPrecomputedRows(YumEntry entry) {
+    MetadataRows metadataRows = entry.getMetadataRows();
+    return (metadataRows != null) && metadataRows.isCurrent() && (metadataRows.getRows(name) != null);
+  }
+
+  /**
+   * @return rows per table without the pkgKey column
+   */
+  protected abstract Map<String, List<List<Object>>> createRows(YumPackage yumPackage);
 
   protected abstract Map<String, PreparedStatement> createPreparedStatements(Connection connection) throws SQLException;
 
+  /**
+   * @return 1-based position of the pkgKey column in the insert statement of the table
+   */
+  protected abstract int getPkgKeyColumn(String table);
+
   public String getName() {
     return name;
   }
 
-  protected void initSchema(Connection connection, String schemaFile) throws IOException, SQLException {
+  /**
+   * @return rows per table written by the last created database
+   */
+  public Map<String, Long> getWrittenRows() {
+    return writtenRows;
+  }
+
+  protected void initSchema(Connection connection, List<String> commands) throws SQLException {
     try(Statement statement = connection.createStatement()) {
-      for (String command : readCommands(schemaFile)) {
+      for (String command : commands) {
         statement.executeUpdate(command);
       }
       insertVersion(statement);
     }
   }
 
+  protected void executeCommands(Connection connection, List<String> commands) throws SQLException {
+    try(Statement statement = connection.createStatement()) {
+      for (String command : commands) {
+        statement.executeUpdate(command);
+      }
+    }
+  }
+
+  private static boolean isDeferred(String command) {
+    String upperCaseCommand = command.trim().toUpperCase();
+    return upperCaseCommand.startsWith("CREATE INDEX") || upperCaseCommand.startsWith("CREATE TRIGGER");
+  }
+
+  private Map<String, BatchedTable> createTables(Connection connection) throws SQLException {
+    Map<String, BatchedTable> tables = new LinkedHashMap<>();
+    for (Map.Entry<String, PreparedStatement> entry : createPreparedStatements(connection).entrySet()) {
+      tables.put(entry.getKey(), new BatchedTable(entry.getKey(), entry.getValue(), getPkgKeyColumn(entry.getKey()), BATCH_SIZE));
+    }
+    return tables;
+  }
+
+  private void flush(Map<String, BatchedTable> tables) throws SQLException {
+    for (BatchedTable table : tables.values()) {
+      table.flush();
+    }
+  }
+
+  private void logStatistics(Map<String, BatchedTable> tables, long indexMillis) {
+    writtenRows.clear();
+    for (BatchedTable table : tables.values()) {
+      writtenRows.put(table.getName(), table.getWrittenRows());
+      LOG.info("{}.{}: {} rows in {} ms ({} rows/s)", name, table.getName(), table.getWrittenRows(),
+        table.getExecutionMillis(), table.getRowsPerSecond());
+    }
+    LOG.info("{}: indices and triggers created in {} ms", name, indexMillis);
+  }
+
   protected List<String> readCommands(String filename) throws IOException {
     InputStream inputStream = getClass().getResourceAsStream(SQL_DIR + filename);
     if (inputStream == null) {
@@ -98,9 +272,9 @@ public abstract class DbGenerator {
     }
   }
 
-  protected void close(Map<String, PreparedStatement> preparedStatements) throws SQLException {
-    for (Map.Entry<String, PreparedStatement> entry : preparedStatements.entrySet()) {
-      entry.getValue().close();
+  protected void close(Map<String, BatchedTable> tables) throws SQLException {
+    for (BatchedTable table : tables.values()) {
+      table.close();
     }
   }
 
@@ -1,20 +1,20 @@
 package de.is24.infrastructure.gridfs.http.metadata.generation;
 
-import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
-import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageDir;
-import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFile;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static java.lang.String.join;
-import static java.util.stream.Collectors.toList;
-import static org.apache.commons.lang.StringUtils.EMPTY;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.inFilelistsOrder;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 
 
 public class FileListsGenerator extends DbGenerator {
@@ -33,47 +33,41 @@ public class FileListsGenerator extends DbGenerator {
   }
 
   @Override
-  protected void writeEntry(Map<String, PreparedStatement> preparedStatements, int pkgKey, YumEntry entry)
-                     throws SQLException {
-    YumPackage yumPackage = entry.getYumPackage();
-    writePackageTable(preparedStatements.get(PACKAGES), pkgKey, yumPackage);
-    writeFilelistsTable(preparedStatements.get(FILELIST), pkgKey, yumPackage);
+  protected int getPkgKeyColumn(String table) {
+    return 1;
   }
 
-  private void writeFilelistsTable(final PreparedStatement ps, final int index, final YumPackage yumPackage)
-                            throws SQLException {
-    for (YumPackageDir dir : yumPackage.getPackageDirs()) {
-      List<YumPackageFile> filesForDirectory = getSortedListOfFiles(dir);
-      int c = 0;
-      ps.setInt(++c, index);
-      ps.setString(++c, dir.getName());
-      ps.setString(++c, join(FILE_NAMES_SEPARATOR, getFilenames(filesForDirectory)));
-      ps.setString(++c, join(EMPTY, extractFileTypeChars(filesForDirectory)));
-      ps.addBatch();
-    }
-
-    if (yumPackage.getPackageDirs().length > 0) {
-      ps.executeBatch();
-    }
-  }
-
-  private void writePackageTable(final PreparedStatement ps, final int index, final YumPackage yumPackage)
-                          throws SQLException {
-    ps.setInt(1, index);
-    ps.setString(2, yumPackage.getChecksum().getChecksum());
-    ps.executeUpdate();
-  }
-
-  private List<String> extractFileTypeChars(final List<YumPackageFile> files) {
-    return files.stream().map(file -> file.getType().getTypeChar()).collect(toList());
-  }
-
-  private List<String> getFilenames(final List<YumPackageFile> filesForDirectory) {
-    return filesForDirectory.stream().map(YumPackageFile::getName).collect(toList());
+  @Override
+  protected Map<String, List<List<Object>>> createRows(YumPackage yumPackage) {
+    Map<String, List<List<Object>>> rows = new HashMap<>();
+    rows.put(PACKAGES, singletonList(singletonList(yumPackage.getChecksum().getChecksum())));
+    rows.put(FILELIST, createFilelistsRows(yumPackage));
+    return rows;
   }
 
-  private List<YumPackageFile> getSortedListOfFiles(final YumPackageDir dir) {
-    return dir.getFiles().stream().sorted((file1, file2) ->
-        file1.getType().getFilelistsOrder().compareTo(file2.getType().getFilelistsOrder())).collect(toList());
+  /**
+   * {@link YumPackageFiles} keeps the files of a directory in rpm order, filelists lists them by type.
+   */
+  private List<List<Object>> createFilelistsRows(final YumPackage yumPackage) {
+    YumPackageFiles files = yumPackage.getPackageFiles();
+    List<List<Object>> rows = new ArrayList<>(files.getDirCount());
+    for (int dir = 0; dir < files.getDirCount(); dir++) {
+      StringBuilder fileNames = new StringBuilder();
+      StringBuilder typeChars = new StringBuilder(files.getFileCount(dir));
+      int firstFile = files.getFirstFile(dir);
+      for (YumPackageFileType type : inFilelistsOrder()) {
+        for (int i = firstFile; i < (firstFile + files.getFileCount(dir)); i++) {
+          if (files.getType(i) == type) {
+            if (typeChars.length() > 0) {
+              fileNames.append(FILE_NAMES_SEPARATOR);
+            }
+            files.appendName(dir, i, fileNames);
+            typeChars.append(type.getTypeChar());
+          }
+        }
+      }
+      rows.add(asList(files.getDirName(dir), fileNames.toString(), typeChars.toString()));
+    }
+    return rows;
   }
 }
@@ -0,0 +1,36 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.inFilelistsOrder;
+
+
+public class FileListsXmlGenerator extends XmlGenerator {
+  public static final String FILELISTS_NAMESPACE = "http://linux.duke.edu/metadata/filelists";
+
+  public FileListsXmlGenerator() {
+    super("filelists", "filelists", FILELISTS_NAMESPACE);
+  }
+
+  @Override
+  protected void writePackage(XMLStreamWriter writer, YumPackage yumPackage) throws XMLStreamException {
+    writePackageIdentity(writer, yumPackage);
+
+    YumPackageFiles files = yumPackage.getPackageFiles();
+    for (int dir = 0; dir < files.getDirCount(); dir++) {
+      int firstFile = files.getFirstFile(dir);
+      for (YumPackageFileType type : inFilelistsOrder()) {
+        for (int i = firstFile; i < (firstFile + files.getFileCount(dir)); i++) {
+          if (files.getType(i) == type) {
+            writeFile(writer, files, dir, i);
+          }
+        }
+      }
+    }
+    writer.writeEndElement();
+  }
+}
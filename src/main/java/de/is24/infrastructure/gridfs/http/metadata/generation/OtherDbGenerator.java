@@ -1,16 +1,19 @@
 package de.is24.infrastructure.gridfs.http.metadata.generation;
 
-import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChangeLog;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 
-import static java.util.Collections.reverse;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 
 public class OtherDbGenerator extends DbGenerator {
 
@@ -27,31 +30,26 @@ public class OtherDbGenerator extends DbGenerator {
   }
 
   @Override
-  protected void writeEntry(Map<String, PreparedStatement> preparedStatements, int pkgKey, YumEntry entry) throws SQLException {
-    YumPackage yumPackage = entry.getYumPackage();
-      writePackageTable(preparedStatements.get(PACKAGES), pkgKey, yumPackage);
-      writeChangeLogTable(preparedStatements.get(CHANGELOG), pkgKey, yumPackage);
+  protected int getPkgKeyColumn(String table) {
+    return 1;
   }
 
-  private void writeChangeLogTable(final PreparedStatement ps, final int index, final YumPackage yumPackage) throws SQLException {
-    reverse(yumPackage.getChangeLogs());
-    for (YumPackageChangeLog changeLog : yumPackage.getChangeLogs()) {
-      int c = 1;
-      ps.setInt(c++, index);
-      ps.setString(c++, changeLog.getAuthor());
-      ps.setInt(c++, changeLog.getDate());
-      ps.setString(c++, changeLog.getMessage());
-      ps.addBatch();
-    }
-
-    if (!yumPackage.getChangeLogs().isEmpty()) {
-      ps.executeBatch();
-    }
+  @Override
+  protected Map<String, List<List<Object>>> createRows(YumPackage yumPackage) {
+    Map<String, List<List<Object>>> rows = new HashMap<>();
+    rows.put(PACKAGES, singletonList(singletonList(yumPackage.getChecksum().getChecksum())));
+    rows.put(CHANGELOG, createChangeLogRows(yumPackage));
+    return rows;
   }
 
-  private void writePackageTable(final PreparedStatement ps, final int index, final YumPackage yumPackage) throws SQLException {
-    ps.setInt(1, index);
-    ps.setString(2, yumPackage.getChecksum().getChecksum());
-    ps.executeUpdate();
+  private List<List<Object>> createChangeLogRows(final YumPackage yumPackage) {
+    // rpm stores the newest change log first, the database expects the oldest first
+    List<YumPackageChangeLog> changeLogs = yumPackage.getChangeLogs();
+    List<List<Object>> rows = new ArrayList<>(changeLogs.size());
+    for (ListIterator<YumPackageChangeLog> it = changeLogs.listIterator(changeLogs.size()); it.hasPrevious();) {
+      YumPackageChangeLog changeLog = it.previous();
+      rows.add(asList(changeLog.getAuthor(), changeLog.getDate(), changeLog.getMessage()));
+    }
+    return rows;
   }
 }
@@ -0,0 +1,34 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChangeLog;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.List;
+import java.util.ListIterator;
+
+
+public class OtherXmlGenerator extends XmlGenerator {
+  public static final String OTHER_NAMESPACE = "http://linux.duke.edu/metadata/other";
+
+  public OtherXmlGenerator() {
+    super("other", "otherdata", OTHER_NAMESPACE);
+  }
+
+  @Override
+  protected void writePackage(XMLStreamWriter writer, YumPackage yumPackage) throws XMLStreamException {
+    writePackageIdentity(writer, yumPackage);
+
+    // rpm stores the newest change log first, yum expects the oldest first
+    List<YumPackageChangeLog> changeLogs = yumPackage.getChangeLogs();
+    for (ListIterator<YumPackageChangeLog> it = changeLogs.listIterator(changeLogs.size()); it.hasPrevious();) {
+      YumPackageChangeLog changeLog = it.previous();
+      writer.writeStartElement("changelog");
+      writeAttribute(writer, "author", changeLog.getAuthor());
+      writeAttribute(writer, "date", String.valueOf(changeLog.getDate()));
+      writer.writeCharacters(xmlSafe(changeLog.getMessage()));
+      writer.writeEndElement();
+    }
+    writer.writeEndElement();
+  }
+}
@@ -1,23 +1,24 @@
 package de.is24.infrastructure.gridfs.http.metadata.generation;
 
-import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
-import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageDir;
-import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFile;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormatEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageRequirement;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Predicate;
 
 import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.DIR;
 import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
 import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.GHOST;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang.StringUtils.defaultIfBlank;
 
@@ -46,121 +47,119 @@ public class PrimaryDbGenerator extends DbGenerator {
   }
 
   @Override
-  protected void writeEntry(Map<String, PreparedStatement> ps, int pkgKey, YumEntry entry) throws SQLException {
-    YumPackage p = entry.getYumPackage();
-    writePrimaryPackage(ps.get(PACKAGES), pkgKey, p);
-    writeDependency(ps.get(OBSOLETES), pkgKey, p.getPackageFormat().getObsoletes());
-    writeDependency(ps.get(PROVIDES), pkgKey, p.getPackageFormat().getProvides());
-    writeDependency(ps.get(CONFLICTS), pkgKey, p.getPackageFormat().getConflicts());
-    writeRequires(ps.get(REQUIRES), pkgKey, filterRequires(p.getPackageFormat().getRequires()));
-
-    PreparedStatement filesStatement = ps.get(FILES);
-    writePrimaryFiles(filesStatement, p, pkgKey, (YumPackageFile file) -> FILE.equals(file.getType()) && isPrimaryFileName(file));
-    writePrimaryFiles(filesStatement, p, pkgKey, (YumPackageFile file) -> DIR.equals(file.getType()) && isPrimaryDirName(file.getDir()));
-    writePrimaryFiles(filesStatement, p, pkgKey, (YumPackageFile file) -> GHOST.equals(file.getType()) && isPrimaryFileName(file));
+  protected int getPkgKeyColumn(String table) {
+    switch (table) {
+      case PACKAGES:
+        return 1;
+      case FILES:
+        return 3;
+      default:
+        return 6;
+    }
   }
 
-  private void writePrimaryPackage(PreparedStatement ps, int pkgKey, YumPackage p) throws SQLException {
-    int c = 1;
-    ps.setInt(c++, pkgKey);
-    ps.setString(c++, p.getChecksum().getChecksum());
-    ps.setString(c++, p.getName());
-    ps.setString(c++, p.getArch());
-    ps.setString(c++, p.getVersion().getVer());
-    ps.setInt(c++, p.getVersion().getEpoch());
-    ps.setString(c++, p.getVersion().getRel());
-    ps.setString(c++, trim(p.getSummary()));
-    ps.setString(c++, trim(p.getDescription()));
-    ps.setString(c++, defaultIfBlank(p.getUrl(), null));
-    ps.setInt(c++, p.getTime().getFile());
-    ps.setInt(c++, p.getTime().getBuild());
-    ps.setString(c++, emptyIfBlank(p.getPackageFormat().getLicense()));
-    ps.setString(c++, emptyIfBlank(p.getPackageFormat().getVendor()));
-    ps.setString(c++, emptyIfBlank(p.getPackageFormat().getGroup()));
-    ps.setString(c++, emptyIfBlank(p.getPackageFormat().getBuildHost()));
-    ps.setString(c++, emptyIfBlank(p.getPackageFormat().getSourceRpm()));
-    ps.setInt(c++, p.getPackageFormat().getHeaderStart());
-    ps.setInt(c++, p.getPackageFormat().getHeaderEnd());
-    ps.setString(c++, nullIfBlank(p.getPackager()));
-    ps.setInt(c++, p.getSize().getPackaged());
-    ps.setInt(c++, p.getSize().getInstalled());
-    ps.setInt(c++, p.getSize().getArchive());
-    ps.setString(c++, p.getLocation().getHref());
-    ps.setString(c++, null);
-    ps.setString(c, p.getChecksum().getType());
-    ps.executeUpdate();
+  @Override
+  protected Map<String, List<List<Object>>> createRows(YumPackage p) {
+    Map<String, List<List<Object>>> rows = new HashMap<>();
+    rows.put(PACKAGES, singletonList(createPrimaryPackageRow(p)));
+    rows.put(OBSOLETES, createDependencyRows(p.getPackageFormat().getObsoletes()));
+    rows.put(PROVIDES, createDependencyRows(p.getPackageFormat().getProvides()));
+    rows.put(CONFLICTS, createDependencyRows(p.getPackageFormat().getConflicts()));
+    rows.put(REQUIRES, createRequiresRows(filterRequires(p.getPackageFormat().getRequires())));
+
+    List<List<Object>> files = new ArrayList<>();
+    addPrimaryFiles(files, p, FILE);
+    addPrimaryFiles(files, p, DIR);
+    addPrimaryFiles(files, p, GHOST);
+    rows.put(FILES, files);
+    return rows;
   }
 
-  private void writeDependency(PreparedStatement ps, int pkgKey, List<YumPackageFormatEntry> dependencies)
-                        throws SQLException {
-    for (YumPackageFormatEntry dependency : dependencies) {
-      int c = fillStatementForYumPackageFormatEntry(ps, dependency, 1);
-      ps.setInt(c, pkgKey);
-      ps.addBatch();
-    }
-    if (!dependencies.isEmpty()) {
-      ps.executeBatch();
-    }
+  private List<Object> createPrimaryPackageRow(YumPackage p) {
+    return asList(
+      p.getChecksum().getChecksum(),
+      p.getName(),
+      p.getArch(),
+      p.getVersion().getVer(),
+      p.getVersion().getEpoch(),
+      p.getVersion().getRel(),
+      trim(p.getSummary()),
+      trim(p.getDescription()),
+      defaultIfBlank(p.getUrl(), null),
+      p.getTime().getFile(),
+      p.getTime().getBuild(),
+      emptyIfBlank(p.getPackageFormat().getLicense()),
+      emptyIfBlank(p.getPackageFormat().getVendor()),
+      emptyIfBlank(p.getPackageFormat().getGroup()),
+      emptyIfBlank(p.getPackageFormat().getBuildHost()),
+      emptyIfBlank(p.getPackageFormat().getSourceRpm()),
+      p.getPackageFormat().getHeaderStart(),
+      p.getPackageFormat().getHeaderEnd(),
+      nullIfBlank(p.getPackager()),
+      p.getSize().getPackaged(),
+      p.getSize().getInstalled(),
+      p.getSize().getArchive(),
+      p.getLocation().getHref(),
+      null,
+      p.getChecksum().getType());
   }
 
-  private static int fillStatementForYumPackageFormatEntry(final PreparedStatement ps,
-                                                           final YumPackageFormatEntry dependency, int startCount)
-                                                    throws SQLException {
-    int counter = startCount;
-    ps.setString(counter++, dependency.getName());
+  private List<List<Object>> createDependencyRows(List<YumPackageFormatEntry> dependencies) {
+    return dependencies.stream().map(PrimaryDbGenerator::createDependencyRow).collect(toList());
+  }
+
+  private static List<Object> createDependencyRow(final YumPackageFormatEntry dependency) {
+    List<Object> row = new ArrayList<>(6);
+    row.add(dependency.getName());
     if (dependency.getFlags() == null) {
-      ps.setString(counter++, null);
-      ps.setString(counter++, null);
-      ps.setString(counter++, null);
-      ps.setString(counter++, null);
+      row.add(null);
+      row.add(null);
+      row.add(null);
+      row.add(null);
     } else {
-      ps.setString(counter++, dependency.getFlags());
-      ps.setInt(counter++, dependency.getVersion().getEpoch());
-      ps.setString(counter++, nullIfBlank(dependency.getVersion().getVer()));
-      ps.setString(counter++, nullIfBlank(dependency.getVersion().getRel()));
+      row.add(dependency.getFlags());
+      row.add(dependency.getVersion().getEpoch());
+      row.add(nullIfBlank(dependency.getVersion().getVer()));
+      row.add(nullIfBlank(dependency.getVersion().getRel()));
     }
-    return counter;
+    return row;
   }
 
-  private void writeRequires(PreparedStatement ps, int pkgKey, List<YumPackageRequirement> dependencies)
-                      throws SQLException {
+  private List<List<Object>> createRequiresRows(List<YumPackageRequirement> dependencies) {
+    List<List<Object>> rows = new ArrayList<>(dependencies.size());
     for (YumPackageRequirement dependency : dependencies) {
-      int c = fillStatementForYumPackageFormatEntry(ps, dependency, 1);
-      ps.setInt(c++, pkgKey);
-      ps.setString(c, dependency.isPre().toString().toUpperCase());
-      ps.addBatch();
-    }
-    if (!dependencies.isEmpty()) {
-      ps.executeBatch();
+      List<Object> row = createDependencyRow(dependency);
+      row.add(dependency.isPre().toString().toUpperCase());
+      rows.add(row);
     }
+    return rows;
   }
 
   private List<YumPackageRequirement> filterRequires(List<YumPackageRequirement> requires) {
     return requires.stream().filter((YumPackageRequirement requirement) -> !requirement.getName().startsWith("rpmlib(")).collect(toList());
   }
 
-  private void writePrimaryFiles(PreparedStatement ps, YumPackage yumPackage, int pkgKey,
-                                 Predicate<YumPackageFile> predicate) throws SQLException {
-    int counter = 0;
-    for (YumPackageDir dir : yumPackage.getPackageDirs()) {
-      for (YumPackageFile file : dir.getFiles().stream().filter(predicate).collect(toList())) {
-        ps.setString(1, file.getDir() + file.getName());
-        ps.setString(2, file.getType().toString().toLowerCase());
-        ps.setInt(3, pkgKey);
-        ps.addBatch();
-        counter++;
+  private void addPrimaryFiles(List<List<Object>> rows, YumPackage yumPackage, YumPackageFileType type) {
+    YumPackageFiles files = yumPackage.getPackageFiles();
+    for (int dir = 0; dir < files.getDirCount(); dir++) {
+      int firstFile = files.getFirstFile(dir);
+      for (int i = firstFile; i < (firstFile + files.getFileCount(dir)); i++) {
+        if ((files.getType(i) == type) && isPrimaryFile(files, dir, i)) {
+          rows.add(asList(files.appendPath(dir, i, new StringBuilder()).toString(), type.toString().toLowerCase()));
+        }
       }
     }
-    if (counter > 0) {
-      ps.executeBatch();
-    }
   }
 
   public static boolean isPrimaryDirName(String dir) {
     return dir.contains("bin/") || dir.startsWith("/etc/");
   }
 
-  private static boolean isPrimaryFileName(YumPackageFile file) {
-    return isPrimaryDirName(file.getDir()) || "/usr/lib/sendmail".equals(file.getDir() + file.getName());
+  /**
+   * Directories only count by the directory they are in, other files by their directory or as sendmail.
+   */
+  static boolean isPrimaryFile(YumPackageFiles files, int dir, int file) {
+    return isPrimaryDirName(files.getDir(dir)) ||
+      ((files.getType(file) != DIR) && files.hasPath(dir, file, "/usr/lib/sendmail"));
   }
 }
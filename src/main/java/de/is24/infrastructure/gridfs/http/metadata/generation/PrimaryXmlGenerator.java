@@ -0,0 +1,144 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormat;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormatEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageRequirement;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.List;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.DIR;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.GHOST;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.CONFLICTS;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.OBSOLETES;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.PROVIDES;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.REQUIRES;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.isPrimaryFile;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang.StringUtils.defaultIfBlank;
+import static org.apache.commons.lang.StringUtils.trimToEmpty;
+
+
+public class PrimaryXmlGenerator extends XmlGenerator {
+  public static final String COMMON_NAMESPACE = "http://linux.duke.edu/metadata/common";
+  public static final String RPM_NAMESPACE = "http://linux.duke.edu/metadata/rpm";
+  private static final String RPM_PREFIX = "rpm";
+
+  public PrimaryXmlGenerator() {
+    super("primary", "metadata", COMMON_NAMESPACE);
+  }
+
+  @Override
+  protected void writeAdditionalNamespaces(XMLStreamWriter writer) throws XMLStreamException {
+    writer.writeNamespace(RPM_PREFIX, RPM_NAMESPACE);
+  }
+
+  @Override
+  protected void writePackage(XMLStreamWriter writer, YumPackage p) throws XMLStreamException {
+    writer.writeStartElement(PACKAGE);
+    writer.writeAttribute("type", "rpm");
+    writeTextElement(writer, "name", p.getName());
+    writeTextElement(writer, "arch", p.getArch());
+    writeVersion(writer, p.getVersion());
+
+    writer.writeStartElement("checksum");
+    writeAttribute(writer, "type", p.getChecksum().getType());
+    writer.writeAttribute("pkgid", "YES");
+    writer.writeCharacters(p.getChecksum().getChecksum());
+    writer.writeEndElement();
+
+    writeTextElement(writer, "summary", trimToEmpty(p.getSummary()));
+    writeTextElement(writer, "description", trimToEmpty(p.getDescription()));
+    writeTextElement(writer, "packager", p.getPackager());
+    writeTextElement(writer, "url", p.getUrl());
+
+    writer.writeEmptyElement("time");
+    writeAttribute(writer, "file", String.valueOf(p.getTime().getFile()));
+    writeAttribute(writer, "build", String.valueOf(p.getTime().getBuild()));
+
+    writer.writeEmptyElement("size");
+    writeAttribute(writer, "package", String.valueOf(p.getSize().getPackaged()));
+    writeAttribute(writer, "installed", String.valueOf(p.getSize().getInstalled()));
+    writeAttribute(writer, "archive", String.valueOf(p.getSize().getArchive()));
+
+    writer.writeEmptyElement("location");
+    writeAttribute(writer, "href", p.getLocation().getHref());
+
+    writeFormat(writer, p);
+    writer.writeEndElement();
+  }
+
+  private void writeFormat(XMLStreamWriter writer, YumPackage p) throws XMLStreamException {
+    YumPackageFormat format = p.getPackageFormat();
+    writer.writeStartElement("format");
+    writeRpmTextElement(writer, "license", format.getLicense());
+    writeRpmTextElement(writer, "vendor", format.getVendor());
+    writeRpmTextElement(writer, "group", format.getGroup());
+    writeRpmTextElement(writer, "buildhost", format.getBuildHost());
+    writeRpmTextElement(writer, "sourcerpm", format.getSourceRpm());
+
+    writer.writeEmptyElement(RPM_PREFIX, "header-range", RPM_NAMESPACE);
+    writer.writeAttribute("start", Integer.toString(format.getHeaderStart()));
+    writer.writeAttribute("end", Integer.toString(format.getHeaderEnd()));
+
+    writeDependencies(writer, PROVIDES, format.getProvides());
+    writeDependencies(writer, REQUIRES, filterRequires(format.getRequires()));
+    writeDependencies(writer, CONFLICTS, format.getConflicts());
+    writeDependencies(writer, OBSOLETES, format.getObsoletes());
+
+    writePrimaryFiles(writer, p, FILE);
+    writePrimaryFiles(writer, p, DIR);
+    writePrimaryFiles(writer, p, GHOST);
+    writer.writeEndElement();
+  }
+
+  private void writeDependencies(XMLStreamWriter writer, String elementName,
+                                 List<? extends YumPackageFormatEntry> dependencies) throws XMLStreamException {
+    if (dependencies.isEmpty()) {
+      return;
+    }
+
+    writer.writeStartElement(RPM_PREFIX, elementName, RPM_NAMESPACE);
+    for (YumPackageFormatEntry dependency : dependencies) {
+      writer.writeEmptyElement(RPM_PREFIX, "entry", RPM_NAMESPACE);
+      writeAttribute(writer, "name", dependency.getName());
+      if (dependency.getFlags() != null) {
+        writeAttribute(writer, "flags", dependency.getFlags());
+        writeAttribute(writer, "epoch", Integer.toString(dependency.getVersion().getEpoch()));
+        writeAttribute(writer, "ver", defaultIfBlank(dependency.getVersion().getVer(), null));
+        writeAttribute(writer, "rel", defaultIfBlank(dependency.getVersion().getRel(), null));
+      }
+      if ((dependency instanceof YumPackageRequirement) && Boolean.TRUE.equals(((YumPackageRequirement) dependency).isPre())) {
+        writer.writeAttribute("pre", "1");
+      }
+    }
+    writer.writeEndElement();
+  }
+
+  private List<YumPackageRequirement> filterRequires(List<YumPackageRequirement> requires) {
+    return requires.stream().filter((YumPackageRequirement requirement) -> !requirement.getName().startsWith("rpmlib(")).collect(toList());
+  }
+
+  private void writePrimaryFiles(XMLStreamWriter writer, YumPackage yumPackage, YumPackageFileType type)
+                          throws XMLStreamException {
+    YumPackageFiles files = yumPackage.getPackageFiles();
+    for (int dir = 0; dir < files.getDirCount(); dir++) {
+      int firstFile = files.getFirstFile(dir);
+      for (int i = firstFile; i < (firstFile + files.getFileCount(dir)); i++) {
+        if ((files.getType(i) == type) && isPrimaryFile(files, dir, i)) {
+          writeFile(writer, files, dir, i);
+        }
+      }
+    }
+  }
+
+  private static void writeRpmTextElement(XMLStreamWriter writer, String localName, String text)
+                                   throws XMLStreamException {
+    writer.writeStartElement(RPM_PREFIX, localName, RPM_NAMESPACE);
+    writer.writeCharacters(xmlSafe(text));
+    writer.writeEndElement();
+  }
+}
@@ -0,0 +1,163 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageVersion;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RunningGeneration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
+
+
+/**
+ * Writes createrepo compatible xml metadata one package at a time,
+ * so the whole repository never has to be held in memory.
+ */
+public abstract class XmlGenerator {
+  private static final Logger LOG = LoggerFactory.getLogger(XmlGenerator.class);
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+  private static final String ENCODING = "UTF-8";
+  protected static final String PACKAGE = "package";
+  protected static final String VERSION = "version";
+  protected static final String FILE_ELEMENT = "file";
+
+  private final String name;
+  private final String rootElement;
+  private final String namespace;
+  private final StringBuilder path = new StringBuilder();
+  private char[] pathChars = new char[256];
+
+  protected XmlGenerator(String name, String rootElement, String namespace) {
+    this.name = name;
+    this.rootElement = rootElement;
+    this.namespace = namespace;
+  }
+
+  public void createXml(OutputStream outputStream, long packageCount, Iterator<YumEntry> entries) throws IOException {
+    try {
+      XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(outputStream, ENCODING);
+      writer.writeStartDocument(ENCODING, "1.0");
+      writer.writeCharacters("\n");
+      writer.writeStartElement(rootElement);
+      writer.writeDefaultNamespace(namespace);
+      writeAdditionalNamespaces(writer);
+      writer.writeAttribute("packages", Long.toString(packageCount));
+      writer.writeCharacters("\n");
+      while (entries.hasNext()) {
+        RunningGeneration.checkpoint();
+        writePackage(writer, entries.next().getYumPackage());
+        writer.writeCharacters("\n");
+      }
+      writer.writeEndElement();
+      writer.writeCharacters("\n");
+      writer.writeEndDocument();
+      writer.close();
+    } catch (XMLStreamException e) {
+      LOG.error("Could not generate {} xml.", name, e);
+      throw new IOException("Could not generate " + name + " xml.", e);
+    }
+  }
+
+  protected abstract void writePackage(XMLStreamWriter writer, YumPackage yumPackage) throws XMLStreamException;
+
+  protected void writeAdditionalNamespaces(XMLStreamWriter writer) throws XMLStreamException {
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  protected static void writePackageIdentity(XMLStreamWriter writer, YumPackage yumPackage)
+                                      throws XMLStreamException {
+    writer.writeStartElement(PACKAGE);
+    writeAttribute(writer, "pkgid", yumPackage.getChecksum().getChecksum());
+    writeAttribute(writer, "name", yumPackage.getName());
+    writeAttribute(writer, "arch", yumPackage.getArch());
+    writeVersion(writer, yumPackage.getVersion());
+  }
+
+  protected static void writeVersion(XMLStreamWriter writer, YumPackageVersion version) throws XMLStreamException {
+    writer.writeEmptyElement(VERSION);
+    writeAttribute(writer, "epoch", Integer.toString(version.getEpoch()));
+    writeAttribute(writer, "ver", version.getVer());
+    writeAttribute(writer, "rel", version.getRel());
+  }
+
+  /**
+   * Writes the path of the file from the name block of the files through reused buffers, so a package with many
+   * files doesn't need a string per file.
+   */
+  protected void writeFile(XMLStreamWriter writer, YumPackageFiles files, int dir, int file)
+                    throws XMLStreamException {
+    writer.writeStartElement(FILE_ELEMENT);
+
+    YumPackageFileType type = files.getType(file);
+    if (!FILE.equals(type)) {
+      writeAttribute(writer, "type", type.toString().toLowerCase());
+    }
+
+    path.setLength(0);
+    files.appendPath(dir, file, path);
+    if (pathChars.length < path.length()) {
+      pathChars = new char[path.length() * 2];
+    }
+
+    int length = 0;
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (isAllowedInXml(c)) {
+        pathChars[length++] = c;
+      }
+    }
+    writer.writeCharacters(pathChars, 0, length);
+    writer.writeEndElement();
+  }
+
+  protected static void writeTextElement(XMLStreamWriter writer, String localName, String text)
+                                  throws XMLStreamException {
+    writer.writeStartElement(localName);
+    writer.writeCharacters(xmlSafe(text));
+    writer.writeEndElement();
+  }
+
+  protected static void writeAttribute(XMLStreamWriter writer, String localName, String value)
+                                throws XMLStreamException {
+    if (value != null) {
+      writer.writeAttribute(localName, xmlSafe(value));
+    }
+  }
+
+  /**
+   * rpm headers may contain control characters, which are not allowed in xml 1.0 documents.
+   */
+  protected static String xmlSafe(String text) {
+    if (text == null) {
+      return "";
+    }
+
+    StringBuilder builder = null;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      boolean allowed = isAllowedInXml(c);
+      if (!allowed && builder == null) {
+        builder = new StringBuilder(text.length()).append(text, 0, i);
+      } else if (allowed && builder != null) {
+        builder.append(c);
+      }
+    }
+    return (builder == null) ? text : builder.toString();
+  }
+
+  private static boolean isAllowedInXml(char c) {
+    return (c >= 0x20 && c <= 0xD7FF) || c == 0x9 || c == 0xA || c == 0xD ||
+      Character.isSurrogate(c) || (c >= 0xE000 && c <= 0xFFFD);
+  }
+}
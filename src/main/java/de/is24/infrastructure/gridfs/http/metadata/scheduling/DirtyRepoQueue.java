@@ -0,0 +1,105 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+
+/**
+ * Collects repositories whose content changed. Bursts of changes are coalesced: a repository becomes due
+ * for metadata generation once it was quiet for the debounce window, but at the latest after the max delay.
+ * The listener is told about every change, so it can check the repository once the debounce window passed.
+ */
+@ManagedResource
+@Service
+public class DirtyRepoQueue {
+  private final Map<String, DirtyRepo> dirtyRepos = new ConcurrentHashMap<>();
+  private final long debounceMillis;
+  private final long maxDelayMillis;
+
+  private final AtomicLong events = new AtomicLong();
+  private final AtomicLong taken = new AtomicLong();
+  private volatile Consumer<String> listener = reponame -> {
+  };
+
+  @Autowired
+  public DirtyRepoQueue(@Value("${scheduler.debounce.seconds:2}") int debounceInSec,
+                        @Value("${scheduler.debounce.max.seconds:30}") int maxDelayInSec) {
+    this.debounceMillis = SECONDS.toMillis(debounceInSec);
+    this.maxDelayMillis = SECONDS.toMillis(maxDelayInSec);
+  }
+
+  public void markDirty(String reponame) {
+    long now = System.currentTimeMillis();
+    dirtyRepos.compute(reponame,
+      (name, dirtyRepo) -> (dirtyRepo == null) ? new DirtyRepo(now, now) : new DirtyRepo(dirtyRepo.firstChange, now));
+    events.incrementAndGet();
+    listener.accept(reponame);
+  }
+
+  public void setListener(Consumer<String> listener) {
+    this.listener = listener;
+  }
+
+  public long getDebounceMillis() {
+    return debounceMillis;
+  }
+
+  /**
+   * @return true and forgets the repository, if it is dirty and due for generation
+   */
+  public boolean takeIfDue(String reponame) {
+    return takeIfDue(reponame, System.currentTimeMillis());
+  }
+
+  boolean takeIfDue(String reponame, long now) {
+    DirtyRepo dirtyRepo = dirtyRepos.get(reponame);
+    if ((dirtyRepo != null) && dirtyRepo.isDue(now) && dirtyRepos.remove(reponame, dirtyRepo)) {
+      taken.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  public void remove(String reponame) {
+    dirtyRepos.remove(reponame);
+  }
+
+  @ManagedAttribute
+  public Set<String> getDirtyRepos() {
+    return new TreeSet<>(dirtyRepos.keySet());
+  }
+
+  @ManagedAttribute(description = "number of change events received")
+  public long getEvents() {
+    return events.get();
+  }
+
+  @ManagedAttribute(description = "number of generations triggered by change events")
+  public long getTaken() {
+    return taken.get();
+  }
+
+  private class DirtyRepo {
+    private final long firstChange;
+    private final long lastChange;
+
+    DirtyRepo(long firstChange, long lastChange) {
+      this.firstChange = firstChange;
+      this.lastChange = lastChange;
+    }
+
+    boolean isDue(long now) {
+      return ((now - lastChange) >= debounceMillis) || ((now - firstChange) >= maxDelayMillis);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
+import de.is24.infrastructure.gridfs.http.monitoring.ActiveJobsValueProvider;
+import de.is24.infrastructure.gridfs.http.monitoring.PoolSizeValueProvider;
+import de.is24.infrastructure.gridfs.http.monitoring.QueueSizeValueProvider;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import de.is24.infrastructure.gridfs.http.exception.GenerationCancelledException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.security.core.context.SecurityContext;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+
+/**
+ * Runs metadata generations on their own threads, so they neither wait for nor block maintenance jobs.
+ * Manual requests run first, then the longest waiting one, where every size class of a repository counts as
+ * queued a bit later. So small repositories go first, but big ones are not starved. A repository is queued at most
+ * once and generated by one thread at a time: a request for a repository in generation waits as follow-up and is
+ * queued when the generation finished. Generations only run while they hold the lease of the repository, so
+ * that the server nodes share the work and never generate the same repository at once. Scheduled generations skip
+ * a repository leased by another node, manual ones wait for its lease. Every generation has a deadline and can be cancelled; both
+ * are checked cooperatively at the checkpoints of {@link RunningGeneration}. A generation whose lease is lost is
+ * cancelled as well, so that it never publishes over the generation of the node that took the lease over.
+ */
+@ManagedResource
+public class MetadataGenerationExecutor {
+  private static final Logger LOG = LoggerFactory.getLogger(MetadataGenerationExecutor.class);
+  public static final String METADATA_GENERATION = "metadata.generation";
+  private static final String WAIT_TIME = "MetadataGenerationExecutor.wait.";
+
+  enum Priority {
+    MANUAL,
+    SCHEDULED
+  }
+
+  private final MetadataService metadataService;
+  private final YumEntriesHashCalculator entriesHashCalculator;
+  private final RepoLeaseService leaseService;
+  private final InApplicationMonitor inApplicationMonitor;
+  private final SecurityContext securityContext;
+  private final ThreadPoolExecutor executor;
+  private final long deadlineMillis;
+  private final long sizeClassDelayMillis;
+  private final Map<String, GenerationTask> queuedTasks = new HashMap<>();
+  private final Map<String, GenerationTask> followUpTasks = new HashMap<>();
+  private final Set<String> generatingRepos = new HashSet<>();
+  private final Map<String, RunningGeneration> runningGenerations = new ConcurrentHashMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong stopped = new AtomicLong();
+
+  public MetadataGenerationExecutor(MetadataService metadataService, YumEntriesHashCalculator entriesHashCalculator,
+                                    RepoLeaseService leaseService, InApplicationMonitor inApplicationMonitor, SecurityContext securityContext,
+                                    int poolSize, int deadlineInMin, int sizeClassDelayInSec) {
+    this.metadataService = metadataService;
+    this.entriesHashCalculator = entriesHashCalculator;
+    this.leaseService = leaseService;
+    this.inApplicationMonitor = inApplicationMonitor;
+    this.securityContext = securityContext;
+    this.deadlineMillis = MINUTES.toMillis(deadlineInMin);
+    this.sizeClassDelayMillis = SECONDS.toMillis(sizeClassDelayInSec);
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, MILLISECONDS, new PriorityBlockingQueue<>(),
+      new CustomizableThreadFactory("metadata-generation-"));
+    leaseService.addLeaseLostListener(this::leaseLost);
+    setupMonitor();
+  }
+
+  /**
+   * Queues a generation of the repository in front of all scheduled ones and waits for it.
+   */
+  public void generateAndWait(String reponame) throws IOException, SQLException {
+    Future<?> future = submit(reponame, Priority.MANUAL, this::generateLeased);
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for metadata generation of " + reponame, e);
+    } catch (ExecutionException e) {
+      rethrowCause(e);
+    }
+  }
+
+  public Future<?> generateIfNecessary(String reponame) {
+    return submit(reponame, Priority.SCHEDULED, this::generateIfLeased);
+  }
+
+  private void generateIfLeased(String reponame) throws IOException, SQLException {
+    String token = leaseService.tryAcquire(reponame);
+    if (token == null) {
+      LOG.debug("Skipping generation for repository {} because another node holds its lease.", reponame);
+      return;
+    }
+
+    try {
+      RunningGeneration.bindLease(() -> leaseService.holds(reponame, token));
+      metadataService.generateYumMetadataIfNecessary(reponame);
+    } finally {
+      leaseService.release(reponame, token);
+    }
+  }
+
+  private void generateLeased(String reponame) throws IOException, SQLException {
+    String token = leaseService.acquire(reponame);
+    if (token == null) {
+      throw new IOException("Another node is still generating metadata for repository " + reponame +
+        ", please try again later.");
+    }
+
+    try {
+      RunningGeneration.bindLease(() -> leaseService.holds(reponame, token));
+      metadataService.generateYumMetadata(reponame);
+    } finally {
+      leaseService.release(reponame, token);
+    }
+  }
+
+  Future<?> submit(String reponame, Priority priority, Generation generation) {
+    int sizeClass = sizeClassOf(entriesHashCalculator.entriesOf(reponame));
+    synchronized (queuedTasks) {
+      Map<String, GenerationTask> waitingTasks = generatingRepos.contains(reponame) ? followUpTasks : queuedTasks;
+      GenerationTask waiting = waitingTasks.get(reponame);
+      if (waiting != null) {
+        if (waiting.priority.compareTo(priority) <= 0) {
+          coalesced.incrementAndGet();
+          return waiting;
+        }
+
+        // the more urgent request overtakes the waiting one and does its work
+        executor.remove(waiting);
+        waiting.cancel(false);
+      }
+
+      GenerationTask task = new GenerationTask(reponame, priority, sizeClass, generation);
+      waitingTasks.put(reponame, task);
+      if (waitingTasks == queuedTasks) {
+        executor.execute(task);
+      }
+      return task;
+    }
+  }
+
+  // expects caller to synchronize on queuedTasks
+  private void queueFollowUp(String reponame) {
+    generatingRepos.remove(reponame);
+    GenerationTask followUp = followUpTasks.remove(reponame);
+    if (followUp != null) {
+      queuedTasks.put(reponame, followUp);
+      executor.execute(followUp);
+    }
+  }
+
+  /**
+   * Cancels a queued generation of the repository and stops a running one at its next checkpoint.
+   */
+  @ManagedOperation(description = "cancel the queued or running generation of a repository")
+  public boolean cancel(String reponame) {
+    boolean cancelled = false;
+    synchronized (queuedTasks) {
+      GenerationTask queued = queuedTasks.remove(reponame);
+      if (queued != null) {
+        executor.remove(queued);
+        cancelled = queued.cancel(false);
+      }
+
+      GenerationTask followUp = followUpTasks.remove(reponame);
+      if (followUp != null) {
+        cancelled = followUp.cancel(false) || cancelled;
+      }
+    }
+
+    RunningGeneration running = runningGenerations.get(reponame);
+    if (running != null) {
+      running.cancel();
+      cancelled = true;
+    }
+    return cancelled;
+  }
+
+  private void leaseLost(String reponame) {
+    RunningGeneration running = runningGenerations.get(reponame);
+    if (running != null) {
+      LOG.warn("Cancelling generation of repository {}, because its lease was lost.", reponame);
+      running.cancel();
+    }
+  }
+
+  public List<RunningGeneration> runningGenerations() {
+    return new ArrayList<>(runningGenerations.values());
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @ManagedAttribute(description = "queued repositories in the order they will be generated")
+  public List<String> getQueuedRepos() {
+    synchronized (queuedTasks) {
+      return queuedTasks.values().stream().sorted().map(task -> task.reponame).collect(toList());
+    }
+  }
+
+  @ManagedAttribute(description = "repositories queued again while they are generated")
+  public List<String> getFollowUpRepos() {
+    synchronized (queuedTasks) {
+      return followUpTasks.keySet().stream().sorted().collect(toList());
+    }
+  }
+
+  @ManagedAttribute(description = "running generations with phase and elapsed time")
+  public List<String> getRunningGenerations() {
+    return runningGenerations.values().stream().map(RunningGeneration::toString).sorted().collect(toList());
+  }
+
+  @ManagedAttribute(description = "number of generations stopped by cancellation or deadline")
+  public long getStopped() {
+    return stopped.get();
+  }
+
+  @ManagedAttribute
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+  @ManagedAttribute
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  @ManagedAttribute(description = "number of requests for repositories, that were already queued")
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  static int sizeClassOf(long entries) {
+    return Long.SIZE - Long.numberOfLeadingZeros(entries);
+  }
+
+  private void setupMonitor() {
+    inApplicationMonitor.registerStateValue(new QueueSizeValueProvider(executor, METADATA_GENERATION));
+    inApplicationMonitor.registerStateValue(new PoolSizeValueProvider(executor, METADATA_GENERATION));
+    inApplicationMonitor.registerStateValue(new ActiveJobsValueProvider(executor, METADATA_GENERATION));
+  }
+
+  private static void rethrowCause(ExecutionException e) throws IOException, SQLException {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof SQLException) {
+      throw (SQLException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    throw new IllegalStateException(cause);
+  }
+
+  interface Generation {
+    void generate(String reponame) throws IOException, SQLException;
+  }
+
+  private class GenerationTask extends FutureTask<Void> implements Comparable<GenerationTask> {
+    private final String reponame;
+    private final Priority priority;
+    private final long sequenceNumber = sequence.incrementAndGet();
+    private final long enqueuedAt = System.currentTimeMillis();
+    private final long rank;
+
+    GenerationTask(String reponame, Priority priority, int sizeClass, Generation generation) {
+      super(new DelegatingSecurityContextCallable<>(() -> {
+          generate(reponame, generation);
+          return null;
+        }, securityContext));
+      this.reponame = reponame;
+      this.priority = priority;
+      this.rank = enqueuedAt + (sizeClass * sizeClassDelayMillis);
+    }
+
+    @Override
+    public void run() {
+      synchronized (queuedTasks) {
+        queuedTasks.remove(reponame, this);
+        if (isCancelled()) {
+          return;
+        }
+        generatingRepos.add(reponame);
+      }
+      inApplicationMonitor.addTimerMeasurement(WAIT_TIME + reponame, enqueuedAt, System.currentTimeMillis());
+      try {
+        super.run();
+      } finally {
+        synchronized (queuedTasks) {
+          queueFollowUp(reponame);
+        }
+      }
+    }
+
+    /**
+     * Ranks by enqueue time plus a delay per size class, which stays fixed while queued, so that a big repository
+     * overtakes small ones once it waited longer than the delay of the difference of their size classes.
+     */
+    @Override
+    public int compareTo(GenerationTask other) {
+      int result = priority.compareTo(other.priority);
+      if (result == 0) {
+        result = Long.compare(rank, other.rank);
+      }
+      if (result == 0) {
+        result = Long.compare(sequenceNumber, other.sequenceNumber);
+      }
+      return result;
+    }
+  }
+
+  private void generate(String reponame, Generation generation) throws IOException, SQLException {
+    long now = System.currentTimeMillis();
+    RunningGeneration running = new RunningGeneration(reponame, now, now + deadlineMillis);
+    runningGenerations.put(reponame, running);
+    RunningGeneration.bind(running);
+
+    MDCHelper mdcHelper = new MDCHelper(MetadataGenerationExecutor.class);
+    mdcHelper.prepareMDC();
+    try {
+      generation.generate(reponame);
+    } catch (GenerationCancelledException e) {
+      stopped.incrementAndGet();
+      LOG.warn(e.getMessage());
+      throw e;
+    } catch (IOException | SQLException | RuntimeException e) {
+      LOG.error("Metadata generation for repository {} failed.", reponame, e);
+      throw e;
+    } finally {
+      mdcHelper.disposeMDC();
+      RunningGeneration.unbind();
+      runningGenerations.remove(reponame, running);
+    }
+  }
+}
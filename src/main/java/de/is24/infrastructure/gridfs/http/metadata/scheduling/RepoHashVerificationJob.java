@@ -0,0 +1,38 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+
+/**
+ * Periodically compares the maintained hashes of all repositories with their entries, see
+ * {@link YumEntriesHashCalculator#verifyAll()}.
+ */
+@Service
+public class RepoHashVerificationJob {
+  private static final Logger LOG = LoggerFactory.getLogger(RepoHashVerificationJob.class);
+
+  private final YumEntriesHashCalculator entriesHashCalculator;
+  private final MongoPrimaryDetector primaryDetector;
+
+  @Autowired
+  public RepoHashVerificationJob(YumEntriesHashCalculator entriesHashCalculator,
+                                 MongoPrimaryDetector primaryDetector) {
+    this.entriesHashCalculator = entriesHashCalculator;
+    this.primaryDetector = primaryDetector;
+  }
+
+  @Scheduled(cron = "${scheduler.hash.verification.cron:0 50 2 * * *}")
+  public void verifyHashes() {
+    if (primaryDetector.isPrimary()) {
+      new MDCHelper(this.getClass()).run(() ->
+          LOG.info("Verified repository hashes, corrected {}.", entriesHashCalculator.verifyAll()));
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.domain.RepoLease;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Service;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import static de.is24.infrastructure.gridfs.http.domain.RepoLease.EXPIRES_AT_KEY;
+import static de.is24.infrastructure.gridfs.http.domain.RepoLease.OWNER_KEY;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+
+/**
+ * Hands out per repository leases stored in mongo, so that every server node may generate metadata, but only one
+ * generation at a time per repository. Every acquired lease has its own token, so a node can neither acquire a
+ * lease it already holds nor release the lease of another generation. Held leases are extended by a heartbeat.
+ * Leases of a failed node expire and are taken over by the next node asking for them. The heartbeat runs on its own
+ * thread, so that long running jobs cannot delay it until the leases expire, and tells the listeners about every lease
+ * it lost, so that the generation holding it can stop before it publishes anything.
+ */
+@ManagedResource
+@Service
+public class RepoLeaseService {
+  private static final Logger LOG = LoggerFactory.getLogger(RepoLeaseService.class);
+  private static final String ID_KEY = "_id";
+  private static final long RETRY_MILLIS = 1000;
+
+  private final MongoTemplate mongoTemplate;
+  private final String owner;
+  private final long leaseMillis;
+  private final String heartbeatCron;
+  private final Map<String, String> heldLeases = new ConcurrentHashMap<>();
+  private final List<Consumer<String>> leaseLostListeners = new CopyOnWriteArrayList<>();
+  private final ThreadPoolTaskScheduler heartbeatScheduler = new ThreadPoolTaskScheduler();
+
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+
+  @Autowired
+  public RepoLeaseService(MongoTemplate mongoTemplate, @Value("${scheduler.lease.seconds:60}") int leaseInSec,
+                          @Value("${scheduler.lease.heartbeat.cron:*/20 * * * * *}") String heartbeatCron) {
+    this(mongoTemplate, localHostname() + "-" + randomUUID(), leaseInSec, heartbeatCron);
+  }
+
+  RepoLeaseService(MongoTemplate mongoTemplate, String owner, int leaseInSec, String heartbeatCron) {
+    this.mongoTemplate = mongoTemplate;
+    this.owner = owner;
+    this.leaseMillis = SECONDS.toMillis(leaseInSec);
+    this.heartbeatCron = heartbeatCron;
+  }
+
+  @PostConstruct
+  public void startHeartbeat() {
+    heartbeatScheduler.setThreadNamePrefix("lease-heartbeat-");
+    heartbeatScheduler.initialize();
+    heartbeatScheduler.schedule(this::heartbeat, new CronTrigger(heartbeatCron));
+  }
+
+  @PreDestroy
+  public void stopHeartbeat() {
+    heartbeatScheduler.shutdown();
+  }
+
+  /**
+   * @param listener called with the name of the repository, whose lease this node lost to another one
+   */
+  public void addLeaseLostListener(Consumer<String> listener) {
+    leaseLostListeners.add(listener);
+  }
+
+  /**
+   * @return the token of the lease, if this node holds it now, or null, if another generation holds it
+   */
+  public String tryAcquire(String reponame) {
+    Date now = new Date();
+    String token = owner + "/" + randomUUID();
+    try {
+      mongoTemplate.upsert(query(where(ID_KEY).is(reponame).and(EXPIRES_AT_KEY).lt(now)),
+        new Update().set(OWNER_KEY, token).set(EXPIRES_AT_KEY, expiry(now)),
+        RepoLease.class);
+    } catch (DuplicateKeyException e) {
+      // the lease exists, but is held by another generation
+      rejected.incrementAndGet();
+      return null;
+    }
+
+    heldLeases.put(reponame, token);
+    acquired.incrementAndGet();
+    return token;
+  }
+
+  /**
+   * Waits up to the lease time for the lease, so that a generation running on another node can finish or its
+   * lease expires.
+   *
+   * @return the token of the lease or null, if another generation still holds it
+   */
+  public String acquire(String reponame) {
+    long giveUpAt = System.currentTimeMillis() + leaseMillis;
+    String token = tryAcquire(reponame);
+    while ((token == null) && (System.currentTimeMillis() < giveUpAt)) {
+      try {
+        Thread.sleep(RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      token = tryAcquire(reponame);
+    }
+    return token;
+  }
+
+  /**
+   * @return true, if the lease of the generation is neither released nor expired
+   */
+  public boolean holds(String reponame, String token) {
+    return mongoTemplate.exists(
+      query(where(ID_KEY).is(reponame).and(OWNER_KEY).is(token).and(EXPIRES_AT_KEY).gt(new Date())),
+      RepoLease.class);
+  }
+
+  public void release(String reponame, String token) {
+    heldLeases.remove(reponame, token);
+    mongoTemplate.remove(query(where(ID_KEY).is(reponame).and(OWNER_KEY).is(token)), RepoLease.class);
+  }
+
+  public void heartbeat() {
+    for (Map.Entry<String, String> heldLease : heldLeases.entrySet()) {
+      if (!extend(heldLease.getKey(), heldLease.getValue()) &&
+          heldLeases.remove(heldLease.getKey(), heldLease.getValue())) {
+        lost.incrementAndGet();
+        LOG.warn("Lost lease for repository {}, another node took it over.", heldLease.getKey());
+        leaseLostListeners.forEach(listener -> listener.accept(heldLease.getKey()));
+      }
+    }
+  }
+
+  private boolean extend(String reponame, String token) {
+    return mongoTemplate.updateFirst(query(where(ID_KEY).is(reponame).and(OWNER_KEY).is(token)),
+      new Update().set(EXPIRES_AT_KEY, expiry(new Date())),
+      RepoLease.class).getN() > 0;
+  }
+
+  private Date expiry(Date now) {
+    return new Date(now.getTime() + leaseMillis);
+  }
+
+  @ManagedAttribute
+  public String getOwner() {
+    return owner;
+  }
+
+  @ManagedAttribute
+  public Set<String> getHeldLeases() {
+    return new TreeSet<>(heldLeases.keySet());
+  }
+
+  @ManagedAttribute(description = "number of leases acquired by this node")
+  public long getAcquired() {
+    return acquired.get();
+  }
+
+  @ManagedAttribute(description = "number of leases refused, because another node held them")
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  @ManagedAttribute(description = "number of leases taken over by other nodes after they expired")
+  public long getLost() {
+    return lost.get();
+  }
+
+  private static String localHostname() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException("Could not determine local hostname.", e);
+    }
+  }
+}
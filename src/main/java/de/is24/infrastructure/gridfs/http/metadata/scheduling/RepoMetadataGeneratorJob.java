@@ -1,14 +1,10 @@
 package de.is24.infrastructure.gridfs.http.metadata.scheduling;
 
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
-import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
-import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.IOException;
-import java.sql.SQLException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.lang.builder.ToStringBuilder.reflectionToString;
 import static org.apache.commons.lang.builder.ToStringStyle.SHORT_PREFIX_STYLE;
@@ -18,17 +14,26 @@ public class RepoMetadataGeneratorJob implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(RepoMetadataGeneratorJob.class);
 
   private final String name;
-  private final MetadataService metadataService;
-  private final MongoPrimaryDetector primaryDetector;
+  private final MetadataGenerationExecutor generationExecutor;
+  private final DirtyRepoQueue dirtyRepoQueue;
+  private final long sweepDelayMillis;
   private final ScheduledFuture<?> scheduledFuture;
-  private boolean active = true;
+  private volatile boolean active = true;
+  private volatile long lastRun;
 
+  /**
+   * The job ticks every delayInSec, but only generates if the repository was marked dirty
+   * or the last run is longer ago than sweepDelayInMin. The generation itself is queued to the generationExecutor.
+   * Changes also run the job right after their debounce window, see {@link RepoMetadataScheduler}.
+   */
   @SuppressWarnings("unchecked")
-  public RepoMetadataGeneratorJob(String name, MetadataService metadataService, MongoPrimaryDetector primaryDetector,
-                                  ScheduledExecutorService scheduledExecutorService, int delayInSec) {
+  public RepoMetadataGeneratorJob(String name, MetadataGenerationExecutor generationExecutor,
+                                  DirtyRepoQueue dirtyRepoQueue, ScheduledExecutorService scheduledExecutorService,
+                                  int delayInSec, int sweepDelayInMin) {
     this.name = name;
-    this.metadataService = metadataService;
-    this.primaryDetector = primaryDetector;
+    this.generationExecutor = generationExecutor;
+    this.dirtyRepoQueue = dirtyRepoQueue;
+    this.sweepDelayMillis = MINUTES.toMillis(sweepDelayInMin);
     this.scheduledFuture = scheduledExecutorService.scheduleWithFixedDelay(this, delayInSec, delayInSec, SECONDS);
   }
 
@@ -43,23 +48,16 @@ public class RepoMetadataGeneratorJob implements Runnable {
       return;
     }
 
-    if (!primaryDetector.isPrimary()) {
-      LOG.debug("Skipping generation for repository {} because not connected to mongo primary.", name);
-      return;
+    long now = System.currentTimeMillis();
+    if (dirtyRepoQueue.takeIfDue(name) || ((now - lastRun) >= sweepDelayMillis)) {
+      lastRun = now;
+      doRun();
     }
-
-    doRun();
   }
 
   private void doRun() {
     LOG.debug("Scheduled generation for repository: {}", name);
-    new MDCHelper(this.getClass()).run(() -> {
-      try {
-        metadataService.generateYumMetadataIfNecessary(name);
-      } catch (SQLException | IOException e) {
-        LOG.error("Metadata generation for repository {} failed.", name, e);
-      }
-    });
+    generationExecutor.generateIfNecessary(name);
   }
 
   @Override
@@ -1,9 +1,7 @@
 package de.is24.infrastructure.gridfs.http.metadata.scheduling;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
 import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepository;
-import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
 import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,11 +13,13 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.stream.Collectors.toSet;
 
 
@@ -29,25 +29,39 @@ public class RepoMetadataScheduler {
   private static final Logger LOG = LoggerFactory.getLogger(RepoMetadataScheduler.class);
 
   private final RepoEntriesRepository repo;
-  private final MetadataService metadataService;
-  private final MongoPrimaryDetector primaryDetector;
+  private final MetadataGenerationExecutor generationExecutor;
+  private final DirtyRepoQueue dirtyRepoQueue;
   private final ScheduledExecutorService scheduledExecutorService;
   private final int delayInSec;
+  private final int sweepDelayInMin;
   private Map<String, RepoMetadataGeneratorJob> repoJobs;
   private Object semaphore = new Object();
 
   @Autowired
   public RepoMetadataScheduler(RepoEntriesRepository repo,
-                               MetadataService metadataService,
-                               MongoPrimaryDetector primaryDetector,
+                               MetadataGenerationExecutor generationExecutor,
+                               DirtyRepoQueue dirtyRepoQueue,
                                ScheduledExecutorService scheduledExecutorService,
-                               @Value("${scheduler.delay:10}") int delayInSec) {
+                               @Value("${scheduler.delay:10}") int delayInSec,
+                               @Value("${scheduler.sweep.delay.minutes:10}") int sweepDelayInMin) {
     this.repo = repo;
-    this.metadataService = metadataService;
-    this.primaryDetector = primaryDetector;
+    this.generationExecutor = generationExecutor;
+    this.dirtyRepoQueue = dirtyRepoQueue;
     this.scheduledExecutorService = scheduledExecutorService;
     this.delayInSec = delayInSec;
+    this.sweepDelayInMin = sweepDelayInMin;
     this.repoJobs = new ConcurrentHashMap<>();
+    dirtyRepoQueue.setListener(this::checkAfterDebounce);
+  }
+
+  /**
+   * Checks a changed repository as soon as it may be due, instead of waiting for the next tick of its job.
+   */
+  void checkAfterDebounce(String reponame) {
+    RepoMetadataGeneratorJob job = repoJobs.get(reponame);
+    if (job != null) {
+      scheduledExecutorService.schedule(job, dirtyRepoQueue.getDebounceMillis(), MILLISECONDS);
+    }
   }
 
   @Scheduled(cron = "${scheduler.update.cron:*/30 * * * * *}")
@@ -55,11 +69,13 @@ public class RepoMetadataScheduler {
     LOG.debug("Checking for updates in scheduled repository definitions.");
     new MDCHelper(this.getClass()).run(() -> {
       try {
-        Set<String> repoNamesToSchedule = repo.findByType(SCHEDULED)
-          .stream()
-          .map(RepoEntry::getName)
-          .collect(toSet());
+        List<RepoEntry> scheduledRepos = repo.findByType(SCHEDULED);
+        Set<String> repoNamesToSchedule = scheduledRepos.stream().map(RepoEntry::getName).collect(toSet());
         repoNamesToSchedule.forEach(this::ensureRunningRepoJob);
+
+        // changes made through other instances only show up as modification date
+        scheduledRepos.stream().filter(RepoMetadataScheduler::isModifiedAfterGeneration)
+          .forEach(entry -> dirtyRepoQueue.markDirty(entry.getName()));
         removeJobsNotFoundInDb(repoNamesToSchedule);
       } catch (Exception e) {
         LOG.error("while updating scheduled repo jobs", e);
@@ -67,6 +83,12 @@ public class RepoMetadataScheduler {
     });
   }
 
+  private static boolean isModifiedAfterGeneration(RepoEntry entry) {
+    return (entry.getLastModified() != null) &&
+      ((entry.getLastMetadataGeneration() == null) ||
+        entry.getLastModified().after(entry.getLastMetadataGeneration()));
+  }
+
   private void removeJobsNotFoundInDb(Set<String> repoNamesToSchedule) {
     repoJobs.keySet().stream().filter(repoName -> !repoNamesToSchedule.contains(repoName)).forEach(this::removeRepoJob);
   }
@@ -77,6 +99,7 @@ public class RepoMetadataScheduler {
       if (removed != null) {
         removed.deactivate();
       }
+      dirtyRepoQueue.remove(repoName);
     }
     LOG.info("Removed scheduling job for repository: {}", repoName);
   }
@@ -86,7 +109,8 @@ public class RepoMetadataScheduler {
       removeJobIfBroken(name);
       if (!isJobPresent(name)) {
         repoJobs.put(name,
-          new RepoMetadataGeneratorJob(name, metadataService, primaryDetector, scheduledExecutorService, delayInSec));
+          new RepoMetadataGeneratorJob(name, generationExecutor, dirtyRepoQueue, scheduledExecutorService,
+            delayInSec, sweepDelayInMin));
         LOG.info("Added scheduling job for repository: {}", name);
       }
     }
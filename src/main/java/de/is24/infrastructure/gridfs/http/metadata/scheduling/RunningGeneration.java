@@ -0,0 +1,115 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.exception.GenerationCancelledException;
+import java.util.Date;
+import java.util.function.BooleanSupplier;
+
+
+/**
+ * A metadata generation in progress. It is bound to the generating thread, so that the write loops of the
+ * generators and the storage uploads can reach their checkpoints without knowing about scheduling: a checkpoint
+ * stops the generation by a {@link GenerationCancelledException}, if it was cancelled or exceeded its deadline.
+ * Before it publishes, a generation checks that it still holds the lease of its repository.
+ */
+public class RunningGeneration {
+  private static final ThreadLocal<RunningGeneration> CURRENT = new ThreadLocal<>();
+
+  private final String reponame;
+  private final long startedAt;
+  private final long deadline;
+  private volatile String phase = "queued";
+  private volatile boolean cancelled;
+  private volatile BooleanSupplier leaseHeld = () -> true;
+
+  public RunningGeneration(String reponame, long startedAt, long deadline) {
+    this.reponame = reponame;
+    this.startedAt = startedAt;
+    this.deadline = deadline;
+  }
+
+  public static void checkpoint() {
+    RunningGeneration generation = CURRENT.get();
+    if (generation != null) {
+      generation.check(System.currentTimeMillis());
+    }
+  }
+
+  public static void enterPhase(String phase) {
+    RunningGeneration generation = CURRENT.get();
+    if (generation != null) {
+      generation.check(System.currentTimeMillis());
+      generation.phase = phase;
+    }
+  }
+
+  /**
+   * Like {@link #checkpoint()}, but also stops the generation, if another node took over the lease of its
+   * repository. Asks the lease store, so it is meant for the few steps that change what clients see.
+   */
+  public static void checkLease() {
+    RunningGeneration generation = CURRENT.get();
+    if (generation != null) {
+      generation.check(System.currentTimeMillis());
+      if (!generation.leaseHeld.getAsBoolean()) {
+        throw new GenerationCancelledException(generation.reponame, "lease lost in phase " + generation.phase);
+      }
+    }
+  }
+
+  static void bindLease(BooleanSupplier leaseHeld) {
+    RunningGeneration generation = CURRENT.get();
+    if (generation != null) {
+      generation.leaseHeld = leaseHeld;
+    }
+  }
+
+  static void bind(RunningGeneration generation) {
+    CURRENT.set(generation);
+  }
+
+  static void unbind() {
+    CURRENT.remove();
+  }
+
+  void check(long now) {
+    if (cancelled) {
+      throw new GenerationCancelledException(reponame, "cancelled in phase " + phase);
+    }
+    if (now > deadline) {
+      throw new GenerationCancelledException(reponame, "deadline exceeded in phase " + phase);
+    }
+  }
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public String getReponame() {
+    return reponame;
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  public Date getStartedAt() {
+    return new Date(startedAt);
+  }
+
+  public Date getDeadline() {
+    return new Date(deadline);
+  }
+
+  public long getElapsedMillis() {
+    return System.currentTimeMillis() - startedAt;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public String toString() {
+    return reponame + " in phase " + phase + " for " + getElapsedMillis() + " ms" + (cancelled ? " (cancelled)" : "");
+  }
+}
@@ -12,7 +12,17 @@ public interface DatabaseStructure {
   String METADATA_REPO_KEY = "metadata." + REPO_KEY;
   String METADATA_UPLOAD_DATE_KEY = "metadata." + UPLOAD_DATE_KEY;
   String METADATA_MARKED_AS_DELETED_KEY = "metadata." + MARKED_AS_DELETED_KEY;
+  String VERSION_SORT_KEY = "versionSortKey";
   String GRIDFS_FILES_COLLECTION = "fs.files";
+  String GRIDFS_CHUNKS_COLLECTION = "fs.chunks";
   String YUM_ENTRY_COLLECTION = "yum.entries";
   String REPO_ENTRY_COLLECTION = "yum.repos";
+  String REPODATA_ARTIFACTS_COLLECTION = "yum.repodata.artifacts";
+  String REPO_CONTENT_COLLECTION = "yum.repo.contents";
+  String REPO_LEASE_COLLECTION = "yum.repo.leases";
+  String MAINTENANCE_CHECKPOINT_COLLECTION = "yum.maintenance.checkpoints";
+  String RPM_HEADER_COLLECTION = "yum.rpm.headers";
+  String YUM_ENTRY_FILES_COLLECTION = "yum.entry.files";
+  String YUM_ENTRY_CHANGELOGS_COLLECTION = "yum.entry.changelogs";
+  String YUM_ENTRY_METADATA_ROWS_COLLECTION = "yum.entry.metadata.rows";
 }
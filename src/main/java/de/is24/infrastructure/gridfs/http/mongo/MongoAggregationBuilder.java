@@ -62,6 +62,10 @@ public class MongoAggregationBuilder {
     return new BasicDBObject("$match", object.getCriteriaObject());
   }
 
+  public static BasicDBObject project(Field... fields) {
+    return new BasicDBObject("$project", toDbObject(fields));
+  }
+
   public static BasicDBObject sort(SortField sortBy, SortOrder sortOrder) {
     return new BasicDBObject("$sort", sortBy.sortFolder(sortOrder));
   }
@@ -0,0 +1,96 @@
+package de.is24.infrastructure.gridfs.http.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import org.bson.types.BSONTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * Reads how far the secondaries are behind the primary and how much time the oplog covers,
+ * so that bulk writes can be paced to what the replica set is able to follow.
+ */
+@ManagedResource
+@Service
+public class ReplicationLagMonitor {
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicationLagMonitor.class);
+  private static final String PRIMARY = "PRIMARY";
+  private static final String SECONDARY = "SECONDARY";
+  private static final String NATURAL_ORDER = "$natural";
+  private static final String TIMESTAMP_KEY = "ts";
+
+  private final Mongo mongo;
+
+  @Autowired
+  public ReplicationLagMonitor(Mongo mongo) {
+    this.mongo = mongo;
+  }
+
+  /**
+   * @return milliseconds the slowest secondary is behind the primary, 0 without replica set
+   */
+  @ManagedAttribute
+  public long getReplicationLagMillis() {
+    try {
+      CommandResult status = mongo.getDB("admin").command("replSetGetStatus");
+      return status.ok() ? lagMillis(status) : 0;
+    } catch (MongoException e) {
+      LOG.warn("Could not determine replication lag.", e);
+      return 0;
+    }
+  }
+
+  /**
+   * @return seconds between the first and the last operation in the oplog, -1 if unknown
+   */
+  @ManagedAttribute
+  public long getOplogWindowSeconds() {
+    try {
+      DBCollection oplog = mongo.getDB("local").getCollection("oplog.rs");
+      BSONTimestamp first = timestampOf(oplog, 1);
+      BSONTimestamp last = timestampOf(oplog, -1);
+      return ((first == null) || (last == null)) ? -1 : (last.getTime() - first.getTime());
+    } catch (MongoException e) {
+      LOG.warn("Could not determine oplog window.", e);
+      return -1;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static long lagMillis(DBObject replicaSetStatus) {
+    List<DBObject> members = (List<DBObject>) replicaSetStatus.get("members");
+    Date primaryOptime = null;
+    Date slowestSecondaryOptime = null;
+    for (DBObject member : members) {
+      Date optime = (Date) member.get("optimeDate");
+      if (PRIMARY.equals(member.get("stateStr"))) {
+        primaryOptime = optime;
+      } else if (SECONDARY.equals(member.get("stateStr")) &&
+          ((slowestSecondaryOptime == null) || optime.before(slowestSecondaryOptime))) {
+        slowestSecondaryOptime = optime;
+      }
+    }
+
+    if ((primaryOptime == null) || (slowestSecondaryOptime == null)) {
+      return 0;
+    }
+    return Math.max(0, primaryOptime.getTime() - slowestSecondaryOptime.getTime());
+  }
+
+  private static BSONTimestamp timestampOf(DBCollection oplog, int order) {
+    DBObject entry = oplog.findOne(new BasicDBObject(), new BasicDBObject(TIMESTAMP_KEY, 1),
+      new BasicDBObject(NATURAL_ORDER, order));
+    return (entry == null) ? null : (BSONTimestamp) entry.get(TIMESTAMP_KEY);
+  }
+}
@@ -1,14 +1,14 @@
 package de.is24.infrastructure.gridfs.http.monitoring;
 
 import de.is24.util.monitoring.StateValueProvider;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 
 public final class ActiveJobsValueProvider extends StateValueProvider {
-  private final ScheduledThreadPoolExecutor executor;
+  private final ThreadPoolExecutor executor;
   private String queueName;
 
-  public ActiveJobsValueProvider(ScheduledThreadPoolExecutor executor, String queueName) {
+  public ActiveJobsValueProvider(ThreadPoolExecutor executor, String queueName) {
     this.executor = executor;
     this.queueName = queueName;
   }
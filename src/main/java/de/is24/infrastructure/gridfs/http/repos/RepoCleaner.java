@@ -1,36 +1,48 @@
 package de.is24.infrastructure.gridfs.http.repos;
 
-import com.mongodb.AggregationOutput;
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBObject;
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
-import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
-import de.is24.infrastructure.gridfs.http.rpm.version.CachingVersionDBObjectComparator;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RepoLeaseService;
+import de.is24.infrastructure.gridfs.http.rpm.version.VersionDBObjectComparator;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.bson.types.ObjectId;
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.STATIC;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.VERSION_SORT_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.MongoAggregationBuilder.field;
 import static de.is24.infrastructure.gridfs.http.mongo.MongoAggregationBuilder.groupBy;
 import static de.is24.infrastructure.gridfs.http.mongo.MongoAggregationBuilder.match;
+import static de.is24.infrastructure.gridfs.http.mongo.MongoAggregationBuilder.project;
 import static java.util.Arrays.asList;
 import static java.util.Collections.sort;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 
 @ManagedResource
@@ -40,32 +52,51 @@ public class RepoCleaner {
   public static final String REPO_KEY = "repo";
   private static final Logger LOG = LoggerFactory.getLogger(RepoCleaner.class);
   public static final String VERSION_KEY = "version";
-  public static final String TIME_KEY = "time";
-  public static final String TIME_BUILD_KEY = "build";
   public static final String FILE_KEY = "file";
   public static final String FILENAME_KEY = "filename";
+  public static final String CHECKSUM_KEY = "checksum";
   public static final String ITEMS_KEY = "items";
+  public static final String SORT_KEY = "sortKey";
+  private static final String NAME_PATH = "yumPackage.name";
+  private static final String ARCH_PATH = "yumPackage.arch";
+  private static final String BUILD_TIME_PATH = "yumPackage.time.build";
+  private static final String MAX_KEEP_RPMS_KEY = "maxKeepRpms";
+  private static final String ID_KEY = "_id";
+  private static final int DELETION_BATCH_SIZE = 500;
+  private static final AggregationOptions AGGREGATION_OPTIONS = AggregationOptions.builder()
+    .outputMode(AggregationOptions.OutputMode.CURSOR)
+    .allowDiskUse(true)
+    .build();
   private final MongoTemplate mongo;
-  private final YumEntriesRepository entriesRepository;
   private final FileStorageService fileStorageService;
   private final RepoService repoService;
-  private final CachingVersionDBObjectComparator comparatorVersion = new CachingVersionDBObjectComparator();
+  private final YumEntriesHashCalculator entriesHashCalculator;
+  private final PackageCatalog packageCatalog;
+  private final RepoLeaseService leaseService;
+  private final VersionDBObjectComparator comparatorVersion = new VersionDBObjectComparator();
+  private final AtomicLong trimmedOnUpload = new AtomicLong();
+  private final AtomicLong reconciledRepos = new AtomicLong();
 
   /* for CGLIB */
   protected RepoCleaner() {
     mongo = null;
-    entriesRepository = null;
     fileStorageService = null;
     repoService = null;
+    entriesHashCalculator = null;
+    packageCatalog = null;
+    leaseService = null;
   }
 
   @Autowired
-  public RepoCleaner(MongoTemplate mongo, YumEntriesRepository entriesRepository, FileStorageService fileStorageService,
-                     RepoService repoService) {
+  public RepoCleaner(MongoTemplate mongo, FileStorageService fileStorageService,
+                     RepoService repoService, YumEntriesHashCalculator entriesHashCalculator,
+                     PackageCatalog packageCatalog, RepoLeaseService leaseService) {
     this.mongo = mongo;
-    this.entriesRepository = entriesRepository;
     this.fileStorageService = fileStorageService;
     this.repoService = repoService;
+    this.entriesHashCalculator = entriesHashCalculator;
+    this.packageCatalog = packageCatalog;
+    this.leaseService = leaseService;
   }
 
     @ManagedOperation
@@ -73,22 +104,9 @@ public class RepoCleaner {
         if (maxValue > 0) {
             LOG.info("Cleaning up repository {} and keep {} rpms at maximum ...", reponame, maxValue);
 
-            AggregationOutput aggregation = aggregateAllRpmNamesInRepoThatHaveMoreThanMaxKeepEntries(reponame, maxValue);
-            boolean filesDeleted = false;
-
-            for (DBObject aggregatedArtifact : aggregation.results()) {
-                for (DBObject itemToDelete : oldestItemsToDeleteByVersion(maxValue, getItemsFromAggregate(aggregatedArtifact))) {
-                    ObjectId fileId = (ObjectId) itemToDelete.get(FILE_KEY);
-                    if (fileId != null) {
-                        entriesRepository.delete(fileId);
-
-                        final String path = reponame + "/" + itemToDelete.get(FILENAME_KEY);
-                        fileStorageService.markForDeletionByPath(path);
-                        filesDeleted = true;
-                        LOG.info("Mark file {} as deleted during cleanup.", path);
-                    }
-                }
-            }
+            boolean filesDeleted = deleteItems(reponame,
+              rpmNamesThatHaveMoreThanMaxKeepEntries(where(REPO_KEY).is(reponame), maxValue),
+              group -> oldestItemsToDeleteByVersion(maxValue, getItemsFromAggregate(group)));
 
             LOG.info("Clean up for repository {} finished.", reponame);
 
@@ -100,27 +118,70 @@ public class RepoCleaner {
         return false;
     }
 
-    @ManagedOperation
-    public boolean cleanByMaxDays(String reponame, int maxValue) {
-        if (maxValue > 0) {
-            LOG.info("Cleaning up repository {} and keep rpms newer than {} days ...", reponame, maxValue);
+    /**
+     * Applies the maxKeepRpms of the repository to the versions of a single package right after one was added,
+     * so that only this name and arch has to be looked up. The caller updates the repository entry.
+     */
+    public boolean cleanByMaxNum(String reponame, String name, String arch) {
+        int maxKeepRpms = repoService.ensureEntry(reponame, STATIC, SCHEDULED).getMaxKeepRpms();
+        if ((maxKeepRpms <= 0) || (packageCatalog.catalogOf(reponame).versionsOf(name, arch) <= maxKeepRpms)) {
+            return false;
+        }
 
-            AggregationOutput aggregation = aggregateAllRpmNamesInRepoByTime(reponame);
-            boolean filesDeleted = false;
+        boolean filesDeleted = deleteItems(reponame,
+          rpmNamesThatHaveMoreThanMaxKeepEntries(
+            where(REPO_KEY).is(reponame).and(NAME_PATH).is(name).and(ARCH_PATH).is(arch), maxKeepRpms),
+          group -> oldestItemsToDeleteByVersion(maxKeepRpms, getItemsFromAggregate(group)));
 
-            for (DBObject aggregatedArtifact : aggregation.results()) {
-                for (DBObject itemToDelete : oldestItemsToDeleteByDays(maxValue, getItemsFromAggregate(aggregatedArtifact))) {
-                    ObjectId fileId = (ObjectId) itemToDelete.get(FILE_KEY);
-                    if (fileId != null) {
-                        entriesRepository.delete(fileId);
+        if (filesDeleted) {
+            trimmedOnUpload.incrementAndGet();
+        }
+        return filesDeleted;
+    }
 
-                        final String path = reponame + "/" + itemToDelete.get(FILENAME_KEY);
-                        fileStorageService.markForDeletionByPath(path);
-                        filesDeleted = true;
-                        LOG.info("Mark file {} as deleted during cleanup.", path);
-                    }
+    /**
+     * Reconciles maxKeepRpms of all repositories. Retention is enforced whenever packages are added,
+     * so this only catches up on changed limits and packages added by other means. Every repository is
+     * reconciled under its lease, so the nodes neither clean nor generate it at the same time.
+     */
+    @Scheduled(cron = "${scheduler.retention.reconcile.cron:0 17 3 * * *}")
+    @ManagedOperation
+    public void reconcileMaxNum() {
+        for (RepoEntry repoEntry : mongo.find(query(where(MAX_KEEP_RPMS_KEY).gt(0)), RepoEntry.class)) {
+            String token = leaseService.tryAcquire(repoEntry.getName());
+            if (token == null) {
+                LOG.debug("Skipping reconciliation of repository {} because another node holds its lease.",
+                  repoEntry.getName());
+                continue;
+            }
+
+            try {
+                if (cleanByMaxNum(repoEntry.getName(), repoEntry.getMaxKeepRpms())) {
+                    reconciledRepos.incrementAndGet();
                 }
+            } finally {
+                leaseService.release(repoEntry.getName(), token);
             }
+        }
+    }
+
+    @ManagedAttribute(description = "number of uploads and propagations that removed older versions of the package")
+    public long getTrimmedOnUpload() {
+        return trimmedOnUpload.get();
+    }
+
+    @ManagedAttribute(description = "number of repositories the reconciliation had to clean up")
+    public long getReconciledRepos() {
+        return reconciledRepos.get();
+    }
+
+    @ManagedOperation
+    public boolean cleanByMaxDays(String reponame, int maxValue) {
+        if (maxValue > 0) {
+            LOG.info("Cleaning up repository {} and keep rpms newer than {} days ...", reponame, maxValue);
+
+            boolean filesDeleted = deleteItems(reponame, rpmsBuiltBefore(reponame, daysAgo(maxValue)),
+              Collections::singletonList);
 
             LOG.info("Clean up for repository {} finished.", reponame);
 
@@ -132,6 +193,20 @@ public class RepoCleaner {
         return false;
     }
 
+  /**
+   * Streams the results of the pipeline and deletes the items selected from them in batches.
+   */
+  private boolean deleteItems(String reponame, List<DBObject> pipeline,
+                              Function<DBObject, List<DBObject>> itemsToDelete) {
+    DeletionBatch batch = new DeletionBatch(reponame);
+    try(Cursor results = mongo.getCollection(YUM_ENTRY_COLLECTION).aggregate(pipeline, AGGREGATION_OPTIONS)) {
+      while (results.hasNext()) {
+        itemsToDelete.apply(results.next()).forEach(batch::add);
+      }
+    }
+    return batch.finish() > 0;
+  }
+
   @SuppressWarnings("unchecked")
   private List<DBObject> getItemsFromAggregate(final DBObject aggregatedArtifact) {
     return (List<DBObject>) aggregatedArtifact.get(ITEMS_KEY);
@@ -143,49 +218,113 @@ public class RepoCleaner {
    return (cleanByMaxNum(reponame, repoEntry.getMaxKeepRpms()) | cleanByMaxDays(reponame, repoEntry.getMaxDaysRpms()));
   }
 
-  private AggregationOutput aggregateAllRpmNamesInRepoByTime(String reponame) {
-    BasicDBObject repoMatch = match(where(REPO_KEY).is(reponame));
-    BasicDBObject groupArtifactNames = groupBy(field("name", "yumPackage.name"), field("arch", "yumPackage.arch")).push(
-      ITEMS_KEY,
-      field(TIME_KEY, "yumPackage.time"),
-      field(FILE_KEY, "_id"),
-      field(FILENAME_KEY, "yumPackage.location.href"))
-      .build();
+  /**
+   * Removes the rpms older than maxDaysRpms. maxKeepRpms is enforced when packages are added.
+   */
+  @ManagedOperation
+  public boolean cleanupExpired(String reponame) {
+    RepoEntry repoEntry = repoService.ensureEntry(reponame, STATIC, SCHEDULED);
+    return cleanByMaxDays(reponame, repoEntry.getMaxDaysRpms());
+  }
+
+  /**
+   * Selects the old rpms in mongo, using the index on repo and build time, so only those are transferred.
+   */
+  private List<DBObject> rpmsBuiltBefore(String reponame, long buildTimeInSec) {
+    return asList(
+      match(where(REPO_KEY).is(reponame).and(BUILD_TIME_PATH).lt(buildTimeInSec)),
+      project(
+        field(FILE_KEY, "_id"),
+        field(FILENAME_KEY, "yumPackage.location.href"),
+        field(CHECKSUM_KEY, "yumPackage.checksum.checksum")));
+  }
 
-      return mongo.getCollection("yum.entries").aggregate(asList(repoMatch, groupArtifactNames));
+  private static long daysAgo(int days) {
+    return new DateTime().minusDays(days).getMillis() / 1000L;
   }
 
-  private AggregationOutput aggregateAllRpmNamesInRepoThatHaveMoreThanMaxKeepEntries(String reponame, int maxKeepRpm) {
+  private List<DBObject> rpmNamesThatHaveMoreThanMaxKeepEntries(Criteria entries, int maxKeepRpm) {
     List<DBObject> pipeline = new ArrayList<>();
-    pipeline.add(match(where(REPO_KEY).is(reponame)));
-    pipeline.add(groupBy(field("name", "yumPackage.name"), field("arch", "yumPackage.arch")).push(
+    pipeline.add(match(entries));
+    // served by the repo_name_arch_version index, so the items are pushed oldest version first
+    pipeline.add(new BasicDBObject("$sort",
+      new BasicDBObject(NAME_PATH, 1).append(ARCH_PATH, 1).append(VERSION_SORT_KEY, 1)));
+    pipeline.add(groupBy(field("name", NAME_PATH), field("arch", ARCH_PATH)).push(
       ITEMS_KEY,
       field(VERSION_KEY, "yumPackage.version"),
+      field(SORT_KEY, VERSION_SORT_KEY),
       field(FILE_KEY, "_id"),
-      field(FILENAME_KEY, "yumPackage.location.href"))
+      field(FILENAME_KEY, "yumPackage.location.href"),
+      field(CHECKSUM_KEY, "yumPackage.checksum.checksum"))
       .count()
       .build());
     pipeline.add(match(where("count").gt(maxKeepRpm)));
-
-    return mongo.getCollection("yum.entries").aggregate(pipeline);
+    return pipeline;
   }
 
+  /**
+   * The items come sorted by version, unless some entries are still waiting for their sort key.
+   */
   private List<DBObject> oldestItemsToDeleteByVersion(int maxKeepRpm, List<DBObject> items) {
-    sort(items, (DBObject obj1, DBObject obj2) -> comparatorVersion.compare(obj1.get(VERSION_KEY), obj2.get(VERSION_KEY)));
+    if (items.stream().anyMatch(item -> item.get(SORT_KEY) == null)) {
+      sort(items, (DBObject obj1, DBObject obj2) -> comparatorVersion.compare(obj1.get(VERSION_KEY), obj2.get(VERSION_KEY)));
+    }
     return items.subList(0, items.size() - maxKeepRpm);
   }
 
-  private List<DBObject> oldestItemsToDeleteByDays(int maxDaysRpm, List<DBObject> items) {
-    DateTime startDate = new DateTime().minusDays(maxDaysRpm).withZoneRetainFields(DateTimeZone.UTC);
-    List<DBObject> newList = new LinkedList<>();
-    for (DBObject item : items) {
-      BasicDBObject aux = (BasicDBObject) item.get(TIME_KEY);
-      Long itemTime = aux.getLong(TIME_BUILD_KEY);
-      DateTime itemDateTime = new DateTime(itemTime * 1000L).withZoneRetainFields(DateTimeZone.UTC);
-      if (itemDateTime.isBefore(startDate)) {
-        newList.add(item);
+  /**
+   * Collects the entries to delete and removes them together with one $in query. The rpm files share
+   * the ids of their entries and are marked for deletion the same way.
+   */
+  private class DeletionBatch {
+    private final String reponame;
+    private final List<ObjectId> ids = new ArrayList<>(DELETION_BATCH_SIZE);
+    private final List<String> checksums = new ArrayList<>(DELETION_BATCH_SIZE);
+    private int deleted;
+
+    DeletionBatch(String reponame) {
+      this.reponame = reponame;
+    }
+
+    void add(DBObject item) {
+      ObjectId fileId = (ObjectId) item.get(FILE_KEY);
+      if (fileId != null) {
+        LOG.debug("Mark file {}/{} as deleted during cleanup.", reponame, item.get(FILENAME_KEY));
+        ids.add(fileId);
+        checksums.add((String) item.get(CHECKSUM_KEY));
+        if (ids.size() >= DELETION_BATCH_SIZE) {
+          flush();
+        }
+      }
+    }
+
+    int finish() {
+      flush();
+      return deleted;
+    }
+
+    private void flush() {
+      if (ids.isEmpty()) {
+        return;
       }
+
+      int removed = mongo.remove(query(where(ID_KEY).in(ids)), YumEntry.class).getN();
+      if (removed == ids.size()) {
+        entriesHashCalculator.entriesRemoved(reponame, checksums);
+        packageCatalog.entriesRemoved(reponame, ids, checksums);
+      } else {
+        // another node removed some of the entries meanwhile, we can't tell which ones
+        LOG.warn("Removed only {} of {} entries of {} during cleanup, recalculating its hash.", removed, ids.size(),
+          reponame);
+        entriesHashCalculator.recalculate(reponame);
+        packageCatalog.invalidate(reponame);
+      }
+      fileStorageService.markForDeletionByIds(ids);
+      LOG.info("Marked {} files of {} as deleted during cleanup.", ids.size(), reponame);
+
+      deleted += removed;
+      ids.clear();
+      checksums.clear();
     }
-    return newList;
   }
 }
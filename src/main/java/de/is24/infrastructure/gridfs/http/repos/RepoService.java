@@ -5,6 +5,7 @@ import de.is24.infrastructure.gridfs.http.domain.RepoType;
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
 import de.is24.infrastructure.gridfs.http.exception.RepositoryNotFoundException;
 import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepository;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.DirtyRepoQueue;
 import org.apache.commons.lang.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,16 +32,19 @@ public class RepoService {
   public static final String STATIC_PREFIX = "static/";
   public static final String VIRTUAL_PREFIX = "virtual/";
   private final RepoEntriesRepository entriesRepository;
+  private final DirtyRepoQueue dirtyRepoQueue;
 
   @Autowired
-  public RepoService(RepoEntriesRepository entriesRepository) {
+  public RepoService(RepoEntriesRepository entriesRepository, DirtyRepoQueue dirtyRepoQueue) {
     this.entriesRepository = entriesRepository;
+    this.dirtyRepoQueue = dirtyRepoQueue;
   }
 
   public void createOrUpdate(String reponame) {
     RepoEntry repoEntry = ensureEntry(reponame, STATIC, SCHEDULED);
     repoEntry.setLastModified(new Date());
     entriesRepository.save(repoEntry);
+    dirtyRepoQueue.markDirty(reponame);
   }
 
   public void delete(String reponame) {
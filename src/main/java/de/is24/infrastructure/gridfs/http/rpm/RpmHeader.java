@@ -0,0 +1,291 @@
+package de.is24.infrastructure.gridfs.http.rpm;
+
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+
+/**
+ * The header of an rpm file, read from the lead, the signature and the header index without decoding any tag.
+ * The values of a tag are decoded from the data store when they are asked for, so reading a package only pays for
+ * the tags that go into its metadata.
+ */
+public final class RpmHeader {
+  private static final int LEAD_SIZE = 96;
+  private static final int LEAD_MAGIC = 0xedabeedb;
+  private static final int HEADER_MAGIC = 0x8eade801;
+  private static final int INTRO_SIZE = 16;
+  private static final int INDEX_ENTRY_SIZE = 16;
+  private static final int MAX_INDEX_ENTRIES = 0xffff;
+  private static final int MAX_DATA_SIZE = 0x0fffffff;
+
+  private static final int INT16_TYPE = 3;
+  private static final int INT32_TYPE = 4;
+  private static final int STRING_TYPE = 6;
+  private static final int STRING_ARRAY_TYPE = 8;
+  private static final int I18NSTRING_TYPE = 9;
+
+  private final byte[] data;
+  private final ByteBuffer index;
+  private final ByteBuffer store;
+  private final long[] tagsAndEntries;
+  private final int storeStart;
+  private final int startPos;
+  private final int endPos;
+
+  private RpmHeader(byte[] data, int entryCount, int startPos) {
+    this.data = data;
+    this.startPos = startPos;
+    this.endPos = startPos + data.length;
+    this.storeStart = INTRO_SIZE + (entryCount * INDEX_ENTRY_SIZE);
+    this.store = ByteBuffer.wrap(data, storeStart, data.length - storeStart).slice();
+
+    this.index = ByteBuffer.wrap(data);
+    tagsAndEntries = new long[entryCount];
+    for (int i = 0; i < entryCount; i++) {
+      tagsAndEntries[i] = ((long) index.getInt(INTRO_SIZE + (i * INDEX_ENTRY_SIZE)) << 32) | i;
+    }
+    Arrays.sort(tagsAndEntries);
+  }
+
+  /**
+   * Reads lead, signature and header of an rpm and leaves the stream at the start of the payload.
+   */
+  public static RpmHeader read(InputStream inputStream) throws InvalidRpmHeaderException {
+    DataInputStream in = new DataInputStream(inputStream);
+    try {
+      byte[] lead = new byte[LEAD_SIZE];
+      in.readFully(lead);
+      if (ByteBuffer.wrap(lead).getInt() != LEAD_MAGIC) {
+        throw new InvalidRpmHeaderException("Not an rpm file, lead magic is missing.");
+      }
+
+      byte[] signature = readHeaderStructure(in);
+      int signaturePadding = (8 - (signature.length % 8)) % 8;
+      in.readFully(new byte[signaturePadding]);
+
+      byte[] header = readHeaderStructure(in);
+      return new RpmHeader(header, ByteBuffer.wrap(header).getInt(8),
+        LEAD_SIZE + signature.length + signaturePadding);
+    } catch (EOFException e) {
+      throw new InvalidRpmHeaderException("Rpm file ends within its header.", e);
+    } catch (IOException e) {
+      throw new InvalidRpmHeaderException("Could not read rpm header.", e);
+    }
+  }
+
+  /**
+   * Rebuilds a header from its raw bytes, as returned by {@link #getBytes()}.
+   *
+   * @param startPos position of the header in the rpm file
+   */
+  public static RpmHeader of(byte[] header, int startPos) throws InvalidRpmHeaderException {
+    if (header.length < INTRO_SIZE) {
+      throw new InvalidRpmHeaderException("Rpm header has only " + header.length + " bytes.");
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(header);
+    int entryCount = buffer.getInt(8);
+    checkIntro(buffer.getInt(0), entryCount, buffer.getInt(12));
+    if (structureLength(buffer, 0) != header.length) {
+      throw new InvalidRpmHeaderException("Rpm header has " + header.length + " bytes instead of " +
+        structureLength(buffer, 0) + ".");
+    }
+    return new RpmHeader(header.clone(), entryCount, startPos);
+  }
+
+  /**
+   * @param prefix the first bytes of an rpm file
+   * @return number of bytes from the start of the file to the end of the header, as far as the prefix tells:
+   * if it ends before the sizes of signature or header, the length needed to read them
+   */
+  public static long requiredLength(byte[] prefix) {
+    ByteBuffer buffer = ByteBuffer.wrap(prefix);
+    long signatureStart = LEAD_SIZE;
+    if (prefix.length < (signatureStart + INTRO_SIZE)) {
+      return signatureStart + INTRO_SIZE;
+    }
+
+    long signatureLength = structureLength(buffer, (int) signatureStart);
+    long headerStart = signatureStart + signatureLength + ((8 - (signatureLength % 8)) % 8);
+    if (prefix.length < (headerStart + INTRO_SIZE)) {
+      return headerStart + INTRO_SIZE;
+    }
+    return headerStart + structureLength(buffer, (int) headerStart);
+  }
+
+  private static long structureLength(ByteBuffer buffer, int start) {
+    long entryCount = buffer.getInt(start + 8) & 0xffffffffL;
+    long dataSize = buffer.getInt(start + 12) & 0xffffffffL;
+    return INTRO_SIZE + (entryCount * INDEX_ENTRY_SIZE) + dataSize;
+  }
+
+  private static byte[] readHeaderStructure(DataInputStream in) throws IOException, InvalidRpmHeaderException {
+    byte[] intro = new byte[INTRO_SIZE];
+    in.readFully(intro);
+
+    ByteBuffer introBuffer = ByteBuffer.wrap(intro);
+    int entryCount = introBuffer.getInt(8);
+    int dataSize = introBuffer.getInt(12);
+    checkIntro(introBuffer.getInt(0), entryCount, dataSize);
+
+    byte[] structure = new byte[INTRO_SIZE + (entryCount * INDEX_ENTRY_SIZE) + dataSize];
+    System.arraycopy(intro, 0, structure, 0, INTRO_SIZE);
+    in.readFully(structure, INTRO_SIZE, structure.length - INTRO_SIZE);
+    return structure;
+  }
+
+  private static void checkIntro(int magic, int entryCount, int dataSize) throws InvalidRpmHeaderException {
+    if (magic != HEADER_MAGIC) {
+      throw new InvalidRpmHeaderException("Rpm header magic is missing.");
+    }
+    if ((entryCount < 0) || (entryCount > MAX_INDEX_ENTRIES) || (dataSize < 0) || (dataSize > MAX_DATA_SIZE)) {
+      throw new InvalidRpmHeaderException("Rpm header has " + entryCount + " entries and " + dataSize +
+        " bytes of data.");
+    }
+  }
+
+  /**
+   * @return the raw header structure from its intro to the end of its data store, without lead and signature
+   */
+  public byte[] getBytes() {
+    return data.clone();
+  }
+
+  public int getStartPos() {
+    return startPos;
+  }
+
+  public int getEndPos() {
+    return endPos;
+  }
+
+  public boolean contains(int tag) {
+    return entryOf(tag) >= 0;
+  }
+
+  /**
+   * @return the values of a string, string array or i18n string tag, null if the header does not contain it
+   */
+  public String[] readStrings(int tag) throws InvalidRpmHeaderException {
+    int entry = entryOf(tag);
+    if (entry < 0) {
+      return null;
+    }
+
+    int type = typeOf(entry);
+    if ((type != STRING_TYPE) && (type != STRING_ARRAY_TYPE) && (type != I18NSTRING_TYPE)) {
+      throw unexpectedType(tag, type);
+    }
+
+    int count = countOf(entry);
+    int position = checkedOffset(tag, entry, count, 1);
+    String[] values = new String[count];
+    for (int i = 0; i < count; i++) {
+      int end = position;
+      while ((end < store.limit()) && (store.get(end) != 0)) {
+        end++;
+      }
+      if (end == store.limit()) {
+        throw new InvalidRpmHeaderException("Unterminated string in rpm header tag " + tag);
+      }
+      values[i] = new String(data, storeStart + position, end - position, UTF_8);
+      position = end + 1;
+    }
+    return values;
+  }
+
+  /**
+   * @return the values of an int32 tag, null if the header does not contain it
+   */
+  public int[] readIntegers(int tag) throws InvalidRpmHeaderException {
+    int entry = entryOf(tag);
+    if (entry < 0) {
+      return null;
+    }
+    if (typeOf(entry) != INT32_TYPE) {
+      throw unexpectedType(tag, typeOf(entry));
+    }
+
+    int count = countOf(entry);
+    int offset = checkedOffset(tag, entry, count, 4);
+    int[] values = new int[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = store.getInt(offset + (i * 4));
+    }
+    return values;
+  }
+
+  /**
+   * @return the values of an int16 tag, null if the header does not contain it
+   */
+  public short[] readShorts(int tag) throws InvalidRpmHeaderException {
+    int entry = entryOf(tag);
+    if (entry < 0) {
+      return null;
+    }
+    if (typeOf(entry) != INT16_TYPE) {
+      throw unexpectedType(tag, typeOf(entry));
+    }
+
+    int count = countOf(entry);
+    int offset = checkedOffset(tag, entry, count, 2);
+    short[] values = new short[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = store.getShort(offset + (i * 2));
+    }
+    return values;
+  }
+
+  private int entryOf(int tag) {
+    int low = 0;
+    int high = tagsAndEntries.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midTag = (int) (tagsAndEntries[mid] >> 32);
+      if (midTag < tag) {
+        low = mid + 1;
+      } else if (midTag > tag) {
+        high = mid - 1;
+      } else {
+        return (int) tagsAndEntries[mid];
+      }
+    }
+    return -1;
+  }
+
+  private int typeOf(int entry) {
+    return indexInt(entry, 4);
+  }
+
+  private int offsetOf(int entry) {
+    return indexInt(entry, 8);
+  }
+
+  private int countOf(int entry) {
+    return indexInt(entry, 12);
+  }
+
+  private int indexInt(int entry, int field) {
+    return index.getInt(INTRO_SIZE + (entry * INDEX_ENTRY_SIZE) + field);
+  }
+
+  private int checkedOffset(int tag, int entry, int count, int size) throws InvalidRpmHeaderException {
+    int offset = offsetOf(entry);
+    if ((offset < 0) || (count < 0) || (((long) offset + ((long) count * size)) > store.limit())) {
+      throw new InvalidRpmHeaderException("Rpm header tag " + tag + " exceeds the header data.");
+    }
+    return offset;
+  }
+
+  private static InvalidRpmHeaderException unexpectedType(int tag, int type) {
+    return new InvalidRpmHeaderException("Unexpected type " + type + " of rpm header tag " + tag);
+  }
+}
@@ -32,7 +32,7 @@ public class RpmHeaderToYumPackageConverter {
     yumPackage.setLocation(createYumPackageLocation(yumPackage));
     yumPackage.setPackageFormat(readPackageFormat());
     yumPackage.setChangeLogs(rpmToYumChangeLogConverter.convert());
-    yumPackage.setPackageDirs(new RpmToYumFilesConverter(rpmHeaderWrapper).readFiles());
+    yumPackage.setPackageFiles(new RpmToYumFilesConverter(rpmHeaderWrapper).readFiles());
     return yumPackage;
   }
 
@@ -1,14 +1,13 @@
 package de.is24.infrastructure.gridfs.http.rpm;
 
 import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
-import org.redline_rpm.header.AbstractHeader;
 import org.redline_rpm.header.Header;
 
 public class RpmHeaderWrapper {
 
-  private final Header header;
+  private final RpmHeader header;
 
-  public RpmHeaderWrapper(Header header) {
+  public RpmHeaderWrapper(RpmHeader header) {
     this.header = header;
   }
 
@@ -23,31 +22,29 @@ public class RpmHeaderWrapper {
   }
 
   public int[] readIntegers(Header.HeaderTag tag, boolean forceNotNull) throws InvalidRpmHeaderException {
-    final AbstractHeader.Entry<?> entry = readEntry(tag, forceNotNull);
-    return null != entry ? (int[]) entry.getValues() : new int[0];
+    final int[] values = checkPresence(tag, header.readIntegers(tag.getCode()), forceNotNull);
+    return null != values ? values : new int[0];
   }
 
   public String[] readStrings(Header.HeaderTag tag, boolean forceNotNull) throws InvalidRpmHeaderException {
-    final AbstractHeader.Entry<?> entry = readEntry(tag, forceNotNull);
-    return null != entry ? (String[]) entry.getValues() : new String[0];
+    final String[] values = checkPresence(tag, header.readStrings(tag.getCode()), forceNotNull);
+    return null != values ? values : new String[0];
   }
 
   public short[] readShorts(Header.HeaderTag tag, boolean forceNotNull) throws InvalidRpmHeaderException {
-    final AbstractHeader.Entry<?> entry = readEntry(tag, forceNotNull);
-    return null != entry ? (short[]) entry.getValues() : new short[0];
+    final short[] values = checkPresence(tag, header.readShorts(tag.getCode()), forceNotNull);
+    return null != values ? values : new short[0];
   }
 
-  private AbstractHeader.Entry<?> readEntry(final Header.HeaderTag tag, final boolean forceNotNull) throws InvalidRpmHeaderException {
-    final AbstractHeader.Entry<?> entry = header.getEntry(tag);
-
-    if (entry == null && forceNotNull) {
+  private <T> T checkPresence(final Header.HeaderTag tag, final T values, final boolean forceNotNull) throws InvalidRpmHeaderException {
+    if (values == null && forceNotNull) {
       throw new InvalidRpmHeaderException("Header entry not found " + tag);
     }
 
-    return entry;
+    return values;
   }
 
-  public Header getHeader() {
+  public RpmHeader getHeader() {
     return header;
   }
 }
@@ -0,0 +1,187 @@
+package de.is24.infrastructure.gridfs.http.rpm.version;
+
+import java.util.Comparator;
+
+
+/**
+ * Compares version or release strings like rpmvercmp by walking both strings char by char, without splitting
+ * them into segments first.
+ * <p>
+ * Alphanumeric runs are compared pairwise: numeric runs by value and greater than alphabetic runs, alphabetic runs
+ * as strings. Any other char separates runs; a run after two separators in a row is preceded by an empty segment
+ * which is less than every run, as the former segment based comparison did. '~' sorts before anything,
+ * even the end of the version, so 1.0~rc1 &lt; 1.0, and '^' sorts after the end of the version but before anything
+ * else, so 1.0 &lt; 1.0^git1 &lt; 1.0.1.
+ */
+public class RpmVersionComparator implements Comparator<String> {
+  private static final int END = 0;
+  private static final int EMPTY = 1;
+  private static final int ALPHA = 2;
+  private static final int NUMERIC = 3;
+  private static final int TILDE = 4;
+  private static final int CARET = 5;
+
+  @Override
+  public int compare(String version1, String version2) {
+    return compareVersions(version1, version2);
+  }
+
+  public static int compareVersions(String version1, String version2) {
+    String s1 = (version1 == null) ? "" : version1;
+    String s2 = (version2 == null) ? "" : version2;
+    int end1 = significantEnd(s1);
+    int end2 = significantEnd(s2);
+    int pos1 = 0;
+    int pos2 = 0;
+
+    while (true) {
+      int kind1 = kindAt(s1, pos1, end1);
+      int kind2 = kindAt(s2, pos2, end2);
+
+      if ((kind1 == TILDE) || (kind2 == TILDE)) {
+        if (kind1 != TILDE) {
+          return 1;
+        }
+        if (kind2 != TILDE) {
+          return -1;
+        }
+        pos1++;
+        pos2++;
+        continue;
+      }
+
+      if ((kind1 == CARET) || (kind2 == CARET)) {
+        if (kind1 == END) {
+          return -1;
+        }
+        if (kind2 == END) {
+          return 1;
+        }
+        if (kind1 != CARET) {
+          return 1;
+        }
+        if (kind2 != CARET) {
+          return -1;
+        }
+        pos1++;
+        pos2++;
+        continue;
+      }
+
+      if ((kind1 == END) || (kind2 == END)) {
+        // version with more segments is greater if otherwise equal
+        return Integer.compare(kind1, kind2);
+      }
+
+      if ((kind1 == EMPTY) || (kind2 == EMPTY)) {
+        if (kind1 != kind2) {
+          return (kind1 == EMPTY) ? -1 : 1;
+        }
+        pos1++;
+        pos2++;
+        continue;
+      }
+
+      // numeric is always greater than alphabetic
+      if (kind1 != kind2) {
+        return (kind1 == NUMERIC) ? 1 : -1;
+      }
+
+      int runEnd1 = runEnd(s1, pos1, end1, kind1);
+      int runEnd2 = runEnd(s2, pos2, end2, kind2);
+      int result = (kind1 == NUMERIC) ? compareNumeric(s1, pos1, runEnd1, s2, pos2, runEnd2)
+                                      : compareAlpha(s1, pos1, runEnd1, s2, pos2, runEnd2);
+      if (result != 0) {
+        return result;
+      }
+
+      pos1 = skipSeparator(s1, runEnd1, end1);
+      pos2 = skipSeparator(s2, runEnd2, end2);
+    }
+  }
+
+  /**
+   * @return index behind the last char that takes part in the comparison, trailing separators do not
+   */
+  private static int significantEnd(String s) {
+    int end = s.length();
+    while ((end > 0) && isSeparator(s.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  private static int kindAt(String s, int pos, int end) {
+    if (pos >= end) {
+      return END;
+    }
+
+    char c = s.charAt(pos);
+    if (isDigit(c)) {
+      return NUMERIC;
+    }
+    if (isLetter(c)) {
+      return ALPHA;
+    }
+    if (c == '~') {
+      return TILDE;
+    }
+    if (c == '^') {
+      return CARET;
+    }
+    return EMPTY;
+  }
+
+  private static int runEnd(String s, int pos, int end, int kind) {
+    int i = pos + 1;
+    while ((i < end) && (kindAt(s, i, end) == kind)) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * A run is terminated by the following separator, so only further separators start empty segments.
+   */
+  private static int skipSeparator(String s, int runEnd, int end) {
+    return ((runEnd < end) && isSeparator(s.charAt(runEnd))) ? (runEnd + 1) : runEnd;
+  }
+
+  private static int compareNumeric(String s1, int start1, int end1, String s2, int start2, int end2) {
+    while ((start1 < end1) && (s1.charAt(start1) == '0')) {
+      start1++;
+    }
+    while ((start2 < end2) && (s2.charAt(start2) == '0')) {
+      start2++;
+    }
+
+    int result = Integer.compare(end1 - start1, end2 - start2);
+    return (result != 0) ? result : compareAlpha(s1, start1, end1, s2, start2, end2);
+  }
+
+  private static int compareAlpha(String s1, int start1, int end1, String s2, int start2, int end2) {
+    int length1 = end1 - start1;
+    int length2 = end2 - start2;
+    int length = Math.min(length1, length2);
+    for (int i = 0; i < length; i++) {
+      char c1 = s1.charAt(start1 + i);
+      char c2 = s2.charAt(start2 + i);
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+    return length1 - length2;
+  }
+
+  private static boolean isSeparator(char c) {
+    return !isDigit(c) && !isLetter(c) && (c != '~') && (c != '^');
+  }
+
+  private static boolean isDigit(char c) {
+    return (c >= '0') && (c <= '9');
+  }
+
+  private static boolean isLetter(char c) {
+    return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+  }
+}
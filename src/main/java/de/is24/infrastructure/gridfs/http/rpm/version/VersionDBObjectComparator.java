@@ -0,0 +1,42 @@
+package de.is24.infrastructure.gridfs.http.rpm.version;
+
+import com.mongodb.DBObject;
+import java.util.Comparator;
+
+import static de.is24.infrastructure.gridfs.http.rpm.version.RpmVersionComparator.compareVersions;
+
+
+public class VersionDBObjectComparator implements Comparator<Object> {
+  private static final String EPOCH_KEY = "epoch";
+  private static final String VER_KEY = "ver";
+  private static final String REL_KEY = "rel";
+
+  @Override
+  public int compare(Object o1, Object o2) {
+    if (o1 == null) {
+      return (o2 == null) ? 0 : -1;
+    }
+    if (o2 == null) {
+      return 1;
+    }
+    if ((o1 instanceof DBObject) && (o2 instanceof DBObject)) {
+      return compareBothInstances((DBObject) o1, (DBObject) o2);
+    } else {
+      throw new IllegalArgumentException("Could compare DBObjects only");
+    }
+  }
+
+  private int compareBothInstances(final DBObject dbo1, final DBObject dbo2) {
+    int res = Integer.compare((int) dbo1.get(EPOCH_KEY), (int) dbo2.get(EPOCH_KEY));
+    if (res != 0) {
+      return res;
+    }
+
+    res = compareVersions((String) dbo1.get(VER_KEY), (String) dbo2.get(VER_KEY));
+    if (res != 0) {
+      return res;
+    }
+
+    return compareVersions((String) dbo1.get(REL_KEY), (String) dbo2.get(REL_KEY));
+  }
+}
@@ -0,0 +1,112 @@
+package de.is24.infrastructure.gridfs.http.rpm.version;
+
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageVersion;
+
+
+/**
+ * Encodes epoch, version and release into a string whose binary order is the order of
+ * {@link YumPackageVersionComparator}, so that mongo can sort versions by an index.
+ * <p>
+ * The epoch is written as fixed width hex with flipped sign bit. Version and release are written as the tokens
+ * {@link RpmVersionComparator} walks through, each starting with a char that orders the token types like the
+ * comparator does: '~' &lt; end of version &lt; '^' &lt; empty segment &lt; alphabetic &lt; numeric. Alphabetic
+ * runs are terminated by a char below all letters, numeric runs are written without leading zeros and prefixed
+ * by their length, so that longer numbers sort after shorter ones. Equal versions have equal keys.
+ */
+public final class VersionSortKey {
+  private static final char TILDE = '1';
+  private static final char END = '2';
+  private static final char CARET = '3';
+  private static final char EMPTY = '4';
+  private static final char ALPHA = '5';
+  private static final char NUMERIC = '6';
+  private static final char ALPHA_TERMINATOR = '!';
+
+  private VersionSortKey() {
+  }
+
+  public static String sortKey(YumPackageVersion version) {
+    return sortKey(version.getEpoch(), version.getVer(), version.getRel());
+  }
+
+  /**
+   * @param version a stored {@link YumPackageVersion}
+   */
+  public static String sortKey(DBObject version) {
+    Object epoch = version.get("epoch");
+    return sortKey((epoch instanceof Number) ? ((Number) epoch).intValue() : 0, (String) version.get("ver"),
+      (String) version.get("rel"));
+  }
+
+  public static String sortKey(int epoch, String ver, String rel) {
+    StringBuilder key = new StringBuilder(32);
+    String epochHex = Integer.toHexString(epoch ^ Integer.MIN_VALUE);
+    for (int i = epochHex.length(); i < 8; i++) {
+      key.append('0');
+    }
+    key.append(epochHex);
+    appendVersion(key, ver);
+    appendVersion(key, rel);
+    return key.toString();
+  }
+
+  private static void appendVersion(StringBuilder key, String version) {
+    String s = (version == null) ? "" : version;
+    int end = s.length();
+    while ((end > 0) && isSeparator(s.charAt(end - 1))) {
+      end--;
+    }
+
+    int pos = 0;
+    while (pos < end) {
+      char c = s.charAt(pos);
+      if (c == '~') {
+        key.append(TILDE);
+        pos++;
+      } else if (c == '^') {
+        key.append(CARET);
+        pos++;
+      } else if (isSeparator(c)) {
+        key.append(EMPTY);
+        pos++;
+      } else {
+        boolean numeric = isDigit(c);
+        int runEnd = pos + 1;
+        while ((runEnd < end) && (numeric ? isDigit(s.charAt(runEnd)) : isLetter(s.charAt(runEnd)))) {
+          runEnd++;
+        }
+        if (numeric) {
+          appendNumeric(key, s, pos, runEnd);
+        } else {
+          key.append(ALPHA).append(s, pos, runEnd).append(ALPHA_TERMINATOR);
+        }
+
+        // the separator terminating a run does not start an empty segment
+        pos = ((runEnd < end) && isSeparator(s.charAt(runEnd))) ? (runEnd + 1) : runEnd;
+      }
+    }
+    key.append(END);
+  }
+
+  private static void appendNumeric(StringBuilder key, String s, int start, int end) {
+    while ((start < end) && (s.charAt(start) == '0')) {
+      start++;
+    }
+
+    String length = Integer.toString(end - start);
+    key.append(NUMERIC).append((char) ('0' + length.length())).append(length).append(s, start, end);
+  }
+
+  private static boolean isSeparator(char c) {
+    return !isDigit(c) && !isLetter(c) && (c != '~') && (c != '^');
+  }
+
+  private static boolean isDigit(char c) {
+    return (c >= '0') && (c <= '9');
+  }
+
+  private static boolean isLetter(char c) {
+    return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+  }
+}
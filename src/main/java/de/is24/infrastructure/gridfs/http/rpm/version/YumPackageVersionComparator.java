@@ -2,13 +2,11 @@ package de.is24.infrastructure.gridfs.http.rpm.version;
 
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageVersion;
 import java.util.Comparator;
-import java.util.List;
 
+import static de.is24.infrastructure.gridfs.http.rpm.version.RpmVersionComparator.compareVersions;
 
-public class YumPackageVersionComparator implements Comparator<YumPackageVersion> {
-  private RpmVersionSegmentComparator segmentComparator = new RpmVersionSegmentComparator();
-  private RpmVersionSegmentGenerator segmentGenerator = new RpmVersionSegmentGenerator();
 
+public class YumPackageVersionComparator implements Comparator<YumPackageVersion> {
   @Override
   public int compare(YumPackageVersion o1, YumPackageVersion o2) {
     if (o1 == null) {
@@ -23,15 +21,11 @@ public class YumPackageVersionComparator implements Comparator<YumPackageVersion
       return res;
     }
 
-    res = segmentComparator.compare(segments(o1.getVer()), segments(o2.getVer()));
+    res = compareVersions(o1.getVer(), o2.getVer());
     if (res != 0) {
       return res;
     }
 
-    return segmentComparator.compare(segments(o1.getRel()), segments(o2.getRel()));
-  }
-
-  private List<String> segments(String version) {
-    return segmentGenerator.generate(version);
+    return compareVersions(o1.getRel(), o2.getRel());
   }
 }
@@ -0,0 +1,10 @@
+package de.is24.infrastructure.gridfs.http.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+@FunctionalInterface
+public interface ContentWriter {
+  void writeTo(OutputStream outputStream) throws IOException;
+}
@@ -7,6 +7,7 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -28,6 +29,12 @@ public interface FileStorageService {
 
   void moveTo(FileStorageItem storageItem, String destinationRepo);
 
+  /**
+   * Copies a stored file as it is stored, without reading and hashing its content again. A file already stored
+   * at the destination is replaced.
+   */
+  FileStorageItem copyTo(FileStorageItem storageItem, FileDescriptor destination);
+
   List<FileStorageItem> getAllRpms(String repo);
 
   FileStorageItem storeFile(InputStream inputStream, FileDescriptor descriptor);
@@ -37,7 +44,19 @@ public interface FileStorageService {
   UploadResult storeSqliteFileCompressedWithChecksumName(String reponame, File metadataFile, String name)
                                                   throws IOException;
 
-  List<FileStorageItem> getAllRpms();
+  UploadResult storeXmlFileGzippedWithChecksumName(String reponame, String name, ContentWriter contentWriter)
+                                            throws IOException;
+
+  /**
+   * @return the next rpms in id order, starting after lastId or from the beginning if it is null
+   */
+  List<FileStorageItem> getRpmsAfter(Object lastId, int limit);
+
+  /**
+   * Reads the first bytes of a file, fetching only the chunks that cover them.
+   * @return length bytes, or less if the file is shorter
+   */
+  byte[] readPrefix(FileStorageItem storageItem, long length);
 
   void removeFilesMarkedAsDeletedBefore(final Date before);
 
@@ -45,6 +64,10 @@ public interface FileStorageService {
 
   void markForDeletionByFilenameRegex(final String regex);
 
+  void markForDeletionByIds(Collection<?> ids);
+
+  void markRepodataForDeletionExcept(String reponame, Collection<String> filenamesToKeep);
+
   void deleteRepo(String reponame);
 
   List<FileStorageItem> findByPrefix(String prefix);
@@ -2,6 +2,10 @@ package de.is24.infrastructure.gridfs.http.web.controller;
 
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageReducedView;
 import de.is24.infrastructure.gridfs.http.maintenance.MaintenanceService;
+import de.is24.infrastructure.gridfs.http.metadata.GenerationReport;
+import de.is24.infrastructure.gridfs.http.metadata.GenerationReports;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RunningGeneration;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
@@ -9,6 +13,7 @@ import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
@@ -36,6 +41,8 @@ public class MaintenanceController {
   private final MaintenanceService maintenanceService;
   private final RepoService repoService;
   private final FileStorageService fileStorageService;
+  private final MetadataGenerationExecutor generationExecutor;
+  private final GenerationReports generationReports;
 
 
   /* for AOP autoproxying */
@@ -43,14 +50,21 @@ public class MaintenanceController {
     maintenanceService = null;
     repoService = null;
     fileStorageService = null;
+    generationExecutor = null;
+    generationReports = null;
   }
 
 
   @Autowired
-  public MaintenanceController(MaintenanceService maintenanceService, RepoService repoService, FileStorageService fileStorageService) {
+  public MaintenanceController(MaintenanceService maintenanceService, RepoService repoService,
+                               FileStorageService fileStorageService,
+                               MetadataGenerationExecutor generationExecutor,
+                               GenerationReports generationReports) {
     this.maintenanceService = maintenanceService;
     this.repoService = repoService;
     this.fileStorageService = fileStorageService;
+    this.generationExecutor = generationExecutor;
+    this.generationReports = generationReports;
   }
 
 
@@ -197,6 +211,43 @@ public class MaintenanceController {
   }
 
 
+  @RequestMapping(
+      value = "/generations", method = GET, produces = APPLICATION_JSON_VALUE, headers = "Accept=application/json"
+  )
+  @ResponseBody
+  @TimeMeasurement
+  public List<RunningGeneration> getRunningGenerations() {
+    return generationExecutor.runningGenerations();
+  }
+
+  @RequestMapping(value = "/generations/{reponame}", method = DELETE)
+  @ResponseStatus(NO_CONTENT)
+  @TimeMeasurement
+  public void cancelGeneration(@PathVariable("reponame") String reponame) {
+    generationExecutor.cancel(reponame);
+  }
+
+  @RequestMapping(
+    value = "/generation-reports", method = GET, produces = APPLICATION_JSON_VALUE,
+    headers = "Accept=application/json"
+  )
+  @ResponseBody
+  @TimeMeasurement
+  public List<GenerationReport> getLatestGenerationReports() {
+    return generationReports.latestReports();
+  }
+
+  @RequestMapping(
+    value = "/generation-reports/{reponame}", method = GET, produces = APPLICATION_JSON_VALUE,
+    headers = "Accept=application/json"
+  )
+  @ResponseBody
+  @TimeMeasurement
+  public List<GenerationReport> getGenerationReports(@PathVariable("reponame") String reponame) {
+    return generationReports.reportsOf(reponame);
+  }
+
+
   private boolean validateRepos(Map<String, Object> model, String prefix, String sourceRepo,
                                 String targetRepo) {
     boolean okay = true;
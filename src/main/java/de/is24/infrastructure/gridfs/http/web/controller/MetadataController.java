@@ -1,7 +1,7 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.slf4j.Logger;
@@ -24,17 +24,17 @@ import static org.springframework.web.bind.annotation.RequestMethod.POST;
 public class MetadataController {
   private static final Logger LOG = LoggerFactory.getLogger(MetadataController.class);
 
-  private final MetadataService metadataService;
+  private final MetadataGenerationExecutor generationExecutor;
   private final RepoService repoService;
 
   @Autowired
-  public MetadataController(MetadataService metadataService, RepoService repoService) {
-    this.metadataService = metadataService;
+  public MetadataController(MetadataGenerationExecutor generationExecutor, RepoService repoService) {
+    this.generationExecutor = generationExecutor;
     this.repoService = repoService;
   }
 
   public MetadataController() {
-    this.metadataService = null;
+    this.generationExecutor = null;
     this.repoService = null;
   }
 
@@ -58,6 +58,6 @@ public class MetadataController {
   }
 
   private void generateMetaData(String reponame) throws IOException, SQLException {
-    metadataService.generateYumMetadata(reponame);
+    generationExecutor.generateAndWait(reponame);
   }
 }
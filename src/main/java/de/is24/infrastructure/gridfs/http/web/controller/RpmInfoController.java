@@ -4,6 +4,7 @@ import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntryDetailsStore;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
@@ -21,14 +22,17 @@ import static org.springframework.web.bind.annotation.RequestMethod.GET;
 @TimeMeasurement
 public class RpmInfoController {
   private final YumEntriesRepository yumEntriesRepository;
+  private final YumEntryDetailsStore entryDetailsStore;
 
   public RpmInfoController() {
     yumEntriesRepository = null;
+    entryDetailsStore = null;
   }
 
   @Autowired
-  public RpmInfoController(YumEntriesRepository yumEntriesRepository) {
+  public RpmInfoController(YumEntriesRepository yumEntriesRepository, YumEntryDetailsStore entryDetailsStore) {
     this.yumEntriesRepository = yumEntriesRepository;
+    this.entryDetailsStore = entryDetailsStore;
   }
 
   @RequestMapping(value = "/{repo}/{arch}/{filename}/info.html", method = GET)
@@ -59,7 +63,7 @@ public class RpmInfoController {
       throw new IllegalStateException("More than one metadata entry found for " + path);
     }
 
-    return entries.get(0);
+    return entryDetailsStore.withDetails(entries.get(0));
   }
 
 }
@@ -0,0 +1,161 @@
+package de.is24.infrastructure.gridfs.http.domain.yum;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.DIR;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.GHOST;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+
+
+public class YumPackageFilesTest {
+  private static final String[] DIRS = { "/", "/etc/", "/var/empty/", "/bin/" };
+
+  @Test
+  public void groupFilesByDirKeepingRpmOrder() throws Exception {
+    YumPackageFiles files = YumPackageFiles.of(DIRS,
+      new int[] { 3, 0, 1, 0, 0, 1 },
+      new String[] { "app", "a.txt", "config", "etc", "ghost", "other" },
+      new YumPackageFileType[] { FILE, FILE, FILE, DIR, GHOST, FILE });
+
+    assertThat(files.size(), is(6));
+    assertThat(names(files), contains("a.txt", "etc", "ghost", "config", "other", "app"));
+    assertThat(files.getType(0), is(FILE));
+    assertThat(files.getType(1), is(DIR));
+    assertThat(files.getType(2), is(GHOST));
+    assertThat(files.getFileCount(0), is(3));
+    assertThat(files.getFileCount(2), is(0));
+    assertThat(files.getFirstFile(3), is(5));
+    assertThat(files.getDirName(0), is("/"));
+    assertThat(files.getDirName(1), is("/etc"));
+    assertThat(files.readFile(3, 5, new YumPackageFile()), is(new YumPackageFile(FILE, "app", "/bin/")));
+  }
+
+  @Test
+  public void nameOfDirWithoutBaseNameIsItsDir() throws Exception {
+    YumPackageFiles files = YumPackageFiles.of(new String[] { "/" }, new int[] { 0, 0 }, new String[] { "", "" },
+      new YumPackageFileType[] { DIR, FILE });
+
+    assertThat(files.appendName(0, 0, new StringBuilder()).toString(), is("/"));
+    assertThat(files.appendName(0, 1, new StringBuilder()).toString(), is(""));
+    assertThat(files.appendPath(0, 0, new StringBuilder()).toString(), is("/"));
+    assertThat(files.readFile(0, 0, new YumPackageFile()).getName(), is("/"));
+  }
+
+  @Test
+  public void matchPathWithoutCopyingName() throws Exception {
+    YumPackageFiles files = YumPackageFiles.of(new String[] { "/usr/lib/", "/usr/" }, new int[] { 0, 1, 0 },
+      new String[] { "sendmail", "lib", "sendmail.postfix" }, new YumPackageFileType[] { FILE, DIR, FILE });
+
+    assertThat(files.hasPath(0, 0, "/usr/lib/sendmail"), is(true));
+    assertThat(files.hasPath(0, 1, "/usr/lib/sendmail"), is(false));
+    assertThat(files.hasPath(1, 2, "/usr/lib"), is(true));
+    assertThat(files.appendPath(0, 1, new StringBuilder()).toString(), is("/usr/lib/sendmail.postfix"));
+  }
+
+  @Test
+  public void convertFilesStoredPerFile() throws Exception {
+    YumPackage yumPackage = complexPackage();
+
+    YumPackageFiles converted = YumPackageFiles.of(yumPackage.getPackageDirs());
+
+    assertThat(converted, is(yumPackage.getPackageFiles()));
+  }
+
+  @Test
+  public void mapToFewBsonValues() throws Exception {
+    YumEntry entry = new YumEntry(new ObjectId(), "repo", complexPackage());
+
+    DBObject dbObject = bsonRoundTrip(entry);
+
+    DBObject packageFiles = (DBObject) ((DBObject) dbObject.get("yumPackage")).get("packageFiles");
+    assertThat(packageFiles.keySet(), containsInAnyOrder("dirs", "fileCounts", "names", "types"));
+    assertThat(packageFiles.get("types"), instanceOf(byte[].class));
+    YumEntry mappedEntry = converter().read(YumEntry.class, dbObject);
+    assertThat(mappedEntry.getYumPackage().getPackageFiles(), is(entry.getYumPackage().getPackageFiles()));
+  }
+
+  @Test
+  public void readEntriesStoredPerFile() throws Exception {
+    YumEntry entry = new YumEntry(new ObjectId(), "repo", complexPackage());
+    DBObject dbObject = bsonRoundTrip(entry);
+    DBObject yumPackage = (DBObject) dbObject.get("yumPackage");
+    yumPackage.removeField("packageFiles");
+    yumPackage.put("packageDirs", legacyPackageDirs(entry.getYumPackage().getPackageDirs()));
+
+    YumEntry mappedEntry = converter().read(YumEntry.class, dbObject);
+
+    assertThat(mappedEntry.getYumPackage().getPackageFiles(), is(entry.getYumPackage().getPackageFiles()));
+    DBObject written = new BasicDBObject();
+    converter().write(mappedEntry, written);
+    assertThat(((DBObject) written.get("yumPackage")).get("packageDirs"), nullValue());
+  }
+
+  private static List<String> names(YumPackageFiles files) {
+    List<String> names = new ArrayList<>();
+    for (int dir = 0; dir < files.getDirCount(); dir++) {
+      for (int i = files.getFirstFile(dir); i < (files.getFirstFile(dir) + files.getFileCount(dir)); i++) {
+        names.add(files.appendName(dir, i, new StringBuilder()).toString());
+      }
+    }
+    return names;
+  }
+
+  private static BasicDBList legacyPackageDirs(YumPackageDir[] packageDirs) {
+    BasicDBList dirs = new BasicDBList();
+    for (YumPackageDir packageDir : packageDirs) {
+      BasicDBList files = new BasicDBList();
+      for (YumPackageFile file : packageDir.getFiles()) {
+        files.add(new BasicDBObject("type", file.getType().name()).append("name", file.getName())
+          .append("dir", file.getDir()));
+      }
+      dirs.add(new BasicDBObject("name", packageDir.getName()).append("files", files));
+    }
+    return dirs;
+  }
+
+  private static YumPackage complexPackage() throws Exception {
+    RpmHeaderWrapper header = new RpmHeaderWrapper(RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME)));
+    return new RpmHeaderToYumPackageConverter(header).convert();
+  }
+
+  private static DBObject bsonRoundTrip(YumEntry entry) {
+    DBObject dbObject = new BasicDBObject();
+    converter().write(entry, dbObject);
+    byte[] bson = new DefaultDBEncoder().encode(dbObject);
+    return new DefaultDBDecoder().decode(bson, (DBCollection) null);
+  }
+
+  private static MappingMongoConverter converter() {
+    MappingMongoConverter converter = new MappingMongoConverter(new DefaultDbRefResolver(mock(MongoDbFactory.class)),
+      new MongoMappingContext());
+    converter.afterPropertiesSet();
+    return converter;
+  }
+}
@@ -0,0 +1,74 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.mongo.ReplicationLagMonitor;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+
+
+public class DeletionThrottleTest {
+  private static final long MB = 1024 * 1024;
+  private static final long TARGET_LAG = 10000;
+  private static final long UNKNOWN_OPLOG_WINDOW = -1;
+
+  private DeletionThrottle throttle;
+
+  @Before
+  public void setUp() throws Exception {
+    throttle = new DeletionThrottle(mock(ReplicationLagMonitor.class), TARGET_LAG, 400, 800, 1600);
+  }
+
+  @Test
+  public void startWithSmallBatches() throws Exception {
+    assertThat(throttle.getBatchFiles(), is(50));
+    assertThat(throttle.getBatchBytes(), is(100 * MB));
+  }
+
+  @Test
+  public void growBatchesUpToMaximumWithoutLag() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      throttle.adapt(0, UNKNOWN_OPLOG_WINDOW);
+    }
+
+    assertThat(throttle.getBatchFiles(), is(400));
+    assertThat(throttle.getBatchBytes(), is(800 * MB));
+    assertThat(throttle.getPauseMillis(), is(100L));
+  }
+
+  @Test
+  public void backOffIfLagExceedsTarget() throws Exception {
+    throttle.adapt(TARGET_LAG + 1, UNKNOWN_OPLOG_WINDOW);
+
+    assertThat(throttle.getBatchFiles(), is(25));
+    assertThat(throttle.getPauseMillis(), is(200L));
+    assertThat(throttle.getBackOffs(), is(1L));
+  }
+
+  @Test
+  public void limitBackOff() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      throttle.adapt(TARGET_LAG * 2, UNKNOWN_OPLOG_WINDOW);
+    }
+
+    assertThat(throttle.getBatchFiles(), is(1));
+    assertThat(throttle.getBatchBytes(), is(MB));
+    assertThat(throttle.getPauseMillis(), is(1600L));
+  }
+
+  @Test
+  public void keepPaceWhileLagIsNearTarget() throws Exception {
+    throttle.adapt(TARGET_LAG - 1, UNKNOWN_OPLOG_WINDOW);
+
+    assertThat(throttle.getBatchFiles(), is(50));
+    assertThat(throttle.getPauseMillis(), is(100L));
+  }
+
+  @Test
+  public void backOffIfLagEatsIntoOplogWindow() throws Exception {
+    throttle.adapt(2000, 10);
+
+    assertThat(throttle.getBatchFiles(), is(25));
+  }
+}
@@ -8,14 +8,17 @@ import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
 import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.UploadResult;
 import org.apache.commons.lang.time.DateUtils;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 import static com.mongodb.gridfs.GridFSUtil.mergeMetaData;
 import static de.is24.infrastructure.gridfs.http.gridfs.StorageServiceIT.TESTING_ARCH;
@@ -24,6 +27,7 @@ import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MARKED_
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.simpleInputStream;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.apache.commons.lang.time.DateUtils.addDays;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -95,8 +99,10 @@ public class GridFsFileStorageServiceIT {
 
   @Test
   public void ensureIndex() throws Exception {
-    new GridFsFileStorageService(context.gridFs(), context.gridFsTemplate(), context.mongoTemplate());
-    new GridFsFileStorageService(context.gridFs(), context.gridFsTemplate(), context.mongoTemplate());
+    new GridFsFileStorageService(context.gridFs(), context.gridFsTemplate(), context.mongoTemplate(),
+      context.deletionThrottle());
+    new GridFsFileStorageService(context.gridFs(), context.gridFsTemplate(), context.mongoTemplate(),
+      context.deletionThrottle());
     List<DBObject> indexInfos = context.mongoTemplate().getCollection(GRIDFS_FILES_COLLECTION).getIndexInfo();
     assertThat(indexInfos.size(), is(6));
   }
@@ -111,6 +117,56 @@ public class GridFsFileStorageServiceIT {
     assertThat(context.fileStorageService().findByPrefix(filename).size(), is(1));
   }
 
+  @Test
+  public void removeChunksOfFailedUpload() throws Exception {
+    long chunksBefore = context.mongoTemplate().getCollection("fs.chunks").count();
+    byte[] content = new byte[1024 * 1024];
+    new Random().nextBytes(content);
+
+    try {
+      context.fileStorageService().storeXmlFileGzippedWithChecksumName(uniqueRepoName(), "primary", outputStream -> {
+          outputStream.write(content);
+          throw new IOException("failed while streaming");
+        });
+      throw new AssertionError("upload should fail");
+    } catch (IOException e) {
+      assertThat(context.mongoTemplate().getCollection("fs.chunks").count(), is(chunksBefore));
+    }
+  }
+
+  @Test
+  public void keepStoredRepodataWithSameContent() throws Exception {
+    String reponame = uniqueRepoName();
+    UploadResult first = context.fileStorageService().storeXmlFileGzippedWithChecksumName(reponame, "primary",
+      outputStream -> outputStream.write(new byte[] { 1, 2, 3 }));
+    FileStorageItem stored = context.fileStorageService().findBy(new FileDescriptor(first.getLocation()));
+
+    UploadResult second = context.fileStorageService().storeXmlFileGzippedWithChecksumName(reponame, "primary",
+      outputStream -> outputStream.write(new byte[] { 1, 2, 3 }));
+
+    assertThat(second.getLocation(), is(first.getLocation()));
+    assertThat(second.getUploadDate(), is(first.getUploadDate()));
+    assertThat(context.fileStorageService().findByPrefix(first.getLocation()).size(), is(1));
+    assertThat(context.fileStorageService().findBy(new FileDescriptor(first.getLocation())).getId(),
+      is(stored.getId()));
+  }
+
+  @Test
+  public void copyChunksToNewFile() throws Exception {
+    byte[] content = new byte[1024 * 1024];
+    new Random().nextBytes(content);
+    FileDescriptor source = new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "source.rpm");
+    FileStorageItem sourceItem = context.fileStorageService().storeFile(new ByteArrayInputStream(content), source);
+    FileDescriptor destination = new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "source.rpm");
+
+    FileStorageItem copy = context.fileStorageService().copyTo(sourceItem, destination);
+
+    assertThat(copy.getFilename(), is(destination.getPath()));
+    assertThat(copy.getRepo(), is(destination.getRepo()));
+    assertThat(copy.getChecksumSha256(), is(sourceItem.getChecksumSha256()));
+    assertThat(toByteArray(copy.getInputStream()), is(content));
+  }
+
   private void assertAllFilesAreCorrupt(List<FileStorageItem> corruptFiles) {
     for (FileStorageItem file : corruptFiles) {
       if (file.getFilename() != null && file.getRepo() != null)
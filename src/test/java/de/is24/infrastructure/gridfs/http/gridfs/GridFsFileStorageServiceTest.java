@@ -2,34 +2,45 @@ package de.is24.infrastructure.gridfs.http.gridfs;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 
 import java.util.Arrays;
 import java.util.Date;
 
+import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
-import static org.mockito.Matchers.anyObject;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class GridFsFileStorageServiceTest {
+  private static final long MB = 1024 * 1024;
 
   private GridFS gridFs;
   private GridFsTemplate gridFsTemplate;
   private GridFsFileStorageService service;
   private MongoTemplate mongoTemplate;
   private DBCollection filesCollection;
+  private DBCollection chunksCollection;
+  private DBCollection headersCollection;
+  private DeletionThrottle deletionThrottle;
 
   @Before
   public void setUp() throws Exception {
@@ -37,29 +48,92 @@ public class GridFsFileStorageServiceTest {
     gridFsTemplate = mock(GridFsTemplate.class);
     mongoTemplate = mock(MongoTemplate.class);
     filesCollection = mock(DBCollection.class);
+    chunksCollection = mock(DBCollection.class);
+    headersCollection = mock(DBCollection.class);
+    deletionThrottle = mock(DeletionThrottle.class);
     when(mongoTemplate.getCollection(eq("fs.files"))).thenReturn(filesCollection);
-    service = new GridFsFileStorageService(gridFs, gridFsTemplate, mongoTemplate);
+    when(mongoTemplate.getCollection(eq("fs.chunks"))).thenReturn(chunksCollection);
+    when(mongoTemplate.getCollection(eq("yum.rpm.headers"))).thenReturn(headersCollection);
+    when(filesCollection.remove(any(DBObject.class))).thenReturn(mock(WriteResult.class));
+    when(deletionThrottle.pause()).thenReturn(true);
+    service = new GridFsFileStorageService(gridFs, gridFsTemplate, mongoTemplate, deletionThrottle);
   }
 
   @Test
   public void createIndices() throws Exception {
     verify(filesCollection).createIndex(eq(new BasicDBObject("metadata.repo", 1)));
     verify(filesCollection).createIndex(eq(new BasicDBObject("metadata.arch", 1)));
+    verify(filesCollection).createIndex(eq(new BasicDBObject("metadata.repo", 1).append("metadata.arch", 1)));
   }
 
   @Test
-  public void waitAfterDeletionOfLargeFile() throws Exception {
-    GridFSDBFile file = mock(GridFSDBFile.class);
-    when(file.getFilename()).thenReturn("theFilename");
-    when(file.getLength()).thenReturn(6 * 1024 * 1024L);
-    when(gridFsTemplate.find((Query) anyObject())).thenReturn(Arrays.asList(file));
+  public void markRepodataForDeletionByIndexedFields() throws Exception {
+    service.markRepodataForDeletionExcept("repo", asList("repo/repodata/primary-new.sqlite.bz2"));
+
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    verify(mongoTemplate).updateMulti(query.capture(), any(Update.class), eq("fs.files"));
+    DBObject queryObject = query.getValue().getQueryObject();
+    assertThat(queryObject.get("metadata.repo"), is((Object) "repo"));
+    assertThat(queryObject.get("metadata.arch"), is((Object) "repodata"));
+    assertThat(queryObject.get("metadata.markedAsDeleted"), nullValue());
+    assertThat(queryObject.containsField("metadata.markedAsDeleted"), is(true));
+    assertThat(queryObject.toString(), containsString("$nin"));
+    assertThat(queryObject.toString(), containsString("repo/repodata/primary-new.sqlite.bz2"));
+  }
+
+  @Test
+  public void removeMarkedFilesInBatches() throws Exception {
+    givenFilesMarkedAsDeleted(file(1, 10), file(2, 10), file(3, 10));
+    when(deletionThrottle.getBatchFiles()).thenReturn(2);
+    when(deletionThrottle.getBatchBytes()).thenReturn(MB);
+
+    service.removeFilesMarkedAsDeletedBefore(new Date());
+
+    ArgumentCaptor<DBObject> removedChunks = ArgumentCaptor.forClass(DBObject.class);
+    verify(chunksCollection, times(2)).remove(removedChunks.capture());
+    assertThat(removedChunks.getAllValues().get(0).toString(), containsString("files_id"));
+    assertThat(removedChunks.getAllValues().get(0).toString(), containsString("$in"));
+    verify(filesCollection, times(2)).remove(any(DBObject.class));
+    verify(headersCollection, times(2)).remove(any(DBObject.class));
+    verify(deletionThrottle).pause();
+  }
+
+  @Test
+  public void limitBatchesByBytes() throws Exception {
+    givenFilesMarkedAsDeleted(file(1, 600 * MB), file(2, 10));
+    when(deletionThrottle.getBatchFiles()).thenReturn(100);
+    when(deletionThrottle.getBatchBytes()).thenReturn(64L * MB);
 
-    final long start = System.currentTimeMillis();
+    service.removeFilesMarkedAsDeletedBefore(new Date());
+
+    verify(filesCollection, times(2)).remove(any(DBObject.class));
+    verify(deletionThrottle).pause();
+  }
+
+  @Test
+  public void stopRemovingFilesIfInterrupted() throws Exception {
+    givenFilesMarkedAsDeleted(file(1, 10), file(2, 10));
+    when(deletionThrottle.getBatchFiles()).thenReturn(1);
+    when(deletionThrottle.getBatchBytes()).thenReturn(MB);
+    when(deletionThrottle.pause()).thenReturn(false);
 
     service.removeFilesMarkedAsDeletedBefore(new Date());
 
-    final long duration = System.currentTimeMillis() - start;
-    assertThat(duration, is(greaterThanOrEqualTo(400L)));
+    verify(filesCollection, times(1)).remove(any(DBObject.class));
+  }
+
+  private void givenFilesMarkedAsDeleted(DBObject... files) {
+    DBCursor cursor = mock(DBCursor.class);
+    Boolean[] moreFiles = new Boolean[files.length];
+    Arrays.fill(moreFiles, true);
+    moreFiles[files.length - 1] = false;
+    when(cursor.hasNext()).thenReturn(true, moreFiles);
+    when(cursor.next()).thenReturn(files[0], Arrays.copyOfRange(files, 1, files.length));
+    when(filesCollection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+  }
+
+  private static DBObject file(int id, long length) {
+    return new BasicDBObject("_id", id).append("length", length);
   }
 
   @Test
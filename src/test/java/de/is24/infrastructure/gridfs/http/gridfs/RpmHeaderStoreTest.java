@@ -0,0 +1,80 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class RpmHeaderStoreTest {
+  private DBCollection headers;
+  private RpmHeaderStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    headers = mock(DBCollection.class);
+    when(mongoTemplate.getCollection("yum.rpm.headers")).thenReturn(headers);
+    store = new RpmHeaderStore(mongoTemplate);
+  }
+
+  @Test
+  public void findSavedHeaderDeflated() throws Exception {
+    ObjectId id = new ObjectId();
+    RpmHeader header = RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME));
+
+    store.save(id, header);
+
+    DBObject saved = savedDocument();
+    assertThat(saved.get("_id"), is((Object) id));
+    assertThat(((byte[]) saved.get("header")).length, lessThan(header.getBytes().length));
+    when(headers.findOne(new BasicDBObject("_id", id))).thenReturn(saved);
+
+    RpmHeader found = store.find(id);
+    assertThat(found.getBytes(), is(header.getBytes()));
+    assertThat(found.getStartPos(), is(header.getStartPos()));
+    assertThat(found.getEndPos(), is(header.getEndPos()));
+    assertThat(store.getLoadedHeaders(), is(1L));
+  }
+
+  @Test
+  public void findNothingForFileWithoutHeader() throws Exception {
+    assertThat(store.find(new ObjectId()), nullValue());
+    assertThat(store.getMissingHeaders(), is(1L));
+  }
+
+  @Test(expected = InvalidRpmHeaderException.class)
+  public void rejectCorruptHeader() throws Exception {
+    ObjectId id = new ObjectId();
+    store.save(id, RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME)));
+
+    DBObject saved = savedDocument();
+    ((byte[]) saved.get("header"))[10] ^= 0x55;
+    when(headers.findOne(any(DBObject.class))).thenReturn(saved);
+
+    store.find(id);
+  }
+
+  private DBObject savedDocument() {
+    ArgumentCaptor<DBObject> captor = ArgumentCaptor.forClass(DBObject.class);
+    verify(headers).save(captor.capture());
+    return captor.getValue();
+  }
+}
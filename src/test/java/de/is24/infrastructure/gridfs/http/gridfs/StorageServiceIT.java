@@ -183,7 +183,8 @@ public class StorageServiceIT {
     FileStorageItem file = findNoarchRpm(reponame);
     context.yumEntriesRepository().delete((ObjectId) file.getId());
 
-    context.gridFsService().regenerateMetadataForAllFiles();
+    context.metadataRegenerator().resetCheckpoint();
+    context.metadataRegenerator().regenerateAllFiles();
 
     assertYumEntryForValidNoArchRpm(reponame, file);
   }
@@ -287,6 +288,29 @@ public class StorageServiceIT {
       is(nullValue()));
   }
 
+  @Test
+  public void metaDataForDeletionIsSetForOldRepodata() throws Exception {
+    final String reponame = uniqueRepoName();
+    FileDescriptor oldDescriptor = new FileDescriptor(reponame, "repodata", "primary-old.sqlite.bz2");
+    context.storageTestUtils().givenFileWithDescriptor(oldDescriptor);
+
+    FileDescriptor newDescriptor = new FileDescriptor(reponame, "repodata", "primary-new.sqlite.bz2");
+    context.storageTestUtils().givenFileWithDescriptor(newDescriptor);
+
+    FileDescriptor repoMdDescriptor = new FileDescriptor(reponame, "repodata", "repomd.xml");
+    context.storageTestUtils().givenFileWithDescriptor(repoMdDescriptor);
+
+    context.fileStorageService().markRepodataForDeletionExcept(reponame, asList(newDescriptor.getPath()));
+
+    assertThatFileIsMarkedForDeletion(oldDescriptor);
+    for (FileDescriptor descriptor : asList(newDescriptor, repoMdDescriptor)) {
+      FileStorageItem storageItem = context.fileStorageService().findBy(descriptor);
+      assertThat(((GridFsFileStorageItem) storageItem).getDbFile()
+              .getMetaData().get(MARKED_AS_DELETED_KEY),
+        is(nullValue()));
+    }
+  }
+
   @Test
   public void metaDataForDeletionIsSetByPath() throws Exception {
     final String repoName = context.storageTestUtils().givenFullRepository();
@@ -2,11 +2,18 @@ package de.is24.infrastructure.gridfs.http.gridfs;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
 import de.is24.infrastructure.gridfs.http.exception.RepositoryIsUndeletableException;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.RepoCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
+import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
@@ -14,11 +21,17 @@ import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Date;
+
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.STATIC;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -28,15 +41,30 @@ public class StorageServiceTest {
   private FileStorageService fileStorageService;
 
   private RepoService repoService;
+  private YumEntriesHashCalculator entriesHashCalculator;
+  private RepoCleaner repoCleaner;
+  private PackageCatalog packageCatalog;
+  private RpmHeaderStore rpmHeaderStore;
+  private YumEntriesRepository yumEntriesRepository;
 
   @Before
   public void setUp() {
-    YumEntriesRepository yumEntriesRepository = mock(YumEntriesRepository.class);
-    when(yumEntriesRepository.findOne(any(ObjectId.class))).thenReturn(new YumEntry(null, null, null));
+    yumEntriesRepository = mock(YumEntriesRepository.class);
+    YumPackage yumPackage = new YumPackage();
+    yumPackage.setChecksum(new YumPackageChecksum("sha256", "checksum"));
+    yumPackage.setName("file");
+    yumPackage.setArch("arch");
+    when(yumEntriesRepository.findOne(any(ObjectId.class))).thenReturn(new YumEntry(null, "repo", yumPackage));
 
     repoService = mock(RepoService.class);
     fileStorageService = mock(FileStorageService.class);
-    service = new StorageService(fileStorageService, yumEntriesRepository, repoService);
+    entriesHashCalculator = mock(YumEntriesHashCalculator.class);
+    repoCleaner = mock(RepoCleaner.class);
+    packageCatalog = mock(PackageCatalog.class);
+    when(packageCatalog.catalogOf(anyString())).thenReturn(RepoCatalog.empty(0, 0));
+    rpmHeaderStore = mock(RpmHeaderStore.class);
+    service = new StorageService(fileStorageService, yumEntriesRepository, repoService, entriesHashCalculator,
+      repoCleaner, packageCatalog, rpmHeaderStore);
   }
 
   @Test(expected = BadRequestException.class)
@@ -78,6 +106,41 @@ public class StorageServiceTest {
     service.propagateRpm("repo/arch/file.rpm", "dest-repo");
 
     verify(fileStorageService).moveTo(eq(storageItem), eq("dest-repo"));
+    verify(entriesHashCalculator).entryRemoved("repo", "checksum");
+    verify(entriesHashCalculator).entryAdded("dest-repo", "checksum");
+    verify(packageCatalog).entryRemoved("repo", null, "checksum");
+    verify(packageCatalog).entryAdded(eq("dest-repo"), any(YumEntry.class));
+  }
+
+  @Test
+  public void regenerateMissingEntryFromStoredHeaderWithoutReadingRpm() throws Exception {
+    ObjectId id = new ObjectId();
+    FileStorageItem storageItem = mock(FileStorageItem.class);
+    when(storageItem.getId()).thenReturn(id);
+    when(storageItem.getRepo()).thenReturn("repo");
+    when(storageItem.getFilename()).thenReturn("repo/noarch/file.rpm");
+    when(storageItem.getChecksumSha256()).thenReturn("checksum");
+    when(storageItem.getUploadDate()).thenReturn(new Date());
+    when(fileStorageService.findBy(any(FileDescriptor.class))).thenReturn(storageItem);
+    when(yumEntriesRepository.findOne(id)).thenReturn(null);
+    when(rpmHeaderStore.find(id)).thenReturn(RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME)));
+
+    service.propagateRpm("repo/noarch/file.rpm", "dest-repo");
+
+    verify(storageItem, never()).getInputStream();
+    verify(fileStorageService).moveTo(eq(storageItem), eq("dest-repo"));
+    verify(entriesHashCalculator).entryAdded("dest-repo", "checksum");
+  }
+
+  @Test
+  public void applyRetentionToPropagatedPackage() throws Exception {
+    FileStorageItem storageItem = mock(FileStorageItem.class);
+    when(storageItem.getFilename()).thenReturn("repo/arch/file.rpm");
+    when(fileStorageService.findBy(any(FileDescriptor.class))).thenReturn(storageItem);
+
+    service.propagateRpm("repo/arch/file.rpm", "dest-repo");
+
+    verify(repoCleaner).cleanByMaxNum("dest-repo", "file", "arch");
   }
 
   @Test(expected = RepositoryIsUndeletableException.class)
@@ -0,0 +1,74 @@
+package de.is24.infrastructure.gridfs.http.gridfs.scheduling;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import java.util.Date;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
+import static org.apache.commons.lang.time.DateUtils.addDays;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+@Category(LocalExecutionOnly.class)
+public class OrphanChunkCollectorIT {
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  private OrphanChunkCollector collector;
+
+  @Before
+  public void setUp() throws Exception {
+    collector = new OrphanChunkCollector(context.mongoTemplate(), new MongoPrimaryDetector(context.getMongo()),
+      context.deletionThrottle(), 2, 24, 30);
+  }
+
+  @Test
+  public void removeOnlyChunksOfMissingFilesOlderThanGracePeriod() throws Exception {
+    ObjectId liveFile = new ObjectId(addDays(new Date(), -3));
+    ObjectId orphanedFile = new ObjectId(addDays(new Date(), -2));
+    ObjectId uploadInProgress = new ObjectId();
+    files().insert(new BasicDBObject("_id", liveFile));
+    givenChunks(liveFile, 3);
+    givenChunks(orphanedFile, 3);
+    givenChunks(uploadInProgress, 2);
+
+    collector.collectOrphanChunksNow();
+
+    assertThat(chunksOf(liveFile), is(3L));
+    assertThat(chunksOf(orphanedFile), is(0L));
+    assertThat(chunksOf(uploadInProgress), is(2L));
+    assertThat(collector.getRemovedChunks(), greaterThanOrEqualTo(3L));
+    assertThat(collector.getCompletedScans(), is(1L));
+    assertThat(collector.getCheckpoint(), is(nullValue()));
+  }
+
+  private void givenChunks(ObjectId filesId, int count) {
+    for (int n = 0; n < count; n++) {
+      chunks().insert(new BasicDBObject("files_id", filesId).append("n", n).append("data", new byte[] { 1, 2, 3 }));
+    }
+  }
+
+  private long chunksOf(ObjectId filesId) {
+    return chunks().count(new BasicDBObject("files_id", filesId));
+  }
+
+  private DBCollection chunks() {
+    return context.mongoTemplate().getCollection(GRIDFS_CHUNKS_COLLECTION);
+  }
+
+  private DBCollection files() {
+    return context.mongoTemplate().getCollection(GRIDFS_FILES_COLLECTION);
+  }
+}
@@ -0,0 +1,55 @@
+package de.is24.infrastructure.gridfs.http.maintenance;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import org.bson.types.ObjectId;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_CHANGELOGS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_METADATA_ROWS_COLLECTION;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+
+@Category(LocalExecutionOnly.class)
+public class EntryDetailsBackfillIT {
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  @Test
+  public void moveDetailsOutOfEntriesStillCarryingThem() throws Exception {
+    ObjectId id = new ObjectId();
+    entries().insert(new BasicDBObject("_id", id).append("repo", "repo")
+      .append("yumPackage", new BasicDBObject("name", "legacy")
+        .append("changeLogs", singletonList(new BasicDBObject("author", "someone").append("message", "fixed"))))
+      .append("metadataRows", new BasicDBObject("version", 1).append("databases", new BasicDBObject())));
+
+    EntryDetailsBackfill backfill = new EntryDetailsBackfill(context.mongoTemplate(),
+      new MongoPrimaryDetector(context.getMongo()), context.entryDetailsStore());
+    backfill.backfill();
+
+    DBObject entry = entries().findOne(id);
+    assertThat(((DBObject) entry.get("yumPackage")).containsField("changeLogs"), is(false));
+    assertThat(entry.containsField("metadataRows"), is(false));
+    assertThat(collection(YUM_ENTRY_CHANGELOGS_COLLECTION).findOne(id), notNullValue());
+    assertThat(collection(YUM_ENTRY_METADATA_ROWS_COLLECTION).findOne(id), notNullValue());
+    assertThat(backfill.isCompleted(), is(true));
+  }
+
+  private DBCollection entries() {
+    return collection(YUM_ENTRY_COLLECTION);
+  }
+
+  private DBCollection collection(String name) {
+    return context.mongoTemplate().getCollection(name);
+  }
+}
@@ -5,18 +5,24 @@ import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageReducedView;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageVersion;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.RepoCatalog;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
+import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.scheduling.TaskScheduler;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -31,6 +37,8 @@ public class MaintenanceServiceTest {
   private YumEntriesRepository yumEntriesRepository;
   @Mock
   private StorageService storageService;
+  @Mock
+  private PackageCatalog packageCatalog;
 
   @InjectMocks
   private MaintenanceService maintenanceService;
@@ -64,6 +72,21 @@ public class MaintenanceServiceTest {
     sourceList.add(shouldBePropagatable1);
     sourceList.add(shouldBePropagatable2);
     sourceList.add(shouldBeObsoleteSrc1);
+
+    when(packageCatalog.catalogOf("target")).thenReturn(catalogOf(targetList));
+    when(packageCatalog.catalogOf("source")).thenReturn(catalogOf(sourceList));
+    when(yumEntriesRepository.findAll(Matchers.<Iterable<ObjectId>>any())).thenAnswer(invocation -> {
+      Set<Object> ids = new HashSet<>();
+      ((Iterable<?>) invocation.getArguments()[0]).forEach(ids::add);
+      return sourceList.stream().filter(entry -> ids.contains(entry.getId())).collect(Collectors.toList());
+    });
+  }
+
+  private static RepoCatalog catalogOf(List<YumEntry> entries) {
+    return RepoCatalog.of(0, entries.size(), entries.stream()
+      .map(entry -> new RepoCatalog.Row(entry.getYumPackage().getName(), entry.getYumPackage().getArch(),
+        entry.getVersionSortKey(), entry.getId()))
+      .toArray(RepoCatalog.Row[]::new));
   }
 
   private YumEntry createYumEntry(String repo, String name, String arch, int version, int release) {
@@ -75,14 +98,11 @@ public class MaintenanceServiceTest {
     packageVersion.setVer(Integer.toString(version));
     packageVersion.setRel(Integer.toString(release));
     yumPackage.setVersion(packageVersion);
-    return new YumEntry(null, repo, yumPackage);
+    return new YumEntry(new ObjectId(), repo, yumPackage);
   }
 
   @Test
   public void findObsoleteRPMs() throws Exception {
-    when(yumEntriesRepository.findByRepo("target")).thenReturn(targetList);
-    when(yumEntriesRepository.findByRepo("source")).thenReturn(sourceList);
-
     Set<YumPackageReducedView> obsoleteRPMs = maintenanceService.getObsoleteRPMs("target", "source");
 
     assertThat(obsoleteRPMs.size(), is(3));
@@ -94,9 +114,6 @@ public class MaintenanceServiceTest {
 
   @Test
   public void findPropagatableRPMs() throws Exception {
-    when(yumEntriesRepository.findByRepo("target")).thenReturn(targetList);
-    when(yumEntriesRepository.findByRepo("source")).thenReturn(sourceList);
-
     Set<YumPackageReducedView> obsoleteRPMs = maintenanceService.getPropagatableRPMs("target", "source");
 
     assertThat(obsoleteRPMs.size(), is(2));
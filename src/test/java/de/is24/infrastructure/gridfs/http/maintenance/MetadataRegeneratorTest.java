@@ -0,0 +1,115 @@
+package de.is24.infrastructure.gridfs.http.maintenance;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MAINTENANCE_CHECKPOINT_COLLECTION;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class MetadataRegeneratorTest {
+  private static final byte[] HEADER = { 1, 2, 3 };
+
+  private FileStorageService fileStorageService;
+  private StorageService storageService;
+  private DBCollection checkpoints;
+  private MetadataRegenerator regenerator;
+
+  @Before
+  public void setUp() throws Exception {
+    MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    checkpoints = mock(DBCollection.class);
+    when(mongoTemplate.getCollection(MAINTENANCE_CHECKPOINT_COLLECTION)).thenReturn(checkpoints);
+    fileStorageService = mock(FileStorageService.class);
+    when(fileStorageService.readPrefix(any(FileStorageItem.class), anyLong())).thenReturn(HEADER);
+    storageService = mock(StorageService.class);
+    regenerator = new MetadataRegenerator(mongoTemplate, fileStorageService, storageService, 2, 2);
+  }
+
+  @Test
+  public void continueAfterFailingFileAndCollectIt() throws Exception {
+    FileStorageItem first = rpm(1);
+    FileStorageItem broken = rpm(2);
+    FileStorageItem last = rpm(3);
+    when(fileStorageService.getRpmsAfter(null, 2)).thenReturn(asList(first, broken));
+    when(fileStorageService.getRpmsAfter(2, 2)).thenReturn(asList(last));
+    when(fileStorageService.getRpmsAfter(3, 2)).thenReturn(new ArrayList<>());
+    when(storageService.regenerateMetadataFor(eq(broken), any(InputStream.class)))
+      .thenThrow(new InvalidRpmHeaderException("broken header"));
+
+    regenerator.regenerateAllFiles();
+
+    verify(storageService).regenerateMetadataFor(eq(first), any(InputStream.class));
+    verify(storageService).regenerateMetadataFor(eq(last), any(InputStream.class));
+    assertThat(regenerator.getRegeneratedFiles(), is(2L));
+    assertThat(regenerator.getFailedFiles(), is(1L));
+    assertThat(regenerator.getFailures(), contains(containsString("broken header")));
+    assertThat(regenerator.getReadBytes(), is(9L));
+    assertThat(regenerator.isRunning(), is(false));
+  }
+
+  @Test
+  public void checkpointAfterEachPageAndClearWhenDone() throws Exception {
+    List<FileStorageItem> page = asList(rpm(1), rpm(2));
+    when(fileStorageService.getRpmsAfter(null, 2)).thenReturn(page);
+    when(fileStorageService.getRpmsAfter(2, 2)).thenReturn(new ArrayList<>());
+
+    regenerator.regenerateAllFiles();
+
+    ArgumentCaptor<DBObject> captor = ArgumentCaptor.forClass(DBObject.class);
+    verify(checkpoints, atLeastOnce()).save(captor.capture());
+    List<DBObject> saved = captor.getAllValues();
+    assertThat(saved.get(0).get("lastFileId"), is((Object) 2));
+    assertThat(saved.get(saved.size() - 1).get("lastFileId"), nullValue());
+    assertThat(regenerator.getLastCompletedRun(), notNullValue());
+  }
+
+  @Test
+  public void useStoredHeaderWithoutReadingRpm() throws Exception {
+    FileStorageItem stored = rpm(1);
+    when(fileStorageService.getRpmsAfter(null, 2)).thenReturn(asList(stored));
+    when(fileStorageService.getRpmsAfter(1, 2)).thenReturn(new ArrayList<>());
+    when(storageService.regenerateMetadataFromStoredHeader(stored)).thenReturn(new YumEntry(null, "repo", null));
+
+    regenerator.regenerateAllFiles();
+
+    verify(fileStorageService, never()).readPrefix(any(FileStorageItem.class), anyLong());
+    verify(storageService, never()).regenerateMetadataFor(eq(stored), any(InputStream.class));
+    assertThat(regenerator.getFilesFromStoredHeaders(), is(1L));
+    assertThat(regenerator.getRegeneratedFiles(), is(1L));
+  }
+
+  private static FileStorageItem rpm(int id) {
+    FileStorageItem storageItem = mock(FileStorageItem.class);
+    when(storageItem.getId()).thenReturn(id);
+    when(storageItem.getFilename()).thenReturn("repo/noarch/file" + id + ".rpm");
+    return storageItem;
+  }
+}
@@ -0,0 +1,42 @@
+package de.is24.infrastructure.gridfs.http.maintenance;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
+import org.bson.types.ObjectId;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.VERSION_SORT_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.rpm.version.VersionSortKey.sortKey;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+@Category(LocalExecutionOnly.class)
+public class VersionSortKeyBackfillIT {
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  @Test
+  public void addSortKeyToEntriesWithoutOne() throws Exception {
+    ObjectId id = new ObjectId();
+    entries().insert(new BasicDBObject("_id", id).append("yumPackage",
+      new BasicDBObject("version", new BasicDBObject("epoch", 1).append("ver", "1.0~rc1").append("rel", "2.el7"))));
+
+    VersionSortKeyBackfill backfill = new VersionSortKeyBackfill(context.mongoTemplate(),
+      new MongoPrimaryDetector(context.getMongo()));
+    backfill.backfill();
+
+    assertThat(entries().findOne(id).get(VERSION_SORT_KEY), is((Object) sortKey(1, "1.0~rc1", "2.el7")));
+    assertThat(backfill.isCompleted(), is(true));
+  }
+
+  private DBCollection entries() {
+    return context.mongoTemplate().getCollection(YUM_ENTRY_COLLECTION);
+  }
+}
@@ -0,0 +1,66 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.Date;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+
+public class GenerationReportsTest {
+  private GenerationReports reports;
+
+  @Before
+  public void setUp() throws Exception {
+    reports = new GenerationReports(2);
+  }
+
+  @Test
+  public void keepNewestReportsOnly() throws Exception {
+    GenerationReport first = report("repo", 1);
+    GenerationReport second = report("repo", 2);
+    GenerationReport third = report("repo", 3);
+
+    reports.add(first);
+    reports.add(second);
+    reports.add(third);
+
+    assertThat(reports.reportsOf("repo"), contains(third, second));
+  }
+
+  @Test
+  public void latestReportOfEveryRepository() throws Exception {
+    reports.add(report("repo-b", 1));
+    reports.add(report("repo-a", 1));
+    reports.add(report("repo-a", 2));
+
+    assertThat(reports.latestReports().stream().map(GenerationReport::getTotalMillis).collect(toList()),
+      contains(2L, 1L));
+    assertThat(reports.latestReports().get(0).getReponame(), is("repo-a"));
+  }
+
+  @Test
+  public void noReportsForUnknownRepository() throws Exception {
+    assertThat(reports.reportsOf("unknown"), empty());
+  }
+
+  @Test
+  public void sumUpRepeatedPhases() throws Exception {
+    GenerationReport report = report("repo", 1000);
+    report.setEntries(500);
+    report.addPhase("storeXml", 3);
+    report.addPhase("storeXml", 4);
+
+    assertThat(report.getPhaseMillis().get("storeXml"), is(7L));
+    assertThat(report.getEntriesPerSecond(), is(500L));
+  }
+
+  private static GenerationReport report(String reponame, long totalMillis) {
+    GenerationReport report = new GenerationReport(reponame, new Date());
+    report.setTotalMillis(totalMillis);
+    return report;
+  }
+}
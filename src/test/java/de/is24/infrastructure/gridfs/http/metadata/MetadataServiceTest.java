@@ -2,25 +2,64 @@ package de.is24.infrastructure.gridfs.http.metadata;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
+import de.is24.infrastructure.gridfs.http.exception.GenerationCancelledException;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import de.is24.infrastructure.gridfs.http.jaxb.Location;
+import de.is24.infrastructure.gridfs.http.metadata.GenerationReport.Outcome;
 import de.is24.infrastructure.gridfs.http.metadata.generation.RepoMdGenerator;
 import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
+import de.is24.infrastructure.gridfs.http.storage.ContentWriter;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.util.monitoring.InApplicationMonitor;
+import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -28,9 +67,9 @@ import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MetadataServiceTest {
-  private static final String REGEX_REPODATA_SQLITE_FILES = "/repodata/.*sqlite.bz2";
   private static final int OUTDATED_META_DATA_SURVIVAL_TIME = 5;
   public static final String ENTRIES_HASH = "entriesHash";
+  public static final String CONTENT_DIGEST = "contentDigest";
 
   @InjectMocks
   private MetadataService service;
@@ -42,6 +81,8 @@ public class MetadataServiceTest {
   @Mock
   private YumEntriesRepository yumEntriesRepository;
   @Mock
+  private YumEntryDetailsStore entryDetailsStore;
+  @Mock
   private YumEntriesHashCalculator yumEntriesHashCalculator;
   @Mock
   private RepoService repoService;
@@ -51,12 +92,26 @@ public class MetadataServiceTest {
   private InApplicationMonitor inApplicationMonitor;
   @Mock
   private FileStorageService fileStorageService;
+  @Mock
+  private RepodataArtifactCache repodataArtifactCache;
+  @Mock
+  private GenerationReports generationReports;
+
+  @Captor
+  private ArgumentCaptor<List<Data>> dataCaptor;
+  @Captor
+  private ArgumentCaptor<Collection<String>> filenamesCaptor;
+  @Captor
+  private ArgumentCaptor<GenerationReport> reportCaptor;
 
   private RepoEntry repoEntry;
 
   @Before
   public void setup() throws Exception {
-    when(storageService.storeRepodataDbBz2(anyString(), any(File.class), anyString())).thenReturn(new Data());
+    when(storageService.storeRepodataDbBz2(anyString(), any(File.class), anyString())).thenAnswer(
+      invocation -> createData("repodata/" + invocation.getArguments()[2] + ".sqlite.bz2"));
+    when(storageService.storeRepodataXmlGz(anyString(), anyString(), any(ContentWriter.class))).thenAnswer(
+      invocation -> createData("repodata/" + invocation.getArguments()[1] + ".xml.gz"));
 
     this.reponame = "any-reponame";
 
@@ -67,19 +122,175 @@ public class MetadataServiceTest {
 
     when(repoService.ensureEntry(reponame, RepoType.STATIC, RepoType.SCHEDULED)).thenReturn(repoEntry);
     when(yumEntriesHashCalculator.hashForRepo(reponame)).thenReturn(ENTRIES_HASH);
+    when(yumEntriesHashCalculator.digestForRepo(reponame)).thenReturn(CONTENT_DIGEST);
+    when(repodataArtifactCache.copyTo(anyString(), anyString())).thenReturn(null);
+    when(entryDetailsStore.withFiles(any(), any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+    when(entryDetailsStore.withChangeLogs(any(), any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+    when(entryDetailsStore.withMetadataRowsAndFiles(any(), any())).thenAnswer(
+      invocation -> invocation.getArguments()[0]);
   }
 
   @Test
   public void oldMetaDataFilesAreDeleted() throws Exception {
     this.service.generateYumMetadataIfNecessary(reponame);
 
-    verify(fileStorageService).markForDeletionByFilenameRegex(eq(reponame + REGEX_REPODATA_SQLITE_FILES));
+    verify(fileStorageService).markRepodataForDeletionExcept(eq(reponame), filenamesCaptor.capture());
+    assertThat(filenamesCaptor.getValue(), containsInAnyOrder(
+      reponame + "/repodata/primary.sqlite.bz2",
+      reponame + "/repodata/filelists.sqlite.bz2",
+      reponame + "/repodata/other.sqlite.bz2",
+      reponame + "/repodata/primary.xml.gz",
+      reponame + "/repodata/filelists.xml.gz",
+      reponame + "/repodata/other.xml.gz"));
+  }
+
+  @Test
+  public void oldMetaDataFilesAreDeletedAfterPublishingNewOnes() throws Exception {
+    this.service.generateYumMetadataIfNecessary(reponame);
+
+    InOrder inOrder = inOrder(storageService, repoMdGenerator, fileStorageService);
+    inOrder.verify(storageService, times(3)).storeRepodataDbBz2(anyString(), any(File.class), anyString());
+    inOrder.verify(repoMdGenerator).generateRepoMdXml(eq(reponame), any());
+    inOrder.verify(fileStorageService).markRepodataForDeletionExcept(eq(reponame), any());
+  }
+
+  @Test
+  public void xmlMetadataIsListedInRepoMd() throws Exception {
+    service.generateYumMetadata(reponame);
+
+    verify(repoMdGenerator).generateRepoMdXml(eq(reponame), dataCaptor.capture());
+    List<String> types = dataCaptor.getValue().stream().map(Data::getType).collect(toList());
+    assertThat(types, hasItems("primary_db", "filelists_db", "other_db", "primary", "filelists", "other"));
+  }
+
+  @Test
+  public void useCopiedArtifactsForSameEntries() throws Exception {
+    List<Data> copiedData = singletonList(createData("repodata/copied-primary.sqlite.bz2"));
+    when(repodataArtifactCache.copyTo(CONTENT_DIGEST, reponame)).thenReturn(copiedData);
+
+    service.generateYumMetadata(reponame);
+
+    verify(repoMdGenerator).generateRepoMdXml(reponame, copiedData);
+    verify(storageService, never()).storeRepodataDbBz2(anyString(), any(File.class), anyString());
+    verify(yumEntriesRepository, never()).findByRepoAndIdLessThanEqual(anyString(), any(ObjectId.class));
+  }
+
+  @Test
+  public void rememberGeneratedArtifacts() throws Exception {
+    service.generateYumMetadata(reponame);
+
+    verify(repodataArtifactCache).remember(eq(YumEntriesHashCalculator.digestOf(emptyList())), eq(reponame),
+      dataCaptor.capture());
+    assertThat(dataCaptor.getValue().size(), is(6));
+  }
+
+  @Test
+  public void rememberCopiedArtifactsForTheirDigest() throws Exception {
+    List<Data> copiedData = singletonList(createData("repodata/copied-primary.sqlite.bz2"));
+    when(repodataArtifactCache.copyTo(CONTENT_DIGEST, reponame)).thenReturn(copiedData);
+
+    service.generateYumMetadata(reponame);
+
+    verify(repodataArtifactCache).remember(CONTENT_DIGEST, reponame, copiedData);
+  }
+
+  @Test
+  public void reportPhasesAndArtifactsOfGeneration() throws Exception {
+    service.generateYumMetadata(reponame);
+
+    verify(generationReports).add(reportCaptor.capture());
+    GenerationReport report = reportCaptor.getValue();
+    assertThat(report.getReponame(), is(reponame));
+    assertThat(report.isCopiedFromCache(), is(false));
+    assertThat(report.getPhaseMillis().keySet(), hasItems("findEntries", "createDb.primary", "storeDb.primary",
+      "storeXml.other", "generateRepomdXml", "markForDelete"));
+    assertThat(report.getArtifacts().size(), is(6));
+  }
+
+  @Test
+  public void reportFailedGeneration() throws Exception {
+    doThrow(new IllegalStateException("disk full")).when(repoMdGenerator).generateRepoMdXml(eq(reponame), any());
+
+    try {
+      service.generateYumMetadata(reponame);
+      fail("generation should fail");
+    } catch (IllegalStateException e) {
+      verify(generationReports).add(reportCaptor.capture());
+    }
+
+    GenerationReport report = reportCaptor.getValue();
+    assertThat(report.getOutcome(), is(Outcome.FAILED));
+    assertThat(report.getFailure(), containsString("disk full"));
+    assertThat(report.getPhaseMillis().keySet(), hasItem("createRepodata"));
+    verify(repoService, never()).updateLastMetadataGeneration(eq(reponame), any(), any());
+  }
+
+  @Test
+  public void reportCancelledGeneration() throws Exception {
+    doThrow(new GenerationCancelledException(reponame, "cancelled")).when(repoMdGenerator).generateRepoMdXml(
+      eq(reponame), any());
+
+    try {
+      service.generateYumMetadata(reponame);
+      fail("generation should be cancelled");
+    } catch (GenerationCancelledException e) {
+      verify(generationReports).add(reportCaptor.capture());
+    }
+
+    assertThat(reportCaptor.getValue().getOutcome(), is(Outcome.CANCELLED));
+  }
+
+  @Test
+  public void reportCopiedArtifacts() throws Exception {
+    when(repodataArtifactCache.copyTo(CONTENT_DIGEST, reponame)).thenReturn(
+      singletonList(createData("repodata/copied-primary.sqlite.bz2")));
+
+    service.generateYumMetadata(reponame);
+
+    verify(generationReports).add(reportCaptor.capture());
+    assertThat(reportCaptor.getValue().isCopiedFromCache(), is(true));
+    assertThat(reportCaptor.getValue().getPhaseMillis().keySet(), not(hasItem("findEntries")));
+  }
+
+  @Test
+  public void streamXmlOfTheEntriesTheDatabasesWereGeneratedFrom() throws Exception {
+    YumEntry entry = new YumEntry(new ObjectId(), reponame, complexPackage());
+    when(yumEntriesRepository.findFirstByRepoOrderByIdDesc(reponame)).thenReturn(entry);
+    when(yumEntriesRepository.findByRepoAndIdLessThanEqual(reponame, entry.getId())).thenReturn(singletonList(entry));
+    when(yumEntriesRepository.streamByRepoAndIdLessThanEqual(reponame, entry.getId())).thenAnswer(
+      invocation -> Stream.of(entry));
+    Map<String, String> xmls = new HashMap<>();
+    when(storageService.storeRepodataXmlGz(anyString(), anyString(), any(ContentWriter.class))).thenAnswer(
+      invocation -> {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ((ContentWriter) invocation.getArguments()[2]).writeTo(outputStream);
+        xmls.put((String) invocation.getArguments()[1], outputStream.toString("UTF-8"));
+        return createData("repodata/" + invocation.getArguments()[1] + ".xml.gz");
+      });
+
+    service.generateYumMetadata(reponame);
+
+    verify(yumEntriesRepository).findByRepoAndIdLessThanEqual(reponame, entry.getId());
+    verify(yumEntriesRepository, times(3)).streamByRepoAndIdLessThanEqual(reponame, entry.getId());
+    verify(yumEntriesRepository, never()).findByRepo(reponame);
+    assertThat(xmls.get("primary"), containsString("packages=\"1\""));
+    assertThat(xmls.get("primary"), containsString("<name>" + COMPLEX_RPM_NAME + "</name>"));
+    assertThat(xmls.get("other"), containsString("packages=\"1\""));
+  }
+
+  @Test
+  public void attachOnlyChangeLogsForOtherDatabase() throws Exception {
+    service.generateYumMetadata(reponame);
+
+    verify(entryDetailsStore).withMetadataRowsAndFiles(any(), any());
+    verify(entryDetailsStore).withFiles(any(), any());
+    verify(entryDetailsStore).withChangeLogs(any(), any());
   }
 
   @Test
   public void cleanRepositoryBeforeGeneration() throws Exception {
     this.service.generateYumMetadataIfNecessary(reponame);
-    verify(repoCleaner).cleanup(eq(reponame));
+    verify(repoCleaner).cleanupExpired(eq(reponame));
   }
 
   @Test
@@ -90,4 +301,48 @@ public class MetadataServiceTest {
 
     verifyZeroInteractions(repoCleaner, storageService);
   }
+
+  @Test
+  public void recordCheckOfModifiedRepoWithoutChangedEntries() throws Exception {
+    repoEntry.setHashOfEntries(ENTRIES_HASH);
+    repoEntry.setLastMetadataGeneration(new Date(1000));
+    repoEntry.setLastModified(new Date(2000));
+    Date beforeCheck = new Date();
+
+    service.generateYumMetadataIfNecessary(reponame);
+
+    ArgumentCaptor<Date> checkTime = ArgumentCaptor.forClass(Date.class);
+    verify(repoService).updateLastMetadataGeneration(eq(reponame), checkTime.capture(), eq(ENTRIES_HASH));
+    assertThat(checkTime.getValue().before(beforeCheck), is(false));
+    verifyZeroInteractions(storageService);
+  }
+
+  @Test
+  public void doNotRecordCheckOfUnmodifiedRepo() throws Exception {
+    repoEntry.setHashOfEntries(ENTRIES_HASH);
+    repoEntry.setLastMetadataGeneration(new Date(2000));
+    repoEntry.setLastModified(new Date(1000));
+
+    service.generateYumMetadataIfNecessary(reponame);
+
+    verify(repoService, never()).updateLastMetadataGeneration(anyString(), any(Date.class), anyString());
+  }
+
+  private static YumPackage complexPackage() throws Exception {
+    YumPackage yumPackage = new RpmHeaderToYumPackageConverter(new RpmHeaderWrapper(RpmHeader.read(
+      streamOf(COMPLEX_RPM_FILE_NAME)))).convert();
+    yumPackage.setChecksum(new YumPackageChecksum("sha256", "checksum"));
+    yumPackage.getSize().setPackaged(1024);
+    yumPackage.getTime().setFile(1363882800);
+    return yumPackage;
+  }
+
+  private static Data createData(String href) {
+    Location location = new Location();
+    location.setHref(href);
+
+    Data data = new Data();
+    data.setLocation(location);
+    return data;
+  }
 }
@@ -0,0 +1,76 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.metadata.RepoCatalog.Row;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static de.is24.infrastructure.gridfs.http.rpm.version.VersionSortKey.sortKey;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class RepoCatalogTest {
+  private final ObjectId id1 = new ObjectId();
+  private final ObjectId id2 = new ObjectId();
+  private final ObjectId id3 = new ObjectId();
+  private final ObjectId id4 = new ObjectId();
+
+  private final RepoCatalog catalog = RepoCatalog.of(7, 4,
+    new Row("dummy", "noarch", sortKey(0, "1.10", "1"), id1),
+    new Row("dummy", "noarch", sortKey(0, "1.9", "1"), id2),
+    new Row("dummy", "src", sortKey(0, "2.0", "1"), id3),
+    new Row("other", "noarch", sortKey(1, "0.1", "1"), id4));
+
+  @Test
+  public void findNewestVersionByNameAndArch() throws Exception {
+    assertThat(catalog.newestIdOf("dummy", "noarch"), is(id1));
+    assertThat(catalog.newestIdOf("dummy", "src"), is(id3));
+    assertThat(catalog.newestIdOf("other", "noarch"), is(id4));
+    assertThat(catalog.newestIdOf("dummy", "x86_64"), nullValue());
+    assertThat(catalog.newestIdOf("unknown", "noarch"), nullValue());
+  }
+
+  @Test
+  public void countVersionsByNameAndArch() throws Exception {
+    assertThat(catalog.versionsOf("dummy", "noarch"), is(2));
+    assertThat(catalog.versionsOf("dummy", "src"), is(1));
+    assertThat(catalog.versionsOf("unknown", "noarch"), is(0));
+  }
+
+  @Test
+  public void addedRowReplacesRowWithSameIdAndChangesLabel() throws Exception {
+    ObjectId id5 = new ObjectId();
+    RepoCatalog changed = catalog.with(new Row("dummy", "noarch", sortKey(0, "1.11", "1"), id5), 3)
+      .with(new Row("dummy", "noarch", sortKey(0, "1.12", "1"), id5), 0);
+
+    assertThat(changed.versionsOf("dummy", "noarch"), is(3));
+    assertThat(changed.newestIdOf("dummy", "noarch"), is(id5));
+    assertThat(changed.sortKeyAt(changed.newestIndexOf("dummy", "noarch")), is(sortKey(0, "1.12", "1")));
+    assertThat(changed.isLabelledWith(7 ^ 3, 5), is(true));
+    assertThat(catalog.size(), is(4));
+  }
+
+  @Test
+  public void removedRowsAreGoneAndChangeLabel() throws Exception {
+    RepoCatalog changed = catalog.without(new HashSet<>(Arrays.asList(id1, id4)), 5);
+
+    assertThat(changed.size(), is(2));
+    assertThat(changed.newestIdOf("dummy", "noarch"), is(id2));
+    assertThat(changed.newestIdOf("other", "noarch"), nullValue());
+    assertThat(changed.isLabelledWith(7 ^ 5, 2), is(true));
+    assertThat(catalog.isLabelledWith(7, 4), is(true));
+  }
+
+  @Test
+  public void onlyRemovedRowsCountAsRemovedEntries() throws Exception {
+    RepoCatalog changed = catalog.without(new HashSet<>(Arrays.asList(id2, new ObjectId())), 5);
+
+    assertThat(changed.size(), is(3));
+    assertThat(changed.versionsOf("dummy", "noarch"), is(1));
+    assertThat(changed.isLabelledWith(7 ^ 5, 3), is(true));
+  }
+}
@@ -0,0 +1,173 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.RepodataArtifacts;
+import de.is24.infrastructure.gridfs.http.jaxb.Checksum;
+import de.is24.infrastructure.gridfs.http.jaxb.Data;
+import de.is24.infrastructure.gridfs.http.jaxb.Location;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import java.util.Date;
+import java.util.List;
+import static de.is24.infrastructure.gridfs.http.metadata.RepodataArtifactCache.keyOf;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(MockitoJUnitRunner.class)
+public class RepodataArtifactCacheTest {
+  private static final String HASH = "hashOfEntries";
+  private static final String SOURCE_REPO = "source-repo";
+  private static final String TARGET_REPO = "target-repo";
+  private static final String HREF = "repodata/abc-primary.sqlite.bz2";
+  private static final String SHA256 = "abc";
+
+  @Mock
+  private RepodataArtifactsRepository artifactsRepository;
+  @Mock
+  private FileStorageService fileStorageService;
+
+  private RepodataArtifactCache cache;
+  private Data data;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new RepodataArtifactCache(artifactsRepository, fileStorageService);
+    data = createData();
+  }
+
+  @Test
+  public void copyArtifactsOfRepoWithSameHash() throws Exception {
+    givenArtifacts(SOURCE_REPO);
+    FileStorageItem source = givenStoredFile(SOURCE_REPO + "/" + HREF, SHA256);
+    FileStorageItem copy = mock(FileStorageItem.class);
+    when(copy.getUploadDate()).thenReturn(new Date(5000));
+    when(fileStorageService.copyTo(eq(source), any(FileDescriptor.class))).thenReturn(copy);
+
+    List<Data> copies = cache.copyTo(HASH, TARGET_REPO);
+
+    ArgumentCaptor<FileDescriptor> descriptor = ArgumentCaptor.forClass(FileDescriptor.class);
+    verify(fileStorageService).copyTo(eq(source), descriptor.capture());
+    assertThat(descriptor.getValue().getPath(), is(TARGET_REPO + "/" + HREF));
+    assertThat(copies.size(), is(1));
+    assertThat(copies.get(0).getLocation().getHref(), is(HREF));
+    assertThat(copies.get(0).getChecksum().getChecksum(), is(SHA256));
+    assertThat(copies.get(0).getTimestamp(), is(5));
+    assertThat(cache.getHits(), is(1L));
+  }
+
+  @Test
+  public void missIfNothingRemembered() throws Exception {
+    assertThat(cache.copyTo(HASH, TARGET_REPO), nullValue());
+    assertThat(cache.getMisses(), is(1L));
+  }
+
+  @Test
+  public void missIfArtifactIsGone() throws Exception {
+    givenArtifacts(SOURCE_REPO);
+    when(fileStorageService.findByPrefix(SOURCE_REPO + "/" + HREF)).thenReturn(emptyList());
+
+    assertThat(cache.copyTo(HASH, TARGET_REPO), nullValue());
+    verify(fileStorageService, never()).copyTo(any(FileStorageItem.class), any(FileDescriptor.class));
+  }
+
+  @Test
+  public void missIfArtifactWasReplaced() throws Exception {
+    givenArtifacts(SOURCE_REPO);
+    givenStoredFile(SOURCE_REPO + "/" + HREF, "other");
+
+    assertThat(cache.copyTo(HASH, TARGET_REPO), nullValue());
+    verify(fileStorageService, never()).copyTo(any(FileStorageItem.class), any(FileDescriptor.class));
+  }
+
+  @Test
+  public void reuseArtifactsOfTheSameRepo() throws Exception {
+    givenArtifacts(TARGET_REPO);
+    givenStoredFile(TARGET_REPO + "/" + HREF, SHA256);
+
+    assertThat(cache.copyTo(HASH, TARGET_REPO), is(singletonList(data)));
+    verify(fileStorageService, never()).copyTo(any(FileStorageItem.class), any(FileDescriptor.class));
+    assertThat(cache.getHits(), is(1L));
+  }
+
+  @Test
+  public void missIfArtifactOfTheSameRepoIsMarkedForDeletion() throws Exception {
+    givenArtifacts(TARGET_REPO);
+    FileStorageItem item = givenStoredFile(TARGET_REPO + "/" + HREF, SHA256);
+    when(item.isMarkedAsDeleted()).thenReturn(true);
+
+    assertThat(cache.copyTo(HASH, TARGET_REPO), nullValue());
+  }
+
+  @Test
+  public void ignoreArtifactsOfOlderLayout() throws Exception {
+    when(artifactsRepository.findOne(HASH)).thenReturn(new RepodataArtifacts(HASH, SOURCE_REPO, singletonList(data),
+      new Date()));
+    givenStoredFile(SOURCE_REPO + "/" + HREF, SHA256);
+
+    assertThat(cache.copyTo(HASH, TARGET_REPO), nullValue());
+    verify(fileStorageService, never()).copyTo(any(FileStorageItem.class), any(FileDescriptor.class));
+  }
+
+  @Test
+  public void rememberArtifacts() throws Exception {
+    cache.remember(HASH, SOURCE_REPO, singletonList(data));
+
+    ArgumentCaptor<RepodataArtifacts> artifacts = ArgumentCaptor.forClass(RepodataArtifacts.class);
+    verify(artifactsRepository).save(artifacts.capture());
+    assertThat(artifacts.getValue().getHashOfEntries(), is(keyOf(HASH)));
+    assertThat(artifacts.getValue().getRepo(), is(SOURCE_REPO));
+  }
+
+  @Test
+  public void ignoreBlankHash() throws Exception {
+    cache.remember(" ", SOURCE_REPO, singletonList(data));
+
+    assertThat(cache.copyTo(" ", TARGET_REPO), nullValue());
+    verify(artifactsRepository, never()).save(any(RepodataArtifacts.class));
+  }
+
+  private void givenArtifacts(String repo) {
+    when(artifactsRepository.findOne(keyOf(HASH))).thenReturn(new RepodataArtifacts(keyOf(HASH), repo,
+      singletonList(data), new Date()));
+  }
+
+  private FileStorageItem givenStoredFile(String filename, String sha256) {
+    FileStorageItem item = mock(FileStorageItem.class);
+    when(item.getFilename()).thenReturn(filename);
+    when(item.getChecksumSha256()).thenReturn(sha256);
+    when(fileStorageService.findByPrefix(filename)).thenReturn(singletonList(item));
+    return item;
+  }
+
+  private static Data createData() {
+    Location location = new Location();
+    location.setHref(HREF);
+
+    Checksum checksum = new Checksum();
+    checksum.setType("sha256");
+    checksum.setChecksum(SHA256);
+
+    Data data = new Data();
+    data.setType("primary_db");
+    data.setLocation(location);
+    data.setChecksum(checksum);
+    data.setDatabaseVersion(10);
+    return data;
+  }
+}
@@ -9,14 +9,14 @@ import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 
 
 public class YumEntriesHashCalculatorIT {
-  private static final String AB_MD5 = "187ef4436122d1cc2f40dc2b92f0eba0";
-  private static final String CBA_MD5 = "3944b025c9ca7eec3154b44666ae04a0";
-
   @ClassRule
   public static IntegrationTestContext context = new IntegrationTestContext();
 
@@ -37,23 +37,61 @@ public class YumEntriesHashCalculatorIT {
 
   @Test
   public void hashOfEntryHashes() throws Exception {
-    givenEntriesWithHash("a", "b");
+    givenEntriesWithHash(repoName, "a", "b");
 
     final String hash = yumEntriesHashCalculator.hashForRepo(repoName);
 
-    assertThat(hash, is(AB_MD5));
+    assertThat(hash, endsWith("-2"));
   }
 
   @Test
-  public void hashOfEntryHashes2() throws Exception {
-    givenEntriesWithHash("c", "b", "a");
+  public void hashIsIndependentOfOrder() throws Exception {
+    String otherRepoName = uniqueRepoName();
+    givenEntriesWithHash(repoName, "a", "b", "c");
+    givenEntriesWithHash(otherRepoName, "c", "b", "a");
 
-    final String hash = yumEntriesHashCalculator.hashForRepo(repoName);
+    assertThat(yumEntriesHashCalculator.hashForRepo(repoName),
+      is(yumEntriesHashCalculator.hashForRepo(otherRepoName)));
+  }
+
+  @Test
+  public void hashIsMaintainedOnWrite() throws Exception {
+    givenEntriesWithHash(repoName, "a");
+    final String hashOfA = yumEntriesHashCalculator.hashForRepo(repoName);
+
+    givenEntriesWithHash(repoName, "b");
+    yumEntriesHashCalculator.entryAdded(repoName, "b");
+
+    final String hashOfAB = yumEntriesHashCalculator.hashForRepo(repoName);
+    assertThat(hashOfAB, not(hashOfA));
+    assertThat(hashOfAB, is(yumEntriesHashCalculator.recalculate(repoName)));
+
+    yumEntriesHashCalculator.entryRemoved(repoName, "b");
+    assertThat(yumEntriesHashCalculator.hashForRepo(repoName), is(hashOfA));
+  }
+
+  @Test
+  public void removeEntriesInOneUpdate() throws Exception {
+    givenEntriesWithHash(repoName, "a");
+    final String hashOfA = yumEntriesHashCalculator.hashForRepo(repoName);
+
+    givenEntriesWithHash(repoName, "b", "c");
+    yumEntriesHashCalculator.entryAdded(repoName, "b");
+    yumEntriesHashCalculator.entryAdded(repoName, "c");
+
+    yumEntriesHashCalculator.entriesRemoved(repoName, asList("c", "b"));
+    assertThat(yumEntriesHashCalculator.hashForRepo(repoName), is(hashOfA));
+  }
+
+  @Test
+  public void writesBeforeInitializationAreCounted() throws Exception {
+    givenEntriesWithHash(repoName, "a");
+    yumEntriesHashCalculator.entryAdded(repoName, "a");
 
-    assertThat(hash, is(CBA_MD5));
+    assertThat(yumEntriesHashCalculator.hashForRepo(repoName), endsWith("-1"));
   }
 
-  private void givenEntriesWithHash(String... hashes) {
+  private void givenEntriesWithHash(String repoName, String... hashes) {
     for (String hash : hashes) {
       final YumPackage yumPackage = new YumPackage();
       yumPackage.setChecksum(new YumPackageChecksum("egal", hash));
@@ -0,0 +1,103 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import com.mongodb.WriteResult;
+import de.is24.infrastructure.gridfs.http.domain.RepoContent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.DocumentCallbackHandler;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class YumEntriesHashCalculatorTest {
+  private static final String REPO = "repo";
+
+  private MongoTemplate mongoTemplate;
+  private YumEntriesHashCalculator calculator;
+
+  @Before
+  public void setUp() throws Exception {
+    mongoTemplate = mock(MongoTemplate.class);
+    calculator = new YumEntriesHashCalculator(mongoTemplate);
+  }
+
+  @Test
+  public void readMaintainedHashWithoutScanningEntries() throws Exception {
+    RepoContent content = new RepoContent();
+    content.setInitialized(true);
+    content.setHash(0xabcL);
+    content.setEntries(3);
+    when(mongoTemplate.findById(REPO, RepoContent.class)).thenReturn(content);
+
+    assertThat(calculator.hashForRepo(REPO), is("0000000000000abc-3"));
+    verify(mongoTemplate, never()).executeQuery(any(Query.class), anyString(), any(DocumentCallbackHandler.class));
+  }
+
+  @Test
+  public void correctDriftedHashConfirmedTwice() throws Exception {
+    RepoContent stored = new RepoContent();
+    stored.setRepo(REPO);
+    stored.setInitialized(true);
+    stored.setHash(0xabcL);
+    stored.setEntries(3);
+    stored.setChanges(7);
+    when(mongoTemplate.find(any(Query.class), eq(RepoContent.class))).thenReturn(singletonList(stored));
+    when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(RepoContent.class))).thenReturn(
+      new WriteResult(1, true, null));
+
+    assertThat(calculator.verifyAll(), is(1));
+    verify(mongoTemplate, times(2)).executeQuery(any(Query.class), anyString(), any(DocumentCallbackHandler.class));
+    assertThat(calculator.getCorrectedHashes(), is(1L));
+  }
+
+  @Test
+  public void keepHashMatchingTheEntries() throws Exception {
+    RepoContent stored = new RepoContent();
+    stored.setRepo(REPO);
+    stored.setInitialized(true);
+    when(mongoTemplate.find(any(Query.class), eq(RepoContent.class))).thenReturn(singletonList(stored));
+
+    assertThat(calculator.verifyAll(), is(0));
+    verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(RepoContent.class));
+  }
+
+  @Test
+  public void digestIsOrderIndependent() throws Exception {
+    assertThat(YumEntriesHashCalculator.digestOf(asList("a", "b")),
+      is(YumEntriesHashCalculator.digestOf(asList("b", "a"))));
+    assertThat(YumEntriesHashCalculator.digestOf(asList("a", "b")).length(), is(64));
+    assertThat(YumEntriesHashCalculator.digestOf(asList("a", "a")),
+      not(YumEntriesHashCalculator.digestOf(asList("b", "b"))));
+    assertThat(YumEntriesHashCalculator.digestOf(emptyList()), is(""));
+  }
+
+  @Test
+  public void emptyRepoHashesToEmpty() throws Exception {
+    assertThat(YumEntriesHashCalculator.toHashString(new RepoContent()), is(""));
+  }
+
+  @Test
+  public void xorOfChecksumHashesIsOrderIndependentAndReversible() throws Exception {
+    long a = YumEntriesHashCalculator.hashOf("a");
+    long b = YumEntriesHashCalculator.hashOf("b");
+
+    assertThat(a ^ b, is(b ^ a));
+    assertThat(a ^ b ^ b, is(a));
+    assertThat(a, not(b));
+  }
+}
@@ -0,0 +1,281 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import de.is24.infrastructure.gridfs.http.domain.MetadataRows;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
+import de.is24.infrastructure.gridfs.http.gridfs.RpmHeaderStore;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.createMetadataRows;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class YumEntryDetailsStoreTest {
+  private static final String FILES_COLLECTION = "yum.entry.files";
+  private static final String CHANGELOGS_COLLECTION = "yum.entry.changelogs";
+  private static final String METADATA_ROWS_COLLECTION = "yum.entry.metadata.rows";
+
+  private MongoTemplate mongoTemplate;
+  private MappingMongoConverter converter;
+  private DBCollection files;
+  private DBCollection changeLogs;
+  private DBCollection metadataRows;
+  private RpmHeaderStore rpmHeaderStore;
+  private YumEntryDetailsStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    converter = new MappingMongoConverter(new DefaultDbRefResolver(mock(MongoDbFactory.class)),
+      new MongoMappingContext());
+    converter.afterPropertiesSet();
+    mongoTemplate = mock(MongoTemplate.class);
+    when(mongoTemplate.getConverter()).thenReturn(converter);
+    files = mock(DBCollection.class);
+    changeLogs = mock(DBCollection.class);
+    when(mongoTemplate.getCollection(FILES_COLLECTION)).thenReturn(files);
+    when(mongoTemplate.getCollection(CHANGELOGS_COLLECTION)).thenReturn(changeLogs);
+    metadataRows = mock(DBCollection.class);
+    when(mongoTemplate.getCollection(METADATA_ROWS_COLLECTION)).thenReturn(metadataRows);
+    rpmHeaderStore = mock(RpmHeaderStore.class);
+    store = new YumEntryDetailsStore(mongoTemplate, rpmHeaderStore);
+  }
+
+  @Test
+  public void moveDetailsOutOfSavedEntryAndAttachThemAgain() throws Exception {
+    YumEntry entry = new YumEntry(new ObjectId(), "repo", complexPackage());
+    DBObject dbObject = new BasicDBObject();
+    converter.write(entry, dbObject);
+
+    store.onBeforeSave(new BeforeSaveEvent<>(entry, dbObject, "yum.entries"));
+
+    DBObject yumPackage = (DBObject) dbObject.get("yumPackage");
+    assertThat(yumPackage.containsField("packageFiles"), is(false));
+    assertThat(yumPackage.containsField("changeLogs"), is(false));
+    List<DBObject> savedFiles = singletonList(savedDocument(files));
+    List<DBObject> savedChangeLogs = singletonList(savedDocument(changeLogs));
+    when(mongoTemplate.find(any(Query.class), eq(DBObject.class), eq(FILES_COLLECTION))).thenReturn(savedFiles);
+    when(mongoTemplate.find(any(Query.class), eq(DBObject.class), eq(CHANGELOGS_COLLECTION))).thenReturn(
+      savedChangeLogs);
+
+    YumEntry storedEntry = converter.read(YumEntry.class, dbObject);
+    assertThat(storedEntry.getYumPackage().getPackageFiles(), nullValue());
+    store.withDetails(storedEntry);
+    assertThat(storedEntry.getYumPackage().getPackageFiles(), is(entry.getYumPackage().getPackageFiles()));
+    assertThat(storedEntry.getYumPackage().getChangeLogs(), is(entry.getYumPackage().getChangeLogs()));
+    assertThat(store.getMovedDetails(), is(2L));
+    assertThat(store.getLoadedDetails(), is(2L));
+  }
+
+  @Test
+  public void moveMetadataRowsOutOfSavedEntryAndAttachThemInsteadOfFiles() throws Exception {
+    YumEntry entry = entryWithMetadataRows();
+    DBObject dbObject = new BasicDBObject();
+    converter.write(entry, dbObject);
+
+    store.onBeforeSave(new BeforeSaveEvent<>(entry, dbObject, "yum.entries"));
+
+    assertThat(dbObject.containsField("metadataRows"), is(false));
+    List<DBObject> savedRows = singletonList(savedDocument(metadataRows));
+    when(mongoTemplate.find(any(Query.class), eq(DBObject.class), eq(METADATA_ROWS_COLLECTION))).thenReturn(
+      savedRows);
+
+    YumEntry storedEntry = converter.read(YumEntry.class, dbObject);
+    assertThat(storedEntry.getMetadataRows(), nullValue());
+    YumEntry attachedEntry = store.withMetadataRowsAndFiles(singletonList(storedEntry).iterator(),
+      anyEntry -> anyEntry.getMetadataRows() == null).next();
+    assertThat(attachedEntry.getMetadataRows().getDatabases(), is(entry.getMetadataRows().getDatabases()));
+    assertThat(attachedEntry.getYumPackage().getPackageFiles(), nullValue());
+    verify(mongoTemplate, never()).find(any(Query.class), eq(DBObject.class), eq(FILES_COLLECTION));
+  }
+
+  @Test
+  public void attachFilesToEntriesWithoutStoredMetadataRows() throws Exception {
+    when(rpmHeaderStore.find(any())).thenReturn(complexHeader());
+    YumEntry entry = new YumEntry(new ObjectId(), "repo", new YumPackage());
+
+    store.withMetadataRowsAndFiles(singletonList(entry).iterator(), anyEntry -> anyEntry.getMetadataRows() == null)
+      .next();
+
+    assertThat(entry.getMetadataRows(), nullValue());
+    assertThat(entry.getYumPackage().getPackageFiles(), is(complexPackage().getPackageFiles()));
+    assertThat(store.getMissingDetails(), is(1L));
+  }
+
+  @Test
+  public void moveInlineDetailsOfEntrySavedBeforeTheyWereKeptBesideIt() throws Exception {
+    DBCollection entries = mock(DBCollection.class);
+    when(mongoTemplate.getCollection("yum.entries")).thenReturn(entries);
+    YumEntry entry = entryWithMetadataRows();
+    ObjectId id = entry.getId();
+    DBObject legacyEntry = new BasicDBObject();
+    converter.write(entry, legacyEntry);
+
+    store.moveInlineDetails(legacyEntry);
+
+    assertThat(savedDocument(files).get("_id"), is((Object) id));
+    assertThat(savedDocument(changeLogs).containsField("changeLogs"), is(true));
+    assertThat(converter.read(MetadataRows.class, (DBObject) savedDocument(metadataRows).get("metadataRows"))
+      .getDatabases(), is(entry.getMetadataRows().getDatabases()));
+    verify(entries).update(new BasicDBObject("_id", id),
+      new BasicDBObject("$unset", new BasicDBObject("yumPackage.packageFiles", "")
+        .append("yumPackage.packageDirs", "")
+        .append("yumPackage.changeLogs", "")
+        .append("metadataRows", "")));
+    assertThat(store.getMovedDetails(), is(3L));
+  }
+
+  @Test
+  public void attachFilesInBatchesAndReleaseEarlierBatches() throws Exception {
+    when(rpmHeaderStore.find(any())).thenReturn(complexHeader());
+    List<YumEntry> entries = new ArrayList<>();
+    for (int i = 0; i < 1001; i++) {
+      entries.add(new YumEntry(new ObjectId(), "repo", new YumPackage()));
+    }
+
+    Iterator<YumEntry> withFiles = store.withFiles(entries.iterator(), entry -> true);
+    for (int i = 0; i < 1000; i++) {
+      withFiles.next();
+    }
+    assertThat(entries.get(0).getYumPackage().getPackageFiles(), notNullValue());
+
+    withFiles.next();
+    assertThat(entries.get(0).getYumPackage().getPackageFiles(), nullValue());
+    assertThat(entries.get(1000).getYumPackage().getPackageFiles(), is(complexPackage().getPackageFiles()));
+    assertThat(withFiles.hasNext(), is(false));
+    verify(mongoTemplate, times(2)).find(any(Query.class), eq(DBObject.class), eq(FILES_COLLECTION));
+    assertThat(store.getMissingDetails(), is(1001L));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void failForEntryWithoutStoredDetailsAndHeader() throws Exception {
+    store.withDetails(new YumEntry(new ObjectId(), "repo", new YumPackage()));
+  }
+
+  @Test
+  public void skipEntriesWithDetailsInMemoryOrNotNeeded() throws Exception {
+    YumEntry inMemory = new YumEntry(new ObjectId(), "repo", complexPackage());
+    YumEntry notNeeded = new YumEntry(new ObjectId(), "repo", new YumPackage());
+
+    Iterator<YumEntry> withChangeLogs = store.withChangeLogs(singletonList(inMemory).iterator(), entry -> true);
+    assertThat(withChangeLogs.next().getYumPackage().getChangeLogs(), not(empty()));
+    store.withFiles(singletonList(notNeeded).iterator(), entry -> false).next();
+
+    verify(mongoTemplate, never()).find(any(Query.class), eq(DBObject.class), anyString());
+    assertThat(notNeeded.getYumPackage().getPackageFiles(), nullValue());
+  }
+
+  @Test
+  public void removeDetailsOfDeletedEntries() throws Exception {
+    when(mongoTemplate.find(any(Query.class), eq(YumEntry.class))).thenReturn(
+      singletonList(new YumEntry(new ObjectId(), "repo", null)));
+
+    store.onBeforeDelete(new BeforeDeleteEvent<>(new BasicDBObject("repo", "repo"), YumEntry.class, "yum.entries"));
+    verify(files, never()).remove(any(DBObject.class));
+
+    store.onAfterDelete(new AfterDeleteEvent<>(new BasicDBObject("repo", "repo"), YumEntry.class, "yum.entries"));
+    verify(files).remove(any(DBObject.class));
+    verify(changeLogs).remove(any(DBObject.class));
+    verify(metadataRows).remove(any(DBObject.class));
+  }
+
+  @Test
+  public void removeOnlyOldDetailsWithoutEntry() throws Exception {
+    ObjectId orphan = new ObjectId(new Date(0));
+    ObjectId live = new ObjectId(new Date(0));
+    ObjectId young = new ObjectId();
+    DBCursor filesPage = cursorOf(orphan, live, young);
+    DBCursor lastPage = cursorOf();
+    DBCursor changeLogsPage = cursorOf();
+    DBCursor metadataRowsPage = cursorOf();
+    DBCursor liveEntries = cursorOf(live);
+    when(files.find(any(DBObject.class), any(DBObject.class))).thenReturn(filesPage, lastPage);
+    when(changeLogs.find(any(DBObject.class), any(DBObject.class))).thenReturn(changeLogsPage);
+    when(metadataRows.find(any(DBObject.class), any(DBObject.class))).thenReturn(metadataRowsPage);
+    DBCollection entries = mock(DBCollection.class);
+    when(mongoTemplate.getCollection("yum.entries")).thenReturn(entries);
+    when(entries.find(any(DBObject.class), any(DBObject.class))).thenReturn(liveEntries);
+    when(files.remove(any(DBObject.class))).thenReturn(new WriteResult(1, false, null));
+
+    assertThat(store.removeOrphanedDetails(), is(1L));
+
+    verify(files).remove(new BasicDBObject("_id", new BasicDBObject("$in", singletonList(orphan))));
+    verify(changeLogs, never()).remove(any(DBObject.class));
+    assertThat(store.getRemovedOrphans(), is(1L));
+  }
+
+  private static DBCursor cursorOf(ObjectId... ids) {
+    DBCursor cursor = mock(DBCursor.class);
+    when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+    when(cursor.limit(anyInt())).thenReturn(cursor);
+    Iterator<ObjectId> iterator = asList(ids).iterator();
+    when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+    when(cursor.next()).thenAnswer(invocation -> new BasicDBObject("_id", iterator.next()));
+    return cursor;
+  }
+
+  private static DBObject savedDocument(DBCollection collection) {
+    ArgumentCaptor<DBObject> captor = ArgumentCaptor.forClass(DBObject.class);
+    verify(collection).save(captor.capture());
+    return captor.getValue();
+  }
+
+  private static YumEntry entryWithMetadataRows() throws Exception {
+    YumPackage yumPackage = complexPackage();
+    yumPackage.setChecksum(new YumPackageChecksum("sha256", "checksum"));
+    YumEntry entry = new YumEntry(new ObjectId(), "repo", yumPackage);
+    entry.setMetadataRows(createMetadataRows(yumPackage));
+    return entry;
+  }
+
+  private static YumPackage complexPackage() throws Exception {
+    return new RpmHeaderToYumPackageConverter(new RpmHeaderWrapper(complexHeader())).convert();
+  }
+
+  private static RpmHeader complexHeader() throws Exception {
+    return RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME));
+  }
+}
@@ -0,0 +1,48 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+
+public class BatchedTableTest {
+  private PreparedStatement statement;
+  private BatchedTable table;
+
+  @Before
+  public void setUp() {
+    statement = mock(PreparedStatement.class);
+    table = new BatchedTable("files", statement, 3, 2);
+  }
+
+  @Test
+  public void executeBatchOnlyWhenBatchIsFull() throws Exception {
+    table.addRow();
+    verify(statement, never()).executeBatch();
+
+    table.addRow();
+    table.addRow();
+
+    verify(statement, times(3)).addBatch();
+    verify(statement, times(1)).executeBatch();
+    assertThat(table.getWrittenRows(), equalTo(2L));
+  }
+
+  @Test
+  public void flushExecutesPendingRows() throws Exception {
+    table.addRow();
+    table.flush();
+    table.flush();
+
+    verify(statement, times(1)).executeBatch();
+    assertThat(table.getWrittenRows(), equalTo(1L));
+  }
+}
@@ -0,0 +1,207 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.domain.MetadataRows;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.io.File;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.createMetadataRows;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.io.File.createTempFile;
+import static java.sql.DriverManager.getConnection;
+import static org.apache.commons.io.IOUtils.readLines;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+
+
+public class DbGeneratorTest {
+  private static final int PACKAGE_COUNT = DbGenerator.BATCH_SIZE + 1;
+
+  private File dbFile;
+  private List<YumEntry> entries;
+
+  @Before
+  public void setUp() throws Exception {
+    dbFile = createTempFile("db_file", "sqlite");
+    entries = new ArrayList<>();
+    for (int i = 0; i < PACKAGE_COUNT; i++) {
+      YumPackage yumPackage = new RpmHeaderToYumPackageConverter(new RpmHeaderWrapper(readHeader(streamOf(COMPLEX_RPM_FILE_NAME)))).convert();
+      yumPackage.setChecksum(new YumPackageChecksum("sha256", "checksum" + i));
+      yumPackage.getSize().setPackaged(1024);
+      yumPackage.getTime().setFile(1363882800);
+      entries.add(new YumEntry(null, "any-repo", yumPackage));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    dbFile.delete();
+  }
+
+  @Test
+  public void writeAllPackagesAcrossBatches() throws Exception {
+    new PrimaryDbGenerator().createDb(dbFile, entries);
+
+    assertThat(count("select count(*) from packages"), equalTo(PACKAGE_COUNT));
+    assertThat(count("select count(distinct pkgKey) from files"), equalTo(PACKAGE_COUNT));
+  }
+
+  @Test
+  public void createIndicesAndTriggersAfterLoad() throws Exception {
+    new PrimaryDbGenerator().createDb(dbFile, entries);
+
+    assertThat(count("select count(*) from sqlite_master where type = 'index' and sql is not null"),
+      equalTo(schemaCommands("primary.sql", "CREATE INDEX")));
+    assertThat(count("select count(*) from sqlite_master where type = 'trigger'"),
+      equalTo(schemaCommands("primary.sql", "CREATE TRIGGER")));
+  }
+
+  @Test
+  public void writeFileListsAndOther() throws Exception {
+    new FileListsGenerator().createDb(dbFile, entries);
+    assertThat(count("select count(distinct pkgKey) from filelist"), equalTo(PACKAGE_COUNT));
+
+    new OtherDbGenerator().createDb(dbFile, entries);
+    assertThat(count("select count(*) from packages"), equalTo(PACKAGE_COUNT));
+  }
+
+  @Test
+  public void listFilesOfDirInFilelistsOrder() throws Exception {
+    YumPackage yumPackage = entries.get(0).getYumPackage();
+    yumPackage.setPackageFiles(XmlGeneratorTest.filesInRpmOrder());
+
+    List<List<Object>> rows = new FileListsGenerator().createRows(yumPackage).get(DbGenerator.FILELIST);
+
+    assertThat(rows, is(singletonList(asList((Object) "/etc", "ghost/conf.d/z.conf/a.conf", "gdff"))));
+  }
+
+  @Test
+  public void buildDbInMemory() throws Exception {
+    new PrimaryDbGenerator().createDb(dbFile, entries, 64 * 1024 * 1024);
+
+    assertThat(count("select count(*) from packages"), equalTo(PACKAGE_COUNT));
+    assertThat(count("select count(*) from sqlite_master where type = 'index' and sql is not null"),
+      equalTo(schemaCommands("primary.sql", "CREATE INDEX")));
+  }
+
+  @Test
+  public void fallBackToFileIfMemoryBudgetIsExceeded() throws Exception {
+    new PrimaryDbGenerator().createDb(dbFile, entries, 16 * 1024);
+
+    assertThat(count("select count(*) from packages"), equalTo(PACKAGE_COUNT));
+  }
+
+  @Test
+  public void copyPrecomputedRows() throws Exception {
+    entries.forEach(entry -> entry.setMetadataRows(createMetadataRows(entry.getYumPackage())));
+    entries.forEach(entry -> entry.getYumPackage().setPackageFiles(null));
+
+    new PrimaryDbGenerator().createDb(dbFile, entries);
+
+    assertThat(count("select count(distinct pkgKey) from files"), equalTo(PACKAGE_COUNT));
+  }
+
+  @Test
+  public void dropPrecomputedRowsWhenPackageIsReplaced() throws Exception {
+    entries.forEach(entry -> entry.setMetadataRows(createMetadataRows(entry.getYumPackage())));
+    entries.forEach(entry -> {
+        YumPackage changedPackage = entry.getYumPackage();
+        changedPackage.setName("changed-after-upload");
+        entry.setYumPackage(changedPackage);
+      });
+
+    assertThat(new PrimaryDbGenerator().hasPrecomputedRows(entries.get(0)), is(false));
+    new PrimaryDbGenerator().createDb(dbFile, entries);
+
+    assertThat(string("select distinct name from packages"), equalTo("changed-after-upload"));
+  }
+
+  @Test
+  public void ignoreOutdatedPrecomputedRows() throws Exception {
+    entries.forEach(entry -> entry.setMetadataRows(createMetadataRows(entry.getYumPackage())));
+    entries.forEach(entry -> entry.getMetadataRows().setVersion(MetadataRows.CURRENT_VERSION - 1));
+
+    assertThat(new PrimaryDbGenerator().hasPrecomputedRows(entries.get(0)), is(false));
+    new PrimaryDbGenerator().createDb(dbFile, entries);
+
+    assertThat(string("select distinct name from packages"), equalTo(COMPLEX_RPM_NAME));
+  }
+
+  @Test
+  public void precomputedRowsSurviveMongoMapping() throws Exception {
+    YumEntry entry = entries.get(0);
+    new PrimaryDbGenerator().createDb(dbFile, singletonList(entry));
+    int expectedFiles = count("select count(*) from files");
+    int expectedRequires = count("select count(*) from requires");
+
+    entry.setMetadataRows(createMetadataRows(entry.getYumPackage()));
+    MappingMongoConverter converter = new MappingMongoConverter(new DefaultDbRefResolver(mock(MongoDbFactory.class)),
+      new MongoMappingContext());
+    converter.afterPropertiesSet();
+
+    DBObject dbObject = new BasicDBObject();
+    converter.write(entry, dbObject);
+    YumEntry mappedEntry = converter.read(YumEntry.class, dbObject);
+    mappedEntry.getYumPackage().setPackageFiles(null);
+
+    assertThat(new PrimaryDbGenerator().hasPrecomputedRows(mappedEntry), is(true));
+    new PrimaryDbGenerator().createDb(dbFile, singletonList(mappedEntry));
+    assertThat(string("select name from packages"), equalTo(COMPLEX_RPM_NAME));
+    assertThat(count("select count(*) from files"), equalTo(expectedFiles));
+    assertThat(count("select count(*) from requires"), equalTo(expectedRequires));
+  }
+
+  private static int schemaCommands(String filename, String prefix) throws Exception {
+    try(InputStream inputStream = DbGeneratorTest.class.getResourceAsStream("/sql/" + filename)) {
+      return (int) readLines(inputStream).stream()
+        .filter(command -> command.trim().toUpperCase().startsWith(prefix))
+        .count();
+    }
+  }
+
+  private String string(String sql) throws Exception {
+    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      return resultSet.getString(1);
+    }
+  }
+
+  private int count(String sql) throws Exception {
+    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      return resultSet.getInt(1);
+    }
+  }
+
+  private static RpmHeader readHeader(InputStream inputStream) throws Exception {
+    return RpmHeader.read(inputStream);
+  }
+}
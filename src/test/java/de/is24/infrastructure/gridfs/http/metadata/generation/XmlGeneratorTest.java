@@ -0,0 +1,155 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChangeLog;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFiles;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeader;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
+import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.DIR;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.GHOST;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_HEADER_END;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_HEADER_START;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+
+public class XmlGeneratorTest {
+  private static final String CHECKSUM = "0123456789abcdef";
+
+  private YumEntry entry;
+
+  @Before
+  public void setUp() throws Exception {
+    YumPackage yumPackage = new RpmHeaderToYumPackageConverter(new RpmHeaderWrapper(readHeader(streamOf(COMPLEX_RPM_FILE_NAME)))).convert();
+    yumPackage.setChecksum(new YumPackageChecksum("sha256", CHECKSUM));
+    entry = new YumEntry(null, "any-repo", yumPackage);
+  }
+
+  @Test
+  public void primaryXmlContainsPackageData() throws Exception {
+    String xml = generate(new PrimaryXmlGenerator(), entry);
+
+    Document document = parse(xml);
+    assertThat(document.getDocumentElement().getLocalName(), equalTo("metadata"));
+    assertThat(document.getDocumentElement().getNamespaceURI(), equalTo(PrimaryXmlGenerator.COMMON_NAMESPACE));
+    assertThat(document.getDocumentElement().getAttribute("packages"), equalTo("1"));
+    assertThat(document.getElementsByTagNameNS(PrimaryXmlGenerator.COMMON_NAMESPACE, "package").getLength(), equalTo(1));
+    assertThat(xml, containsString("<name>" + COMPLEX_RPM_NAME + "</name>"));
+    assertThat(xml, containsString("<checksum type=\"sha256\" pkgid=\"YES\">" + CHECKSUM + "</checksum>"));
+    assertThat(xml,
+      containsString("<rpm:header-range start=\"" + COMPLEX_RPM_HEADER_START + "\" end=\"" + COMPLEX_RPM_HEADER_END + "\""));
+    assertThat(xml, containsString("<file>/etc/config</file>"));
+    assertThat(xml, not(containsString("rpmlib(")));
+    assertThat(xml, not(containsString("a_file.txt")));
+  }
+
+  @Test
+  public void fileListsXmlContainsAllFiles() throws Exception {
+    String xml = generate(new FileListsXmlGenerator(), entry, entry);
+
+    Document document = parse(xml);
+    assertThat(document.getDocumentElement().getLocalName(), equalTo("filelists"));
+    assertThat(document.getDocumentElement().getAttribute("packages"), equalTo("2"));
+    assertThat(document.getElementsByTagNameNS(FileListsXmlGenerator.FILELISTS_NAMESPACE, "package").getLength(), equalTo(2));
+    assertThat(xml, containsString("<package pkgid=\"" + CHECKSUM + "\" name=\"" + COMPLEX_RPM_NAME + "\""));
+    assertThat(xml, containsString("<file>/a_file.txt</file>"));
+    assertThat(xml, containsString("<file type=\"ghost\">/z_ghost.txt</file>"));
+    assertThat(xml, containsString("<file type=\"dir\">/</file>"));
+    assertThat(xml, containsString("<file>/bin/app</file>"));
+  }
+
+  @Test
+  public void fileListsXmlListsFilesOfDirInFilelistsOrder() throws Exception {
+    entry.getYumPackage().setPackageFiles(filesInRpmOrder());
+
+    String xml = generate(new FileListsXmlGenerator(), entry);
+
+    assertThat(xml.indexOf("/etc/ghost"), lessThan(xml.indexOf("/etc/conf.d")));
+    assertThat(xml.indexOf("/etc/conf.d"), lessThan(xml.indexOf("/etc/z.conf")));
+    assertThat(xml.indexOf("/etc/z.conf"), lessThan(xml.indexOf("/etc/a.conf")));
+  }
+
+  @Test
+  public void primaryXmlKeepsRpmOrderOfFiles() throws Exception {
+    entry.getYumPackage().setPackageFiles(filesInRpmOrder());
+
+    String xml = generate(new PrimaryXmlGenerator(), entry);
+
+    assertThat(xml.indexOf("/etc/z.conf"), lessThan(xml.indexOf("/etc/a.conf")));
+    assertThat(xml.indexOf("/etc/a.conf"), lessThan(xml.indexOf("/etc/conf.d")));
+    assertThat(xml.indexOf("/etc/conf.d"), lessThan(xml.indexOf("/etc/ghost")));
+  }
+
+  @Test
+  public void otherXmlContainsOldestChangeLogFirst() throws Exception {
+    List<YumPackageChangeLog> changeLogs = asList(changeLog("newest", 2), changeLog("oldest", 1));
+    entry.getYumPackage().setChangeLogs(changeLogs);
+
+    String xml = generate(new OtherXmlGenerator(), entry);
+
+    assertThat(parse(xml).getDocumentElement().getLocalName(), equalTo("otherdata"));
+    assertThat(xml.indexOf("oldest"), lessThan(xml.indexOf("newest")));
+    assertThat(changeLogs.get(0).getMessage(), equalTo("newest"));
+  }
+
+  @Test
+  public void removeCharactersNotAllowedInXml() throws Exception {
+    entry.getYumPackage().setDescription("control\u0001character");
+
+    String xml = generate(new PrimaryXmlGenerator(), entry);
+
+    parse(xml);
+    assertThat(xml, containsString("<description>controlcharacter</description>"));
+  }
+
+  static YumPackageFiles filesInRpmOrder() {
+    return YumPackageFiles.of(new String[] { "/etc/" }, new int[] { 0, 0, 0, 0 },
+      new String[] { "z.conf", "conf.d", "ghost", "a.conf" }, new YumPackageFileType[] { FILE, DIR, GHOST, FILE });
+  }
+
+  private static YumPackageChangeLog changeLog(String message, int date) {
+    YumPackageChangeLog changeLog = new YumPackageChangeLog();
+    changeLog.setAuthor("author");
+    changeLog.setDate(date);
+    changeLog.setMessage(message);
+    return changeLog;
+  }
+
+  private static String generate(XmlGenerator generator, YumEntry... entries) throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    generator.createXml(outputStream, entries.length, asList(entries).iterator());
+    return outputStream.toString("UTF-8");
+  }
+
+  private static Document parse(String xml) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+  }
+
+  private static RpmHeader readHeader(InputStream inputStream) throws Exception {
+    return RpmHeader.read(inputStream);
+  }
+}
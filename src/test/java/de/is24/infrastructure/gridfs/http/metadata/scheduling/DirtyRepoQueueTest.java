@@ -0,0 +1,79 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+
+public class DirtyRepoQueueTest {
+  private static final String REPO = "repo";
+  private static final int DEBOUNCE = 2;
+  private static final int MAX_DELAY = 30;
+
+  private DirtyRepoQueue queue;
+  private long now;
+
+  @Before
+  public void setUp() throws Exception {
+    queue = new DirtyRepoQueue(DEBOUNCE, MAX_DELAY);
+    now = System.currentTimeMillis();
+  }
+
+  @Test
+  public void notifyListenerOfEveryChange() throws Exception {
+    List<String> notified = new ArrayList<>();
+    queue.setListener(notified::add);
+
+    queue.markDirty(REPO);
+    queue.markDirty(REPO);
+
+    assertThat(notified, contains(REPO, REPO));
+  }
+
+  @Test
+  public void cleanRepoIsNotDue() throws Exception {
+    assertThat(queue.takeIfDue(REPO, now + 60000), is(false));
+  }
+
+  @Test
+  public void dirtyRepoIsDueAfterDebounceWindow() throws Exception {
+    queue.markDirty(REPO);
+
+    assertThat(queue.takeIfDue(REPO, now), is(false));
+    assertThat(queue.takeIfDue(REPO, now + 3000), is(true));
+    assertThat(queue.takeIfDue(REPO, now + 3000), is(false));
+    assertThat(queue.getDirtyRepos(), empty());
+  }
+
+  @Test
+  public void coalesceBurstOfChanges() throws Exception {
+    queue.markDirty(REPO);
+    queue.markDirty(REPO);
+    queue.markDirty(REPO);
+
+    assertThat(queue.getDirtyRepos(), contains(REPO));
+    assertThat(queue.takeIfDue(REPO, now + 3000), is(true));
+    assertThat(queue.getEvents(), is(3L));
+    assertThat(queue.getTaken(), is(1L));
+  }
+
+  @Test
+  public void constantlyChangingRepoIsDueAfterMaxDelay() throws Exception {
+    queue.markDirty(REPO);
+
+    assertThat(queue.takeIfDue(REPO, now + 31000), is(true));
+  }
+
+  @Test
+  public void forgetRemovedRepo() throws Exception {
+    queue.markDirty(REPO);
+    queue.remove(REPO);
+
+    assertThat(queue.takeIfDue(REPO, now + 3000), is(false));
+  }
+}
@@ -0,0 +1,358 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor.Generation;
+import de.is24.infrastructure.gridfs.http.exception.GenerationCancelledException;
+import de.is24.util.monitoring.TestingInApplicationMonitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import static de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor.Priority.MANUAL;
+import static de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor.Priority.SCHEDULED;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class MetadataGenerationExecutorTest {
+  private static final String SMALL_REPO = "small-repo";
+  private static final String BIG_REPO = "big-repo";
+  private static final String OTHER_REPO = "other-repo";
+  private static final String BLOCKING_REPO = "blocking-repo";
+  private static final int SIZE_CLASS_DELAY = 30;
+  private static final String TOKEN = "node/token";
+
+  private MetadataService metadataService;
+  private RepoLeaseService leaseService;
+  private SecurityContext securityContext;
+  private YumEntriesHashCalculator entriesHashCalculator;
+  private MetadataGenerationExecutor generationExecutor;
+  private CountDownLatch blocker;
+  private List<String> generated;
+
+  @Before
+  public void setUp() throws Exception {
+    TestingInApplicationMonitor.resetInstanceForTesting();
+    metadataService = mock(MetadataService.class);
+    leaseService = mock(RepoLeaseService.class);
+
+    entriesHashCalculator = mock(YumEntriesHashCalculator.class);
+    when(entriesHashCalculator.entriesOf(SMALL_REPO)).thenReturn(10L);
+    when(entriesHashCalculator.entriesOf(BIG_REPO)).thenReturn(10000L);
+    when(entriesHashCalculator.entriesOf(OTHER_REPO)).thenReturn(20000L);
+
+    securityContext = new SecurityContextImpl();
+    securityContext.setAuthentication(new PreAuthenticatedAuthenticationToken("generator", "no credentials"));
+    generationExecutor = new MetadataGenerationExecutor(metadataService, entriesHashCalculator, leaseService,
+      TestingInApplicationMonitor.getInstance(), securityContext, 1, 30, SIZE_CLASS_DELAY);
+
+    blocker = new CountDownLatch(1);
+    generated = new CopyOnWriteArrayList<>();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    generationExecutor.shutdown();
+  }
+
+  @Test
+  public void manualRequestsFirstThenSmallReposThenOldest() throws Exception {
+    blockExecutor();
+    generationExecutor.submit(BIG_REPO, SCHEDULED, recordingGeneration());
+    Future<?> last = generationExecutor.submit(OTHER_REPO, SCHEDULED, recordingGeneration());
+    generationExecutor.submit(SMALL_REPO, SCHEDULED, recordingGeneration());
+    generationExecutor.submit(OTHER_REPO + "-manual", MANUAL, recordingGeneration());
+
+    assertThat(generationExecutor.getQueuedRepos(), contains(OTHER_REPO + "-manual", SMALL_REPO, BIG_REPO, OTHER_REPO));
+    blocker.countDown();
+    last.get(10, SECONDS);
+
+    assertThat(generated, contains(BLOCKING_REPO, OTHER_REPO + "-manual", SMALL_REPO, BIG_REPO, OTHER_REPO));
+  }
+
+  @Test
+  public void bigReposOvertakeSmallOnesAfterWaitingForTheirSizeClasses() throws Exception {
+    generationExecutor.shutdown();
+    generationExecutor = new MetadataGenerationExecutor(metadataService, entriesHashCalculator, leaseService,
+      TestingInApplicationMonitor.getInstance(), securityContext, 1, 30, 0);
+
+    blockExecutor();
+    generationExecutor.submit(BIG_REPO, SCHEDULED, recordingGeneration());
+    Thread.sleep(5);
+    generationExecutor.submit(SMALL_REPO, SCHEDULED, recordingGeneration());
+
+    assertThat(generationExecutor.getQueuedRepos(), contains(BIG_REPO, SMALL_REPO));
+    blocker.countDown();
+  }
+
+  @Test
+  public void queueRepositoryAtMostOnce() throws Exception {
+    blockExecutor();
+    Future<?> first = generationExecutor.submit(SMALL_REPO, SCHEDULED, recordingGeneration());
+    Future<?> second = generationExecutor.submit(SMALL_REPO, SCHEDULED, recordingGeneration());
+
+    assertThat(second, sameInstance(first));
+    assertThat(generationExecutor.getQueueSize(), is(1));
+    assertThat(generationExecutor.getCoalesced(), is(1L));
+
+    blocker.countDown();
+    first.get(10, SECONDS);
+    assertThat(generated, contains(BLOCKING_REPO, SMALL_REPO));
+  }
+
+  @Test
+  public void manualRequestReplacesQueuedScheduledOne() throws Exception {
+    blockExecutor();
+    Future<?> scheduled = generationExecutor.submit(SMALL_REPO, SCHEDULED, recordingGeneration());
+    Future<?> manual = generationExecutor.submit(SMALL_REPO, MANUAL, recordingGeneration());
+
+    assertThat(scheduled.isCancelled(), is(true));
+    assertThat(generationExecutor.getQueueSize(), is(1));
+
+    blocker.countDown();
+    manual.get(10, SECONDS);
+    assertThat(generated, contains(BLOCKING_REPO, SMALL_REPO));
+  }
+
+  @Test
+  public void queueRepositoryAgainWhenItsGenerationFinished() throws Exception {
+    generationExecutor.shutdown();
+    generationExecutor = new MetadataGenerationExecutor(metadataService, entriesHashCalculator, leaseService,
+      TestingInApplicationMonitor.getInstance(), securityContext, 2, 30, SIZE_CLASS_DELAY);
+
+    blockExecutor();
+    Future<?> next = generationExecutor.submit(BLOCKING_REPO, SCHEDULED, recordingGeneration());
+    Future<?> coalesced = generationExecutor.submit(BLOCKING_REPO, SCHEDULED, recordingGeneration());
+
+    assertThat(coalesced, sameInstance(next));
+    assertThat(generationExecutor.getFollowUpRepos(), contains(BLOCKING_REPO));
+    assertThat(generationExecutor.getQueueSize(), is(0));
+    assertThat(generated, contains(BLOCKING_REPO));
+
+    blocker.countDown();
+    next.get(10, SECONDS);
+    assertThat(generated, contains(BLOCKING_REPO, BLOCKING_REPO));
+    assertThat(generationExecutor.getFollowUpRepos(), empty());
+  }
+
+  @Test
+  public void generateScheduledWhileHoldingLease() throws Exception {
+    when(leaseService.tryAcquire(SMALL_REPO)).thenReturn(TOKEN);
+
+    generationExecutor.generateIfNecessary(SMALL_REPO).get(10, SECONDS);
+
+    InOrder inOrder = inOrder(leaseService, metadataService);
+    inOrder.verify(leaseService).tryAcquire(SMALL_REPO);
+    inOrder.verify(metadataService).generateYumMetadataIfNecessary(SMALL_REPO);
+    inOrder.verify(leaseService).release(SMALL_REPO, TOKEN);
+  }
+
+  @Test
+  public void skipScheduledIfLeasedByAnotherNode() throws Exception {
+    when(leaseService.tryAcquire(SMALL_REPO)).thenReturn(null);
+
+    generationExecutor.generateIfNecessary(SMALL_REPO).get(10, SECONDS);
+
+    verify(metadataService, never()).generateYumMetadataIfNecessary(SMALL_REPO);
+    verify(leaseService, never()).release(anyString(), anyString());
+  }
+
+  @Test
+  public void generateManuallyWhileHoldingLease() throws Exception {
+    when(leaseService.acquire(SMALL_REPO)).thenReturn(TOKEN);
+
+    generationExecutor.generateAndWait(SMALL_REPO);
+
+    InOrder inOrder = inOrder(leaseService, metadataService);
+    inOrder.verify(leaseService).acquire(SMALL_REPO);
+    inOrder.verify(metadataService).generateYumMetadata(SMALL_REPO);
+    inOrder.verify(leaseService).release(SMALL_REPO, TOKEN);
+  }
+
+  @Test(expected = IOException.class)
+  public void failManualGenerationIfLeasedByAnotherNode() throws Exception {
+    when(leaseService.acquire(SMALL_REPO)).thenReturn(null);
+
+    try {
+      generationExecutor.generateAndWait(SMALL_REPO);
+    } finally {
+      verify(metadataService, never()).generateYumMetadata(SMALL_REPO);
+    }
+  }
+
+  @Test
+  public void cancelRunningGenerationAtNextCheckpoint() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    Future<?> future = generationExecutor.submit(SMALL_REPO, SCHEDULED, reponame -> {
+      RunningGeneration.enterPhase("create primary db");
+      started.countDown();
+      while (true) {
+        RunningGeneration.checkpoint();
+        Thread.yield();
+      }
+    });
+    started.await(10, SECONDS);
+
+    assertThat(generationExecutor.getRunningGenerations(), contains(startsWith(SMALL_REPO + " in phase create primary db")));
+    assertThat(generationExecutor.cancel(SMALL_REPO), is(true));
+
+    try {
+      future.get(10, SECONDS);
+      fail("generation should be stopped");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GenerationCancelledException.class));
+    }
+    assertThat(generationExecutor.getStopped(), is(1L));
+    assertThat(generationExecutor.runningGenerations(), empty());
+  }
+
+  @Test
+  public void cancelRunningGenerationWhenItsLeaseIsLost() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    Future<?> future = generationExecutor.submit(SMALL_REPO, SCHEDULED, reponame -> {
+      started.countDown();
+      while (true) {
+        RunningGeneration.checkpoint();
+        Thread.yield();
+      }
+    });
+    started.await(10, SECONDS);
+
+    leaseLostListener().accept(SMALL_REPO);
+
+    try {
+      future.get(10, SECONDS);
+      fail("generation should be stopped");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GenerationCancelledException.class));
+    }
+  }
+
+  @Test
+  public void stopGenerationBeforePublishingIfLeaseIsNoLongerHeld() throws Exception {
+    when(leaseService.tryAcquire(SMALL_REPO)).thenReturn(TOKEN);
+    when(leaseService.holds(SMALL_REPO, TOKEN)).thenReturn(false);
+    doAnswer(invocation -> {
+        RunningGeneration.checkLease();
+        return null;
+      }).when(metadataService).generateYumMetadataIfNecessary(SMALL_REPO);
+
+    try {
+      generationExecutor.generateIfNecessary(SMALL_REPO).get(10, SECONDS);
+      fail("generation should be stopped");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GenerationCancelledException.class));
+    }
+    verify(leaseService).release(SMALL_REPO, TOKEN);
+  }
+
+  @Test
+  public void cancelQueuedGeneration() throws Exception {
+    blockExecutor();
+    Future<?> queued = generationExecutor.submit(SMALL_REPO, SCHEDULED, recordingGeneration());
+
+    assertThat(generationExecutor.cancel(SMALL_REPO), is(true));
+    assertThat(queued.isCancelled(), is(true));
+    assertThat(generationExecutor.getQueuedRepos(), empty());
+    blocker.countDown();
+  }
+
+  @Test
+  public void stopGenerationAfterDeadline() throws Exception {
+    generationExecutor.shutdown();
+    generationExecutor = new MetadataGenerationExecutor(metadataService, mock(YumEntriesHashCalculator.class),
+      leaseService, TestingInApplicationMonitor.getInstance(), securityContext, 1, 0, SIZE_CLASS_DELAY);
+
+    Future<?> future = generationExecutor.submit(SMALL_REPO, SCHEDULED, reponame -> {
+      while (true) {
+        RunningGeneration.checkpoint();
+        Thread.yield();
+      }
+    });
+
+    try {
+      future.get(10, SECONDS);
+      fail("generation should be stopped");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(GenerationCancelledException.class));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void generateAndWaitPassesFailures() throws Exception {
+    when(leaseService.acquire(SMALL_REPO)).thenReturn(TOKEN);
+    doThrow(new IOException("failed")).when(metadataService).generateYumMetadata(SMALL_REPO);
+    generationExecutor.generateAndWait(SMALL_REPO);
+  }
+
+  @Test
+  public void generateWithSecurityContext() throws Exception {
+    Authentication[] authentication = new Authentication[1];
+    generationExecutor.submit(SMALL_REPO, SCHEDULED,
+      reponame -> authentication[0] = SecurityContextHolder.getContext().getAuthentication()).get(10, SECONDS);
+
+    assertThat(authentication[0], sameInstance(securityContext.getAuthentication()));
+  }
+
+  @Test
+  public void groupReposBySizeClass() throws Exception {
+    assertThat(MetadataGenerationExecutor.sizeClassOf(0), is(0));
+    assertThat(MetadataGenerationExecutor.sizeClassOf(1), is(1));
+    assertThat(MetadataGenerationExecutor.sizeClassOf(600), is(MetadataGenerationExecutor.sizeClassOf(1000)));
+    assertThat(MetadataGenerationExecutor.sizeClassOf(1000) < MetadataGenerationExecutor.sizeClassOf(1100), is(true));
+  }
+
+  private void blockExecutor() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    generationExecutor.submit(BLOCKING_REPO, SCHEDULED, reponame -> {
+      generated.add(reponame);
+      started.countDown();
+      try {
+        blocker.await(10, SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    started.await(10, SECONDS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Consumer<String> leaseLostListener() {
+    ArgumentCaptor<Object> listener = ArgumentCaptor.forClass(Object.class);
+    verify(leaseService).addLeaseLostListener((Consumer<String>) listener.capture());
+    return (Consumer<String>) listener.getValue();
+  }
+
+  private Generation recordingGeneration() {
+    return generated::add;
+  }
+}
@@ -0,0 +1,120 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class RepoLeaseServiceIT {
+  private static final int LEASE_SECONDS = 60;
+
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  private RepoLeaseService node1;
+  private RepoLeaseService node2;
+  private String repoName;
+
+  @Before
+  public void setUp() throws Exception {
+    node1 = node("node1", LEASE_SECONDS);
+    node2 = node("node2", LEASE_SECONDS);
+    repoName = uniqueRepoName();
+  }
+
+  @Test
+  public void onlyOneGenerationHoldsTheLease() throws Exception {
+    assertThat(node1.tryAcquire(repoName), notNullValue());
+    assertThat(node2.tryAcquire(repoName), nullValue());
+    assertThat(node1.tryAcquire(repoName), nullValue());
+    assertThat(node2.getRejected(), is(1L));
+    assertThat(node1.getRejected(), is(1L));
+  }
+
+  @Test
+  public void nodesShareDifferentRepositories() throws Exception {
+    String otherRepoName = uniqueRepoName();
+
+    assertThat(node1.tryAcquire(repoName), notNullValue());
+    assertThat(node2.tryAcquire(otherRepoName), notNullValue());
+  }
+
+  @Test
+  public void releasedLeaseCanBeAcquiredByOtherNode() throws Exception {
+    node1.release(repoName, node1.tryAcquire(repoName));
+
+    assertThat(node2.tryAcquire(repoName), notNullValue());
+    assertThat(node1.getHeldLeases(), empty());
+  }
+
+  @Test
+  public void releaseDoesNotAffectLeaseOfOtherGeneration() throws Exception {
+    String token = node1.tryAcquire(repoName);
+    node1.release(repoName, "node1/other-generation");
+    node2.release(repoName, token.replace("node1", "node2"));
+
+    assertThat(node2.tryAcquire(repoName), nullValue());
+    assertThat(node1.getHeldLeases(), contains(repoName));
+  }
+
+  @Test
+  public void waitForExpiringLease() throws Exception {
+    RepoLeaseService failedNode = node("failed", 1);
+    failedNode.tryAcquire(repoName);
+
+    assertThat(node("waiting", 3).acquire(repoName), notNullValue());
+  }
+
+  @Test
+  public void expiredLeaseOfFailedNodeIsReclaimed() throws Exception {
+    RepoLeaseService failedNode = node("failed", 0);
+    failedNode.tryAcquire(repoName);
+    Thread.sleep(10);
+
+    assertThat(node2.tryAcquire(repoName), notNullValue());
+
+    List<String> lostLeases = new CopyOnWriteArrayList<>();
+    failedNode.addLeaseLostListener(lostLeases::add);
+    failedNode.heartbeat();
+    assertThat(failedNode.getHeldLeases(), empty());
+    assertThat(failedNode.getLost(), is(1L));
+    assertThat(lostLeases, contains(repoName));
+  }
+
+  @Test
+  public void holdOnlyUnexpiredLeaseOfOwnGeneration() throws Exception {
+    RepoLeaseService failedNode = node("failed", 0);
+    String expiredToken = failedNode.tryAcquire(repoName);
+    Thread.sleep(10);
+    String token = node1.tryAcquire(repoName);
+
+    assertThat(node1.holds(repoName, token), is(true));
+    assertThat(failedNode.holds(repoName, expiredToken), is(false));
+  }
+
+  @Test
+  public void heartbeatExtendsHeldLeases() throws Exception {
+    RepoLeaseService shortLeaseNode = node("short", 1);
+    shortLeaseNode.tryAcquire(repoName);
+    Thread.sleep(600);
+    shortLeaseNode.heartbeat();
+    Thread.sleep(600);
+
+    assertThat(node2.tryAcquire(repoName), nullValue());
+    assertThat(shortLeaseNode.getHeldLeases(), contains(repoName));
+  }
+
+  private static RepoLeaseService node(String owner, int leaseInSec) {
+    return new RepoLeaseService(context.mongoTemplate(), owner, leaseInSec, "*/20 * * * * *");
+  }
+}
@@ -1,18 +1,20 @@
 package de.is24.infrastructure.gridfs.http.metadata.scheduling;
 
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
-import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
 import org.junit.Before;
 import org.junit.Test;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -20,9 +22,10 @@ import static org.mockito.Mockito.when;
 public class RepoMetadataGeneratorJobTest {
   private static final String REPO_NAME = "any-repo";
   private static final int DELAY = 12;
+  private static final int SWEEP_DELAY = 10;
 
-  private MetadataService service;
-  private MongoPrimaryDetector detector;
+  private MetadataGenerationExecutor service;
+  private DirtyRepoQueue dirtyRepoQueue;
   private RepoMetadataGeneratorJob job;
   private ScheduledExecutorService scheduledExecutorService;
   private ScheduledFuture<?> scheduledFuture;
@@ -31,35 +34,52 @@ public class RepoMetadataGeneratorJobTest {
   @Before
   @SuppressWarnings("unchecked")
   public void setUp() throws Exception {
-    service = mock(MetadataService.class);
-    detector = mock(MongoPrimaryDetector.class);
+    service = mock(MetadataGenerationExecutor.class);
     scheduledFuture = mock(ScheduledFuture.class);
     scheduledExecutorService = mock(ScheduledExecutorService.class);
     doReturn(scheduledFuture).when(scheduledExecutorService)
     .scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
-    job = new RepoMetadataGeneratorJob(REPO_NAME, service, detector, scheduledExecutorService, DELAY);
+    dirtyRepoQueue = new DirtyRepoQueue(0, 0);
+    job = new RepoMetadataGeneratorJob(REPO_NAME, service, dirtyRepoQueue, scheduledExecutorService, DELAY, SWEEP_DELAY);
   }
 
   @Test
-  public void executeMetadataGenerationIfPrimaryAndActive() throws Exception {
-    when(detector.isPrimary()).thenReturn(true);
+  public void executeMetadataGenerationIfActive() throws Exception {
     job.run();
-    verify(service).generateYumMetadataIfNecessary(eq(REPO_NAME));
+    verify(service).generateIfNecessary(eq(REPO_NAME));
   }
 
   @Test
-  public void doNothingIfNotPrimary() throws Exception {
-    when(detector.isPrimary()).thenReturn(false);
+  public void skipGenerationIfNotDirtyUntilSweep() throws Exception {
     job.run();
-    verify(service, never()).generateYumMetadataIfNecessary(eq(REPO_NAME));
+    job.run();
+    verify(service, times(1)).generateIfNecessary(eq(REPO_NAME));
+  }
+
+  @Test
+  public void executeMetadataGenerationIfDirty() throws Exception {
+    job.run();
+
+    dirtyRepoQueue.markDirty(REPO_NAME);
+    job.run();
+
+    verify(service, times(2)).generateIfNecessary(eq(REPO_NAME));
+    assertThat(dirtyRepoQueue.getDirtyRepos(), empty());
+  }
+
+  @Test
+  public void keepDirtyRepoIfNotActive() throws Exception {
+    job.deactivate();
+    dirtyRepoQueue.markDirty(REPO_NAME);
+    job.run();
+    assertThat(dirtyRepoQueue.getDirtyRepos(), contains(REPO_NAME));
   }
 
   @Test
   public void doNothingIfNotActive() throws Exception {
-    when(detector.isPrimary()).thenReturn(true);
     job.deactivate();
     job.run();
-    verify(service, never()).generateYumMetadataIfNecessary(eq(REPO_NAME));
+    verify(service, never()).generateIfNecessary(eq(REPO_NAME));
   }
 
   @Test
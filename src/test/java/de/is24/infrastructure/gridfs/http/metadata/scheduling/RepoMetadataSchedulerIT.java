@@ -1,13 +1,12 @@
 package de.is24.infrastructure.gridfs.http.metadata.scheduling;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
 import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
-import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import java.net.UnknownHostException;
+import java.util.Date;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -19,13 +18,16 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
 
 public class RepoMetadataSchedulerIT {
   public static final int DELAY = 10;
+  public static final int SWEEP_DELAY = 10;
 
   private RepoMetadataScheduler metadataScheduler;
   private ScheduledFuture<?> scheduledFuture;
+  private ScheduledExecutorService scheduledExecutorService;
 
   @ClassRule
   public static IntegrationTestContext context = new IntegrationTestContext();
@@ -33,18 +35,17 @@ public class RepoMetadataSchedulerIT {
   @Before
   @SuppressWarnings("unchecked")
   public void setUp() throws UnknownHostException {
-    MetadataService metadataService = context.metadataService();
-    MongoPrimaryDetector primaryDetector = new MongoPrimaryDetector(context.getMongo());
-    ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
+    scheduledExecutorService = mock(ScheduledExecutorService.class);
     scheduledFuture = mock(ScheduledFuture.class);
     doReturn(scheduledFuture).when(scheduledExecutorService)
     .scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
 
     metadataScheduler = new RepoMetadataScheduler(context.repoEntriesRepository(),
-      metadataService,
-      primaryDetector,
+      mock(MetadataGenerationExecutor.class),
+      context.dirtyRepoQueue(),
       scheduledExecutorService,
-      DELAY);
+      DELAY,
+      SWEEP_DELAY);
   }
 
 
@@ -96,6 +97,33 @@ public class RepoMetadataSchedulerIT {
     assertThat(existingJob.isActive(), is(false));
   }
 
+  @Test
+  public void checkChangedRepoAfterDebounce() throws Exception {
+    String repoName = givenSchedulerWithOneRunningJob();
+
+    context.dirtyRepoQueue().markDirty(repoName);
+
+    verify(scheduledExecutorService).schedule(metadataScheduler.getRepoJobs().get(repoName),
+      context.dirtyRepoQueue().getDebounceMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void markReposModifiedAfterGenerationAsDirty() throws Exception {
+    String repoName = givenSchedulerWithOneRunningJob();
+    context.repoService().updateLastMetadataGeneration(repoName, new Date(), "hash");
+    context.dirtyRepoQueue().remove(repoName);
+
+    metadataScheduler.update();
+    assertThat(context.dirtyRepoQueue().getDirtyRepos(), not(hasItem(repoName)));
+
+    RepoEntry entry = context.repoEntriesRepository().findFirstByName(repoName);
+    entry.setLastModified(new Date(entry.getLastMetadataGeneration().getTime() + 1000));
+    context.repoEntriesRepository().save(entry);
+
+    metadataScheduler.update();
+    assertThat(context.dirtyRepoQueue().getDirtyRepos(), hasItem(repoName));
+  }
+
   private String givenSchedulerWithOneRunningJob() {
     String repoName = uniqueRepoName();
     RepoEntry entry = new RepoEntry();
@@ -0,0 +1,68 @@
+package de.is24.infrastructure.gridfs.http.metadata.scheduling;
+
+import de.is24.infrastructure.gridfs.http.exception.GenerationCancelledException;
+import org.junit.After;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+public class RunningGenerationTest {
+  private static final String REPO_NAME = "any-repo";
+
+  @After
+  public void tearDown() throws Exception {
+    RunningGeneration.unbind();
+  }
+
+  @Test
+  public void checkpointWithoutGenerationDoesNothing() throws Exception {
+    RunningGeneration.checkpoint();
+    RunningGeneration.enterPhase("any phase");
+  }
+
+  @Test
+  public void passCheckpointBeforeDeadline() throws Exception {
+    RunningGeneration generation = new RunningGeneration(REPO_NAME, 1000, 2000);
+    generation.check(2000);
+  }
+
+  @Test(expected = GenerationCancelledException.class)
+  public void stopAfterDeadline() throws Exception {
+    RunningGeneration generation = new RunningGeneration(REPO_NAME, 1000, 2000);
+    generation.check(2001);
+  }
+
+  @Test(expected = GenerationCancelledException.class)
+  public void stopAtCheckpointIfCancelled() throws Exception {
+    RunningGeneration generation = new RunningGeneration(REPO_NAME, System.currentTimeMillis(), Long.MAX_VALUE);
+    RunningGeneration.bind(generation);
+    generation.cancel();
+    RunningGeneration.checkpoint();
+  }
+
+  @Test
+  public void passLeaseCheckWithoutBoundLease() throws Exception {
+    RunningGeneration.bind(new RunningGeneration(REPO_NAME, System.currentTimeMillis(), Long.MAX_VALUE));
+
+    RunningGeneration.checkLease();
+  }
+
+  @Test(expected = GenerationCancelledException.class)
+  public void stopAtLeaseCheckIfLeaseIsLost() throws Exception {
+    RunningGeneration.bind(new RunningGeneration(REPO_NAME, System.currentTimeMillis(), Long.MAX_VALUE));
+    RunningGeneration.bindLease(() -> false);
+
+    RunningGeneration.checkLease();
+  }
+
+  @Test
+  public void trackPhaseOfBoundGeneration() throws Exception {
+    RunningGeneration generation = new RunningGeneration(REPO_NAME, System.currentTimeMillis(), Long.MAX_VALUE);
+    RunningGeneration.bind(generation);
+
+    RunningGeneration.enterPhase("create primary db");
+
+    assertThat(generation.getPhase(), is("create primary db"));
+  }
+}
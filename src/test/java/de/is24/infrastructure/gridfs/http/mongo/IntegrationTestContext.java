@@ -2,20 +2,31 @@ package de.is24.infrastructure.gridfs.http.mongo;
 
 import com.mongodb.Mongo;
 import com.mongodb.gridfs.GridFS;
+import de.is24.infrastructure.gridfs.http.gridfs.DeletionThrottle;
 import de.is24.infrastructure.gridfs.http.gridfs.GridFsFileStorageService;
+import de.is24.infrastructure.gridfs.http.gridfs.RpmHeaderStore;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
+import de.is24.infrastructure.gridfs.http.maintenance.MetadataRegenerator;
+import de.is24.infrastructure.gridfs.http.metadata.GenerationReports;
 import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
 import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepository;
+import de.is24.infrastructure.gridfs.http.metadata.RepodataArtifactCache;
+import de.is24.infrastructure.gridfs.http.metadata.RepodataArtifactsRepository;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepositoryImpl;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntryDetailsStore;
 import de.is24.infrastructure.gridfs.http.metadata.generation.RepoMdGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.DirtyRepoQueue;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RepoLeaseService;
 import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.infrastructure.gridfs.http.security.PGPSigner;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.infrastructure.gridfs.http.storage.StorageTestUtils;
 import de.is24.util.monitoring.InApplicationMonitor;
+import org.springframework.context.support.StaticApplicationContext;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
@@ -38,16 +49,24 @@ public class IntegrationTestContext extends MongoTestContext {
   private FileStorageService fileStorageService;
   private GridFS gridFs;
   private GridFsTemplate gridFsTemplate;
+  private DeletionThrottle deletionThrottle;
   private StorageService storageService;
   private YumEntriesRepository yumEntriesRepository;
   private RepoEntriesRepository repoEntriesRepository;
+  private RepodataArtifactCache repodataArtifactCache;
   private RepoService repoService;
   private RepoCleaner repoCleaner;
+  private RepoLeaseService repoLeaseService;
 
   private RepoMdGenerator repoMdGenerator;
 
   private MetadataService metadataService;
   private YumEntriesHashCalculator entriesHashCalculator;
+  private PackageCatalog packageCatalog;
+  private RpmHeaderStore rpmHeaderStore;
+  private YumEntryDetailsStore entryDetailsStore;
+  private MetadataRegenerator metadataRegenerator;
+  private DirtyRepoQueue dirtyRepoQueue;
   private StorageTestUtils storageTestUtils;
 
   public GridFS gridFs() {
@@ -59,15 +78,23 @@ public class IntegrationTestContext extends MongoTestContext {
 
   public FileStorageService fileStorageService() {
     if (fileStorageService == null) {
-      fileStorageService = new GridFsFileStorageService(gridFs(), gridFsTemplate(), mongoTemplate());
+      fileStorageService = new GridFsFileStorageService(gridFs(), gridFsTemplate(), mongoTemplate(),
+        deletionThrottle());
     }
     return fileStorageService;
   }
 
+  public DeletionThrottle deletionThrottle() {
+    if (deletionThrottle == null) {
+      deletionThrottle = new DeletionThrottle(new ReplicationLagMonitor(getMongo()), 10000, 500, 512, 1000);
+    }
+    return deletionThrottle;
+  }
+
   public StorageService gridFsService() {
     if (storageService == null) {
       storageService = new StorageService(fileStorageService(), yumEntriesRepository(),
-        repoService());
+        repoService(), entriesHashCalculator(), repoCleaner(), packageCatalog(), rpmHeaderStore());
     }
     return storageService;
   }
@@ -82,6 +109,12 @@ public class IntegrationTestContext extends MongoTestContext {
   public MongoTemplate mongoTemplate() {
     if (mongoTemplate == null) {
       mongoTemplate = mongoTemplate(getMongo());
+
+      // deliver the mapping events to the listeners of the application
+      StaticApplicationContext applicationContext = new StaticApplicationContext();
+      applicationContext.addApplicationListener(entryDetailsStore());
+      applicationContext.refresh();
+      mongoTemplate.setApplicationContext(applicationContext);
     }
     return mongoTemplate;
   }
@@ -102,23 +135,38 @@ public class IntegrationTestContext extends MongoTestContext {
 
   public RepoService repoService() {
     if (repoService == null) {
-      repoService = new RepoService(repoEntriesRepository());
+      repoService = new RepoService(repoEntriesRepository(), dirtyRepoQueue());
     }
     return repoService;
   }
 
+  public DirtyRepoQueue dirtyRepoQueue() {
+    if (dirtyRepoQueue == null) {
+      dirtyRepoQueue = new DirtyRepoQueue(0, 0);
+    }
+    return dirtyRepoQueue;
+  }
+
   public PGPSigner pgpSigner() {
     return new PGPSigner(new ClassPathResource("/gpg/secring.gpg"), "yum-repo-server");
   }
 
   public RepoCleaner repoCleaner() {
     if (repoCleaner == null) {
-      repoCleaner = new RepoCleaner(mongoTemplate(), yumEntriesRepository(), fileStorageService(), repoService());
+      repoCleaner = new RepoCleaner(mongoTemplate(), fileStorageService(), repoService(), entriesHashCalculator(),
+        packageCatalog(), repoLeaseService());
     }
 
     return repoCleaner;
   }
 
+  public RepoLeaseService repoLeaseService() {
+    if (repoLeaseService == null) {
+      repoLeaseService = new RepoLeaseService(mongoTemplate(), 60, "*/20 * * * * *");
+    }
+    return repoLeaseService;
+  }
+
   public RepoMdGenerator repoMdGenerator() {
     if (repoMdGenerator == null) {
       repoMdGenerator = new RepoMdGenerator(fileStorageService(), pgpSigner());
@@ -133,15 +181,52 @@ public class IntegrationTestContext extends MongoTestContext {
     return entriesHashCalculator;
   }
 
+  public PackageCatalog packageCatalog() {
+    if (packageCatalog == null) {
+      packageCatalog = new PackageCatalog(mongoTemplate(), entriesHashCalculator(), 200);
+    }
+    return packageCatalog;
+  }
+
+  public RpmHeaderStore rpmHeaderStore() {
+    if (rpmHeaderStore == null) {
+      rpmHeaderStore = new RpmHeaderStore(mongoTemplate());
+    }
+    return rpmHeaderStore;
+  }
+
+  public YumEntryDetailsStore entryDetailsStore() {
+    if (entryDetailsStore == null) {
+      entryDetailsStore = new YumEntryDetailsStore(mongoTemplate(), rpmHeaderStore());
+    }
+    return entryDetailsStore;
+  }
+
+  public MetadataRegenerator metadataRegenerator() {
+    if (metadataRegenerator == null) {
+      metadataRegenerator = new MetadataRegenerator(mongoTemplate(), fileStorageService(), gridFsService(), 2, 10);
+    }
+    return metadataRegenerator;
+  }
+
   public MetadataService metadataService() {
     if (metadataService == null) {
-      entriesHashCalculator = new YumEntriesHashCalculator(mongoTemplate());
-      metadataService = new MetadataService(gridFsService(), fileStorageService(), yumEntriesRepository(), repoMdGenerator(),
-        repoService(), repoCleaner(), entriesHashCalculator(), InApplicationMonitor.getInstance());
+      metadataService = new MetadataService(gridFsService(), fileStorageService(), yumEntriesRepository(),
+        entryDetailsStore(), repoMdGenerator(), repoService(), repoCleaner(), entriesHashCalculator(),
+        repodataArtifactCache(), new GenerationReports(10), InApplicationMonitor.getInstance());
     }
     return metadataService;
   }
 
+  public RepodataArtifactCache repodataArtifactCache() {
+    if (repodataArtifactCache == null) {
+      repodataArtifactCache = new RepodataArtifactCache(
+        new MongoRepositoryFactory(mongoTemplate()).getRepository(RepodataArtifactsRepository.class),
+        fileStorageService());
+    }
+    return repodataArtifactCache;
+  }
+
   public static GridFsTemplate gridFsTemplate(Mongo mongo) {
     SimpleMongoDbFactory dbFactory = new SimpleMongoDbFactory(mongo, RPM_DB);
     DbRefResolver dbRefResolver = new DefaultDbRefResolver(dbFactory);
@@ -0,0 +1,46 @@
+package de.is24.infrastructure.gridfs.http.mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+import java.util.Date;
+import static de.is24.infrastructure.gridfs.http.mongo.ReplicationLagMonitor.lagMillis;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+public class ReplicationLagMonitorTest {
+  @Test
+  public void lagOfSlowestSecondary() throws Exception {
+    DBObject status = status(member("PRIMARY", 10000), member("SECONDARY", 9000), member("SECONDARY", 7500));
+
+    assertThat(lagMillis(status), is(2500L));
+  }
+
+  @Test
+  public void ignoreMembersThatAreNotSecondaries() throws Exception {
+    DBObject status = status(member("PRIMARY", 10000), member("ARBITER", 0), member("RECOVERING", 100));
+
+    assertThat(lagMillis(status), is(0L));
+  }
+
+  @Test
+  public void noLagWithoutPrimary() throws Exception {
+    DBObject status = status(member("SECONDARY", 9000), member("SECONDARY", 7500));
+
+    assertThat(lagMillis(status), is(0L));
+  }
+
+  private static DBObject status(DBObject... members) {
+    BasicDBList memberList = new BasicDBList();
+    for (DBObject member : members) {
+      memberList.add(member);
+    }
+    return new BasicDBObject("members", memberList);
+  }
+
+  private static DBObject member(String state, long optime) {
+    return new BasicDBObject("stateStr", state).append("optimeDate", new Date(optime));
+  }
+}
@@ -1,5 +1,6 @@
 package de.is24.infrastructure.gridfs.http.repos;
 
+import com.mongodb.gridfs.GridFSInputFile;
 import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
@@ -75,9 +76,8 @@ public class RepoCleanerIT {
   @Before
   public void setUp() throws Exception {
     reponame = uniqueRepoName();
-    service = new RepoCleaner(mongoTemplate(context.getMongo()), context.yumEntriesRepository(),
-      context.fileStorageService(),
-      context.repoService());
+    service = new RepoCleaner(mongoTemplate(context.getMongo()), context.fileStorageService(),
+      context.repoService(), context.entriesHashCalculator(), context.packageCatalog(), context.repoLeaseService());
   }
 
   @Test
@@ -110,6 +110,34 @@ public class RepoCleanerIT {
     assertThatGridFsFileIsMarkedAsDeleted();
   }
 
+  @Test
+  public void cleanupSinglePackageByMaxKeepRpms() throws Exception {
+    givenRepoEntryWithMaxDays(0);
+    givenRepoEntryWithMaxKeep(3);
+    givenRepoWithFilesToClean();
+
+    assertThat(service.cleanByMaxNum(reponame, NAME2, NOARCH), is(true));
+
+    assertThatItemsHasBeenCleanedUp();
+    assertThatGridFsFileIsMarkedAsDeleted();
+    assertThat(service.cleanByMaxNum(reponame, NAME2, NOARCH), is(false));
+  }
+
+  @Test
+  public void reconcileMaxKeepRpmsOfRepoNotLeasedByOtherNode() throws Exception {
+    givenRepoEntryWithMaxDays(0);
+    givenRepoEntryWithMaxKeep(3);
+    givenRepoWithFilesToClean();
+
+    String token = context.repoLeaseService().tryAcquire(reponame);
+    service.reconcileMaxNum();
+    assertThatNoItemsHasBeenCleanedUp();
+
+    context.repoLeaseService().release(reponame, token);
+    service.reconcileMaxNum();
+    assertThatItemsHasBeenCleanedUp();
+  }
+
   @Test
   public void doNothingIfMaxKeepRpmsAndMaxDaysRpmsIsZero() throws Exception {
     givenRepoEntryWithMaxKeep(0);
@@ -185,7 +213,9 @@ public class RepoCleanerIT {
       entry.setRepo(reponame);
       context.yumEntriesRepository().save(entry);
 
-      context.gridFsTemplate().store(simpleInputStream(), entry.getFullRpmFilename()).save();
+      GridFSInputFile file = context.gridFs().createFile(simpleInputStream(), entry.getFullRpmFilename());
+      file.setId(entry.getId());
+      file.save();
     }
   }
 
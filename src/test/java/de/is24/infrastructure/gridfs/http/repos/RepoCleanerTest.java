@@ -0,0 +1,122 @@
+package de.is24.infrastructure.gridfs.http.repos;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.metadata.PackageCatalog;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.RepoLeaseService;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import org.bson.types.ObjectId;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class RepoCleanerTest {
+  private static final String REPONAME = "repo";
+  private static final long NOW = 1450000000123L;
+  private static final int MAX_DAYS = 3;
+  private static final long CUTOFF_IN_SEC = MILLISECONDS.toSeconds(NOW - DAYS.toMillis(MAX_DAYS));
+
+  private MongoTemplate mongo;
+  private Cursor results;
+  private FileStorageService fileStorageService;
+  private RepoService repoService;
+  private YumEntriesHashCalculator entriesHashCalculator;
+  private RepoCleaner repoCleaner;
+
+  @Before
+  public void setUp() throws Exception {
+    DateTimeUtils.setCurrentMillisFixed(NOW);
+    mongo = mock(MongoTemplate.class);
+    DBCollection entries = mock(DBCollection.class);
+    results = mock(Cursor.class);
+    when(mongo.getCollection(YUM_ENTRY_COLLECTION)).thenReturn(entries);
+    when(entries.aggregate(anyListOf(DBObject.class), any(AggregationOptions.class))).thenReturn(results);
+    fileStorageService = mock(FileStorageService.class);
+    repoService = mock(RepoService.class);
+    entriesHashCalculator = mock(YumEntriesHashCalculator.class);
+    repoCleaner = new RepoCleaner(mongo, fileStorageService, repoService, entriesHashCalculator,
+      mock(PackageCatalog.class), mock(RepoLeaseService.class));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    DateTimeUtils.setCurrentMillisSystem();
+  }
+
+  @Test
+  public void selectOnlyRpmsBuiltBeforeTheCutoffInMongo() throws Exception {
+    assertThat(repoCleaner.cleanByMaxDays(REPONAME, MAX_DAYS), is(false));
+
+    List<DBObject> pipeline = aggregatedPipeline();
+    assertThat(pipeline.size(), is(2));
+    // rpms built exactly at the cutoff are kept
+    assertThat(pipeline.get(0), is((DBObject) new BasicDBObject("$match",
+      new BasicDBObject("repo", REPONAME).append("yumPackage.time.build", new BasicDBObject("$lt", CUTOFF_IN_SEC)))));
+    assertThat(pipeline.get(1), is((DBObject) new BasicDBObject("$project",
+      new BasicDBObject("file", "$_id").append("filename", "$yumPackage.location.href")
+      .append("checksum", "$yumPackage.checksum.checksum"))));
+  }
+
+  @Test
+  public void deleteSelectedRpms() throws Exception {
+    ObjectId id = new ObjectId();
+    when(results.hasNext()).thenReturn(true, false);
+    when(results.next()).thenReturn(new BasicDBObject("file", id).append("filename", "noarch/old.rpm")
+      .append("checksum", "old-checksum"));
+    when(mongo.remove(any(Query.class), eq(YumEntry.class))).thenReturn(new WriteResult(1, false, null));
+    // the batch reuses its lists, so the arguments are copied when passed
+    List<Object> removedChecksums = new ArrayList<>();
+    doAnswer(copyArgument(1, removedChecksums)).when(entriesHashCalculator).entriesRemoved(eq(REPONAME), any());
+    List<Object> markedIds = new ArrayList<>();
+    doAnswer(copyArgument(0, markedIds)).when(fileStorageService).markForDeletionByIds(any());
+
+    assertThat(repoCleaner.cleanByMaxDays(REPONAME, MAX_DAYS), is(true));
+
+    assertThat(removedChecksums, contains((Object) "old-checksum"));
+    assertThat(markedIds, contains((Object) id));
+    verify(repoService).createOrUpdate(REPONAME);
+  }
+
+  private static Answer<Void> copyArgument(int index, List<Object> copy) {
+    return invocation -> {
+      copy.addAll((Collection<?>) invocation.getArguments()[index]);
+      return null;
+    };
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private List<DBObject> aggregatedPipeline() {
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(mongo.getCollection(YUM_ENTRY_COLLECTION)).aggregate(captor.capture(), any(AggregationOptions.class));
+    return captor.getValue();
+  }
+}
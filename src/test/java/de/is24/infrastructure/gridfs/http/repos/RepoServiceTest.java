@@ -5,6 +5,7 @@ import de.is24.infrastructure.gridfs.http.domain.RepoType;
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
 import de.is24.infrastructure.gridfs.http.exception.RepositoryNotFoundException;
 import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepository;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.DirtyRepoQueue;
 import org.junit.Before;
 import org.junit.Test;
 import java.util.Date;
@@ -27,12 +28,21 @@ public class RepoServiceTest {
   public static final String EXTERNAL_URL = "http://any.domain/path/";
 
   private RepoEntriesRepository repository;
+  private DirtyRepoQueue dirtyRepoQueue;
   private RepoService service;
 
   @Before
   public void setup() {
     this.repository = mock(RepoEntriesRepository.class);
-    this.service = new RepoService(repository);
+    this.dirtyRepoQueue = mock(DirtyRepoQueue.class);
+    this.service = new RepoService(repository, dirtyRepoQueue);
+  }
+
+  @Test
+  public void markRepoAsDirtyOnUpdate() throws Exception {
+    service.createOrUpdate(ANY_REPONAME);
+
+    verify(dirtyRepoQueue).markDirty(ANY_REPONAME);
   }
 
   @Test
@@ -0,0 +1,188 @@
+package de.is24.infrastructure.gridfs.http.rpm;
+
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.redline_rpm.Builder;
+import org.redline_rpm.ReadableChannelWrapper;
+import org.redline_rpm.Scanner;
+import org.redline_rpm.header.AbstractHeader;
+import org.redline_rpm.header.Architecture;
+import org.redline_rpm.header.Header;
+import org.redline_rpm.header.Os;
+import org.redline_rpm.header.RpmType;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_HEADER_END;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_HEADER_START;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.nio.channels.Channels.newChannel;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class RpmHeaderTest {
+  private static final String[] CORPUS = {
+    "rpms/valid.noarch.rpm", "rpms/valid.src.rpm", "rpms/valid.headertoyumpackage.noarch.rpm"
+  };
+
+  @ClassRule
+  public static TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void decodeSameValuesAsRedlineForCorpus() throws Exception {
+    for (File rpm : corpus()) {
+      assertSameValuesAsRedline(rpm);
+    }
+  }
+
+  @Test
+  public void readPositionsOfHeader() throws Exception {
+    RpmHeader header = RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME));
+
+    assertThat(header.getStartPos(), is(COMPLEX_RPM_HEADER_START));
+    assertThat(header.getEndPos(), is(COMPLEX_RPM_HEADER_END));
+  }
+
+  @Test
+  public void requiredLengthGrowsWithPrefixUpToHeaderEnd() throws Exception {
+    byte[] rpm = Files.readAllBytes(new File(resource(CORPUS[2])).toPath());
+
+    long forLead = RpmHeader.requiredLength(new byte[0]);
+    long forSignature = RpmHeader.requiredLength(Arrays.copyOf(rpm, (int) forLead));
+    long forHeader = RpmHeader.requiredLength(Arrays.copyOf(rpm, (int) forSignature));
+
+    assertThat(forLead, is(112L));
+    assertThat(forSignature, is(COMPLEX_RPM_HEADER_START + 16L));
+    assertThat(forHeader, is((long) COMPLEX_RPM_HEADER_END));
+    assertThat(RpmHeader.requiredLength(rpm), is((long) COMPLEX_RPM_HEADER_END));
+  }
+
+  @Test
+  public void rebuildFromRawBytes() throws Exception {
+    RpmHeader header = RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME));
+
+    RpmHeader rebuilt = RpmHeader.of(header.getBytes(), header.getStartPos());
+
+    assertThat(rebuilt.getStartPos(), is(COMPLEX_RPM_HEADER_START));
+    assertThat(rebuilt.getEndPos(), is(COMPLEX_RPM_HEADER_END));
+    for (Header.HeaderTag tag : new Header.HeaderTag[] { Header.HeaderTag.NAME, Header.HeaderTag.FILESIZES }) {
+      assertThat(tag.toString(), rebuilt.contains(tag.getCode()), is(header.contains(tag.getCode())));
+    }
+    assertThat(rebuilt.readStrings(Header.HeaderTag.NAME.getCode()),
+      is(header.readStrings(Header.HeaderTag.NAME.getCode())));
+  }
+
+  @Test(expected = InvalidRpmHeaderException.class)
+  public void rejectTruncatedRawBytes() throws Exception {
+    byte[] bytes = RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME)).getBytes();
+    RpmHeader.of(Arrays.copyOf(bytes, bytes.length - 1), COMPLEX_RPM_HEADER_START);
+  }
+
+  @Test
+  public void missingTagHasNoValues() throws Exception {
+    RpmHeader header = RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME));
+
+    assertThat(header.contains(Header.HeaderTag.PREFIXES.getCode()), is(false));
+    assertThat(header.readStrings(Header.HeaderTag.PREFIXES.getCode()), nullValue());
+  }
+
+  @Test(expected = InvalidRpmHeaderException.class)
+  public void rejectTagOfOtherType() throws Exception {
+    RpmHeader.read(streamOf(COMPLEX_RPM_FILE_NAME)).readIntegers(Header.HeaderTag.NAME.getCode());
+  }
+
+  @Test(expected = InvalidRpmHeaderException.class)
+  public void rejectFileWithoutLead() throws Exception {
+    RpmHeader.read(streamOf("invalid.rpm"));
+  }
+
+  @Test(expected = InvalidRpmHeaderException.class)
+  public void rejectTruncatedHeader() throws Exception {
+    byte[] rpm = Files.readAllBytes(new File(resource(CORPUS[2])).toPath());
+    RpmHeader.read(new ByteArrayInputStream(Arrays.copyOf(rpm, COMPLEX_RPM_HEADER_END - 1)));
+  }
+
+  private static void assertSameValuesAsRedline(File rpm) throws Exception {
+    Header expected = readWithRedline(rpm);
+    RpmHeader header;
+    try(InputStream inputStream = new FileInputStream(rpm)) {
+      header = RpmHeader.read(inputStream);
+    }
+
+    assertThat(rpm + " start", header.getStartPos(), is(expected.getStartPos()));
+    assertThat(rpm + " end", header.getEndPos(), is(expected.getEndPos()));
+    for (Header.HeaderTag tag : Header.HeaderTag.values()) {
+      AbstractHeader.Entry<?> entry = expected.getEntry(tag);
+      Object values = (entry == null) ? null : entry.getValues();
+      if (values == null) {
+        assertThat(rpm + " " + tag, header.contains(tag.getCode()), is(false));
+      } else if (values instanceof String[]) {
+        assertThat(rpm + " " + tag, header.readStrings(tag.getCode()), is((String[]) values));
+      } else if (values instanceof int[]) {
+        assertThat(rpm + " " + tag, Arrays.equals(header.readIntegers(tag.getCode()), (int[]) values), is(true));
+      } else if (values instanceof short[]) {
+        assertThat(rpm + " " + tag, Arrays.equals(header.readShorts(tag.getCode()), (short[]) values), is(true));
+      } else {
+        assertThat(rpm + " " + tag, header.contains(tag.getCode()), is(true));
+      }
+    }
+  }
+
+  private static Header readWithRedline(File rpm) throws Exception {
+    try(InputStream inputStream = new FileInputStream(rpm)) {
+      return new Scanner().run(new ReadableChannelWrapper(newChannel(inputStream))).getHeader();
+    }
+  }
+
+  private static List<File> corpus() throws Exception {
+    List<File> corpus = new ArrayList<>();
+    for (String name : CORPUS) {
+      corpus.add(new File(resource(name)));
+    }
+    corpus.add(buildRpm("many-files", 2000, 0));
+    corpus.add(buildRpm("many-dependencies", 3, 500));
+    return corpus;
+  }
+
+  private static String resource(String name) {
+    return RpmHeaderTest.class.getClassLoader().getResource(name).getFile();
+  }
+
+  private static File buildRpm(String name, int files, int dependencies) throws Exception {
+    File content = tempFolder.newFile(name + ".txt");
+    try(FileOutputStream outputStream = new FileOutputStream(content)) {
+      outputStream.write("content with ümlaut".getBytes("UTF-8"));
+    }
+
+    Builder builder = new Builder();
+    builder.setPackage(name, "1.0", "1");
+    builder.setType(RpmType.BINARY);
+    builder.setPlatform(Architecture.NOARCH, Os.LINUX);
+    builder.setSummary("rpm header corpus with " + files + " files");
+    builder.setDescription("generated to compare rpm header readers, äöü");
+    builder.setBuildHost("localhost");
+    builder.setLicense("GPL");
+    builder.setGroup("test");
+    builder.setSourceRpm(name + "-1.0-1.src.rpm");
+    for (int i = 0; i < files; i++) {
+      builder.addFile("/opt/" + name + "/dir" + (i % 17) + "/file" + i + ".txt", content);
+    }
+    for (int i = 0; i < dependencies; i++) {
+      builder.addDependencyMore("dependency" + i, "1." + i);
+    }
+    return new File(tempFolder.getRoot(), builder.build(tempFolder.getRoot()));
+  }
+}
@@ -9,9 +9,6 @@ import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormatEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageRequirement;
 import org.junit.BeforeClass;
 import org.junit.Test;
-import org.redline_rpm.ReadableChannelWrapper;
-import org.redline_rpm.Scanner;
-import org.redline_rpm.header.Header;
 
 import java.io.InputStream;
 import java.util.HashMap;
@@ -44,7 +41,6 @@ import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.SOURCE_RPM_ARCH;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.SOURCE_RPM_FILE_NAME;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.SOURCE_RPM_LOCATION;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
-import static java.nio.channels.Channels.newChannel;
 import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -212,7 +208,7 @@ public class RpmHeaderToYumPackageConverterTest {
   }
 
 
-  private static Header readHeader(InputStream inputStream) throws Exception {
-    return new Scanner().run(new ReadableChannelWrapper(newChannel(inputStream))).getHeader();
+  private static RpmHeader readHeader(InputStream inputStream) throws Exception {
+    return RpmHeader.read(inputStream);
   }
 }
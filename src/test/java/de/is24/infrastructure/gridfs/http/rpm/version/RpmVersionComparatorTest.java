@@ -0,0 +1,128 @@
+package de.is24.infrastructure.gridfs.http.rpm.version;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static de.is24.infrastructure.gridfs.http.rpm.version.RpmVersionComparator.compareVersions;
+import static java.lang.Integer.signum;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assume.assumeTrue;
+
+
+public class RpmVersionComparatorTest {
+  private static final String[] VERSIONS = {
+    null, "", "0", "1", "01", "1.0", "1.00", "1.0.1", "1.01", "1.1", "1.10", "1.9", "2", "10", "1a", "1.a", "1b",
+    "a", "A", "ab", "abc", "1.0a", "1.0.a", "1.0-rc1", "1.0_rc2", "1..0", ".1", "1.", "1..", "-", "2.6.32",
+    "2.6.32-431.el6", "3.10.0-123.el7", "20130301145855", "12345678901234567890", "0003", "0300", "1.0+git",
+    "1.0.0.0.0", "el6", "el6_5", "el6.5", "fc20", "1.2.3beta4", "1.2.3.beta4", "1ü", "1.ü.2"
+  };
+  private static final String ALPHABET = "0123456789abzABZ.-_+";
+
+  private final RpmVersionSegmentGenerator segmentGenerator = new RpmVersionSegmentGenerator();
+  private final RpmVersionSegmentComparator segmentComparator = new RpmVersionSegmentComparator();
+
+  @Test
+  public void sameOrderingAsSegmentComparatorForKnownVersions() throws Exception {
+    for (String version1 : VERSIONS) {
+      for (String version2 : VERSIONS) {
+        assertSameOrdering(version1, version2);
+      }
+    }
+  }
+
+  @Test
+  public void sameOrderingAsSegmentComparatorForRandomVersions() throws Exception {
+    Random random = new Random(4711);
+    for (int i = 0; i < 100000; i++) {
+      String version1 = randomVersion(random);
+      String version2 = (random.nextInt(4) == 0) ? mutate(version1, random) : randomVersion(random);
+      assertSameOrdering(version1, version2);
+    }
+  }
+
+  @Test
+  public void tildeSortsBeforeEverything() throws Exception {
+    assertCompare(-1, "1.0~rc1", "1.0");
+    assertCompare(-1, "1.0~rc1", "1.0~rc2");
+    assertCompare(0, "1.0~rc1", "1.0~rc1");
+    assertCompare(-1, "1.0~rc1~git123", "1.0~rc1");
+    assertCompare(-1, "1.0~", "1.0");
+    assertCompare(1, "", "~1");
+  }
+
+  @Test
+  public void caretSortsAfterEndButBeforeEverythingElse() throws Exception {
+    assertCompare(1, "1.0^", "1.0");
+    assertCompare(1, "1.0^git1", "1.0");
+    assertCompare(-1, "1.0^git1", "1.01");
+    assertCompare(-1, "1.0^20160101", "1.0.1");
+    assertCompare(-1, "1.0^20160101^git1", "1.0^20160102");
+    assertCompare(-1, "1.0^git1", "1.0^git2");
+    assertCompare(1, "1.0^git1", "1.0~rc1");
+    assertCompare(-1, "1.0^git1~pre", "1.0^git1");
+    assertCompare(1, "1.0^git1~pre", "1.0");
+  }
+
+  @Test
+  public void compareWithoutAllocation() throws Exception {
+    java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+    long threadId = Thread.currentThread().getId();
+    int result = compareAll();
+
+    long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100; i++) {
+      result += compareAll();
+    }
+
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    assertThat("allocated bytes (result " + result + ")", allocated, lessThan(16 * 1024L));
+  }
+
+  private int compareAll() {
+    int result = 0;
+    for (String version1 : VERSIONS) {
+      for (String version2 : VERSIONS) {
+        result += compareVersions(version1, version2);
+      }
+    }
+    return result;
+  }
+
+  private void assertSameOrdering(String version1, String version2) {
+    int expected = signum(segmentComparator.compare(segmentGenerator.generate(version1),
+      segmentGenerator.generate(version2)));
+    assertThat("compare '" + version1 + "' with '" + version2 + "'", signum(compareVersions(version1, version2)),
+      is(expected));
+  }
+
+  private void assertCompare(int expected, String version1, String version2) {
+    assertThat(signum(compareVersions(version1, version2)), is(expected));
+    assertThat(signum(compareVersions(version2, version1)), is(-expected));
+  }
+
+  private static String randomVersion(Random random) {
+    StringBuilder version = new StringBuilder();
+    int length = random.nextInt(12);
+    for (int i = 0; i < length; i++) {
+      version.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+    return version.toString();
+  }
+
+  private static String mutate(String version, Random random) {
+    if (version.isEmpty()) {
+      return randomVersion(random);
+    }
+
+    char[] chars = version.toCharArray();
+    chars[random.nextInt(chars.length)] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+    return new String(chars);
+  }
+}
@@ -7,6 +7,9 @@ import java.util.Iterator;
 import java.util.List;
 
 
+/**
+ * Former comparison of versions split into segments, kept as reference for {@link RpmVersionComparator}.
+ */
 public class RpmVersionSegmentComparator implements Comparator<List<String>> {
   @Override
   public int compare(List<String> o1, List<String> o2) {
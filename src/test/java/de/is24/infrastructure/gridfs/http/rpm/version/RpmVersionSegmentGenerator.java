@@ -7,6 +7,9 @@ import java.util.regex.Pattern;
 import static java.lang.Character.isDigit;
 import static java.util.regex.Pattern.compile;
 
+/**
+ * Former split of versions into segments, kept as reference for {@link RpmVersionComparator}.
+ */
 public class RpmVersionSegmentGenerator {
 
   private static final Pattern NOT_ALPHANUM = compile("[^a-zA-Z0-9]");
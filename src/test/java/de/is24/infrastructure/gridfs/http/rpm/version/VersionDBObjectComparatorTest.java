@@ -9,9 +9,9 @@ import static java.lang.Math.max;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
-public class CachingVersionDBObjectComparatorTest {
+public class VersionDBObjectComparatorTest {
 
-  private final CachingVersionDBObjectComparator comparator = new CachingVersionDBObjectComparator();
+  private final VersionDBObjectComparator comparator = new VersionDBObjectComparator();
 
   @Test
   public void compare() throws Exception {
@@ -0,0 +1,77 @@
+package de.is24.infrastructure.gridfs.http.rpm.version;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageVersion;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static de.is24.infrastructure.gridfs.http.rpm.version.VersionSortKey.sortKey;
+import static java.lang.Integer.signum;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+public class VersionSortKeyTest {
+  private static final String[] VERSIONS = {
+    null, "", "0", "1", "01", "1.0", "1.00", "1.0.1", "1.01", "1.1", "1.10", "1.9", "2", "10", "1a", "1.a", "1b",
+    "a", "A", "ab", "abc", "1.0a", "1.0-rc1", "1..0", ".1", "1.", "2.6.32-431.el6", "20130301145855",
+    "12345678901234567890", "0003", "0300", "el6_5", "1.0~rc1", "1.0~rc1~git123", "1.0~", "~1", "1.0^", "1.0^git1",
+    "1.0^20160101", "1.0^git1~pre", "1ü", "1.~", "^"
+  };
+  private static final String ALPHABET = "0123456789abzABZ.-~^";
+  private static final int[] EPOCHS = { Integer.MIN_VALUE, -1, 0, 1, 15, 16, Integer.MAX_VALUE };
+
+  private final YumPackageVersionComparator comparator = new YumPackageVersionComparator();
+
+  @Test
+  public void orderOfKeysIsOrderOfVersions() throws Exception {
+    for (String ver1 : VERSIONS) {
+      for (String ver2 : VERSIONS) {
+        assertSameOrdering(version(0, ver1, "1"), version(0, ver2, "1"));
+        assertSameOrdering(version(0, "1", ver1), version(0, "1", ver2));
+        assertSameOrdering(version(0, ver1, ver2), version(0, ver2, ver1));
+      }
+    }
+  }
+
+  @Test
+  public void orderOfKeysIsOrderOfEpochs() throws Exception {
+    for (int epoch1 : EPOCHS) {
+      for (int epoch2 : EPOCHS) {
+        assertSameOrdering(version(epoch1, "2", "1"), version(epoch2, "1", "2"));
+      }
+    }
+  }
+
+  @Test
+  public void orderOfKeysIsOrderOfRandomVersions() throws Exception {
+    Random random = new Random(4711);
+    for (int i = 0; i < 100000; i++) {
+      assertSameOrdering(
+        version(random.nextInt(3), randomVersion(random), randomVersion(random)),
+        version(random.nextInt(3), randomVersion(random), randomVersion(random)));
+    }
+  }
+
+  private void assertSameOrdering(YumPackageVersion version1, YumPackageVersion version2) {
+    assertThat(version1 + " vs " + version2, signum(sortKey(version1).compareTo(sortKey(version2))),
+      is(signum(comparator.compare(version1, version2))));
+  }
+
+  private static YumPackageVersion version(int epoch, String ver, String rel) {
+    YumPackageVersion version = new YumPackageVersion();
+    version.setEpoch(epoch);
+    version.setVer(ver);
+    version.setRel(rel);
+    return version;
+  }
+
+  private static String randomVersion(Random random) {
+    StringBuilder version = new StringBuilder();
+    int length = random.nextInt(8);
+    for (int i = 0; i < length; i++) {
+      version.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+    return version.toString();
+  }
+}
@@ -36,7 +36,7 @@ public class SecurityTestConfig {
   @Bean
   public StorageService gridFsService() {
     FileStorageService fileStorageService = mock(FileStorageService.class);
-    return new StorageService(fileStorageService, null, null);
+    return new StorageService(fileStorageService, null, null, null, null, null, null);
   }
 
   @Bean
@@ -44,6 +44,6 @@ public class SecurityTestConfig {
     MongoTemplate mongoTemplate = mock(MongoTemplate.class);
     DBCollection mockCollection = mock(DBCollection.class);
     when(mongoTemplate.getCollection(anyString())).thenReturn(mockCollection);
-    return new GridFsFileStorageService(null, null, mongoTemplate);
+    return new GridFsFileStorageService(null, null, mongoTemplate, null);
   }
 }
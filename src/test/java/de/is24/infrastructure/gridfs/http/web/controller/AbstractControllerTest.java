@@ -2,7 +2,7 @@ package de.is24.infrastructure.gridfs.http.web.controller;
 
 import de.is24.infrastructure.gridfs.http.gridfs.GridFsFileStorageService;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
+import de.is24.infrastructure.gridfs.http.metadata.scheduling.MetadataGenerationExecutor;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import org.junit.Before;
 import org.junit.runner.RunWith;
@@ -25,7 +25,7 @@ public abstract class AbstractControllerTest {
   @Mock
   protected StorageService storageService;
   @Mock
-  protected MetadataService metadataService;
+  protected MetadataGenerationExecutor generationExecutor;
   @Mock
   protected RepoService repoService;
   
@@ -35,7 +35,7 @@ public abstract class AbstractControllerTest {
   public void setUp() throws Exception {
     mockMvc = standaloneSetup(
                 new FileController(storageService, fileStorageService),
-                new MetadataController(metadataService, repoService),
+                new MetadataController(generationExecutor, repoService),
                 new RepositoryController(storageService, repoService),
                 new PropagationController(storageService)
     ).build();
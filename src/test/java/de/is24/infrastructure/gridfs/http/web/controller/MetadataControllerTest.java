@@ -1,7 +1,6 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
-import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import org.junit.Before;
 import org.junit.Test;
@@ -33,7 +32,7 @@ public class MetadataControllerTest extends AbstractControllerTest{
     performGenerateMetaDataPost()
         .andExpect(status().isCreated());
 
-    verify(metadataService).generateYumMetadata(ANY_REPONAME);
+    verify(generationExecutor).generateAndWait(ANY_REPONAME);
   }
   
   private ResultActions performGenerateMetaDataPost() throws Exception {